@@ -58,4 +58,15 @@ public class DataFilter implements IDataFilter
         return null;
     }
 
+
+    /**
+     * No filtering on field values by default, so that subclasses written
+     * before field filters were introduced keep working unchanged
+     */
+    @Override
+    public Collection<FieldFilter> getFieldFilters()
+    {
+        return null;
+    }
+
 }
@@ -0,0 +1,88 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.api.persistence;
+
+
+/**
+ * <p>
+ * Filter criteria for selecting data records based on the value of one of
+ * their fields.<br/>
+ * Scalar fields are filtered using a value range while vector fields
+ * (i.e. records or vectors with scalar components) are filtered using a
+ * bounding box. Storages supporting {@link IIndexedStorage} will use field
+ * indexes to resolve these criteria when available.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 30, 2015
+ */
+public class FieldFilter
+{
+    /**
+     * Path of field in the record structure (e.g. "location/lat").<br/>
+     * This field cannot be null.
+     */
+    public String fieldPath;
+
+
+    /**
+     * Minimum field value (inclusive), either a Number or a String.<br/>
+     * For vector fields, it applies to every component.<br/>
+     * If null, no lower bound is applied.
+     */
+    public Object minValue;
+
+
+    /**
+     * Maximum field value (inclusive), either a Number or a String.<br/>
+     * For vector fields, it applies to every component.<br/>
+     * If null, no upper bound is applied.
+     */
+    public Object maxValue;
+
+
+    /**
+     * Bounding box coordinates for vector fields ordered as
+     * [min1, min2, ..., max1, max2, ...] with one min/max pair per component.<br/>
+     * If not null, value range is ignored.
+     */
+    public double[] bbox;
+
+
+    /**
+     * Constructor for selecting records whose field value is within a range
+     * @param fieldPath {@link #fieldPath}
+     * @param minValue {@link #minValue}
+     * @param maxValue {@link #maxValue}
+     */
+    public FieldFilter(String fieldPath, Object minValue, Object maxValue)
+    {
+        this.fieldPath = fieldPath;
+        this.minValue = minValue;
+        this.maxValue = maxValue;
+    }
+
+
+    /**
+     * Constructor for selecting records whose vector field lies within a box
+     * @param fieldPath {@link #fieldPath}
+     * @param bbox {@link #bbox}
+     */
+    public FieldFilter(String fieldPath, double[] bbox)
+    {
+        this.fieldPath = fieldPath;
+        this.bbox = bbox;
+    }
+}
@@ -0,0 +1,56 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.api.persistence;
+
+import java.util.Iterator;
+
+
+/**
+ * <p>
+ * Optional interface implemented by storages maintaining aggregated values
+ * (i.e. rollups) of stored records over several time periods.<br/>
+ * Each aggregate record contains the min, max, mean, count and last values
+ * of all numeric fields of raw records received during its period, and is
+ * time stamped with the start of the period.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public interface IAggregateStorage
+{
+
+    /**
+     * Gets info about the coarsest aggregate record store whose period is
+     * smaller or equal to the requested resolution
+     * @param recordType name of raw record type
+     * @param resolution desired time resolution (in seconds)
+     * @return record store info or null if raw records should be used
+     */
+    public IRecordStoreInfo getAggregateRecordStore(String recordType, double resolution);
+
+
+    /**
+     * Gets an iterator of aggregate records matching the given filter, using
+     * the coarsest aggregation period smaller or equal to the requested resolution.<br/>
+     * The filter record type must be the one of raw records.
+     * @param filter filtering criteria (field filters are ignored)
+     * @param resolution desired time resolution (in seconds)
+     * @return iterator over aggregate records or null if raw records should be used
+     */
+    public Iterator<? extends IDataRecord> getAggregateRecordIterator(IDataFilter filter, double resolution);
+
+}
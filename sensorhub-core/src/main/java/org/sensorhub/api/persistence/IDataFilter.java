@@ -52,4 +52,17 @@ public interface IDataFilter
      * @return List of desired producer IDs
      */
     public Collection<String> getProducerIDs();
+    
+    
+    /**
+     * Gets filter criteria for selecting data records based on the value of some of
+     * their fields.<br/>
+     * Only data records matching all listed field criteria will be selected.<br/>
+     * If the list is null or empty, no filtering on field values will be applied.<br/>
+     * This method was added after the other ones so filters that don't
+     * extend {@link DataFilter} must now implement it (returning null keeps
+     * the previous behavior).
+     * @return List of field value criteria
+     */
+    public Collection<FieldFilter> getFieldFilters();
 }
@@ -20,7 +20,8 @@ import org.sensorhub.api.config.IGlobalConfig;
 import org.sensorhub.api.module.IModuleConfigRepository;
 import org.sensorhub.api.persistence.IPersistenceManager;
 import org.sensorhub.api.processing.IProcessingManager;
-import org.sensorhub.api.sensor.ISensorManager;
+import org.sensorhub.api.sensor.ISensorManager;
+import org.sensorhub.impl.common.EventBus;
 import org.sensorhub.impl.module.ModuleConfigJsonFile;
 import org.sensorhub.impl.module.ModuleRegistry;
 import org.sensorhub.impl.persistence.PersistenceManagerImpl;
@@ -80,7 +81,8 @@ public class SensorHub
     
     private SensorHub(IGlobalConfig config)
     {
-        this.config = config;        
+        this.config = config;
+        configureEventBus(config);
         IModuleConfigRepository configDB = new ModuleConfigJsonFile(config.getModuleConfigPath());
         this.registry = new ModuleRegistry(configDB);
     }
@@ -90,7 +92,16 @@ public class SensorHub
     {
         this.config = config;
         this.registry = registry;
-    }
+        configureEventBus(config);
+    }
+    
+    
+    private void configureEventBus(IGlobalConfig config)
+    {
+        // must be done before any module is loaded
+        if (config instanceof SensorHubConfig)
+            EventBus.getInstance().setConfig(((SensorHubConfig)config).getEventBusConfig());
+    }
     
     
     public void start()
@@ -122,6 +133,9 @@ public class SensorHub
         {
             log.error("Error while stopping SensorHub", e);
         }
+        
+        // stop event dispatch threads once all modules are stopped
+        EventBus.getInstance().shutdown();
     }
     
     
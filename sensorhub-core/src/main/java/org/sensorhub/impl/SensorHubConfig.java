@@ -16,6 +16,7 @@ package org.sensorhub.impl;
 
 import java.io.File;
 import org.sensorhub.api.config.IGlobalConfig;
+import org.sensorhub.impl.common.EventBusConfig;
 
 
 /**
@@ -30,6 +31,7 @@ public class SensorHubConfig implements IGlobalConfig
 {
     private String moduleConfigPath;
     private String baseStoragePath;
+    private EventBusConfig eventBusConfig = new EventBusConfig();
     
     
     public SensorHubConfig()
@@ -61,6 +63,18 @@ public class SensorHubConfig implements IGlobalConfig
     }
     
 
+    public EventBusConfig getEventBusConfig()
+    {
+        return eventBusConfig;
+    }
+
+
+    public void setEventBusConfig(EventBusConfig eventBusConfig)
+    {
+        this.eventBusConfig = eventBusConfig;
+    }
+    
+
     @Override
     public String getProperty(String property)
     {
@@ -0,0 +1,89 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.common;
+
+import org.sensorhub.api.config.DisplayInfo;
+
+
+/**
+ * <p>
+ * Configuration of asynchronous event dispatching for a given producer/topic.<br/>
+ * Events published on matching topics are queued separately for each listener
+ * and delivered by the event bus worker pool.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 20, 2015
+ */
+public class AsyncDispatchConfig
+{
+
+    /**
+     * Behavior of the handler when a listener queue is full
+     */
+    public enum OverflowPolicy
+    {
+        /** publisher waits until room is available in the queue */
+        BLOCK,
+
+        /** oldest queued event is discarded to make room for the new one */
+        DROP_OLDEST,
+
+        /** new event is discarded */
+        DROP_NEWEST,
+
+        /** new event replaces the most recent queued event from the same source */
+        COALESCE
+    }
+
+
+    @DisplayInfo(label="Module ID", desc="Local ID of producer module")
+    public String moduleID;
+
+
+    @DisplayInfo(desc="Event topic (e.g. output name). Leave empty to select all topics of the module")
+    public String topic;
+
+
+    @DisplayInfo(label="Queue Size", desc="Maximum number of events queued for each listener")
+    public int queueSize = 64;
+
+
+    @DisplayInfo(label="Overflow Policy", desc="Action taken when a listener queue is full")
+    public OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+
+    public AsyncDispatchConfig()
+    {
+    }
+
+
+    public AsyncDispatchConfig(String moduleID, String topic, int queueSize, OverflowPolicy overflowPolicy)
+    {
+        this.moduleID = moduleID;
+        this.topic = topic;
+        this.queueSize = queueSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+
+    protected boolean matches(String moduleID, String topic)
+    {
+        if (this.moduleID == null || !this.moduleID.equals(moduleID))
+            return false;
+
+        return (this.topic == null || this.topic.isEmpty() || this.topic.equals(topic));
+    }
+}
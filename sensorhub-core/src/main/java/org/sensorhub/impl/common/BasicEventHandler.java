@@ -15,11 +15,10 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 package org.sensorhub.impl.common;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
-import java.util.Iterator;
-import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicReference;
 import org.sensorhub.api.common.Event;
 import org.sensorhub.api.common.IEventHandler;
 import org.sensorhub.api.common.IEventListener;
@@ -29,17 +28,23 @@ import org.sensorhub.api.common.IEventListener;
  * <p>
  * Basic implementation of a synchronous event manager.
  * </p><p>
- * We have to take care of cases of calls to register/unregister initiated
- * synchronously (in same thread) by listeners while an event is being dispatched.
- * This is done by using temporary lists and committing changes that occured during
- * the iteration only at the end of the call to publish().
+ * Listeners are kept in an immutable array that is replaced atomically
+ * (copy-on-write) each time a listener is added or removed. Publishing an
+ * event thus never takes a lock and several threads can publish on the same
+ * handler concurrently. Calls to register/unregister initiated synchronously
+ * by listeners while an event is being dispatched are naturally taken into
+ * account at the next call to publish() since dispatching iterates on a
+ * snapshot of the array.
  * </p><p>
- * Likewise recursive calls to publish have to be handled as well. This is done 
- * by accumulating events in a queue and dispatching each one in their own loop,
- * thus avoiding recursive calls to publish while iterating.
+ * Recursive calls to publish (i.e. made by a listener in the same thread)
+ * are handled by accumulating events in a per-thread queue and dispatching
+ * each one in their own loop, thus avoiding recursive calls to publish while
+ * iterating.
  * </p><p>
- * We use weak references in the main list of listeners to prevent memory leaks in
- * cases where listeners forget to unregister themselves.
+ * We use weak references in the list of listeners to prevent memory leaks in
+ * cases where listeners forget to unregister themselves. Cleared references
+ * are skipped during dispatch and purged when the listener array is next
+ * modified.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -47,116 +52,148 @@ import org.sensorhub.api.common.IEventListener;
  */
 public class BasicEventHandler implements IEventHandler
 {
-    List<WeakReference<IEventListener>> listeners = new ArrayList<WeakReference<IEventListener>>();
-    List<IEventListener> toDelete = new ArrayList<IEventListener>();
-    List<IEventListener> toAdd = new ArrayList<IEventListener>();
-    Deque<Event<?>> eventQueue = new LinkedBlockingDeque<Event<?>>();
-    boolean inPublish = false;
+    static final ListenerRef[] EMPTY = new ListenerRef[0];
+    
+    final AtomicReference<ListenerRef[]> listeners = new AtomicReference<ListenerRef[]>(EMPTY);
+    final ThreadLocal<Deque<Event<?>>> pendingEvents = new ThreadLocal<Deque<Event<?>>>();
     
     
-    @Override
-    public synchronized void registerListener(IEventListener listener)
+    static final class ListenerRef extends WeakReference<IEventListener>
     {
-        if (!listeners.contains(listener))
+        ListenerRef(IEventListener listener)
         {
-            // add directly or through temporary list if publishing
-            if (!inPublish)
-                addWeakRef(listener);
-            else
-                toAdd.add(listener);
+            super(listener);
         }
     }
 
 
     @Override
-    public synchronized void unregisterListener(IEventListener listener)
+    public void registerListener(IEventListener listener)
     {
-        // remove directly or through temporary list if publishing
-        if (!inPublish)
-            removeWeakRef(listener);
-        else
-            toDelete.add(listener);
+        ListenerRef newRef = new ListenerRef(listener);
+        
+        while (true)
+        {
+            ListenerRef[] current = listeners.get();
+            if (indexOf(current, listener) >= 0)
+                return;
+            
+            // copy live references + new listener
+            ListenerRef[] updated = copyLive(current, null, newRef);
+            if (listeners.compareAndSet(current, updated))
+                return;
+        }
     }
     
     
     @Override
-    public synchronized void publishEvent(Event<?> e)
+    public void unregisterListener(IEventListener listener)
     {
-        // case of recursive call
-        if (inPublish)
+        while (true)
         {
-            eventQueue.addLast(e);
-        }
-        else
-        {        
-            try
-            {
-                inPublish = true;
-                for (Iterator<WeakReference<IEventListener>> it = listeners.iterator(); it.hasNext(); )
-                {
-                    IEventListener listener = it.next().get();
-                    if (listener != null)
-                        listener.handleEvent(e);
-                    else
-                        it.remove(); // purge cleared references
-                }
-            }
-            finally
-            {
-                // make sure we end our publish session even in case of uncaught error
-                inPublish = false;
-                commitChanges();
-            }
+            ListenerRef[] current = listeners.get();
+            if (indexOf(current, listener) < 0)
+                return;
+            
+            // copy all live references except the one to remove
+            ListenerRef[] updated = copyLive(current, listener, null);
+            if (listeners.compareAndSet(current, updated))
+                return;
         }
     }
     
     
-    private final void commitChanges()
+    @Override
+    public void publishEvent(Event<?> e)
     {
-        commitRemoves();
-        commitAdds();
+        // case of recursive call in the same thread
+        Deque<Event<?>> queue = pendingEvents.get();
+        if (queue != null)
+        {
+            queue.addLast(e);
+            return;
+        }
         
-        while (!eventQueue.isEmpty())
-            publishEvent(eventQueue.pollFirst());
+        queue = new ArrayDeque<Event<?>>(4);
+        pendingEvents.set(queue);
+        try
+        {
+            do
+            {
+                dispatch(e);
+                e = queue.pollFirst();
+            }
+            while (e != null);
+        }
+        finally
+        {
+            // make sure we end our publish session even in case of uncaught error
+            pendingEvents.remove();
+        }
     }
     
     
-    private final void commitAdds()
+    private final void dispatch(Event<?> e)
     {
-        for (IEventListener listener: toAdd)
-            addWeakRef(listener);
-        toAdd.clear();
+        // cleared references are only skipped here so that publishing never
+        // modifies the array, they are purged on next register/unregister
+        for (ListenerRef ref: listeners.get())
+        {
+            IEventListener listener = ref.get();
+            if (listener != null)
+                listener.handleEvent(e);
+        }
     }
     
     
-    private final void commitRemoves()
+    private static final int indexOf(ListenerRef[] refs, IEventListener listener)
     {
-        for (IEventListener listener: toDelete)
-            removeWeakRef(listener);
-        toDelete.clear();
+        for (int i = 0; i < refs.length; i++)
+        {
+            if (refs[i].get() == listener)
+                return i;
+        }
+        return -1;
     }
     
     
-    private final void addWeakRef(IEventListener listener)
+    /*
+     * Builds a new array with all live references of the source array,
+     * except the one pointing to the excluded listener if any, and
+     * with the added reference at the end if any
+     */
+    private static final ListenerRef[] copyLive(ListenerRef[] src, IEventListener excluded, ListenerRef added)
     {
-        listeners.add(new WeakReference<IEventListener>(listener));
-    }
+        ListenerRef[] dest = new ListenerRef[src.length + 1];
+        int i = 0;
     
-    
-    private final void removeWeakRef(IEventListener listenerToRemove)
-    {
-        for (Iterator<WeakReference<IEventListener>> it = listeners.iterator(); it.hasNext(); )
+        for (ListenerRef ref: src)
         {
-            IEventListener listener = it.next().get();
-            if (listener == null || listener == listenerToRemove)  // also purge cleared references
-                it.remove();
+            IEventListener listener = ref.get();
+            if (listener != null && listener != excluded)
+                dest[i++] = ref;
         }
+    
+        if (added != null)
+            dest[i++] = added;
+        
+        return (i == dest.length) ? dest : Arrays.copyOf(dest, i);
     }
 
 
     @Override
     public void clearAllListeners()
     {
-        listeners.clear();        
+        listeners.set(EMPTY);
+    }
+    
+    
+    /**
+     * @return the number of listeners currently referenced by this handler,
+     * including the ones that were garbage collected but not purged yet
+     */
+    public int getNumListeners()
+    {
+        return listeners.get().length;
     }
 }
@@ -0,0 +1,473 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.common;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventHandler;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.impl.common.AsyncDispatchConfig.OverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <p>
+ * Asynchronous event handler with one bounded queue per listener.
+ * </p><p>
+ * Events are delivered to each listener by tasks submitted to a shared
+ * executor, so that a slow listener never blocks the publisher thread
+ * (unless the {@link OverflowPolicy#BLOCK} policy is selected) nor the
+ * other listeners of the same topic. Events are always delivered to a
+ * given listener in the order they were published, and never concurrently.
+ * </p><p>
+ * Like {@link BasicEventHandler}, listeners are referenced through weak
+ * references to prevent memory leaks when they forget to unregister.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 20, 2015
+ */
+public class BoundedAsyncEventHandler implements IEventHandler
+{
+    private static final Logger log = LoggerFactory.getLogger(BoundedAsyncEventHandler.class);
+    private static final int MAX_EVENTS_PER_TASK = 32;
+
+    final Executor executor;
+    final int queueSize;
+    final OverflowPolicy overflowPolicy;
+    final List<ListenerQueue> listenerQueues = new CopyOnWriteArrayList<ListenerQueue>();
+
+
+    /**
+     * Statistics of event delivery to a single listener
+     */
+    public static class ListenerStats
+    {
+        protected String listener;
+        protected int queueDepth;
+        protected long deliveredCount;
+        protected long droppedCount;
+        protected long currentLag;
+        protected long maxLag;
+
+        /**
+         * @return String representation of the listener
+         */
+        public String getListener()
+        {
+            return listener;
+        }
+
+        /**
+         * @return Number of events currently waiting in this listener queue
+         */
+        public int getQueueDepth()
+        {
+            return queueDepth;
+        }
+
+        /**
+         * @return Total number of events delivered to the listener
+         */
+        public long getDeliveredCount()
+        {
+            return deliveredCount;
+        }
+
+        /**
+         * @return Total number of events discarded or coalesced because the queue was full
+         */
+        public long getDroppedCount()
+        {
+            return droppedCount;
+        }
+
+        /**
+         * @return Time spent in the queue by the oldest pending event (in ms)
+         */
+        public long getCurrentLag()
+        {
+            return currentLag;
+        }
+
+        /**
+         * @return Maximum time spent in the queue by an event so far (in ms)
+         */
+        public long getMaxLag()
+        {
+            return maxLag;
+        }
+
+        @Override
+        public String toString()
+        {
+            return listener + ": depth=" + queueDepth + ", delivered=" + deliveredCount +
+                   ", dropped=" + droppedCount + ", lag=" + currentLag + "ms, maxLag=" + maxLag + "ms";
+        }
+    }
+
+
+    /*
+     * Queued event with its enqueue time (used for computing lag)
+     */
+    static class QueuedEvent
+    {
+        Event<?> event;
+        long enqueueTime;
+
+        QueuedEvent(Event<?> event)
+        {
+            this.event = event;
+            this.enqueueTime = System.nanoTime();
+        }
+    }
+
+
+    /*
+     * Bounded event queue attached to one listener.
+     * A single task is ever scheduled at any given time for each queue so
+     * events are delivered sequentially to the listener.
+     */
+    class ListenerQueue implements Runnable
+    {
+        final WeakReference<IEventListener> listenerRef;
+        final String listenerName;
+        final ArrayDeque<QueuedEvent> queue = new ArrayDeque<QueuedEvent>();
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notFull = lock.newCondition();
+        final AtomicLong deliveredCount = new AtomicLong();
+        final AtomicLong droppedCount = new AtomicLong();
+        volatile long maxLag;
+        volatile boolean closed;
+        volatile Thread dispatchThread;
+        boolean scheduled;
+
+        ListenerQueue(IEventListener listener)
+        {
+            this.listenerRef = new WeakReference<IEventListener>(listener);
+            this.listenerName = listener.getClass().getSimpleName() + '@' + Integer.toHexString(System.identityHashCode(listener));
+        }
+
+        void offer(Event<?> e)
+        {
+            boolean schedule = false;
+
+            lock.lock();
+            try
+            {
+                if (closed)
+                    return;
+
+                if (queue.size() >= queueSize && !handleOverflow(e))
+                    return;
+
+                queue.addLast(new QueuedEvent(e));
+                if (!scheduled)
+                {
+                    scheduled = true;
+                    schedule = true;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (schedule)
+                schedule();
+        }
+
+        /*
+         * Called with lock held when queue is full
+         * Returns true if the new event should be added to the queue
+         */
+        private boolean handleOverflow(Event<?> e)
+        {
+            switch (overflowPolicy)
+            {
+                case DROP_NEWEST:
+                    droppedCount.incrementAndGet();
+                    return false;
+
+                case DROP_OLDEST:
+                    queue.pollFirst();
+                    droppedCount.incrementAndGet();
+                    return true;
+
+                case COALESCE:
+                    // replace most recent queued event from the same source
+                    Iterator<QueuedEvent> it = queue.descendingIterator();
+                    while (it.hasNext())
+                    {
+                        QueuedEvent qe = it.next();
+                        if (qe.event.getSource() == e.getSource() && qe.event.getClass() == e.getClass())
+                        {
+                            qe.event = e;
+                            droppedCount.incrementAndGet();
+                            return false;
+                        }
+                    }
+                    queue.pollFirst();
+                    droppedCount.incrementAndGet();
+                    return true;
+
+                default:
+                    // don't block if event is published by the listener itself
+                    // while processing an event, since this would deadlock
+                    if (Thread.currentThread() == dispatchThread)
+                        return true;
+
+                    try
+                    {
+                        while (queue.size() >= queueSize && !closed)
+                            notFull.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+                    return !closed;
+            }
+        }
+
+        private void schedule()
+        {
+            try
+            {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException ex)
+            {
+                log.error("Cannot dispatch event to listener " + listenerName, ex);
+                lock.lock();
+                try
+                {
+                    scheduled = false;
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            dispatchThread = Thread.currentThread();
+
+            try
+            {
+                for (int i = 0; i < MAX_EVENTS_PER_TASK; i++)
+                {
+                    QueuedEvent qe;
+                    lock.lock();
+                    try
+                    {
+                        qe = queue.pollFirst();
+                        if (qe == null)
+                        {
+                            scheduled = false;
+                            return;
+                        }
+                        notFull.signal();
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+
+                    long lag = (System.nanoTime() - qe.enqueueTime) / 1000000L;
+                    if (lag > maxLag)
+                        maxLag = lag;
+
+                    IEventListener listener = listenerRef.get();
+                    if (listener == null)
+                    {
+                        // purge cleared references
+                        close();
+                        listenerQueues.remove(this);
+                        return;
+                    }
+
+                    try
+                    {
+                        listener.handleEvent(qe.event);
+                        deliveredCount.incrementAndGet();
+                    }
+                    catch (Throwable ex)
+                    {
+                        log.error("Uncaught exception while dispatching event to listener " + listenerName, ex);
+                    }
+                }
+            }
+            finally
+            {
+                dispatchThread = null;
+            }
+
+            // reschedule ourself to let other listeners run if more events are pending
+            boolean reschedule;
+            lock.lock();
+            try
+            {
+                reschedule = !queue.isEmpty() && !closed;
+                scheduled = reschedule;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (reschedule)
+                schedule();
+        }
+
+        void close()
+        {
+            lock.lock();
+            try
+            {
+                closed = true;
+                queue.clear();
+                notFull.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        ListenerStats getStats()
+        {
+            ListenerStats stats = new ListenerStats();
+            stats.listener = listenerName;
+            stats.deliveredCount = deliveredCount.get();
+            stats.droppedCount = droppedCount.get();
+            stats.maxLag = maxLag;
+
+            lock.lock();
+            try
+            {
+                stats.queueDepth = queue.size();
+                QueuedEvent oldest = queue.peekFirst();
+                if (oldest != null)
+                    stats.currentLag = (System.nanoTime() - oldest.enqueueTime) / 1000000L;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            return stats;
+        }
+    }
+
+
+    public BoundedAsyncEventHandler(Executor executor, int queueSize, OverflowPolicy overflowPolicy)
+    {
+        if (queueSize < 1)
+            throw new IllegalArgumentException("Queue size must be at least 1");
+
+        this.executor = executor;
+        this.queueSize = queueSize;
+        this.overflowPolicy = (overflowPolicy != null) ? overflowPolicy : OverflowPolicy.BLOCK;
+    }
+
+
+    @Override
+    public void registerListener(IEventListener listener)
+    {
+        synchronized (listenerQueues)
+        {
+            if (findQueue(listener) == null)
+                listenerQueues.add(new ListenerQueue(listener));
+        }
+    }
+
+
+    @Override
+    public void unregisterListener(IEventListener listener)
+    {
+        synchronized (listenerQueues)
+        {
+            ListenerQueue q = findQueue(listener);
+            if (q != null)
+            {
+                q.close();
+                listenerQueues.remove(q);
+            }
+        }
+    }
+
+
+    @Override
+    public void publishEvent(Event<?> e)
+    {
+        for (ListenerQueue q: listenerQueues)
+            q.offer(e);
+    }
+
+
+    @Override
+    public void clearAllListeners()
+    {
+        synchronized (listenerQueues)
+        {
+            for (ListenerQueue q: listenerQueues)
+                q.close();
+            listenerQueues.clear();
+        }
+    }
+
+
+    /**
+     * Retrieves queue depth, drop count and lag for each listener.<br/>
+     * This is useful to identify which consumer is falling behind.
+     * @return list of statistics, one entry per registered listener
+     */
+    public List<ListenerStats> getListenerStats()
+    {
+        List<ListenerStats> stats = new ArrayList<ListenerStats>(listenerQueues.size());
+        for (ListenerQueue q: listenerQueues)
+            stats.add(q.getStats());
+        return stats;
+    }
+
+
+    private final ListenerQueue findQueue(IEventListener listener)
+    {
+        for (ListenerQueue q: listenerQueues)
+        {
+            if (q.listenerRef.get() == listener)
+                return q;
+        }
+
+        return null;
+    }
+}
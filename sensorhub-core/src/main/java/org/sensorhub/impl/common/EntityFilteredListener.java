@@ -0,0 +1,60 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.common;
+
+import java.lang.ref.WeakReference;
+import org.sensorhub.api.common.EntityEvent;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+
+
+/**
+ * <p>
+ * Listener wrapper forwarding only events related to a given entity.<br/>
+ * The wrapped listener is weakly referenced so that the wrapper doesn't
+ * prevent it from being garbage collected.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 24, 2015
+ */
+class EntityFilteredListener implements IEventListener
+{
+    final String moduleID;
+    final String topic;
+    final String entityID;
+    final WeakReference<IEventListener> listenerRef;
+    
+    
+    EntityFilteredListener(String moduleID, String topic, String entityID, IEventListener listener)
+    {
+        this.moduleID = moduleID;
+        this.topic = topic;
+        this.entityID = entityID;
+        this.listenerRef = new WeakReference<IEventListener>(listener);
+    }
+    
+    
+    @Override
+    public void handleEvent(Event<?> e)
+    {
+        if (e instanceof EntityEvent && entityID.equals(((EntityEvent<?>)e).getRelatedEntityID()))
+        {
+            IEventListener listener = listenerRef.get();
+            if (listener != null)
+                listener.handleEvent(e);
+        }
+    }
+}
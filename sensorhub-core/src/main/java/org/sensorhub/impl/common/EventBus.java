@@ -14,10 +14,24 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.common;
 
-import java.util.HashMap;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.sensorhub.api.common.IEventHandler;
 import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.impl.common.BoundedAsyncEventHandler.ListenerStats;
 
 
 /**
@@ -27,7 +41,18 @@ import org.sensorhub.api.common.IEventListener;
  * this class (instead of directly with the source module) in order to
  * benefit from more advanced event dispatching implementations such as
  * distributed event messaging.<br/>
- * Actual dispatching of events is done
+ * Actual dispatching of events is done synchronously in the publisher thread
+ * by default, unless asynchronous dispatch is enabled for the producer/topic
+ * in the {@link EventBusConfig}.
+ * </p><p>
+ * Handlers are indexed by module ID, then by topic (e.g. output name) in
+ * concurrent maps so registrations don't contend on a global lock.
+ * Listeners can subscribe to all topics of a module, or to a topic of all
+ * modules, using the {@link #ANY} wildcard. Wildcard subscriptions are
+ * resolved when they are registered (for existing handlers) and when new
+ * matching handlers are created, so dispatching an event never involves
+ * any topic matching. Listeners can also subscribe to events of a single
+ * entity of a multi-source producer.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -35,13 +60,58 @@ import org.sensorhub.api.common.IEventListener;
  */
 public class EventBus
 {
-    public static final String MAIN_TOPIC = "_MAIN"; 
+    public static final String MAIN_TOPIC = "_MAIN";
+    public static final String ANY = "*";
+    private static final String NULL_ID = "_NULL";
     
     private static EventBus singletonInstance;
-    private Map<String, IEventHandler> eventHandlers;
+    private final ConcurrentMap<String, ConcurrentMap<String, IEventHandler>> eventHandlers;
+    private final List<Subscription> wildcardSubscriptions;
+    private final Map<IEventListener, List<EntityFilteredListener>> entityListeners;
+    private volatile EventBusConfig config;
+    private ExecutorService dispatchPool;
     
     
-    public static EventBus getInstance()
+    /*
+     * Executor given to asynchronous handlers. The pool is looked up on each
+     * dispatch so that handlers held by producers keep working after the pool
+     * has been shut down and recreated when the hub is restarted.
+     */
+    private final Executor dispatchExecutor = new Executor() {
+        @Override
+        public void execute(Runnable task)
+        {
+            getDispatchPool().execute(task);
+        }
+    };
+    
+    
+    /*
+     * Wildcard subscription, kept so that it can be applied to handlers
+     * created after the listener was registered
+     */
+    static class Subscription
+    {
+        final String moduleID;
+        final String topic;
+        final WeakReference<IEventListener> listenerRef;
+        
+        Subscription(String moduleID, String topic, IEventListener listener)
+        {
+            this.moduleID = moduleID;
+            this.topic = topic;
+            this.listenerRef = new WeakReference<IEventListener>(listener);
+        }
+        
+        boolean matches(String moduleID, String topic)
+        {
+            return (this.moduleID == ANY || this.moduleID.equals(moduleID)) &&
+                   (this.topic == ANY || this.topic.equals(topic));
+        }
+    }
+    
+    
+    public static synchronized EventBus getInstance()
     {
         if (singletonInstance == null)
             singletonInstance = new EventBus();
@@ -52,84 +122,352 @@ public class EventBus
     
     private EventBus()
     {
-        eventHandlers = new HashMap<String, IEventHandler>();
+        eventHandlers = new ConcurrentHashMap<String, ConcurrentMap<String, IEventHandler>>();
+        wildcardSubscriptions = new CopyOnWriteArrayList<Subscription>();
+        entityListeners = new WeakHashMap<IEventListener, List<EntityFilteredListener>>();
+        config = new EventBusConfig();
+    }
+    
+    
+    /**
+     * Sets the event bus configuration.<br/>
+     * Only handlers created after this call are affected, so this should be
+     * called before modules are loaded.
+     * @param config
+     */
+    public void setConfig(EventBusConfig config)
+    {
+        this.config = (config != null) ? config : new EventBusConfig();
     }
     
     
-    public synchronized IEventHandler registerProducer(String moduleID)
+    public EventBusConfig getConfig()
+    {
+        return config;
+    }
+    
+    
+    public IEventHandler registerProducer(String moduleID)
     {
         return registerProducer(moduleID, MAIN_TOPIC);
     }
     
     
-    public synchronized IEventHandler registerProducer(String moduleID, String topic)
+    public IEventHandler registerProducer(String moduleID, String topic)
     {
-        String key = getKey(moduleID, topic);
-        return ensureHandler(key);
+        return ensureHandler(moduleID, topic);
     }
     
     
-    public synchronized IEventHandler registerProducer(String moduleID, String topic, IEventHandler handlerImpl)
+    public IEventHandler registerProducer(String moduleID, String topic, IEventHandler handlerImpl)
     {
-        String key = getKey(moduleID, topic);
+        moduleID = normalize(moduleID);
+        topic = normalize(topic);
+        ConcurrentMap<String, IEventHandler> moduleHandlers = getModuleHandlers(moduleID, true);
         
         // return already registered handler if any
-        IEventHandler handler = eventHandlers.get(key);
+        IEventHandler handler = moduleHandlers.get(topic);
         if (handler != null)
             return handler;
         
         // otherwise register the provided handler
         if (handlerImpl != null)
-            eventHandlers.put(key, handlerImpl);
+        {
+            handler = moduleHandlers.putIfAbsent(topic, handlerImpl);
+            if (handler != null)
+                return handler;
+            attachWildcardSubscriptions(moduleID, topic, handlerImpl);
+        }
         
         return handlerImpl;
     }
     
     
-    public synchronized void unregisterProducer(String moduleID, String topic)
+    public void unregisterProducer(String moduleID, String topic)
     {
-        String key = getKey(moduleID, topic);
-        eventHandlers.remove(key);
+        ConcurrentMap<String, IEventHandler> moduleHandlers = getModuleHandlers(moduleID, false);
+        if (moduleHandlers != null)
+            moduleHandlers.remove(normalize(topic));
     }
     
     
-    public synchronized void registerListener(String moduleID, String topic, IEventListener listener)
+    /**
+     * Registers a listener with the given module and topic.<br/>
+     * Either the module ID or the topic (or both) can be set to {@link #ANY}
+     * to receive events from all matching producers, including the ones
+     * registered after this call.
+     * @param moduleID local ID of producer module or {@link #ANY}
+     * @param topic topic name (e.g. output name) or {@link #ANY}
+     * @param listener
+     */
+    public void registerListener(String moduleID, String topic, IEventListener listener)
     {
-        String key = getKey(moduleID, topic);
-        // ensure the handler is created so we can register a listener before a producer!
-        IEventHandler handler = ensureHandler(key);
-        handler.registerListener(listener);
+        if (isWildcard(moduleID) || isWildcard(topic))
+        {
+            Subscription sub = new Subscription(normalize(moduleID), normalize(topic), listener);
+            wildcardSubscriptions.add(sub);
+            
+            // also register with all existing handlers
+            for (Entry<String, ConcurrentMap<String, IEventHandler>> moduleEntry: getMatchingModules(sub.moduleID))
+            {
+                for (Entry<String, IEventHandler> topicEntry: moduleEntry.getValue().entrySet())
+                {
+                    if (sub.matches(moduleEntry.getKey(), topicEntry.getKey()))
+                        topicEntry.getValue().registerListener(listener);
+                }
+            }
+        }
+        else
+        {
+            // ensure the handler is created so we can register a listener before a producer!
+            IEventHandler handler = ensureHandler(moduleID, topic);
+            handler.registerListener(listener);
+        }
+    }
+    
+    
+    /**
+     * Registers a listener to receive only events related to the given entity
+     * of a multi-source producer (i.e. entity events whose related entity ID
+     * matches the one provided).<br/>
+     * Wildcards are supported for module ID and topic as in {@link #registerListener(String, String, IEventListener)}
+     * @param moduleID local ID of producer module or {@link #ANY}
+     * @param topic topic name (e.g. output name) or {@link #ANY}
+     * @param entityID unique ID of entity
+     * @param listener
+     */
+    public void registerListener(String moduleID, String topic, String entityID, IEventListener listener)
+    {
+        if (entityID == null || ANY.equals(entityID))
+        {
+            registerListener(moduleID, topic, listener);
+            return;
+        }
+        
+        // keep wrapper alive as long as the listener itself
+        EntityFilteredListener filteredListener = new EntityFilteredListener(normalize(moduleID), normalize(topic), entityID, listener);
+        synchronized (entityListeners)
+        {
+            List<EntityFilteredListener> wrappers = entityListeners.get(listener);
+            if (wrappers == null)
+            {
+                wrappers = new CopyOnWriteArrayList<EntityFilteredListener>();
+                entityListeners.put(listener, wrappers);
+            }
+            wrappers.add(filteredListener);
+        }
+        
+        registerListener(moduleID, topic, filteredListener);
     }
 
 
-    public synchronized void unregisterListener(String moduleID, String topic, IEventListener listener)
+    public void unregisterListener(String moduleID, String topic, IEventListener listener)
     {
-        String key = getKey(moduleID, topic);
-        IEventHandler handler = eventHandlers.get(key);
-        if (handler != null)
-            handler.unregisterListener(listener);
+        String subModuleID = normalize(moduleID);
+        String subTopic = normalize(topic);
+        
+        // also unregister entity filters wrapping this listener
+        List<EntityFilteredListener> wrappers;
+        synchronized (entityListeners)
+        {
+            wrappers = entityListeners.get(listener);
+        }
+        if (wrappers != null)
+        {
+            for (EntityFilteredListener wrapper: wrappers)
+            {
+                if (wrapper.moduleID.equals(subModuleID) && wrapper.topic.equals(subTopic))
+                {
+                    unregisterListener(moduleID, topic, wrapper);
+                    wrappers.remove(wrapper);
+                }
+            }
+        }
+        
+        if (isWildcard(moduleID) || isWildcard(topic))
+        {
+            // remove wildcard subscription
+            for (Subscription sub: wildcardSubscriptions)
+            {
+                IEventListener subListener = sub.listenerRef.get();
+                if ((subListener == listener || subListener == null) && sub.moduleID.equals(subModuleID) && sub.topic.equals(subTopic))
+                    wildcardSubscriptions.remove(sub);
+            }
+            
+            // and unregister from all matching handlers
+            Subscription sub = new Subscription(subModuleID, subTopic, listener);
+            for (Entry<String, ConcurrentMap<String, IEventHandler>> moduleEntry: getMatchingModules(sub.moduleID))
+            {
+                for (Entry<String, IEventHandler> topicEntry: moduleEntry.getValue().entrySet())
+                {
+                    if (sub.matches(moduleEntry.getKey(), topicEntry.getKey()))
+                        topicEntry.getValue().unregisterListener(listener);
+                }
+            }
+        }
+        else
+        {
+            IEventHandler handler = getHandler(moduleID, topic);
+            if (handler != null)
+                handler.unregisterListener(listener);
+        }
+    }
+    
+    
+    /**
+     * Retrieves delivery statistics of each listener registered on the given topic
+     * @param moduleID
+     * @param topic
+     * @return list of statistics or an empty list if the topic is not dispatched asynchronously
+     */
+    public List<ListenerStats> getListenerStats(String moduleID, String topic)
+    {
+        IEventHandler handler = getHandler(moduleID, topic);
+        if (handler instanceof BoundedAsyncEventHandler)
+            return ((BoundedAsyncEventHandler)handler).getListenerStats();
+        
+        return Collections.<ListenerStats>emptyList();
+    }
+    
+    
+    /**
+     * Stops the thread pool used by asynchronous handlers.<br/>
+     * Handlers are kept since producers may still hold them, and a new pool
+     * is created the next time an event is dispatched asynchronously.
+     */
+    public synchronized void shutdown()
+    {
+        if (dispatchPool != null)
+        {
+            dispatchPool.shutdown();
+            dispatchPool = null;
+        }
+    }
+    
+    
+    private final boolean isWildcard(String id)
+    {
+        return ANY.equals(id);
+    }
+    
+    
+    /*
+     * Makes sure wildcards are all references to the ANY constant.
+     * Null IDs (e.g. modules without local ID) are also mapped to a
+     * sentinel value since concurrent maps don't accept null keys.
+     */
+    private final String normalize(String id)
+    {
+        if (id == null)
+            return NULL_ID;
+        return isWildcard(id) ? ANY : id;
+    }
+    
+    
+    private final IEventHandler getHandler(String moduleID, String topic)
+    {
+        ConcurrentMap<String, IEventHandler> moduleHandlers = getModuleHandlers(moduleID, false);
+        if (moduleHandlers == null)
+            return null;
+        return moduleHandlers.get(normalize(topic));
     }
     
     
-    private final IEventHandler ensureHandler(String key)
+    private final ConcurrentMap<String, IEventHandler> getModuleHandlers(String moduleID, boolean create)
     {
-        IEventHandler handler = eventHandlers.get(key);
+        moduleID = normalize(moduleID);
+        ConcurrentMap<String, IEventHandler> moduleHandlers = eventHandlers.get(moduleID);
         
-        // register new handleronly if non already exist for this key
+        if (moduleHandlers == null && create)
+        {
+            moduleHandlers = new ConcurrentHashMap<String, IEventHandler>();
+            ConcurrentMap<String, IEventHandler> existing = eventHandlers.putIfAbsent(moduleID, moduleHandlers);
+            if (existing != null)
+                moduleHandlers = existing;
+        }
+        
+        return moduleHandlers;
+    }
+    
+    
+    private final Iterable<Entry<String, ConcurrentMap<String, IEventHandler>>> getMatchingModules(String moduleID)
+    {
+        if (moduleID == ANY)
+            return eventHandlers.entrySet();
+        
+        ConcurrentMap<String, IEventHandler> moduleHandlers = eventHandlers.get(moduleID);
+        if (moduleHandlers == null)
+            return Collections.emptyList();
+        
+        Map<String, ConcurrentMap<String, IEventHandler>> singleModule = Collections.singletonMap(moduleID, moduleHandlers);
+        return singleModule.entrySet();
+    }
+    
+    
+    private final IEventHandler ensureHandler(String moduleID, String topic)
+    {
+        moduleID = normalize(moduleID);
+        topic = normalize(topic);
+        ConcurrentMap<String, IEventHandler> moduleHandlers = getModuleHandlers(moduleID, true);
+        IEventHandler handler = moduleHandlers.get(topic);
+        
+        // register new handler only if none already exist for this key
         if (handler == null)
         {
-            // TODO change to async dispatcher
-            handler = new BasicEventHandler();
-            eventHandlers.put(key, handler);
+            AsyncDispatchConfig asyncConf = config.getAsyncDispatchConfig(moduleID, topic);
+            if (asyncConf != null)
+                handler = new BoundedAsyncEventHandler(dispatchExecutor, asyncConf.queueSize, asyncConf.overflowPolicy);
+            else
+                handler = new BasicEventHandler();
+            
+            IEventHandler existing = moduleHandlers.putIfAbsent(topic, handler);
+            if (existing != null)
+                return existing;
+            
+            attachWildcardSubscriptions(moduleID, topic, handler);
         }
         
         return handler;
     }
     
     
-    private final String getKey(String moduleID, String topic)
+    /*
+     * Registers listeners of all matching wildcard subscriptions with a newly created handler.
+     * Since subscriptions are added before existing handlers are scanned, and handlers are
+     * added before subscriptions are scanned, a concurrent registration can at worst be
+     * applied twice, which is harmless since handlers ignore duplicate listeners.
+     */
+    private final void attachWildcardSubscriptions(String moduleID, String topic, IEventHandler handler)
     {
-        return moduleID + topic;
+        Iterator<Subscription> it = wildcardSubscriptions.iterator();
+        while (it.hasNext())
+        {
+            Subscription sub = it.next();
+            IEventListener listener = sub.listenerRef.get();
+            
+            if (listener == null)
+                wildcardSubscriptions.remove(sub); // purge cleared references
+            else if (sub.matches(moduleID, topic))
+                handler.registerListener(listener);
+        }
+    }
+    
+    
+    private final synchronized ExecutorService getDispatchPool()
+    {
+        if (dispatchPool == null)
+        {
+            final AtomicInteger threadCount = new AtomicInteger();
+            dispatchPool = Executors.newFixedThreadPool(Math.max(1, config.numDispatchThreads), new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "EventBus-dispatch-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        
+        return dispatchPool;
     }
-
 }
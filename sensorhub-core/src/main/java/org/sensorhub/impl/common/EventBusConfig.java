@@ -0,0 +1,62 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.sensorhub.api.config.DisplayInfo;
+
+
+/**
+ * <p>
+ * Configuration of the event bus.<br/>
+ * By default all topics are dispatched synchronously in the publisher thread.
+ * Topics listed in {@link #asyncDispatch} are dispatched asynchronously using
+ * a worker pool shared by all asynchronous handlers.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 20, 2015
+ */
+public class EventBusConfig
+{
+
+    @DisplayInfo(label="Dispatch Threads", desc="Number of threads in the pool used for asynchronous event dispatch")
+    public int numDispatchThreads = 4;
+
+
+    @DisplayInfo(label="Async Topics", desc="Producers and topics to dispatch asynchronously")
+    public List<AsyncDispatchConfig> asyncDispatch = new ArrayList<AsyncDispatchConfig>();
+
+
+    protected AsyncDispatchConfig getAsyncDispatchConfig(String moduleID, String topic)
+    {
+        // first look for exact topic match
+        for (AsyncDispatchConfig conf: asyncDispatch)
+        {
+            if (conf.topic != null && !conf.topic.isEmpty() && conf.matches(moduleID, topic))
+                return conf;
+        }
+
+        // then for module-wide setting
+        for (AsyncDispatchConfig conf: asyncDispatch)
+        {
+            if (conf.matches(moduleID, topic))
+                return conf;
+        }
+
+        return null;
+    }
+}
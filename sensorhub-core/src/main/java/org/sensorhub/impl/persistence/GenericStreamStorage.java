@@ -23,10 +23,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import net.opengis.gml.v32.AbstractFeature;
 import net.opengis.sensorml.v20.AbstractProcess;
 import net.opengis.swe.v20.DataBlock;
@@ -41,9 +44,11 @@ import org.sensorhub.api.data.IDataProducerModule;
 import org.sensorhub.api.data.IMultiSourceDataProducer;
 import org.sensorhub.api.data.IStreamingDataInterface;
 import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.IAggregateStorage;
 import org.sensorhub.api.persistence.IBasicStorage;
 import org.sensorhub.api.persistence.IFoiFilter;
 import org.sensorhub.api.persistence.IMultiSourceStorage;
+import org.sensorhub.api.persistence.IObsFilter;
 import org.sensorhub.api.persistence.IObsStorage;
 import org.sensorhub.api.persistence.IRecordStorageModule;
 import org.sensorhub.api.persistence.IDataFilter;
@@ -76,7 +81,7 @@ import org.vast.util.Bbox;
  * @author Alex Robin <alex.robin@sensiasoftware.com>
  * @since Feb 21, 2015
  */
-public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> implements IRecordStorageModule<StreamStorageConfig>, IObsStorage, IEventListener
+public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> implements IRecordStorageModule<StreamStorageConfig>, IObsStorage, IAggregateStorage, IEventListener
 {
     private static final Logger log = LoggerFactory.getLogger(GenericStreamStorage.class);
     
@@ -88,6 +93,9 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     long lastCommitTime = Long.MIN_VALUE;
     String currentFoi;
     Timer autoPurgeTimer;
+    WriteBehindWriter writeBehindWriter;
+    RecordRollups rollups;
+    Map<String, RecordRingBuffer> hotTier; // record type -> recent records
     
     
     @Override
@@ -113,6 +121,21 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
                 throw new StorageException("Cannot instantiate underlying storage " + storageConfig.moduleClass, e);
         }
         
+        // prepare rollups if enabled
+        if (config.rollupConfig != null && config.rollupConfig.enabled)
+            rollups = new RecordRollups(storage, config.rollupConfig);
+        
+        // prepare in-memory hot tier if enabled
+        if (config.hotTierConfig != null && config.hotTierConfig.enabled)
+            hotTier = new ConcurrentHashMap<String, RecordRingBuffer>();
+        
+        // start write-behind thread if enabled
+        if (config.writeBehindConfig != null && config.writeBehindConfig.enabled)
+        {
+            writeBehindWriter = new WriteBehindWriter(storage, config.writeBehindConfig, rollups);
+            writeBehindWriter.start();
+        }
+        
         // retrieve reference to data source
         ModuleRegistry moduleReg = SensorHub.getInstance().getModuleRegistry();
         dataSourceRef = (WeakReference<IDataProducerModule<?>>)moduleReg.getModuleRef(config.dataSourceID);
@@ -121,6 +144,13 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
         IDataProducerModule<?> dataSource = dataSourceRef.get();
         if (dataSource != null)
         {        
+            // register record types to aggregate
+            if (rollups != null)
+            {
+                for (IStreamingDataInterface output: getSelectedOutputs(dataSource))
+                    rollups.addRecordType(output.getName(), output.getRecordDescription());
+            }
+            
             // if storage is empty, initialize it
             if (storage.getLatestDataSourceDescription() == null)
                 configureStorageForDataSource(dataSource, storage);
@@ -129,6 +159,10 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
             else if (dataSource.getLastDescriptionUpdate() != Long.MIN_VALUE)
                 storage.storeDataSourceDescription(dataSource.getCurrentDescription());
             
+            // add rollup stores in case rollups were enabled after storage was initialized
+            if (rollups != null)
+                rollups.addRecordStores(storage);
+            
             // also init current FOI
             if (dataSource instanceof IMultiSourceDataProducer)
             {
@@ -175,6 +209,17 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
                 public void run()
                 {
                     policy.trimStorage(storage);
+                    
+                    // also drop purged records from hot tier
+                    if (hotTier != null)
+                    {
+                        for (Entry<String, RecordRingBuffer> entry: hotTier.entrySet())
+                        {
+                            double firstTime = storage.getRecordsTimeRange(entry.getKey())[0];
+                            if (!Double.isNaN(firstTime))
+                                entry.getValue().removeBefore(firstTime);
+                        }
+                    }
                 }
             };            
             autoPurgeTimer.schedule(task, 0, (long)(config.autoPurgeConfig.purgePeriod*1000)); 
@@ -227,27 +272,40 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     }
     
     
-    protected void ensureProducerInfo(String producerID)
+    protected void ensureProducerInfo(final String producerID)
     {
         if (storage instanceof IMultiSourceStorage)
         {
             if (((IMultiSourceStorage<?>)storage).getProducerIDs().contains(producerID))
                 return;
         
-            IDataProducerModule<?> dataSource = dataSourceRef.get();
+            final IDataProducerModule<?> dataSource = dataSourceRef.get();
             if (dataSource != null && dataSource instanceof IMultiSourceDataProducer)
             {
-                // create producer data store
-                IBasicStorage dataStore = ((IMultiSourceStorage<IBasicStorage>)storage).addDataStore(producerID);
-                
-                // save producer SensorML description if any
-                AbstractProcess sml = ((IMultiSourceDataProducer) dataSource).getCurrentDescription(producerID);
-                if (sml != null)
-                    dataStore.storeDataSourceDescription(sml);
-                
-                // create one data store for each sensor output
-                for (IStreamingDataInterface output: getSelectedOutputs(dataSource))
-                    dataStore.addRecordStore(output.getName(), output.getRecordDescription(), output.getRecommendedEncoding());
+                applyChange(new Runnable() {
+                    public void run()
+                    {
+                        // check again now that we hold the lock
+                        if (((IMultiSourceStorage<?>)storage).getProducerIDs().contains(producerID))
+                            return;
+                        
+                        // create producer data store
+                        IBasicStorage dataStore = ((IMultiSourceStorage<IBasicStorage>)storage).addDataStore(producerID);
+                        
+                        // save producer SensorML description if any
+                        AbstractProcess sml = ((IMultiSourceDataProducer) dataSource).getCurrentDescription(producerID);
+                        if (sml != null)
+                            dataStore.storeDataSourceDescription(sml);
+                        
+                        // create one data store for each sensor output
+                        for (IStreamingDataInterface output: getSelectedOutputs(dataSource))
+                            dataStore.addRecordStore(output.getName(), output.getRecordDescription(), output.getRecommendedEncoding());
+                        
+                        // and one for each rollup tier
+                        if (rollups != null)
+                            rollups.addRecordStores(dataStore);
+                    }
+                });
             }
         }
     }
@@ -264,6 +322,20 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
             timeStampIndexers.put(outputName, timeStampIndexer);
         }
         
+        // create hot tier buffer
+        if (hotTier != null && !hotTier.containsKey(outputName))
+        {
+            int maxRecords = config.hotTierConfig.maxRecords;
+            RecordRingBuffer buffer = new RecordRingBuffer(Math.min(1024, maxRecords), maxRecords);
+            
+            // records stored before we started are only in underlying storage
+            double lastTime = storage.getRecordsTimeRange(outputName)[1];
+            if (!Double.isNaN(lastTime))
+                buffer.setMinCompleteTime(Math.nextUp(lastTime));
+            
+            hotTier.put(outputName, buffer);
+        }
+        
         output.registerListener(this);
     }
     
@@ -285,6 +357,23 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
         
         if (autoPurgeTimer != null)
             autoPurgeTimer.cancel();
+        
+        // flush all queued records before closing storage
+        if (writeBehindWriter != null)
+        {
+            writeBehindWriter.stop();
+            writeBehindWriter = null;
+        }
+        
+        // otherwise write last rollup values
+        else if (rollups != null && storage != null)
+        {
+            rollups.writeOpenBuckets();
+            storage.commit();
+        }
+        
+        rollups = null;
+        hotTier = null;
 
         if (storage != null)
             storage.stop();
@@ -309,7 +398,8 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
             {
                 DataEvent dataEvent = (DataEvent)e;
                 boolean saveAutoCommitState = storage.isAutoCommit();
-                storage.setAutoCommit(false);
+                if (writeBehindWriter == null)
+                    storage.setAutoCommit(false);
                 
                 // get indexer for looking up time stamp value
                 String outputName = dataEvent.getSource().getName();
@@ -336,17 +426,43 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
                         foiID = currentFoi; 
                     
                     // store record with proper key
-                    ObsKey key = new ObsKey(outputName, entityID, foiID, time);                    
-                    storage.storeRecord(key, record);
+                    ObsKey key = new ObsKey(outputName, entityID, foiID, time);
+                    addToHotTier(key, record);
+                    if (writeBehindWriter != null)
+                    {
+                        // queue record for writer thread
+                        try
+                        {
+                            writeBehindWriter.store(key, record);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            Thread.currentThread().interrupt();
+                            log.warn("Interrupted while queuing record " + key.timeStamp + " for output " + outputName);
+                            return;
+                        }
+                    }
+                    else
+                    {
+                        storage.storeRecord(key, record);
+                        if (rollups != null)
+                            rollups.addRecord(key, record);
+                    }
                     
                     if (log.isTraceEnabled())
                         log.trace("Storing record " + key.timeStamp + " for output " + outputName);
                 }
                 
+                // in write-behind mode, writer thread takes care of commits
+                if (writeBehindWriter != null)
+                    return;
+                
                 // commit only when necessary
                 long now = System.currentTimeMillis();
                 if (lastCommitTime == Long.MIN_VALUE || (now - lastCommitTime) > config.minCommitPeriod)
                 {
+                    if (rollups != null)
+                        rollups.writeOpenBuckets();
                     storage.commit();
                     lastCommitTime = now;
                 }
@@ -365,7 +481,7 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
                     // only useful between restarts since it will be resetted to current time at startup...
                     
                     // TODO to manage this issue, first check that no other description is valid at the same time
-                    storage.storeDataSourceDescription(dataSourceRef.get().getCurrentDescription());
+                    storeDataSourceDescription(dataSourceRef.get().getCurrentDescription());
                 }
             }
             
@@ -379,7 +495,7 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
                 {
                     if (producerID != null)
                         ensureProducerInfo(producerID); // in case no data has been received for this producer yet
-                    ((IObsStorage) storage).storeFoi(producerID, foiEvent.getFoi());
+                    storeFoi(producerID, foiEvent.getFoi());
                 }
                 
                 // also remember as current FOI
@@ -392,14 +508,40 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     }
     
 
+    /**
+     * Gets the number of records received from the data source that are not
+     * yet durably committed to the underlying storage.<br/>
+     * This is always 0 when write-behind is disabled.
+     * @return number of records pending durability
+     */
+    public long getNumPendingRecords()
+    {
+        if (writeBehindWriter != null)
+            return writeBehindWriter.getNumPendingRecords();
+        return 0;
+    }
+    
+
     @Override
-    public void addRecordStore(String name, DataComponent recordStructure, DataEncoding recommendedEncoding)
+    public void addRecordStore(final String name, final DataComponent recordStructure, final DataEncoding recommendedEncoding)
     {
         checkStarted();
         
-        // register new record type with underlying storage
-        if (!storage.getRecordStores().containsKey(name))
-            storage.addRecordStore(name, recordStructure, recommendedEncoding);
+        applyChange(new Runnable() {
+            public void run()
+            {
+                // register new record type with underlying storage
+                if (!storage.getRecordStores().containsKey(name))
+                    storage.addRecordStore(name, recordStructure, recommendedEncoding);
+                
+                // also add rollup stores
+                if (rollups != null)
+                {
+                    rollups.addRecordType(name, recordStructure);
+                    rollups.addRecordStores(storage);
+                }
+            }
+        });
         
         // prepare to receive events
         IDataProducerModule<?> dataSource = dataSourceRef.get();
@@ -489,34 +631,54 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
 
 
     @Override
-    public void storeDataSourceDescription(AbstractProcess process)
+    public void storeDataSourceDescription(final AbstractProcess process)
     {
         checkStarted();
-        storage.storeDataSourceDescription(process);        
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.storeDataSourceDescription(process);
+            }
+        });
     }
 
 
     @Override
-    public void updateDataSourceDescription(AbstractProcess process)
+    public void updateDataSourceDescription(final AbstractProcess process)
     {
         checkStarted();
-        storage.updateDataSourceDescription(process);        
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.updateDataSourceDescription(process);
+            }
+        });
     }
 
 
     @Override
-    public void removeDataSourceDescription(double time)
+    public void removeDataSourceDescription(final double time)
     {
         checkStarted();
-        storage.removeDataSourceDescription(time);        
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.removeDataSourceDescription(time);
+            }
+        });
     }
 
 
     @Override
-    public void removeDataSourceDescriptionHistory(double startTime, double endTime)
+    public void removeDataSourceDescriptionHistory(final double startTime, final double endTime)
     {
         checkStarted();
-        storage.removeDataSourceDescriptionHistory(startTime, endTime);
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.removeDataSourceDescriptionHistory(startTime, endTime);
+            }
+        });
     }
 
 
@@ -524,13 +686,65 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     public Map<String, ? extends IRecordStoreInfo> getRecordStores()
     {
         checkStarted();
-        return storage.getRecordStores();
+        Map<String, ? extends IRecordStoreInfo> recordStores = storage.getRecordStores();
+        
+        // hide rollup stores since they don't contain data source records
+        Map<String, IRecordStoreInfo> rawStores = null;
+        for (String name: recordStores.keySet())
+        {
+            if (RecordRollups.isRollupName(name))
+            {
+                rawStores = new LinkedHashMap<String, IRecordStoreInfo>();
+                break;
+            }
+        }
+        
+        if (rawStores == null)
+            return recordStores;
+        
+        for (Entry<String, ? extends IRecordStoreInfo> entry: recordStores.entrySet())
+        {
+            if (!RecordRollups.isRollupName(entry.getKey()))
+                rawStores.put(entry.getKey(), entry.getValue());
+        }        
+        return rawStores;
+    }
+    
+    
+    @Override
+    public IRecordStoreInfo getAggregateRecordStore(String recordType, double resolution)
+    {
+        checkStarted();
+        if (rollups == null)
+            return null;
+        
+        String rollupName = rollups.selectRollup(recordType, resolution);
+        if (rollupName == null)
+            return null;
+        
+        return storage.getRecordStores().get(rollupName);
+    }
+
+
+    @Override
+    public Iterator<? extends IDataRecord> getAggregateRecordIterator(IDataFilter filter, double resolution)
+    {
+        checkStarted();
+        if (rollups == null)
+            return null;
+        
+        return rollups.getRecordIterator(filter, resolution);
     }
 
 
     public DataBlock getDataBlock(DataKey key)
     {
         checkStarted();
+        
+        RecordRingBuffer buffer = (hotTier != null) ? hotTier.get(key.recordType) : null;
+        if (buffer != null && buffer.isCompleteFrom(key.timeStamp))
+            return buffer.get(key);
+        
         return storage.getDataBlock(key);
     }
 
@@ -539,6 +753,29 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     public Iterator<DataBlock> getDataBlockIterator(IDataFilter filter)
     {
         checkStarted();
+        
+        RecordRingBuffer buffer = getHotTierBuffer(filter);
+        if (buffer != null)
+        {
+            final Iterator<IDataRecord> it = buffer.select(filter.getTimeStampRange(), filter.getProducerIDs()).iterator();
+            return new Iterator<DataBlock>() {
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public DataBlock next()
+                {
+                    return it.next().getData();
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        
         return storage.getDataBlockIterator(filter);
     }
 
@@ -547,6 +784,11 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     public Iterator<? extends IDataRecord> getRecordIterator(IDataFilter filter)
     {
         checkStarted();
+        
+        RecordRingBuffer buffer = getHotTierBuffer(filter);
+        if (buffer != null)
+            return Collections.unmodifiableList(buffer.select(filter.getTimeStampRange(), filter.getProducerIDs())).iterator();
+        
         return storage.getRecordIterator(filter);
     }
 
@@ -555,8 +797,69 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
     public int getNumMatchingRecords(IDataFilter filter, long maxCount)
     {
         checkStarted();
+        
+        RecordRingBuffer buffer = getHotTierBuffer(filter);
+        if (buffer != null)
+            return buffer.count(filter.getTimeStampRange(), filter.getProducerIDs());
+        
         return storage.getNumMatchingRecords(filter, maxCount);
     }
+    
+    
+    /*
+     * Adds record to hot tier buffer of its record type, if any
+     */
+    protected void addToHotTier(DataKey key, DataBlock data)
+    {
+        if (hotTier != null)
+        {
+            RecordRingBuffer buffer = hotTier.get(key.recordType);
+            if (buffer != null)
+                buffer.add(key, data);
+        }
+    }
+    
+    
+    /*
+     * Gets the hot tier buffer containing all records selected by filter
+     * Returns null if the query must be served by the underlying storage
+     */
+    protected RecordRingBuffer getHotTierBuffer(IDataFilter filter)
+    {
+        if (hotTier == null || !isHotTierFilter(filter))
+            return null;
+        
+        RecordRingBuffer buffer = hotTier.get(filter.getRecordType());
+        if (buffer == null)
+            return null;
+        
+        double[] timeRange = filter.getTimeStampRange();
+        if (timeRange == null || !buffer.isCompleteFrom(timeRange[0]))
+            return null;
+        
+        return buffer;
+    }
+    
+    
+    /*
+     * Checks that filter only selects records by time stamp and producer
+     */
+    protected boolean isHotTierFilter(IDataFilter filter)
+    {
+        if (filter.getFieldFilters() != null && !filter.getFieldFilters().isEmpty())
+            return false;
+        
+        if (filter instanceof IObsFilter)
+        {
+            IObsFilter obsFilter = (IObsFilter)filter;
+            if (obsFilter.getFoiIDs() != null && !obsFilter.getFoiIDs().isEmpty())
+                return false;
+            if (obsFilter.getRoi() != null || obsFilter.getResultTimeRange() != null)
+                return false;
+        }
+        
+        return true;
+    }
 
     
     @Override
@@ -584,34 +887,86 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
 
 
     @Override
-    public void storeRecord(DataKey key, DataBlock data)
+    public void storeRecord(final DataKey key, final DataBlock data)
     {
         checkStarted();
-        storage.storeRecord(key, data);
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.storeRecord(key, data);
+                if (rollups != null)
+                    rollups.addRecord(key, data);
+            }
+        });
+        addToHotTier(key, data);
     }
 
 
     @Override
-    public void updateRecord(DataKey key, DataBlock data)
+    public void updateRecord(final DataKey key, final DataBlock data)
     {
         checkStarted();
-        storage.updateRecord(key, data);
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.updateRecord(key, data);
+            }
+        });
+        
+        RecordRingBuffer buffer = (hotTier != null) ? hotTier.get(key.recordType) : null;
+        if (buffer != null)
+            buffer.update(key, data);
     }
 
 
     @Override
-    public void removeRecord(DataKey key)
+    public void removeRecord(final DataKey key)
     {
         checkStarted();
-        storage.removeRecord(key);
+        applyChange(new Runnable() {
+            public void run()
+            {
+                storage.removeRecord(key);
+            }
+        });
+        
+        RecordRingBuffer buffer = (hotTier != null) ? hotTier.get(key.recordType) : null;
+        if (buffer != null)
+            buffer.remove(key);
     }
 
 
     @Override
-    public int removeRecords(IDataFilter filter)
+    public int removeRecords(final IDataFilter filter)
     {
         checkStarted();
-        return storage.removeRecords(filter);
+        final int[] count = new int[1];
+        applyChange(new Runnable() {
+            public void run()
+            {
+                count[0] = storage.removeRecords(filter);
+            }
+        });
+        
+        RecordRingBuffer buffer = (hotTier != null) ? hotTier.get(filter.getRecordType()) : null;
+        if (buffer != null)
+        {
+            double[] timeRange = filter.getTimeStampRange();
+            if (isHotTierFilter(filter))
+            {
+                buffer.remove(timeRange, filter.getProducerIDs());
+            }
+            else
+            {
+                // we can't tell which records were removed so we stop using buffer for this period
+                if (timeRange == null)
+                    timeRange = buffer.getTimeRange();
+                buffer.remove(timeRange, null);
+                buffer.setMinCompleteTime(Math.nextUp(timeRange[1]));
+            }
+        }
+        
+        return count[0];
     }
 
 
@@ -664,11 +1019,31 @@ public class GenericStreamStorage extends AbstractModule<StreamStorageConfig> im
 
 
     @Override
-    public void storeFoi(String producerID, AbstractFeature foi)
+    public void storeFoi(final String producerID, final AbstractFeature foi)
     {
         checkStarted();
         if (storage instanceof IObsStorage)
-            storeFoi(producerID, foi);        
+        {
+            applyChange(new Runnable() {
+                public void run()
+                {
+                    ((IObsStorage)storage).storeFoi(producerID, foi);
+                }
+            });
+        }
+    }
+    
+    
+    /*
+     * Applies changes made outside of the write-behind queue, making sure
+     * they are not committed half-applied by the write-behind thread
+     */
+    private void applyChange(Runnable change)
+    {
+        if (writeBehindWriter != null)
+            writeBehindWriter.applyChange(change);
+        else
+            change.run();
     }
     
     
@@ -0,0 +1,40 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence;
+
+import org.sensorhub.api.config.DisplayInfo;
+
+
+/**
+ * <p>
+ * Configuration of the in-memory hot tier of stream storage.<br/>
+ * When enabled, the most recent records of each data source output are
+ * also kept in memory so that queries on recent time periods are served
+ * without reading the underlying storage.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class HotTierConfig
+{
+    
+    @DisplayInfo(desc="Check to keep most recent records in memory")
+    public boolean enabled = true;
+    
+    
+    @DisplayInfo(label="Max Records", desc="Maximum number of records kept in memory for each output")
+    public int maxRecords = 10000;
+}
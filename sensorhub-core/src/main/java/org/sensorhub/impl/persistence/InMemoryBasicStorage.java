@@ -21,9 +21,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import net.opengis.gml.v32.AbstractTimeGeometricPrimitive;
 import net.opengis.gml.v32.TimeInstant;
@@ -365,52 +363,13 @@ public class InMemoryBasicStorage extends AbstractModule<StorageConfig> implemen
     }
 
 
-    /*
-     * Implementation of individual time series {key,record} pair
-     */
-    private class DBRecord implements IDataRecord
-    {
-        DataKey key;
-        DataBlock data;
-        
-        public DBRecord(DataKey key, DataBlock data)
-        {
-            this.key = key;
-            this.data = data;
-        }
-
-        @Override
-        public final DataKey getKey()
-        {
-            return key;
-        }
-        
-        @Override
-        public final DataBlock getData()
-        {
-            return data;
-        }
-        
-        protected final boolean matches(DataKey key)
-        {
-            return ( (key.producerID == null || key.producerID.equals(this.key.producerID)) &&
-                 (key.timeStamp == Double.NaN || (key.timeStamp == this.key.timeStamp)) );
-        }
-        
-        protected final boolean matches(IDataFilter filter)
-        {
-            return ( (filter.getProducerIDs() == null || filter.getProducerIDs().contains(this.key.producerID)) &&
-                 (filter.getTimeStampRange() == null || (filter.getTimeStampRange()[0] <= this.key.timeStamp && filter.getTimeStampRange()[1] >= this.key.timeStamp)) );
-        }
-    }
-    
-    
     /*
      * Implementation of an individual time series data store
+     * Records are kept sorted by time stamp so they can be found by binary search
      */
     public class TimeSeriesImpl implements IRecordStoreInfo
     {
-        List<DBRecord> recordList = new LinkedList<DBRecord>();;
+        RecordRingBuffer recordBuffer = new RecordRingBuffer(16, Integer.MAX_VALUE);
         DataComponent recordDescription;
         DataEncoding recommendedEncoding;
         
@@ -440,18 +399,17 @@ public class InMemoryBasicStorage extends AbstractModule<StorageConfig> implemen
         
         public int getNumRecords()
         {
-            return recordList.size();
+            return recordBuffer.size();
         }
 
         public DataBlock getDataBlock(DataKey key)
         {
-            IDataRecord rec = getRecord(key);
-            return rec.getData();
+            return recordBuffer.get(key);
         }
 
         public Iterator<DataBlock> getDataBlockIterator(IDataFilter filter)
         {
-            final Iterator<DBRecord> it = getRecordIterator(filter);
+            final Iterator<IDataRecord> it = getRecordIterator(filter);
             return new Iterator<DataBlock>() {
 
                 public final boolean hasNext()
@@ -473,134 +431,66 @@ public class InMemoryBasicStorage extends AbstractModule<StorageConfig> implemen
 
         public IDataRecord getRecord(DataKey key)
         {
-            Iterator<DBRecord> it = recordList.iterator();
-            while (it.hasNext())
-            {
-                DBRecord rec = it.next();
-                if (rec.matches(key))
-                    return rec;
-            }
-            
-            return null;
+            return recordBuffer.getRecord(key);
         }
 
         public int getNumMatchingRecords(IDataFilter filter)
         {
-            final Iterator<DBRecord> it = getRecordIterator(filter);
-            int matchCount = 0;
-            while (it.hasNext())
-            {
-                if (it.next().matches(filter))
-                    matchCount++;
-            }
-            return matchCount;
+            return recordBuffer.count(filter.getTimeStampRange(), filter.getProducerIDs());
         }
         
-        public Iterator<DBRecord> getRecordIterator(final IDataFilter filter)
+        public Iterator<IDataRecord> getRecordIterator(final IDataFilter filter)
         {
-            final Iterator<DBRecord> it = recordList.iterator();
-            return new Iterator<DBRecord>() {
-                DBRecord nextRec;
+            final Iterator<IDataRecord> it = recordBuffer.select(filter.getTimeStampRange(), filter.getProducerIDs()).iterator();
+            return new Iterator<IDataRecord>() {
+                IDataRecord lastRec;
                 
                 public final boolean hasNext()
                 {
-                    nextRec = fetchNext();
-                    return (nextRec != null);
+                    return it.hasNext();
                 }
 
-                public final DBRecord next()
+                public final IDataRecord next()
                 {
-                    if (nextRec != null)
-                    {
-                        // get already fetched record and clear it
-                        DBRecord rec = nextRec;
-                        nextRec = null;
-                        return rec;
-                    }
-                    
-                    return fetchNext();
-                }
-                
-                protected final DBRecord fetchNext()
-                {
-                    while (it.hasNext())
-                    {
-                        DBRecord rec = it.next();
-                        if (rec.matches(filter))
-                            return rec;
-                    }
-                    
-                    return null;
+                    lastRec = it.next();
+                    return lastRec;
                 }
 
                 public final void remove()
                 {
-                    it.remove();                    
+                    if (lastRec == null)
+                        throw new IllegalStateException();
+                    recordBuffer.remove(lastRec);
+                    lastRec = null;
                 }                
             };
         }
 
         public DataKey store(DataKey key, DataBlock data)
         {
-            recordList.add(new DBRecord(key, data));
+            recordBuffer.add(key, data);
             eventHandler.publishEvent(new StorageEvent(System.currentTimeMillis(), InMemoryBasicStorage.this, key.recordType, Type.STORE));
             return key;
         }
 
         public void update(DataKey key, DataBlock data)
         {
-            ListIterator<DBRecord> it = recordList.listIterator();
-            while (it.hasNext())
-            {
-                DBRecord rec = it.next();                
-                if (rec.matches(key))
-                    rec.data = data;
-            }
+            recordBuffer.update(key, data);
         }
 
         public void remove(DataKey key)
         {
-            ListIterator<DBRecord> it = recordList.listIterator();
-            while (it.hasNext())
-            {
-                DBRecord rec = it.next();                
-                if (rec.matches(key))
-                    it.remove();
-            }
+            recordBuffer.remove(key);
         }
 
         public int remove(IDataFilter filter)
         {
-            ListIterator<DBRecord> it = recordList.listIterator();
-            int count = 0;
-            while (it.hasNext())
-            {
-                DBRecord rec = it.next();
-                if (rec.matches(filter))
-                {
-                    it.remove();
-                    count++;
-                }
-            }
-            
-            return count;
+            return recordBuffer.remove(filter.getTimeStampRange(), filter.getProducerIDs());
         }
         
         public double[] getDataTimeRange()
         {
-            double[] period = new double[] { Double.MAX_VALUE, Double.MIN_VALUE};
-            
-            Iterator<DBRecord> it = recordList.iterator();
-            while (it.hasNext())
-            {
-                double timeStamp = it.next().getKey().timeStamp;
-                if (timeStamp < period[0])
-                    period[0] = timeStamp;
-                if (timeStamp > period[1])
-                    period[1] = timeStamp;
-            }
-            
-            return period;
+            return recordBuffer.getTimeRange();
         }
     }
 }
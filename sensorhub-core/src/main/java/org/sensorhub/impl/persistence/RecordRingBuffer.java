@@ -0,0 +1,516 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.IDataRecord;
+
+
+/**
+ * <p>
+ * In-memory buffer of records sorted by time stamp.<br/>
+ * Time stamps are packed in a primitive array used as a ring so records can
+ * be looked up by binary search, and appending a record in time order is
+ * done in constant time without allocating anything but the key and data
+ * provided by the caller.<br/>
+ * The buffer grows up to its maximum capacity, after which the oldest
+ * records are evicted to make room for new ones. The buffer keeps track
+ * of the time from which it contains all records that were added to it.
+ * </p><p>
+ * All methods are thread-safe, and records are returned as snapshot lists
+ * so buffer can be modified while they are read.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class RecordRingBuffer
+{
+    final int maxCapacity;
+    double[] timeStamps;
+    DataKey[] keys;
+    DataBlock[] records;
+    int head; // physical index of oldest record
+    int size;
+    double minCompleteTime = Double.NEGATIVE_INFINITY;
+    
+    
+    static class BufferedRecord implements IDataRecord
+    {
+        final DataKey key;
+        final DataBlock data;
+        
+        BufferedRecord(DataKey key, DataBlock data)
+        {
+            this.key = key;
+            this.data = data;
+        }
+        
+        @Override
+        public final DataKey getKey()
+        {
+            return key;
+        }
+        
+        @Override
+        public final DataBlock getData()
+        {
+            return data;
+        }
+    }
+    
+    
+    /**
+     * Creates a buffer with the given initial and maximum capacity
+     * @param initialCapacity
+     * @param maxCapacity max number of records kept in buffer
+     */
+    public RecordRingBuffer(int initialCapacity, int maxCapacity)
+    {
+        this.maxCapacity = Math.max(1, maxCapacity);
+        int capacity = Math.max(1, Math.min(initialCapacity, this.maxCapacity));
+        this.timeStamps = new double[capacity];
+        this.keys = new DataKey[capacity];
+        this.records = new DataBlock[capacity];
+    }
+    
+    
+    /**
+     * Indicates that records older than the given time may be missing from
+     * the buffer (e.g. because they were stored before it was created)
+     * @param time
+     */
+    public synchronized void setMinCompleteTime(double time)
+    {
+        if (time > minCompleteTime)
+            minCompleteTime = time;
+    }
+    
+    
+    /**
+     * @param time
+     * @return true if buffer contains all records with time stamp greater or
+     * equal to the given time
+     */
+    public synchronized boolean isCompleteFrom(double time)
+    {
+        return time >= minCompleteTime;
+    }
+    
+    
+    /**
+     * Adds a record to the buffer, evicting the oldest one if it is full.<br/>
+     * Records are sorted by time stamp, and records with equal time stamps
+     * are kept in insertion order. Records without time stamp (NaN) are
+     * sorted by the time they are added, so they are not lost, but they can
+     * only be found by selecting records in a time range.
+     * @param key
+     * @param data
+     * @return true if record was added, false if it was older than all
+     * records in a full buffer
+     */
+    public synchronized boolean add(DataKey key, DataBlock data)
+    {
+        double time = key.timeStamp;
+        if (Double.isNaN(time))
+            time = System.currentTimeMillis() / 1000.0;
+        if (time < minCompleteTime)
+            return false;
+        
+        if (size == timeStamps.length)
+        {
+            if (size < maxCapacity)
+                grow();
+            else if (time < timeStamps[head])
+            {
+                // buffer doesn't contain all records from this time anymore
+                setMinCompleteTime(Math.nextUp(time));
+                return false;
+            }
+            else
+                evictOldest();
+        }
+        
+        // shift newer records, which is rarely needed since records usually come in order
+        int pos = upperBound(time);
+        for (int i = size; i > pos; i--)
+            move(i-1, i);
+        
+        int p = phys(pos);
+        timeStamps[p] = time;
+        keys[p] = key;
+        records[p] = data;
+        size++;
+        return true;
+    }
+    
+    
+    /**
+     * @param key
+     * @return data of first record matching key time stamp and producer ID, or null if none
+     */
+    public synchronized DataBlock get(DataKey key)
+    {
+        int i = indexOf(key, lowerBound(key.timeStamp));
+        return (i >= 0) ? records[phys(i)] : null;
+    }
+    
+    
+    /**
+     * @param key
+     * @return first record matching key time stamp and producer ID, or null if none
+     */
+    public synchronized IDataRecord getRecord(DataKey key)
+    {
+        int i = indexOf(key, lowerBound(key.timeStamp));
+        if (i < 0)
+            return null;
+        
+        int p = phys(i);
+        return new BufferedRecord(keys[p], records[p]);
+    }
+    
+    
+    /**
+     * Replaces data of all records matching key time stamp and producer ID
+     * @param key
+     * @param data
+     * @return number of updated records
+     */
+    public synchronized int update(DataKey key, DataBlock data)
+    {
+        int count = 0;
+        int i = lowerBound(key.timeStamp);
+        while ((i = indexOf(key, i)) >= 0)
+        {
+            records[phys(i)] = data;
+            count++;
+            i++;
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Removes all records matching key time stamp and producer ID
+     * @param key
+     * @return number of removed records
+     */
+    public synchronized int remove(DataKey key)
+    {
+        int count = 0;
+        int i = lowerBound(key.timeStamp);
+        while ((i = indexOf(key, i)) >= 0)
+        {
+            removeAt(i);
+            count++;
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Removes the given record, previously returned by this buffer
+     * @param rec
+     * @return true if record was found and removed
+     */
+    public synchronized boolean remove(IDataRecord rec)
+    {
+        // records without time stamp can be anywhere in buffer
+        double time = rec.getKey().timeStamp;
+        boolean noTime = Double.isNaN(time);
+        for (int i = noTime ? 0 : lowerBound(time); i < size && (noTime || timeStamps[phys(i)] == time); i++)
+        {
+            if (keys[phys(i)] == rec.getKey())
+            {
+                removeAt(i);
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    
+    /**
+     * Removes all records in time range that were produced by one of the
+     * given producers
+     * @param timeRange time range or null for all records
+     * @param producerIDs producer IDs or null for all producers
+     * @return number of removed records
+     */
+    public synchronized int remove(double[] timeRange, Collection<String> producerIDs)
+    {
+        int start = (timeRange != null) ? lowerBound(timeRange[0]) : 0;
+        int end = (timeRange != null) ? upperBound(timeRange[1]) : size;
+        
+        // compact remaining records in place
+        int dest = start;
+        for (int i = start; i < end; i++)
+        {
+            if (!matches(keys[phys(i)], producerIDs))
+                move(i, dest++);
+        }
+        
+        int count = end - dest;
+        if (count > 0)
+        {
+            for (int i = end; i < size; i++)
+                move(i, i - count);
+            for (int i = size - count; i < size; i++)
+                clear(i);
+            size -= count;
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Removes all records older than the given time
+     * @param time
+     * @return number of removed records
+     */
+    public synchronized int removeBefore(double time)
+    {
+        int count = 0;
+        while (size > 0 && timeStamps[head] < time)
+        {
+            removeHead();
+            count++;
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * Selects records in time range that were produced by one of the given
+     * producers, sorted by time stamp
+     * @param timeRange time range or null for all records
+     * @param producerIDs producer IDs or null for all producers
+     * @return snapshot list of selected records
+     */
+    public synchronized List<IDataRecord> select(double[] timeRange, Collection<String> producerIDs)
+    {
+        int start = (timeRange != null) ? lowerBound(timeRange[0]) : 0;
+        int end = (timeRange != null) ? upperBound(timeRange[1]) : size;
+        
+        List<IDataRecord> selected = new ArrayList<IDataRecord>(Math.max(0, end - start));
+        for (int i = start; i < end; i++)
+        {
+            int p = phys(i);
+            if (matches(keys[p], producerIDs))
+                selected.add(new BufferedRecord(keys[p], records[p]));
+        }
+        
+        return selected;
+    }
+    
+    
+    /**
+     * Counts records in time range that were produced by one of the given
+     * producers. This is done by binary search only if no producer is specified.
+     * @param timeRange time range or null for all records
+     * @param producerIDs producer IDs or null for all producers
+     * @return number of matching records
+     */
+    public synchronized int count(double[] timeRange, Collection<String> producerIDs)
+    {
+        int start = (timeRange != null) ? lowerBound(timeRange[0]) : 0;
+        int end = (timeRange != null) ? upperBound(timeRange[1]) : size;
+        if (producerIDs == null)
+            return Math.max(0, end - start);
+        
+        int count = 0;
+        for (int i = start; i < end; i++)
+        {
+            if (matches(keys[phys(i)], producerIDs))
+                count++;
+        }
+        
+        return count;
+    }
+    
+    
+    /**
+     * @return time stamps of oldest and newest records, or NaN if buffer is empty
+     */
+    public synchronized double[] getTimeRange()
+    {
+        if (size == 0)
+            return new double[] {Double.NaN, Double.NaN};
+        return new double[] {timeStamps[head], timeStamps[phys(size-1)]};
+    }
+    
+    
+    public synchronized int size()
+    {
+        return size;
+    }
+    
+    
+    public synchronized void clear()
+    {
+        for (int i = 0; i < size; i++)
+            clear(i);
+        head = 0;
+        size = 0;
+    }
+    
+    
+    /*
+     * Index of first record with time stamp >= time
+     */
+    protected final int lowerBound(double time)
+    {
+        int lo = 0, hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (timeStamps[phys(mid)] < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        
+        return lo;
+    }
+    
+    
+    /*
+     * Index of first record with time stamp > time
+     */
+    protected final int upperBound(double time)
+    {
+        int lo = 0, hi = size;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (timeStamps[phys(mid)] <= time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        
+        return lo;
+    }
+    
+    
+    /*
+     * Index of first record at or after index i with same time stamp and
+     * producer ID as key, or -1 if none
+     */
+    protected final int indexOf(DataKey key, int i)
+    {
+        for (; i < size && timeStamps[phys(i)] == key.timeStamp; i++)
+        {
+            if (key.producerID == null || key.producerID.equals(keys[phys(i)].producerID))
+                return i;
+        }
+        
+        return -1;
+    }
+    
+    
+    protected static final boolean matches(DataKey key, Collection<String> producerIDs)
+    {
+        return producerIDs == null || producerIDs.contains(key.producerID);
+    }
+    
+    
+    protected final int phys(int i)
+    {
+        int p = head + i;
+        return (p < timeStamps.length) ? p : p - timeStamps.length;
+    }
+    
+    
+    protected final void move(int from, int to)
+    {
+        int src = phys(from);
+        int dest = phys(to);
+        timeStamps[dest] = timeStamps[src];
+        keys[dest] = keys[src];
+        records[dest] = records[src];
+    }
+    
+    
+    protected final void clear(int i)
+    {
+        int p = phys(i);
+        keys[p] = null;
+        records[p] = null;
+    }
+    
+    
+    protected final void removeAt(int i)
+    {
+        if (i == 0)
+        {
+            removeHead();
+            return;
+        }
+        
+        for (int j = i; j < size-1; j++)
+            move(j+1, j);
+        clear(size-1);
+        size--;
+    }
+    
+    
+    protected final void removeHead()
+    {
+        clear(0);
+        head = phys(1);
+        size--;
+    }
+    
+    
+    protected final void evictOldest()
+    {
+        // records with same time stamp as evicted one may be missing now
+        setMinCompleteTime(Math.nextUp(timeStamps[head]));
+        removeHead();
+    }
+    
+    
+    protected final void grow()
+    {
+        int capacity = (int)Math.min((long)maxCapacity, Math.max(16L, 2L*timeStamps.length));
+        double[] newTimeStamps = new double[capacity];
+        DataKey[] newKeys = new DataKey[capacity];
+        DataBlock[] newRecords = new DataBlock[capacity];
+        
+        for (int i = 0; i < size; i++)
+        {
+            int p = phys(i);
+            newTimeStamps[i] = timeStamps[p];
+            newKeys[i] = keys[p];
+            newRecords[i] = records[p];
+        }
+        
+        timeStamps = newTimeStamps;
+        keys = newKeys;
+        records = newRecords;
+        head = 0;
+    }
+}
@@ -0,0 +1,506 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.opengis.swe.v20.Count;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataRecord;
+import net.opengis.swe.v20.DataType;
+import net.opengis.swe.v20.Quantity;
+import net.opengis.swe.v20.ScalarComponent;
+import net.opengis.swe.v20.Vector;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
+import org.sensorhub.api.persistence.IBasicStorage;
+import org.sensorhub.api.persistence.IDataFilter;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.IObsFilter;
+import org.sensorhub.api.persistence.IRecordStoreInfo;
+import org.sensorhub.api.persistence.ObsKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vast.data.TextEncodingImpl;
+import org.vast.swe.SWEHelper;
+import org.vast.swe.ScalarIndexer;
+import com.vividsolutions.jts.geom.Polygon;
+
+
+/**
+ * <p>
+ * Maintains rollup tiers of records stored in a storage.<br/>
+ * For each configured period, one aggregate record is stored per record type
+ * and producer for each time slot in which records were received. It contains
+ * the min, max, mean, count and last values of all numeric fields (quantities
+ * and counts) of the raw record, and is time stamped with the slot start time.
+ * </p><p>
+ * Aggregates are updated incrementally as records are added. The aggregate
+ * of the current time slot is written when the first record of the next slot
+ * is received and each time {@link #writeOpenBuckets()} is called (i.e.
+ * before each commit), so the last slot is always up to date in storage.
+ * Records received out of order for a slot that is already closed are ignored.
+ * </p><p>
+ * Aggregates must be updated by the thread(s) writing raw records, before
+ * the storage is committed.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class RecordRollups
+{
+    private static final Logger log = LoggerFactory.getLogger(RecordRollups.class);
+    private static final String ROLLUP_SEPARATOR = "_rollup_";
+    private static final int NUM_STATS = 5; // min, max, mean, count, last
+    
+    final IBasicStorage storage;
+    final double[] periods;
+    final Map<String, RecordTypeRollups> recordTypes = new HashMap<String, RecordTypeRollups>();
+    final Map<String, Bucket> openBuckets = new LinkedHashMap<String, Bucket>();
+    
+    
+    /*
+     * Rollup structure and numeric field indexers for one raw record type
+     */
+    static class RecordTypeRollups
+    {
+        String recordType;
+        ScalarIndexer[] indexers;
+        DataComponent rollupStruct;
+        String[] rollupNames;
+    }
+    
+    
+    /*
+     * Aggregated values for one time slot
+     */
+    static class Bucket
+    {
+        RecordTypeRollups info;
+        String rollupName;
+        double period;
+        String producerID;
+        String foiID;
+        double startTime;
+        double[] min, max, sum, last;
+        int[] count;
+        boolean stored;
+        boolean dirty;
+    }
+    
+    
+    public RecordRollups(IBasicStorage storage, RollupConfig config)
+    {
+        this.storage = storage;
+        this.periods = (config.periods != null) ? config.periods.clone() : new double[0];
+        Arrays.sort(periods);
+    }
+    
+    
+    /**
+     * Gets the name of the aggregate record store for the given record type and period
+     * @param recordType name of raw record type
+     * @param period aggregation period in seconds
+     * @return name of the rollup record store
+     */
+    public static String getRollupName(String recordType, double period)
+    {
+        return recordType + ROLLUP_SEPARATOR + (long)period + "s";
+    }
+    
+    
+    /**
+     * @param recordStoreName
+     * @return true if the given record store name is the one of an aggregate record store
+     */
+    public static boolean isRollupName(String recordStoreName)
+    {
+        return recordStoreName.contains(ROLLUP_SEPARATOR);
+    }
+    
+    
+    /**
+     * Registers a raw record type for which rollups must be maintained.<br/>
+     * Record types without any numeric field are ignored.
+     * @param recordType name of raw record type
+     * @param recordDesc description of raw records
+     */
+    public void addRecordType(String recordType, DataComponent recordDesc)
+    {
+        if (recordTypes.containsKey(recordType))
+            return;
+        
+        // collect all numeric fields
+        List<ScalarComponent> fields = new ArrayList<ScalarComponent>();
+        List<String> fieldNames = new ArrayList<String>();
+        collectNumericFields(recordDesc, null, fields, fieldNames);
+        if (fields.isEmpty())
+            return;
+        
+        RecordTypeRollups info = new RecordTypeRollups();
+        info.recordType = recordType;
+        info.indexers = new ScalarIndexer[fields.size()];
+        for (int i = 0; i < fields.size(); i++)
+            info.indexers[i] = new ScalarIndexer(recordDesc, fields.get(i));
+        info.rollupStruct = createRollupStructure(recordType, fields, fieldNames);
+        info.rollupNames = new String[periods.length];
+        for (int i = 0; i < periods.length; i++)
+            info.rollupNames[i] = getRollupName(recordType, periods[i]);
+        
+        recordTypes.put(recordType, info);
+    }
+    
+    
+    /*
+     * Recursively collects quantity and count fields, excluding arrays
+     */
+    protected void collectNumericFields(DataComponent comp, String path, List<ScalarComponent> fields, List<String> fieldNames)
+    {
+        if (comp instanceof Quantity || comp instanceof Count)
+        {
+            fields.add((ScalarComponent)comp);
+            fieldNames.add(path);
+        }
+        else if (comp instanceof DataRecord || comp instanceof Vector)
+        {
+            for (int i = 0; i < comp.getComponentCount(); i++)
+            {
+                DataComponent child = comp.getComponent(i);
+                String childPath = (path == null) ? child.getName() : path + '_' + child.getName();
+                collectNumericFields(child, childPath, fields, fieldNames);
+            }
+        }
+    }
+    
+    
+    /*
+     * Rollup records contain the slot start time followed by min, max, mean, count and last of each field
+     */
+    protected DataComponent createRollupStructure(String recordType, List<ScalarComponent> fields, List<String> fieldNames)
+    {
+        SWEHelper fac = new SWEHelper();
+        DataRecord rec = fac.newDataRecord();
+        rec.setName(recordType);
+        rec.addField("time", fac.newTimeStampIsoUTC());
+        
+        for (int i = 0; i < fields.size(); i++)
+        {
+            ScalarComponent field = fields.get(i);
+            String name = fieldNames.get(i);
+            String label = (field.getLabel() != null) ? field.getLabel() : name;
+            String def = field.getDefinition();
+            String uom = null;
+            if (field instanceof Quantity && ((Quantity)field).getUom() != null)
+                uom = ((Quantity)field).getUom().getCode();
+            if (uom == null)
+                uom = "1";
+            
+            rec.addField(name + "_min", fac.newQuantity(def, label + " (min)", null, uom, DataType.DOUBLE));
+            rec.addField(name + "_max", fac.newQuantity(def, label + " (max)", null, uom, DataType.DOUBLE));
+            rec.addField(name + "_mean", fac.newQuantity(def, label + " (mean)", null, uom, DataType.DOUBLE));
+            rec.addField(name + "_count", fac.newCount(null, label + " (count)", null, DataType.INT));
+            rec.addField(name + "_last", fac.newQuantity(def, label + " (last)", null, uom, DataType.DOUBLE));
+        }
+        
+        return rec;
+    }
+    
+    
+    /**
+     * Adds aggregate record stores for all registered record types to the
+     * given storage, if they don't exist yet
+     * @param dataStore storage to add record stores to
+     */
+    public void addRecordStores(IBasicStorage dataStore)
+    {
+        Map<String, ? extends IRecordStoreInfo> recordStores = dataStore.getRecordStores();
+        for (RecordTypeRollups info: recordTypes.values())
+        {
+            for (String rollupName: info.rollupNames)
+            {
+                if (!recordStores.containsKey(rollupName))
+                    dataStore.addRecordStore(rollupName, info.rollupStruct.copy(), new TextEncodingImpl());
+            }
+        }
+    }
+    
+    
+    /**
+     * Updates aggregates of all tiers with a newly stored record
+     * @param key key of stored record
+     * @param data stored record data
+     */
+    public synchronized void addRecord(DataKey key, DataBlock data)
+    {
+        RecordTypeRollups info = recordTypes.get(key.recordType);
+        if (info == null)
+            return;
+        
+        String foiID = (key instanceof ObsKey) ? ((ObsKey)key).foiID : null;
+        
+        for (int p = 0; p < periods.length; p++)
+        {
+            double period = periods[p];
+            double startTime = Math.floor(key.timeStamp / period) * period;
+            String bucketKey = info.rollupNames[p] + '|' + key.producerID;
+            
+            Bucket bucket = openBuckets.get(bucketKey);
+            if (bucket != null && startTime != bucket.startTime)
+            {
+                // ignore late records belonging to a closed slot
+                if (startTime < bucket.startTime)
+                    continue;
+                
+                // otherwise slot is complete
+                writeBucket(bucket);
+                bucket = null;
+            }
+            
+            if (bucket == null)
+            {
+                bucket = openBucket(info, info.rollupNames[p], period, key.producerID, foiID, startTime);
+                openBuckets.put(bucketKey, bucket);
+            }
+            
+            for (int i = 0; i < info.indexers.length; i++)
+            {
+                double val = info.indexers[i].getDoubleValue(data);
+                if (Double.isNaN(val))
+                    continue;
+                
+                if (bucket.count[i] == 0 || val < bucket.min[i])
+                    bucket.min[i] = val;
+                if (bucket.count[i] == 0 || val > bucket.max[i])
+                    bucket.max[i] = val;
+                bucket.sum[i] += val;
+                bucket.last[i] = val;
+                bucket.count[i]++;
+            }
+            
+            bucket.dirty = true;
+        }
+    }
+    
+    
+    /*
+     * Creates a new bucket, resuming from the aggregate already stored for the same slot if any
+     * (e.g. after a restart)
+     */
+    protected Bucket openBucket(RecordTypeRollups info, String rollupName, double period, String producerID, String foiID, double startTime)
+    {
+        int numFields = info.indexers.length;
+        Bucket bucket = new Bucket();
+        bucket.info = info;
+        bucket.rollupName = rollupName;
+        bucket.period = period;
+        bucket.producerID = producerID;
+        bucket.foiID = foiID;
+        bucket.startTime = startTime;
+        bucket.min = new double[numFields];
+        bucket.max = new double[numFields];
+        bucket.sum = new double[numFields];
+        bucket.last = new double[numFields];
+        bucket.count = new int[numFields];
+        
+        DataBlock stored = null;
+        try
+        {
+            stored = storage.getDataBlock(getBucketKey(bucket));
+        }
+        catch (Exception e)
+        {
+            log.debug("Cannot read existing rollup record " + rollupName, e);
+        }
+        
+        if (stored != null)
+        {
+            for (int i = 0; i < numFields; i++)
+            {
+                int index = 1 + i*NUM_STATS;
+                bucket.min[i] = stored.getDoubleValue(index);
+                bucket.max[i] = stored.getDoubleValue(index+1);
+                bucket.count[i] = stored.getIntValue(index+3);
+                bucket.sum[i] = stored.getDoubleValue(index+2) * bucket.count[i];
+                bucket.last[i] = stored.getDoubleValue(index+4);
+            }
+            
+            bucket.stored = true;
+        }
+        
+        return bucket;
+    }
+    
+    
+    protected DataKey getBucketKey(Bucket bucket)
+    {
+        return new ObsKey(bucket.rollupName, bucket.producerID, bucket.foiID, bucket.startTime);
+    }
+    
+    
+    protected void writeBucket(Bucket bucket)
+    {
+        if (!bucket.dirty)
+            return;
+        
+        int numFields = bucket.info.indexers.length;
+        DataBlock data = bucket.info.rollupStruct.createDataBlock();
+        data.setDoubleValue(0, bucket.startTime);
+        for (int i = 0; i < numFields; i++)
+        {
+            int index = 1 + i*NUM_STATS;
+            int count = bucket.count[i];
+            data.setDoubleValue(index, (count > 0) ? bucket.min[i] : Double.NaN);
+            data.setDoubleValue(index+1, (count > 0) ? bucket.max[i] : Double.NaN);
+            data.setDoubleValue(index+2, (count > 0) ? bucket.sum[i] / count : Double.NaN);
+            data.setIntValue(index+3, count);
+            data.setDoubleValue(index+4, (count > 0) ? bucket.last[i] : Double.NaN);
+        }
+        
+        try
+        {
+            DataKey key = getBucketKey(bucket);
+            if (bucket.stored)
+                storage.updateRecord(key, data);
+            else
+                storage.storeRecord(key, data);
+            bucket.stored = true;
+            bucket.dirty = false;
+        }
+        catch (Exception e)
+        {
+            log.error("Error while storing rollup record " + bucket.startTime + " for " + bucket.rollupName, e);
+        }
+    }
+    
+    
+    /**
+     * Writes aggregates of all time slots that are still open and were
+     * updated since they were last written.<br/>
+     * This must be called before committing the storage.
+     */
+    public synchronized void writeOpenBuckets()
+    {
+        for (Bucket bucket: openBuckets.values())
+            writeBucket(bucket);
+    }
+    
+    
+    /**
+     * Selects the aggregate record store with the largest period that is smaller
+     * or equal to the requested resolution
+     * @param recordType name of raw record type
+     * @param resolution desired time resolution in seconds
+     * @return name of aggregate record store or null if no tier matches
+     */
+    public String selectRollup(String recordType, double resolution)
+    {
+        RecordTypeRollups info = recordTypes.get(recordType);
+        if (info == null)
+            return null;
+        
+        for (int i = periods.length-1; i >= 0; i--)
+        {
+            if (periods[i] <= resolution)
+                return info.rollupNames[i];
+        }
+        
+        return null;
+    }
+    
+    
+    /**
+     * Gets aggregate records matching the given filter.<br/>
+     * The filter record type is replaced by the name of the selected tier and
+     * field filters are ignored since they apply to raw records.
+     * @param filter filter on raw records
+     * @param resolution desired time resolution in seconds
+     * @return iterator on aggregate records or null if no tier matches
+     */
+    public Iterator<? extends IDataRecord> getRecordIterator(IDataFilter filter, double resolution)
+    {
+        String rollupName = selectRollup(filter.getRecordType(), resolution);
+        if (rollupName == null)
+            return null;
+        
+        return storage.getRecordIterator(new RollupFilter(filter, rollupName));
+    }
+    
+    
+    /*
+     * Filter selecting the aggregate records of a given tier with the same criteria as the raw filter
+     */
+    static class RollupFilter implements IObsFilter
+    {
+        final IDataFilter filter;
+        final String rollupName;
+        
+        RollupFilter(IDataFilter filter, String rollupName)
+        {
+            this.filter = filter;
+            this.rollupName = rollupName;
+        }
+
+        @Override
+        public String getRecordType()
+        {
+            return rollupName;
+        }
+
+        @Override
+        public double[] getTimeStampRange()
+        {
+            return filter.getTimeStampRange();
+        }
+
+        @Override
+        public Collection<String> getProducerIDs()
+        {
+            return filter.getProducerIDs();
+        }
+
+        @Override
+        public Collection<FieldFilter> getFieldFilters()
+        {
+            return null;
+        }
+
+        @Override
+        public double[] getResultTimeRange()
+        {
+            return (filter instanceof IObsFilter) ? ((IObsFilter)filter).getResultTimeRange() : null;
+        }
+
+        @Override
+        public Collection<String> getFoiIDs()
+        {
+            return (filter instanceof IObsFilter) ? ((IObsFilter)filter).getFoiIDs() : null;
+        }
+
+        @Override
+        public Polygon getRoi()
+        {
+            return (filter instanceof IObsFilter) ? ((IObsFilter)filter).getRoi() : null;
+        }
+    }
+}
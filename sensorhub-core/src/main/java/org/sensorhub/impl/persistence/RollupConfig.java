@@ -0,0 +1,41 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.persistence;
+
+import org.sensorhub.api.config.DisplayInfo;
+
+
+/**
+ * <p>
+ * Configuration of rollup tiers maintained by stream storage.<br/>
+ * When enabled, min, max, mean, count and last values of all numeric fields
+ * are aggregated over fixed time periods as records are stored, so that
+ * decimated data can be retrieved without reading all raw records.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class RollupConfig
+{
+    
+    @DisplayInfo(desc="Check to maintain rollup tiers as records are stored")
+    public boolean enabled = true;
+    
+    
+    @DisplayInfo(label="Rollup Periods", desc="Aggregation period of each rollup tier (in seconds)")
+    public double[] periods = new double[] {60., 3600., 86400.};
+}
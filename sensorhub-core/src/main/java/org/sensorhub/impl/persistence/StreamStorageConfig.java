@@ -41,6 +41,18 @@ public class StreamStorageConfig extends StorageConfig
     public int minCommitPeriod = 10000;
     
     
+    @DisplayInfo(label="Write-Behind", desc="Write-behind settings. If enabled, records are stored and committed in groups by a separate thread")
+    public WriteBehindConfig writeBehindConfig;
+    
+    
+    @DisplayInfo(label="Rollups", desc="Rollup settings. If enabled, aggregated values of numeric fields are stored for each configured period")
+    public RollupConfig rollupConfig;
+    
+    
+    @DisplayInfo(label="Hot Tier", desc="In-memory hot tier settings. If enabled, queries on the most recent records don't access the underlying storage")
+    public HotTierConfig hotTierConfig;
+    
+    
     @DisplayInfo(desc="Set to false to stop storing data of received events in underlying storage")
     public boolean processEvents = true;
     
@@ -0,0 +1,52 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence;
+
+import org.sensorhub.api.config.DisplayInfo;
+
+
+/**
+ * <p>
+ * Configuration of write-behind mode for stream storage.<br/>
+ * In this mode, records received from the data source are queued and
+ * written to the underlying storage by a separate writer thread, which
+ * commits them in groups.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+public class WriteBehindConfig
+{
+    
+    @DisplayInfo(desc="Uncheck to store records synchronously in the producer thread")
+    public boolean enabled = true;
+    
+    
+    @DisplayInfo(label="Queue Size", desc="Maximum number of records waiting to be written. Producers are blocked when the queue is full")
+    public int queueSize = 10000;
+    
+    
+    @DisplayInfo(label="Max Batch Records", desc="Number of stored records triggering a commit")
+    public int maxBatchRecords = 1000;
+    
+    
+    @DisplayInfo(label="Max Batch Size", desc="Approximate size of stored records triggering a commit (in bytes)")
+    public int maxBatchBytes = 4*1024*1024;
+    
+    
+    @DisplayInfo(label="Max Commit Latency", desc="Maximum time a stored record can remain uncommitted (in ms)")
+    public int maxCommitLatency = 1000;
+}
@@ -0,0 +1,321 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.opengis.swe.v20.DataBlock;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.IBasicStorage;
+import org.sensorhub.api.persistence.IStorageModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <p>
+ * Write-behind buffer for a storage module.<br/>
+ * Records are accepted in a bounded staging queue and written to storage
+ * by a dedicated thread. The writer commits whenever the number or size of
+ * uncommitted records reaches the configured thresholds, or when the oldest
+ * uncommitted record gets older than the maximum commit latency, even if
+ * no more records are received.
+ * </p><p>
+ * When the queue is full, the producer is blocked until the writer catches up.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+public class WriteBehindWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindWriter.class);
+    private static final PendingRecord END_MARKER = new PendingRecord(null, null);
+    
+    final IStorageModule<?> storage;
+    final WriteBehindConfig config;
+    final RecordRollups rollups;
+    final BlockingQueue<PendingRecord> queue;
+    final AtomicLong numPendingRecords = new AtomicLong();
+    final AtomicLong numCommittedRecords = new AtomicLong();
+    final Object commitLock = new Object();
+    volatile boolean commitRequested;
+    boolean savedAutoCommit;
+    Thread writerThread;
+    
+    
+    static class PendingRecord
+    {
+        final DataKey key;
+        final DataBlock data;
+        
+        PendingRecord(DataKey key, DataBlock data)
+        {
+            this.key = key;
+            this.data = data;
+        }
+    }
+    
+    
+    public WriteBehindWriter(IStorageModule<?> storage, WriteBehindConfig config)
+    {
+        this(storage, config, null);
+    }
+    
+    
+    /**
+     * Creates a writer also updating the given rollups with each record
+     * written to storage
+     * @param storage
+     * @param config
+     * @param rollups rollups to update or null if none
+     */
+    public WriteBehindWriter(IStorageModule<?> storage, WriteBehindConfig config, RecordRollups rollups)
+    {
+        if (!(storage instanceof IBasicStorage))
+            throw new IllegalArgumentException("Write-behind is only supported with record storages");
+        
+        this.storage = storage;
+        this.config = config;
+        this.rollups = rollups;
+        this.queue = new ArrayBlockingQueue<PendingRecord>(Math.max(1, config.queueSize));
+    }
+    
+    
+    public synchronized void start()
+    {
+        if (writerThread != null)
+            return;
+        
+        savedAutoCommit = storage.isAutoCommit();
+        storage.setAutoCommit(false);
+        writerThread = new Thread("WriteBehind-" + storage.getLocalID()) {
+            public void run()
+            {
+                writeLoop();
+            }
+        };
+        writerThread.start();
+    }
+    
+    
+    /**
+     * Queues a record for writing, blocking if the queue is full
+     * @param key
+     * @param data
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void store(DataKey key, DataBlock data) throws InterruptedException
+    {
+        numPendingRecords.incrementAndGet();
+        try
+        {
+            queue.put(new PendingRecord(key, data));
+        }
+        catch (InterruptedException e)
+        {
+            numPendingRecords.decrementAndGet();
+            throw e;
+        }
+    }
+    
+    
+    /**
+     * Applies a change to the storage outside of the writer thread (e.g.
+     * description or FOI update) and requests a commit as soon as possible
+     * to make it durable.<br/>
+     * The change is serialized with commits so that it is never committed
+     * half-applied.
+     * @param change
+     */
+    public void applyChange(Runnable change)
+    {
+        synchronized (commitLock)
+        {
+            change.run();
+        }
+        
+        commitRequested = true;
+    }
+    
+    
+    /**
+     * @return Number of records accepted but not yet committed to storage
+     */
+    public long getNumPendingRecords()
+    {
+        return numPendingRecords.get();
+    }
+    
+    
+    /**
+     * @return Number of records committed to storage by this writer
+     */
+    public long getNumCommittedRecords()
+    {
+        return numCommittedRecords.get();
+    }
+    
+    
+    /**
+     * Writes and commits all queued records, then stops the writer thread
+     */
+    public void stop()
+    {
+        Thread t;
+        synchronized (this)
+        {
+            t = writerThread;
+            writerThread = null;
+        }
+        
+        if (t == null)
+            return;
+        
+        try
+        {
+            queue.put(END_MARKER);
+            t.join();
+        }
+        catch (InterruptedException e)
+        {
+            t.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        
+        storage.setAutoCommit(savedAutoCommit);
+    }
+    
+    
+    protected void writeLoop()
+    {
+        IBasicStorage recordStore = (IBasicStorage)storage;
+        long maxLatency = Math.max(1, config.maxCommitLatency);
+        int batchCount = 0;
+        long batchBytes = 0;
+        long batchStartTime = 0;
+        
+        try
+        {
+            while (true)
+            {
+                // wait until commit deadline of current batch at most
+                long timeOut = maxLatency;
+                if (batchCount > 0)
+                    timeOut = Math.max(0, batchStartTime + maxLatency - System.currentTimeMillis());
+                PendingRecord rec = queue.poll(timeOut, TimeUnit.MILLISECONDS);
+                
+                if (rec == END_MARKER)
+                    break;
+                
+                if (rec != null)
+                {
+                    storeRecord(recordStore, rec);
+                    
+                    if (batchCount == 0)
+                        batchStartTime = System.currentTimeMillis();
+                    batchCount++;
+                    batchBytes += estimateSize(rec.data);
+                }
+                
+                // commit if a threshold is reached
+                boolean commit = batchCount >= config.maxBatchRecords ||
+                                 batchBytes >= config.maxBatchBytes ||
+                                 (batchCount > 0 && System.currentTimeMillis() - batchStartTime >= maxLatency) ||
+                                 (rec == null && commitRequested);
+                
+                if (commit)
+                {
+                    commit(batchCount);
+                    batchCount = 0;
+                    batchBytes = 0;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            log.warn("Write-behind thread interrupted. Flushing remaining records to storage " + storage.getLocalID());
+        }
+        finally
+        {
+            // write remaining records and commit
+            PendingRecord rec;
+            while ((rec = queue.poll()) != null && rec != END_MARKER)
+            {
+                storeRecord(recordStore, rec);
+                batchCount++;
+            }
+            commit(batchCount);
+        }
+    }
+    
+    
+    /*
+     * Stores one record, logging errors so that a bad record
+     * never stops the writer or aborts the final flush
+     */
+    protected void storeRecord(IBasicStorage recordStore, PendingRecord rec)
+    {
+        try
+        {
+            recordStore.storeRecord(rec.key, rec.data);
+            if (rollups != null)
+                rollups.addRecord(rec.key, rec.data);
+        }
+        catch (Exception e)
+        {
+            log.error("Error while storing record " + rec.key.timeStamp + " for output " + rec.key.recordType, e);
+        }
+    }
+    
+    
+    protected void commit(int batchCount)
+    {
+        commitRequested = false;
+        
+        try
+        {
+            if (rollups != null)
+                rollups.writeOpenBuckets();
+            synchronized (commitLock)
+            {
+                storage.commit();
+            }
+            numCommittedRecords.addAndGet(batchCount);
+            
+            if (log.isTraceEnabled())
+                log.trace("Committed " + batchCount + " records to storage " + storage.getLocalID());
+        }
+        catch (Exception e)
+        {
+            log.error("Error while committing records to storage " + storage.getLocalID(), e);
+        }
+        finally
+        {
+            numPendingRecords.addAndGet(-batchCount);
+        }
+    }
+    
+    
+    /*
+     * Approximate size of record, assuming all atoms are 8 bytes
+     */
+    protected static long estimateSize(DataBlock data)
+    {
+        return data.getAtomCount() * 8L;
+    }
+}
@@ -128,7 +128,8 @@ public class HttpServer extends AbstractModule<HttpServerConfig>
                 holder.setInitParameter("maxRequestsPerSec", Integer.toString(config.maxRequestsPerSecond));
                 holder.setInitParameter("remotePort", "true");
                 holder.setInitParameter("insertHeaders", "false");
-                holder.setInitParameter("maxRequestMs", Long.toString(24*3600*1000L)); // we need persistent requests!
+                holder.setInitParameter("maxRequestMs", Long.toString(24*3600*1000L)); // blocking streams still need persistent requests
+                holder.setAsyncSupported(true);
                 
                 // security handler
                 /*if (config.users != null && !config.users.isEmpty())
@@ -141,7 +142,8 @@ public class HttpServer extends AbstractModule<HttpServerConfig>
                 }*/
                 
                 // filter to add proper cross-origin headers
-                servletHandler.addFilter(CrossOriginFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+                holder = servletHandler.addFilter(CrossOriginFilter.class, "/*", EnumSet.of(DispatcherType.REQUEST));
+                holder.setAsyncSupported(true);
                 
                 // add default test servlet
                 servletHandler.addServlet(new ServletHolder(new HttpServlet() {
@@ -221,6 +223,7 @@ public class HttpServer extends AbstractModule<HttpServerConfig>
     public synchronized void deployServlet(HttpServlet servlet, Map<String, String> initParams, String... paths)
     {
         ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true); // long-lived streams are served asynchronously
         if (initParams != null)
             holder.setInitParameters(initParams);
         
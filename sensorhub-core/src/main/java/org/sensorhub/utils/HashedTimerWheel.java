@@ -0,0 +1,255 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <p>
+ * Hashed timer wheel for scheduling a large number of short tasks with a
+ * single timer thread.<br/>
+ * Scheduling and cancelling tasks is done in constant time, and expiration
+ * is checked once per tick, so tasks are run with a precision of one tick.
+ * Expired tasks are run by the provided executor rather than by the timer
+ * thread itself, so they may block for a short time without delaying other
+ * tasks.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class HashedTimerWheel
+{
+    private static final Logger log = LoggerFactory.getLogger(HashedTimerWheel.class);
+    
+    
+    /**
+     * Handle to a scheduled task
+     */
+    public class Timeout
+    {
+        final Runnable task;
+        final long deadline;
+        long remainingRounds;
+        volatile boolean cancelled;
+        
+        Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        
+        /**
+         * Cancels this task if it has not run yet
+         */
+        public void cancel()
+        {
+            cancelled = true;
+        }
+        
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+    
+    
+    final String name;
+    final long tickDuration;
+    final List<List<Timeout>> wheel;
+    final int mask;
+    final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    final Executor executor;
+    Thread workerThread;
+    volatile boolean started;
+    boolean stopped;
+    long startTime;
+    long tick;
+    
+    
+    /**
+     * Creates a new timer wheel
+     * @param name name of timer thread
+     * @param tickDuration duration of one tick
+     * @param unit time unit of tick duration
+     * @param wheelSize number of slots in the wheel (rounded up to the next power of 2)
+     * @param executor executor used to run expired tasks
+     */
+    public HashedTimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize, Executor executor)
+    {
+        this.name = name;
+        this.tickDuration = Math.max(1, unit.toMillis(tickDuration));
+        this.executor = executor;
+        
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+        this.mask = size - 1;
+        
+        this.wheel = new ArrayList<List<Timeout>>(size);
+        for (int i = 0; i < size; i++)
+            wheel.add(new ArrayList<Timeout>());
+    }
+    
+    
+    /**
+     * Schedules a task to be run once after the given delay.<br/>
+     * The timer thread is started when the first task is scheduled.
+     * @param task task to run
+     * @param delay delay before task is run (run on next tick if <= 0)
+     * @param unit time unit of delay
+     * @return handle to the scheduled task
+     * @throws IllegalStateException if the timer has been stopped
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        start();
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + unit.toMillis(Math.max(0, delay)));
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+    
+    
+    protected synchronized void start()
+    {
+        if (started)
+            return;
+        
+        if (stopped)
+            throw new IllegalStateException("Timer " + name + " has been stopped");
+        
+        startTime = System.currentTimeMillis();
+        workerThread = new Thread(name) {
+            @Override
+            public void run()
+            {
+                runWheel();
+            }
+        };
+        
+        workerThread.setDaemon(true);
+        started = true;
+        workerThread.start();
+    }
+    
+    
+    /**
+     * Stops the timer thread.<br/>
+     * Tasks that have not run yet are discarded and the timer cannot be
+     * used anymore.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        if (!started)
+            return;
+        
+        started = false;
+        workerThread.interrupt();
+        workerThread = null;
+    }
+    
+    
+    protected void runWheel()
+    {
+        while (started)
+        {
+            // wait until end of current tick
+            long tickEnd = startTime + (tick + 1) * tickDuration;
+            long sleepTime = tickEnd - System.currentTimeMillis();
+            if (sleepTime > 0)
+            {
+                try
+                {
+                    Thread.sleep(sleepTime);
+                }
+                catch (InterruptedException e)
+                {
+                    break;
+                }
+            }
+            
+            transferNewTimeouts();
+            expireTimeouts(wheel.get((int)(tick & mask)), tickEnd);
+            tick++;
+        }
+        
+        // discard pending tasks
+        newTimeouts.clear();
+        for (List<Timeout> bucket: wheel)
+            bucket.clear();
+    }
+    
+    
+    /*
+     * Moves newly scheduled tasks to the wheel slot of their deadline
+     */
+    protected void transferNewTimeouts()
+    {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null)
+        {
+            if (timeout.cancelled)
+                continue;
+            
+            // tasks already expired go in current slot
+            long expireTick = Math.max((timeout.deadline - startTime) / tickDuration, tick);
+            timeout.remainingRounds = (expireTick - tick) / wheel.size();
+            wheel.get((int)(expireTick & mask)).add(timeout);
+        }
+    }
+    
+    
+    protected void expireTimeouts(List<Timeout> bucket, long tickEnd)
+    {
+        Iterator<Timeout> it = bucket.iterator();
+        while (it.hasNext())
+        {
+            Timeout timeout = it.next();
+            
+            if (timeout.cancelled)
+            {
+                it.remove();
+            }
+            else if (timeout.remainingRounds <= 0 && timeout.deadline <= tickEnd)
+            {
+                it.remove();
+                
+                try
+                {
+                    executor.execute(timeout.task);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    log.debug("Timer task rejected by executor", e);
+                }
+            }
+            else
+            {
+                timeout.remainingRounds--;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.module.ModuleEvent;
+import org.sensorhub.impl.common.BasicEventHandler;
+
+
+/**
+ * <p>
+ * JMH benchmark of event publishing throughput through {@link BasicEventHandler}
+ * with several publisher threads and listeners.<br/>
+ * This is not run as part of the unit tests. Run the main method to execute
+ * the benchmark for 1, 4 and 16 publisher threads.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 23, 2015
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BenchEventHandlerPublish
+{
+    @Param({"1", "5", "10", "50"})
+    public int numListeners;
+
+    BasicEventHandler handler;
+    Event<?> event;
+    List<IEventListener> listeners; // keep strong refs
+
+
+    public static class ConsumingListener implements IEventListener
+    {
+        volatile Blackhole bh;
+
+        @Override
+        public void handleEvent(Event<?> e)
+        {
+            Blackhole bh = this.bh;
+            if (bh != null)
+                bh.consume(e);
+        }
+    }
+
+
+    @Setup
+    public void setup(Blackhole bh)
+    {
+        handler = new BasicEventHandler();
+        event = new ModuleEvent(null, ModuleEvent.Type.LOADED);
+        listeners = new ArrayList<IEventListener>();
+
+        for (int i = 0; i < numListeners; i++)
+        {
+            ConsumingListener l = new ConsumingListener();
+            l.bh = bh;
+            listeners.add(l);
+            handler.registerListener(l);
+        }
+    }
+
+
+    @Benchmark
+    public void publish()
+    {
+        handler.publishEvent(event);
+    }
+
+
+    public static void main(String[] args) throws Exception
+    {
+        for (int numThreads: new int[] {1, 4, 16})
+        {
+            Options opt = new OptionsBuilder()
+                .include(BenchEventHandlerPublish.class.getSimpleName())
+                .threads(numThreads)
+                .build();
+
+            new Runner(opt).run();
+        }
+    }
+}
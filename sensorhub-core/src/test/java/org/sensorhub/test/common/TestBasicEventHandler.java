@@ -0,0 +1,201 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.module.ModuleEvent;
+import org.sensorhub.impl.common.BasicEventHandler;
+
+
+public class TestBasicEventHandler
+{
+
+    class CountingListener implements IEventListener
+    {
+        AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public void handleEvent(Event<?> e)
+        {
+            count.incrementAndGet();
+        }
+    }
+
+
+    private Event<?> newEvent(ModuleEvent.Type type)
+    {
+        return new ModuleEvent(null, type);
+    }
+
+
+    @Test
+    public void testRegisterUnregister() throws Exception
+    {
+        BasicEventHandler handler = new BasicEventHandler();
+        CountingListener l1 = new CountingListener();
+        CountingListener l2 = new CountingListener();
+
+        handler.registerListener(l1);
+        handler.registerListener(l1);
+        handler.registerListener(l2);
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals(1, l1.count.get());
+        assertEquals(1, l2.count.get());
+
+        handler.unregisterListener(l1);
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals(1, l1.count.get());
+        assertEquals(2, l2.count.get());
+
+        handler.clearAllListeners();
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals(2, l2.count.get());
+    }
+
+
+    @Test
+    public void testRecursivePublish() throws Exception
+    {
+        final BasicEventHandler handler = new BasicEventHandler();
+        final List<String> received = new ArrayList<String>();
+
+        // first listener republishes an event while processing the first one
+        handler.registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e)
+            {
+                received.add("l1-" + ((ModuleEvent)e).type);
+                if (((ModuleEvent)e).type == ModuleEvent.Type.LOADED)
+                    handler.publishEvent(newEvent(ModuleEvent.Type.ENABLED));
+            }
+        });
+
+        handler.registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e)
+            {
+                received.add("l2-" + ((ModuleEvent)e).type);
+            }
+        });
+
+        // nested event must be dispatched after first one reached all listeners
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals("[l1-LOADED, l2-LOADED, l1-ENABLED, l2-ENABLED]", received.toString());
+    }
+
+
+    @Test
+    public void testRegisterDuringPublish() throws Exception
+    {
+        final BasicEventHandler handler = new BasicEventHandler();
+        final CountingListener l2 = new CountingListener();
+
+        handler.registerListener(new IEventListener() {
+            public void handleEvent(Event<?> e)
+            {
+                handler.unregisterListener(this);
+                handler.registerListener(l2);
+            }
+        });
+
+        // changes only take effect for the next event
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals(0, l2.count.get());
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals(1, l2.count.get());
+    }
+
+
+    @Test
+    public void testWeakReferences() throws Exception
+    {
+        BasicEventHandler handler = new BasicEventHandler();
+        CountingListener l1 = new CountingListener();
+        handler.registerListener(l1);
+        CountingListener l2 = new CountingListener();
+        WeakReference<CountingListener> l2Ref = new WeakReference<CountingListener>(l2);
+        handler.registerListener(l2);
+        l2 = null;
+
+        for (int i = 0; i < 50 && l2Ref.get() != null; i++)
+        {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("Listener was not garbage collected", l2Ref.get());
+
+        // cleared reference must be skipped without error
+        // but publishing doesn't modify the listener array
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+        assertEquals(2, l1.count.get());
+        assertEquals(2, handler.getNumListeners());
+
+        // cleared reference is purged on next registration
+        CountingListener l3 = new CountingListener();
+        handler.registerListener(l3);
+        assertEquals(2, handler.getNumListeners());
+        handler.unregisterListener(l3);
+        assertEquals(1, handler.getNumListeners());
+    }
+
+
+    @Test
+    public void testConcurrentPublish() throws Exception
+    {
+        final BasicEventHandler handler = new BasicEventHandler();
+        final int numThreads = 8;
+        final int numEvents = 10000;
+        CountingListener[] listeners = new CountingListener[10];
+        for (int i = 0; i < listeners.length; i++)
+        {
+            listeners[i] = new CountingListener();
+            handler.registerListener(listeners[i]);
+        }
+
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++)
+        {
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    for (int j = 0; j < numEvents; j++)
+                        handler.publishEvent(newEvent(ModuleEvent.Type.LOADED));
+                }
+            };
+            threads[i].start();
+        }
+
+        // also register/unregister concurrently
+        CountingListener transientListener = new CountingListener();
+        for (int j = 0; j < 1000; j++)
+        {
+            handler.registerListener(transientListener);
+            handler.unregisterListener(transientListener);
+        }
+
+        for (Thread t: threads)
+            t.join();
+
+        for (CountingListener l: listeners)
+            assertEquals(numThreads*numEvents, l.count.get());
+    }
+}
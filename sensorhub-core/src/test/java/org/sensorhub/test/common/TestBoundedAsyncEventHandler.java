@@ -0,0 +1,238 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.module.ModuleEvent;
+import org.sensorhub.impl.common.AsyncDispatchConfig.OverflowPolicy;
+import org.sensorhub.impl.common.BoundedAsyncEventHandler;
+import org.sensorhub.impl.common.BoundedAsyncEventHandler.ListenerStats;
+
+
+public class TestBoundedAsyncEventHandler
+{
+    ExecutorService pool;
+
+
+    class SlowListener implements IEventListener
+    {
+        List<Event<?>> received = Collections.synchronizedList(new ArrayList<Event<?>>());
+        CountDownLatch gate;
+        CountDownLatch done;
+
+        SlowListener(CountDownLatch gate, int expectedCount)
+        {
+            this.gate = gate;
+            this.done = new CountDownLatch(expectedCount);
+        }
+
+        @Override
+        public void handleEvent(Event<?> e)
+        {
+            try
+            {
+                gate.await();
+            }
+            catch (InterruptedException ex)
+            {
+            }
+
+            received.add(e);
+            done.countDown();
+        }
+    }
+
+
+    @Before
+    public void setup()
+    {
+        pool = Executors.newFixedThreadPool(2);
+    }
+
+
+    private Event<?> newEvent()
+    {
+        return new ModuleEvent(null, ModuleEvent.Type.LOADED);
+    }
+
+
+    @Test
+    public void testPublisherNotBlockedBySlowListener() throws Exception
+    {
+        BoundedAsyncEventHandler handler = new BoundedAsyncEventHandler(pool, 100, OverflowPolicy.BLOCK);
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowListener slow = new SlowListener(gate, 10);
+        SlowListener fast = new SlowListener(new CountDownLatch(0), 10);
+        handler.registerListener(slow);
+        handler.registerListener(fast);
+
+        for (int i = 0; i < 10; i++)
+            handler.publishEvent(newEvent());
+
+        // fast listener must get all events while slow one is stuck
+        assertTrue(fast.done.await(1, TimeUnit.SECONDS));
+        assertEquals(0, slow.received.size());
+
+        gate.countDown();
+        assertTrue(slow.done.await(1, TimeUnit.SECONDS));
+        assertEquals(10, slow.received.size());
+    }
+
+
+    @Test
+    public void testEventOrder() throws Exception
+    {
+        BoundedAsyncEventHandler handler = new BoundedAsyncEventHandler(pool, 10, OverflowPolicy.BLOCK);
+        int numEvents = 1000;
+        SlowListener listener = new SlowListener(new CountDownLatch(0), numEvents);
+        handler.registerListener(listener);
+
+        List<Event<?>> sent = new ArrayList<Event<?>>();
+        for (int i = 0; i < numEvents; i++)
+        {
+            Event<?> e = newEvent();
+            sent.add(e);
+            handler.publishEvent(e);
+        }
+
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        assertEquals(sent, listener.received);
+    }
+
+
+    @Test
+    public void testDropNewest() throws Exception
+    {
+        BoundedAsyncEventHandler handler = new BoundedAsyncEventHandler(pool, 5, OverflowPolicy.DROP_NEWEST);
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowListener listener = new SlowListener(gate, 6);
+        handler.registerListener(listener);
+
+        List<Event<?>> sent = new ArrayList<Event<?>>();
+        for (int i = 0; i < 20; i++)
+        {
+            Event<?> e = newEvent();
+            sent.add(e);
+            handler.publishEvent(e);
+            Thread.sleep(1);
+        }
+
+        ListenerStats stats = handler.getListenerStats().get(0);
+        assertEquals(5, stats.getQueueDepth());
+        assertEquals(14, stats.getDroppedCount());
+
+        // first event is being processed, then 5 next ones are queued
+        gate.countDown();
+        assertTrue(listener.done.await(1, TimeUnit.SECONDS));
+        assertEquals(sent.subList(0, 6), listener.received);
+    }
+
+
+    @Test
+    public void testDropOldest() throws Exception
+    {
+        BoundedAsyncEventHandler handler = new BoundedAsyncEventHandler(pool, 5, OverflowPolicy.DROP_OLDEST);
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowListener listener = new SlowListener(gate, 6);
+        handler.registerListener(listener);
+
+        List<Event<?>> sent = new ArrayList<Event<?>>();
+        for (int i = 0; i < 20; i++)
+        {
+            Event<?> e = newEvent();
+            sent.add(e);
+            handler.publishEvent(e);
+            Thread.sleep(1);
+        }
+
+        assertEquals(14, handler.getListenerStats().get(0).getDroppedCount());
+
+        // first event is being processed, then 5 most recent ones are queued
+        gate.countDown();
+        assertTrue(listener.done.await(1, TimeUnit.SECONDS));
+        assertEquals(sent.get(0), listener.received.get(0));
+        assertEquals(sent.subList(15, 20), listener.received.subList(1, 6));
+    }
+
+
+    @Test
+    public void testCoalesce() throws Exception
+    {
+        BoundedAsyncEventHandler handler = new BoundedAsyncEventHandler(pool, 2, OverflowPolicy.COALESCE);
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowListener listener = new SlowListener(gate, 3);
+        handler.registerListener(listener);
+
+        List<Event<?>> sent = new ArrayList<Event<?>>();
+        for (int i = 0; i < 10; i++)
+        {
+            Event<?> e = newEvent();
+            sent.add(e);
+            handler.publishEvent(e);
+            Thread.sleep(1);
+        }
+
+        // latest event must always be delivered
+        gate.countDown();
+        assertTrue(listener.done.await(1, TimeUnit.SECONDS));
+        assertEquals(sent.get(9), listener.received.get(2));
+    }
+
+
+    @Test
+    public void testLagStats() throws Exception
+    {
+        BoundedAsyncEventHandler handler = new BoundedAsyncEventHandler(pool, 10, OverflowPolicy.BLOCK);
+        CountDownLatch gate = new CountDownLatch(1);
+        SlowListener listener = new SlowListener(gate, 3);
+        handler.registerListener(listener);
+
+        for (int i = 0; i < 3; i++)
+            handler.publishEvent(newEvent());
+
+        Thread.sleep(100);
+        ListenerStats stats = handler.getListenerStats().get(0);
+        System.out.println(stats);
+        assertEquals(2, stats.getQueueDepth());
+        assertTrue(stats.getCurrentLag() >= 90);
+
+        gate.countDown();
+        assertTrue(listener.done.await(1, TimeUnit.SECONDS));
+        Thread.sleep(10);
+        stats = handler.getListenerStats().get(0);
+        assertEquals(3, stats.getDeliveredCount());
+        assertTrue(stats.getMaxLag() >= 90);
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        pool.shutdownNow();
+    }
+}
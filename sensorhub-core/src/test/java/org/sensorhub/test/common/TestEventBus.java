@@ -0,0 +1,223 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.common.EntityEvent;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventHandler;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.module.ModuleConfig;
+import org.sensorhub.api.module.ModuleEvent;
+import org.sensorhub.impl.common.AsyncDispatchConfig;
+import org.sensorhub.impl.common.AsyncDispatchConfig.OverflowPolicy;
+import org.sensorhub.impl.common.EventBus;
+import org.sensorhub.impl.common.EventBusConfig;
+import org.sensorhub.impl.module.AbstractModule;
+
+
+public class TestEventBus
+{
+    EventBus eventBus;
+    String module1, module2;
+    
+    
+    static class TestEntityEvent extends EntityEvent<ModuleEvent.Type>
+    {
+        TestEntityEvent(String entityID)
+        {
+            this.relatedEntityID = entityID;
+        }
+    }
+    
+    
+    static class RecordingListener implements IEventListener
+    {
+        List<Event<?>> received = new ArrayList<Event<?>>();
+        
+        @Override
+        public void handleEvent(Event<?> e)
+        {
+            received.add(e);
+        }
+    }
+    
+    
+    @Before
+    public void setup()
+    {
+        eventBus = EventBus.getInstance();
+        
+        // use unique IDs since event bus is a singleton
+        module1 = UUID.randomUUID().toString();
+        module2 = UUID.randomUUID().toString();
+    }
+    
+    
+    private Event<?> newEvent()
+    {
+        return new ModuleEvent(null, ModuleEvent.Type.LOADED);
+    }
+    
+    
+    @Test
+    public void testRegisterListenerBeforeProducer() throws Exception
+    {
+        RecordingListener listener = new RecordingListener();
+        eventBus.registerListener(module1, "output1", listener);
+        
+        IEventHandler handler = eventBus.registerProducer(module1, "output1");
+        assertSame(handler, eventBus.registerProducer(module1, "output1"));
+        handler.publishEvent(newEvent());
+        assertEquals(1, listener.received.size());
+        
+        eventBus.unregisterListener(module1, "output1", listener);
+        handler.publishEvent(newEvent());
+        assertEquals(1, listener.received.size());
+    }
+    
+    
+    @Test
+    public void testModuleWildcard() throws Exception
+    {
+        IEventHandler h1 = eventBus.registerProducer(module1, "output1");
+        IEventHandler h2 = eventBus.registerProducer(module2, "output1");
+        
+        // subscribe to all outputs of module 1
+        RecordingListener listener = new RecordingListener();
+        eventBus.registerListener(module1, EventBus.ANY, listener);
+        
+        // register new output after subscription
+        IEventHandler h3 = eventBus.registerProducer(module1, "output2");
+        
+        h1.publishEvent(newEvent());
+        h2.publishEvent(newEvent());
+        h3.publishEvent(newEvent());
+        assertEquals(2, listener.received.size());
+        
+        eventBus.unregisterListener(module1, EventBus.ANY, listener);
+        h1.publishEvent(newEvent());
+        h3.publishEvent(newEvent());
+        assertEquals(2, listener.received.size());
+        
+        // output registered after unsubscribe
+        eventBus.registerProducer(module1, "output3").publishEvent(newEvent());
+        assertEquals(2, listener.received.size());
+    }
+    
+    
+    @Test
+    public void testTopicWildcard() throws Exception
+    {
+        RecordingListener listener = new RecordingListener();
+        String topic = UUID.randomUUID().toString();
+        eventBus.registerListener(EventBus.ANY, topic, listener);
+        
+        eventBus.registerProducer(module1, topic).publishEvent(newEvent());
+        eventBus.registerProducer(module2, topic).publishEvent(newEvent());
+        eventBus.registerProducer(module2, "other").publishEvent(newEvent());
+        assertEquals(2, listener.received.size());
+        
+        eventBus.unregisterListener(EventBus.ANY, topic, listener);
+    }
+    
+    
+    @Test
+    public void testEntitySubscription() throws Exception
+    {
+        IEventHandler handler = eventBus.registerProducer(module1, "output1");
+        RecordingListener listener = new RecordingListener();
+        eventBus.registerListener(module1, "output1", "urn:entity1", listener);
+        
+        System.gc();
+        handler.publishEvent(new TestEntityEvent("urn:entity1"));
+        handler.publishEvent(new TestEntityEvent("urn:entity2"));
+        handler.publishEvent(new TestEntityEvent("urn:entity1"));
+        assertEquals(2, listener.received.size());
+        
+        eventBus.unregisterListener(module1, "output1", listener);
+        handler.publishEvent(new TestEntityEvent("urn:entity1"));
+        assertEquals(2, listener.received.size());
+    }
+    
+    
+    @Test
+    public void testAsyncHandlerAfterShutdown() throws Exception
+    {
+        EventBusConfig config = new EventBusConfig();
+        config.asyncDispatch.add(new AsyncDispatchConfig(module1, "output1", 10, OverflowPolicy.BLOCK));
+        eventBus.setConfig(config);
+        
+        try
+        {
+            final CountDownLatch received = new CountDownLatch(2);
+            IEventHandler handler = eventBus.registerProducer(module1, "output1");
+            eventBus.registerListener(module1, "output1", new IEventListener() {
+                @Override
+                public void handleEvent(Event<?> e)
+                {
+                    received.countDown();
+                }
+            });
+            
+            handler.publishEvent(newEvent());
+            
+            // handler kept by producer must still dispatch after hub restart
+            eventBus.shutdown();
+            assertSame(handler, eventBus.registerProducer(module1, "output1"));
+            handler.publishEvent(newEvent());
+            assertTrue("Events not received after restart", received.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            eventBus.setConfig(null);
+        }
+    }
+    
+    
+    @Test
+    public void testModuleWithoutID() throws Exception
+    {
+        // modules can be initialized without local ID
+        AbstractModule<ModuleConfig> module = new AbstractModule<ModuleConfig>() {
+            public void start() {}
+            public void stop() {}
+            public void cleanup() {}
+        };
+        module.init(new ModuleConfig());
+        
+        RecordingListener listener = new RecordingListener();
+        module.registerListener(listener);
+        eventBus.registerProducer(null, EventBus.MAIN_TOPIC).publishEvent(newEvent());
+        assertEquals(1, listener.received.size());
+        
+        // wildcard subscriptions also see them
+        RecordingListener anyListener = new RecordingListener();
+        eventBus.registerListener(EventBus.ANY, EventBus.MAIN_TOPIC, anyListener);
+        eventBus.registerProducer(null, EventBus.MAIN_TOPIC).publishEvent(newEvent());
+        assertEquals(1, anyListener.received.size());
+        eventBus.unregisterListener(EventBus.ANY, EventBus.MAIN_TOPIC, anyListener);
+        module.unregisterListener(listener);
+    }
+}
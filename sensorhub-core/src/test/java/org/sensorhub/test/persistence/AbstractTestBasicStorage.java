@@ -18,6 +18,7 @@ import static org.junit.Assert.*;
 import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -334,6 +335,64 @@ public abstract class AbstractTestBasicStorage<StorageType extends IRecordStorag
     }
     
     
+    @Test
+    public void testStoreAndCountRecordsByTimeRange() throws Exception
+    {
+        DataBlock data;
+        DataKey key;
+        
+        DataComponent recordDef = createDs2();
+        
+        // write N records
+        final double timeStep = 0.1;
+        final int numRecords = 1000;
+        storage.setAutoCommit(false);
+        for (int i=0; i<numRecords; i++)
+        {
+            data = recordDef.createDataBlock();
+            data.setDoubleValue(0, i);
+            data.setIntValue(1, i);
+            data.setStringValue(2, "testcount" + i);
+            key = new DataKey(recordDef.getName(), producerID, i*timeStep);
+            storage.storeRecord(key, data);
+        }
+        storage.commit();
+        forceReadBackFromStorage();
+        
+        // count records in various time ranges, including ones with bounds
+        // falling exactly on record time stamps and ones with no records
+        double[][] timeRanges = new double[][] {
+            {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY},
+            {10*timeStep, 20*timeStep},
+            {10.05, 20.05},
+            {-10.0, 5.0},
+            {50.0, 1000.0},
+            {10.01, 10.09},
+            {-2.0, -1.0},
+            {1000.0, 1001.0}
+        };
+        
+        for (final double[] timeRange: timeRanges)
+        {
+            IDataFilter filter = new DataFilter(recordDef.getName()) {
+                public double[] getTimeStampRange() { return timeRange; }
+            };
+            
+            int expectedCount = 0;
+            Iterator<? extends IDataRecord> it = storage.getRecordIterator(filter);
+            while (it.hasNext())
+            {
+                it.next();
+                expectedCount++;
+            }
+            
+            assertEquals("Wrong count for time range " + Arrays.toString(timeRange), expectedCount, storage.getNumMatchingRecords(filter, Long.MAX_VALUE));
+        }
+        
+        assertEquals(numRecords, storage.getNumRecords(recordDef.getName()));
+    }
+    
+    
     @Test
     public void testStoreAndGetTimeRange() throws Exception
     {
@@ -39,6 +39,7 @@ import org.sensorhub.api.persistence.ObsKey;
 import org.sensorhub.test.TestUtils;
 import org.vast.ogc.gml.GenericFeatureImpl;
 import org.vast.util.Bbox;
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Polygon;
 
@@ -179,28 +180,70 @@ public abstract class AbstractTestObsStorage<StorageType extends IObsStorageModu
     }
     
     
+    @Test
+    public void testStoreAndRetrieveFoisByIdAndRoi() throws Exception
+    {
+        addFoisToStorage();
+        
+        // FOIs are on the diagonal so triangle only contains those with x < 40
+        GeometryFactory geomFac = new GeometryFactory();
+        Polygon triangle = geomFac.createPolygon(new Coordinate[] {
+            new Coordinate(0, 0), new Coordinate(0, 80), new Coordinate(80, 0), new Coordinate(0, 0) });
+        testFilterFoiByRoi(triangle, null, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20,
+                           21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 36, 37, 38, 39, 40);
+        
+        // combined with ID filter
+        List<String> idList = new ArrayList<String>();
+        for (int foiNum: new int[] {56, 3, 40, 41, 102, 22})
+            idList.add(FOI_UID_PREFIX + foiNum);
+        testFilterFoiByRoi(triangle, idList, 3, 40, 22);
+        
+        // count all FOIs
+        FoiFilter filter = new FoiFilter()
+        {
+            public Collection<String> getProducerIDs() {return producerFilterList; };
+        };
+        assertEquals(NUM_FOIS, storage.getNumFois(filter));
+    }
+    
+    
     protected void testFilterFoiByRoi(Bbox bbox, int... foiNums)
     {
-        final Polygon poly = (Polygon)new GeometryFactory().toGeometry(bbox.toJtsEnvelope());
+        Polygon poly = (Polygon)new GeometryFactory().toGeometry(bbox.toJtsEnvelope());
+        testFilterFoiByRoi(poly, null, foiNums);
+    }
+    
+    
+    protected void testFilterFoiByRoi(final Polygon poly, final Collection<String> idList, int... foiNums)
+    {
         FoiFilter filter = new FoiFilter()
         {
+            public Collection<String> getFeatureIDs() { return idList; };
             public Polygon getRoi() { return poly; };
             public Collection<String> getProducerIDs() {return producerFilterList; };
         };
         
+        // spatial index doesn't guarantee any order
+        Set<String> expectedIDs = new HashSet<String>();
+        for (int foiNum: foiNums)
+            expectedIDs.add(FOI_UID_PREFIX + foiNum);
+        
         // test retrieve objects
         Iterator<AbstractFeature> it = storage.getFois(filter);
-        int i = 0;
+        Set<String> foiIDs = new HashSet<String>();
         while (it.hasNext())
-            assertEquals(FOI_UID_PREFIX + foiNums[i++], it.next().getUniqueIdentifier());
-        assertEquals(foiNums.length, i);
+            assertTrue(foiIDs.add(it.next().getUniqueIdentifier()));
+        assertEquals(expectedIDs, foiIDs);
         
         // test retrieve ids only
         Iterator<String> it2 = storage.getFoiIDs(filter);
-        i = 0;
+        foiIDs.clear();
         while (it2.hasNext())
-            assertEquals(FOI_UID_PREFIX + foiNums[i++], it2.next());
-        assertEquals(foiNums.length, i);
+            assertTrue(foiIDs.add(it2.next()));
+        assertEquals(expectedIDs, foiIDs);
+        
+        // test count
+        assertEquals(foiNums.length, storage.getNumFois(filter));
     }
     
     
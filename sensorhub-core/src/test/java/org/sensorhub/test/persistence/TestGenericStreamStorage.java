@@ -16,10 +16,20 @@ package org.sensorhub.test.persistence;
 
 import static org.junit.Assert.*;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.opengis.swe.v20.DataBlock;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.persistence.DataFilter;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.IDataFilter;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.IRecordStoreInfo;
 import org.sensorhub.api.persistence.StorageConfig;
 import org.sensorhub.api.sensor.ISensorModule;
 import org.sensorhub.api.sensor.SensorConfig;
@@ -27,8 +37,12 @@ import org.sensorhub.impl.SensorHub;
 import org.sensorhub.impl.SensorHubConfig;
 import org.sensorhub.impl.module.ModuleRegistry;
 import org.sensorhub.impl.persistence.GenericStreamStorage;
+import org.sensorhub.impl.persistence.HotTierConfig;
 import org.sensorhub.impl.persistence.InMemoryBasicStorage;
-import org.sensorhub.impl.persistence.StreamStorageConfig;
+import org.sensorhub.impl.persistence.RecordRollups;
+import org.sensorhub.impl.persistence.RollupConfig;
+import org.sensorhub.impl.persistence.StreamStorageConfig;
+import org.sensorhub.impl.persistence.WriteBehindConfig;
 import org.sensorhub.test.sensor.FakeSensor;
 import org.sensorhub.test.sensor.FakeSensorData;
 
@@ -40,6 +54,7 @@ public class TestGenericStreamStorage
     FakeSensorData fakeSensorData;
     GenericStreamStorage storage;
     ModuleRegistry registry;
+    ISensorModule<?> sensor;
     
     
     @Before
@@ -55,19 +70,44 @@ public class TestGenericStreamStorage
         sensorCfg.enabled = false;
         sensorCfg.moduleClass = FakeSensor.class.getCanonicalName();
         sensorCfg.name = "Sensor1";
-        ISensorModule<?> sensor = (ISensorModule<?>)registry.loadModule(sensorCfg);
+        sensor = (ISensorModule<?>)registry.loadModule(sensorCfg);
         fakeSensorData = new FakeSensorData((FakeSensor)sensor, OUTPUT_NAME, 10, 0.1, 10);
-        ((FakeSensor)sensor).setDataInterfaces(fakeSensorData);
-        
-        // create test storage
+        ((FakeSensor)sensor).setDataInterfaces(fakeSensorData);
+    }
+    
+    
+    protected void createStorage(WriteBehindConfig writeBehindConfig) throws Exception
+    {
+        createStorage(writeBehindConfig, null);
+    }
+    
+    
+    protected void createStorage(WriteBehindConfig writeBehindConfig, RollupConfig rollupConfig) throws Exception
+    {
+        createStorage(writeBehindConfig, rollupConfig, null);
+    }
+    
+    
+    protected void createStorage(WriteBehindConfig writeBehindConfig, RollupConfig rollupConfig, HotTierConfig hotTierConfig) throws Exception
+    {
+        createStorage(writeBehindConfig, rollupConfig, hotTierConfig, InMemoryBasicStorage.class);
+    }
+    
+    
+    protected void createStorage(WriteBehindConfig writeBehindConfig, RollupConfig rollupConfig, HotTierConfig hotTierConfig, Class<?> storageClass) throws Exception
+    {
+        // create test storage
         StreamStorageConfig genericStorageConfig = new StreamStorageConfig();
         genericStorageConfig.moduleClass = GenericStreamStorage.class.getCanonicalName();
         genericStorageConfig.name = "SensorStorageTest";
         genericStorageConfig.enabled = true;
         genericStorageConfig.dataSourceID = sensor.getLocalID();
         StorageConfig storageConfig = new StorageConfig();
-        storageConfig.moduleClass = InMemoryBasicStorage.class.getCanonicalName();
-        genericStorageConfig.storageConfig = storageConfig;
+        storageConfig.moduleClass = storageClass.getName();
+        genericStorageConfig.storageConfig = storageConfig;
+        genericStorageConfig.writeBehindConfig = writeBehindConfig;
+        genericStorageConfig.rollupConfig = rollupConfig;
+        genericStorageConfig.hotTierConfig = hotTierConfig;
         storage = (GenericStreamStorage)registry.loadModule(genericStorageConfig);
     }
     
@@ -75,6 +115,8 @@ public class TestGenericStreamStorage
     @Test
     public void testAddRecordToStorage() throws Exception
     {
+        createStorage(null);
+        
         while (fakeSensorData.isEnabled())
             Thread.sleep((long)(fakeSensorData.getAverageSamplingPeriod() * 500));
         
@@ -83,6 +125,153 @@ public class TestGenericStreamStorage
     }
     
     
+    @Test
+    public void testAddRecordToStorageWriteBehind() throws Exception
+    {
+        WriteBehindConfig writeBehindConfig = new WriteBehindConfig();
+        writeBehindConfig.maxBatchRecords = 3;
+        writeBehindConfig.maxCommitLatency = 200;
+        createStorage(writeBehindConfig);
+        
+        while (fakeSensorData.isEnabled())
+            Thread.sleep((long)(fakeSensorData.getAverageSamplingPeriod() * 500));
+        
+        // records must be committed after max latency even if no more data is received
+        Thread.sleep(writeBehindConfig.maxCommitLatency + 100);
+        assertEquals(0, storage.getNumPendingRecords());
+        assertEquals(fakeSensorData.getMaxSampleCount(), storage.getNumRecords(OUTPUT_NAME));
+    }
+    
+    
+    @Test
+    public void testRollups() throws Exception
+    {
+        RollupConfig rollupConfig = new RollupConfig();
+        rollupConfig.periods = new double[] {1.0, 60.0};
+        WriteBehindConfig writeBehindConfig = new WriteBehindConfig();
+        writeBehindConfig.maxCommitLatency = 200;
+        createStorage(writeBehindConfig, rollupConfig);
+        
+        while (fakeSensorData.isEnabled())
+            Thread.sleep((long)(fakeSensorData.getAverageSamplingPeriod() * 500));
+        Thread.sleep(writeBehindConfig.maxCommitLatency + 100);
+        
+        // rollup stores must not be listed with data source outputs
+        assertEquals(1, storage.getRecordStores().size());
+        
+        // check tier selection
+        assertNull(storage.getAggregateRecordStore(OUTPUT_NAME, 0.5));
+        IRecordStoreInfo tier = storage.getAggregateRecordStore(OUTPUT_NAME, 10.0);
+        assertEquals(RecordRollups.getRollupName(OUTPUT_NAME, 1.0), tier.getName());
+        tier = storage.getAggregateRecordStore(OUTPUT_NAME, 3600.0);
+        assertEquals(RecordRollups.getRollupName(OUTPUT_NAME, 60.0), tier.getName());
+        
+        // check aggregated values
+        // record fields are time, then min, max, mean, count, last for temp, windSpeed and press
+        Iterator<? extends IDataRecord> it = storage.getAggregateRecordIterator(new DataFilter(OUTPUT_NAME), 1.0);
+        int totalCount = 0;
+        double lastTime = Double.NEGATIVE_INFINITY;
+        while (it.hasNext())
+        {
+            IDataRecord rec = it.next();
+            double time = rec.getKey().timeStamp;
+            assertTrue("Rollup records not sorted", time > lastTime);
+            assertEquals(Math.floor(time), time, 0.0);
+            lastTime = time;
+            
+            double min = rec.getData().getDoubleValue(1);
+            double max = rec.getData().getDoubleValue(2);
+            double mean = rec.getData().getDoubleValue(3);
+            assertTrue(min <= mean && mean <= max);
+            totalCount += rec.getData().getIntValue(4);
+        }
+        
+        assertEquals(fakeSensorData.getMaxSampleCount(), totalCount);
+    }
+    
+    
+    @Test
+    public void testHotTier() throws Exception
+    {
+        HotTierConfig hotTierConfig = new HotTierConfig();
+        hotTierConfig.maxRecords = 4;
+        createStorage(null, null, hotTierConfig, CountingStorage.class);
+        
+        while (fakeSensorData.isEnabled())
+            Thread.sleep((long)(fakeSensorData.getAverageSamplingPeriod() * 500));
+        Thread.sleep(100);
+        
+        // read all records, which must be read from underlying storage
+        CountingStorage.numReads.set(0);
+        List<IDataRecord> allRecords = readRecords(Double.NEGATIVE_INFINITY);
+        int numRecords = fakeSensorData.getMaxSampleCount();
+        assertEquals(numRecords, allRecords.size());
+        assertEquals(1, CountingStorage.numReads.get());
+        
+        // read recent records, which are served from memory unless older than buffered ones
+        for (int n = 1; n <= hotTierConfig.maxRecords + 2; n++)
+        {
+            CountingStorage.numReads.set(0);
+            double startTime = allRecords.get(numRecords - n).getKey().timeStamp;
+            List<IDataRecord> recentRecords = readRecords(startTime);
+            assertEquals(n, recentRecords.size());
+            for (int i = 0; i < n; i++)
+            {
+                IDataRecord rec = allRecords.get(numRecords - n + i);
+                assertEquals(rec.getKey().timeStamp, recentRecords.get(i).getKey().timeStamp, 0.0);
+                assertSame(rec.getData(), recentRecords.get(i).getData());
+                assertSame(rec.getData(), storage.getDataBlock(rec.getKey()));
+            }
+            
+            boolean fromMemory = (n <= hotTierConfig.maxRecords);
+            assertEquals("Wrong tier used for " + n + " records", fromMemory, CountingStorage.numReads.get() == 0);
+        }
+    }
+    
+    
+    /*
+     * In-memory storage counting record reads so tests can check whether
+     * queries were served by the hot tier
+     */
+    public static class CountingStorage extends InMemoryBasicStorage
+    {
+        static AtomicInteger numReads = new AtomicInteger();
+        
+        @Override
+        public DataBlock getDataBlock(DataKey key)
+        {
+            numReads.incrementAndGet();
+            return super.getDataBlock(key);
+        }
+        
+        @Override
+        public Iterator<DataBlock> getDataBlockIterator(IDataFilter filter)
+        {
+            numReads.incrementAndGet();
+            return super.getDataBlockIterator(filter);
+        }
+        
+        @Override
+        public Iterator<? extends IDataRecord> getRecordIterator(IDataFilter filter)
+        {
+            numReads.incrementAndGet();
+            return super.getRecordIterator(filter);
+        }
+    }
+    
+    
+    protected List<IDataRecord> readRecords(final double startTime)
+    {
+        List<IDataRecord> records = new ArrayList<IDataRecord>();
+        Iterator<? extends IDataRecord> it = storage.getRecordIterator(new DataFilter(OUTPUT_NAME) {
+            public double[] getTimeStampRange() { return new double[] {startTime, Double.POSITIVE_INFINITY}; }
+        });
+        while (it.hasNext())
+            records.add(it.next());
+        return records;
+    }
+    
+    
     @After
     public void cleanup()
     {
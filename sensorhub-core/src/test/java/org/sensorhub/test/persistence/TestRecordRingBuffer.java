@@ -0,0 +1,206 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.persistence;
+
+import static org.junit.Assert.*;
+import java.util.Arrays;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import org.junit.Test;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.impl.persistence.RecordRingBuffer;
+import org.vast.data.DataBlockDouble;
+
+
+public class TestRecordRingBuffer
+{
+    private final static String RECORD_TYPE = "rec";
+    
+    
+    protected DataKey add(RecordRingBuffer buffer, String producerID, double time, boolean expectAdded)
+    {
+        DataKey key = new DataKey(RECORD_TYPE, producerID, time);
+        DataBlock data = new DataBlockDouble(1);
+        data.setDoubleValue(time);
+        assertEquals(expectAdded, buffer.add(key, data));
+        return key;
+    }
+    
+    
+    protected void checkTimeStamps(RecordRingBuffer buffer, double... expectedTimes)
+    {
+        List<IDataRecord> records = buffer.select(null, null);
+        double[] times = new double[records.size()];
+        for (int i = 0; i < times.length; i++)
+        {
+            times[i] = records.get(i).getKey().timeStamp;
+            assertEquals(times[i], records.get(i).getData().getDoubleValue(), 0.0);
+        }
+        
+        assertArrayEquals(Arrays.toString(times), expectedTimes, times, 0.0);
+        assertEquals(expectedTimes.length, buffer.size());
+        
+        if (expectedTimes.length > 0)
+        {
+            double[] timeRange = buffer.getTimeRange();
+            assertEquals(expectedTimes[0], timeRange[0], 0.0);
+            assertEquals(expectedTimes[expectedTimes.length-1], timeRange[1], 0.0);
+        }
+    }
+    
+    
+    @Test
+    public void testWrapAroundAndEviction() throws Exception
+    {
+        RecordRingBuffer buffer = new RecordRingBuffer(2, 5);
+        for (int i = 1; i <= 12; i++)
+            add(buffer, null, i, true);
+        
+        // only newest records are kept and buffer is complete from the oldest one
+        checkTimeStamps(buffer, 8, 9, 10, 11, 12);
+        assertTrue(buffer.isCompleteFrom(8.0));
+        assertFalse(buffer.isCompleteFrom(7.0));
+        
+        double[] timeRange = new double[] {9.0, 11.0};
+        assertEquals(3, buffer.count(timeRange, null));
+        assertEquals(3, buffer.select(timeRange, null).size());
+        assertEquals(9.0, buffer.select(timeRange, null).get(0).getKey().timeStamp, 0.0);
+        assertEquals(11.0, buffer.get(new DataKey(RECORD_TYPE, null, 11.0)).getDoubleValue(), 0.0);
+        assertNull(buffer.get(new DataKey(RECORD_TYPE, null, 7.0)));
+    }
+    
+    
+    @Test
+    public void testGrowWhileWrapped() throws Exception
+    {
+        RecordRingBuffer buffer = new RecordRingBuffer(4, 100);
+        for (int i = 1; i <= 4; i++)
+            add(buffer, null, i, true);
+        
+        // move head forward so records wrap around end of array before it grows
+        assertEquals(2, buffer.removeBefore(3.0));
+        for (int i = 5; i <= 10; i++)
+            add(buffer, null, i, true);
+        
+        checkTimeStamps(buffer, 3, 4, 5, 6, 7, 8, 9, 10);
+    }
+    
+    
+    @Test
+    public void testOutOfOrderInsert() throws Exception
+    {
+        RecordRingBuffer buffer = new RecordRingBuffer(4, 4);
+        add(buffer, null, 10, true);
+        add(buffer, null, 30, true);
+        add(buffer, null, 20, true);
+        add(buffer, null, 40, true);
+        checkTimeStamps(buffer, 10, 20, 30, 40);
+        
+        // insert in full wrapped buffer evicts oldest record
+        add(buffer, null, 35, true);
+        checkTimeStamps(buffer, 20, 30, 35, 40);
+        assertFalse(buffer.isCompleteFrom(10.0));
+        assertTrue(buffer.isCompleteFrom(20.0));
+        
+        // record older than all records of full buffer is rejected
+        // and buffer is not complete from that time anymore
+        add(buffer, null, 15, false);
+        checkTimeStamps(buffer, 20, 30, 35, 40);
+        assertFalse(buffer.isCompleteFrom(15.0));
+        assertTrue(buffer.isCompleteFrom(20.0));
+        
+        // records older than complete time are rejected even if buffer is not full
+        buffer.removeBefore(35.0);
+        add(buffer, null, 12, false);
+        add(buffer, null, 25, true);
+        checkTimeStamps(buffer, 25, 35, 40);
+    }
+    
+    
+    @Test
+    public void testEqualTimeStamps() throws Exception
+    {
+        RecordRingBuffer buffer = new RecordRingBuffer(4, 10);
+        DataKey key1 = add(buffer, "p1", 10, true);
+        add(buffer, "p2", 10, true);
+        add(buffer, "p1", 20, true);
+        DataKey key3 = add(buffer, "p3", 10, true);
+        
+        // records with same time stamp are kept in insertion order
+        List<IDataRecord> records = buffer.select(new double[] {10.0, 10.0}, null);
+        assertEquals(3, records.size());
+        assertSame(key1, records.get(0).getKey());
+        assertSame(key3, records.get(2).getKey());
+        
+        assertEquals(1, buffer.count(null, Arrays.asList("p2")));
+        assertSame(key3, buffer.getRecord(new DataKey(RECORD_TYPE, "p3", 10.0)).getKey());
+        
+        assertTrue(buffer.remove(records.get(1)));
+        assertFalse(buffer.remove(records.get(1)));
+        assertEquals(2, buffer.remove(new DataKey(RECORD_TYPE, null, 10.0)));
+        checkTimeStamps(buffer, 20);
+    }
+    
+    
+    @Test
+    public void testRemoveRange() throws Exception
+    {
+        RecordRingBuffer buffer = new RecordRingBuffer(8, 8);
+        for (int i = 1; i <= 12; i++)
+            add(buffer, (i % 2 == 0) ? "even" : "odd", i, true);
+        checkTimeStamps(buffer, 5, 6, 7, 8, 9, 10, 11, 12);
+        
+        // remove records of one producer in the middle of wrapped buffer
+        assertEquals(2, buffer.remove(new double[] {6.0, 9.0}, Arrays.asList("odd")));
+        checkTimeStamps(buffer, 5, 6, 8, 10, 11, 12);
+        
+        // remove all records in range
+        assertEquals(3, buffer.remove(new double[] {7.0, 11.0}, null));
+        checkTimeStamps(buffer, 5, 6, 12);
+        
+        // buffer is still usable after removals
+        add(buffer, null, 13, true);
+        add(buffer, null, 9, true);
+        checkTimeStamps(buffer, 5, 6, 9, 12, 13);
+        
+        assertEquals(5, buffer.remove(null, null));
+        checkTimeStamps(buffer);
+        assertTrue(Double.isNaN(buffer.getTimeRange()[0]));
+    }
+    
+    
+    @Test
+    public void testRecordsWithoutTimeStamp() throws Exception
+    {
+        RecordRingBuffer buffer = new RecordRingBuffer(4, 10);
+        double now = System.currentTimeMillis() / 1000.0;
+        add(buffer, null, now - 20.0, true);
+        DataKey key = add(buffer, null, Double.NaN, true);
+        add(buffer, null, now + 3600.0, true);
+        
+        // record is kept at the time it was added
+        assertEquals(3, buffer.size());
+        List<IDataRecord> records = buffer.select(new double[] {now - 10.0, now + 10.0}, null);
+        assertEquals(1, records.size());
+        assertSame(key, records.get(0).getKey());
+        assertSame(key, buffer.select(null, null).get(1).getKey());
+        
+        // it can't be found by key but can be removed once selected
+        assertNull(buffer.get(key));
+        assertTrue(buffer.remove(records.get(0)));
+        checkTimeStamps(buffer, now - 20.0, now + 3600.0);
+    }
+}
@@ -0,0 +1,141 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.utils.HashedTimerWheel;
+import org.sensorhub.utils.HashedTimerWheel.Timeout;
+
+
+public class TestHashedTimerWheel
+{
+    static final long TICK = 10;
+    
+    ExecutorService pool;
+    HashedTimerWheel timer;
+
+
+    @Before
+    public void setup()
+    {
+        pool = Executors.newFixedThreadPool(2);
+        timer = new HashedTimerWheel("test-timer", TICK, TimeUnit.MILLISECONDS, 8, pool);
+    }
+    
+    
+    class RecordingTask implements Runnable
+    {
+        int id;
+        long scheduledTime;
+        long delay;
+        List<Integer> runOrder;
+        List<Long> lateness;
+        CountDownLatch done;
+        
+        RecordingTask(int id, long delay, List<Integer> runOrder, List<Long> lateness, CountDownLatch done)
+        {
+            this.id = id;
+            this.delay = delay;
+            this.runOrder = runOrder;
+            this.lateness = lateness;
+            this.done = done;
+            this.scheduledTime = System.currentTimeMillis();
+        }
+        
+        @Override
+        public void run()
+        {
+            lateness.add(System.currentTimeMillis() - scheduledTime - delay);
+            runOrder.add(id);
+            done.countDown();
+        }
+    }
+
+
+    @Test
+    public void testTasksRunInDeadlineOrder() throws Exception
+    {
+        // use delays spanning several rounds of the wheel
+        long[] delays = {250, 30, 0, 170, 90, 400, 60};
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Long> lateness = Collections.synchronizedList(new ArrayList<Long>());
+        CountDownLatch done = new CountDownLatch(delays.length);
+        
+        for (int i = 0; i < delays.length; i++)
+            timer.schedule(new RecordingTask(i, delays[i], runOrder, lateness, done), delays[i], TimeUnit.MILLISECONDS);
+        
+        assertTrue("Tasks were not all run", done.await(2, TimeUnit.SECONDS));
+        assertEquals(runOrder.toString(), Integer.valueOf(2), runOrder.get(0));
+        assertEquals(runOrder.toString(), Integer.valueOf(1), runOrder.get(1));
+        assertEquals(runOrder.toString(), Integer.valueOf(6), runOrder.get(2));
+        assertEquals(runOrder.toString(), Integer.valueOf(4), runOrder.get(3));
+        assertEquals(runOrder.toString(), Integer.valueOf(3), runOrder.get(4));
+        assertEquals(runOrder.toString(), Integer.valueOf(0), runOrder.get(5));
+        assertEquals(runOrder.toString(), Integer.valueOf(5), runOrder.get(6));
+        
+        // tasks must never run early
+        for (long late: lateness)
+            assertTrue("Task ran " + (-late) + "ms early", late >= 0);
+    }
+
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        List<Integer> runOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Long> lateness = Collections.synchronizedList(new ArrayList<Long>());
+        CountDownLatch done = new CountDownLatch(1);
+        
+        Timeout cancelled = timer.schedule(new RecordingTask(0, 50, runOrder, lateness, done), 50, TimeUnit.MILLISECONDS);
+        timer.schedule(new RecordingTask(1, 100, runOrder, lateness, done), 100, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+        
+        assertTrue("Task was not run", done.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList(1), runOrder);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testScheduleAfterStop() throws Exception
+    {
+        timer.stop();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run()
+            {
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+    }
+
+
+    @After
+    public void cleanup()
+    {
+        timer.stop();
+        pool.shutdownNow();
+    }
+}
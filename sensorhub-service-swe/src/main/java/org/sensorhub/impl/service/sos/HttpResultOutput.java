@@ -0,0 +1,177 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.IOException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+
+
+/**
+ * <p>
+ * Result stream output sent as the body of an asynchronous HTTP response.<br/>
+ * Records are written using non-blocking servlet output so that the request
+ * doesn't hold a container thread while waiting for new data or for a slow
+ * client. Each record is flushed as soon as it is written.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class HttpResultOutput implements IResultStreamOutput, WriteListener, AsyncListener
+{
+    HttpServletRequest req;
+    Callback callback;
+    AsyncContext asyncCtx;
+    ServletOutputStream os;
+    byte[] pendingData;
+    boolean flushPending;
+    boolean writing;
+    
+    
+    /**
+     * @param req HTTP request to respond to, which is switched to
+     * asynchronous mode when the output is started
+     */
+    public HttpResultOutput(HttpServletRequest req)
+    {
+        this.req = req;
+    }
+    
+    
+    @Override
+    public void start(Callback callback) throws IOException
+    {
+        this.callback = callback;
+        
+        // stream end is decided by the result stream itself
+        asyncCtx = req.startAsync();
+        asyncCtx.setTimeout(0);
+        asyncCtx.addListener(this);
+        
+        // switch to non-blocking output before any record is sent
+        os = asyncCtx.getResponse().getOutputStream();
+        os.setWriteListener(this);
+    }
+    
+    
+    @Override
+    public void write(byte[] data) throws IOException
+    {
+        synchronized (this)
+        {
+            pendingData = data;
+            writing = true;
+        }
+        
+        onWritePossible();
+    }
+    
+    
+    /*
+     * Writes and flushes pending data for as long as the output is ready.
+     * Returns true if everything was written.
+     * Must be called while holding the lock.
+     */
+    private boolean writePending() throws IOException
+    {
+        if (pendingData != null)
+        {
+            if (!os.isReady())
+                return false;
+            os.write(pendingData);
+            pendingData = null;
+            flushPending = true;
+        }
+        
+        if (flushPending)
+        {
+            if (!os.isReady())
+                return false;
+            os.flush();
+            flushPending = false;
+        }
+        
+        return os.isReady();
+    }
+    
+
+    @Override
+    public void onWritePossible() throws IOException
+    {
+        // container calls us back when output becomes ready again
+        synchronized (this)
+        {
+            if (!writing || !writePending())
+                return;
+            writing = false;
+        }
+        
+        callback.writeComplete();
+    }
+
+
+    @Override
+    public void onError(Throwable e)
+    {
+        callback.writeFailed(e);
+    }
+    
+    
+    @Override
+    public void onError(AsyncEvent event) throws IOException
+    {
+        callback.writeFailed(event.getThrowable());
+    }
+
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException
+    {
+        callback.outputClosed();
+    }
+
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException
+    {
+        callback.outputClosed();
+    }
+
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException
+    {
+    }
+    
+    
+    @Override
+    public void close(String errorMsg)
+    {
+        // response is already committed so errors can only be logged
+        try
+        {
+            asyncCtx.complete();
+        }
+        catch (IllegalStateException e)
+        {
+            // request was already completed by container
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.IOException;
+
+
+/**
+ * <p>
+ * Non-blocking output used by live and replay GetResult streams to send
+ * encoded records to a client.<br/>
+ * Only one write can be in progress at a time and the stream is notified
+ * through its callback once each write has completed.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public interface IResultStreamOutput
+{
+    /**
+     * Interface notified of write completion.<br/>
+     * Methods can be called on container threads so they must not block.
+     */
+    public interface Callback
+    {
+        /**
+         * Called when the last record was fully written
+         */
+        public void writeComplete();
+        
+        /**
+         * Called when the last record could not be written
+         * @param e write error
+         */
+        public void writeFailed(Throwable e);
+        
+        /**
+         * Called when the output was closed by the client or the container
+         */
+        public void outputClosed();
+    }
+    
+    
+    /**
+     * Prepares the output before the first record is written
+     * @param callback callback to notify of write completion
+     * @throws IOException if the output cannot be prepared
+     */
+    public void start(Callback callback) throws IOException;
+    
+    
+    /**
+     * Starts the non-blocking write of one encoded record
+     * @param data encoded record
+     * @throws IOException if the write cannot be started
+     */
+    public void write(byte[] data) throws IOException;
+    
+    
+    /**
+     * Closes the underlying transport
+     * @param errorMsg error message or null if stream ended normally
+     */
+    public void close(String errorMsg);
+}
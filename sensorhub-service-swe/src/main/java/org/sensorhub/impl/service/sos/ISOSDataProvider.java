@@ -43,7 +43,10 @@ public interface ISOSDataProvider
     
     /**
      * Requests provider to generate the next observation from the
-     * underlying data, given the current config and filter
+     * underlying data, given the current config and filter.<br/>
+     * The result component can be reused by the provider for the
+     * next observation so it must be consumed before this method is
+     * called again.
      * @return observation instance
      * @throws Exception
      */
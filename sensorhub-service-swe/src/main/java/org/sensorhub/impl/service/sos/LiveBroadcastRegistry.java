@@ -0,0 +1,178 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import org.sensorhub.api.data.IStreamingDataInterface;
+import org.vast.cdm.common.DataStreamWriter;
+import org.vast.swe.AbstractDataWriter;
+import org.vast.swe.FilteredWriter;
+import org.vast.swe.SWEHelper;
+
+
+/**
+ * <p>
+ * Registry of live broadcasters shared by all live streams of a service.<br/>
+ * One broadcaster is created for each output, result structure, encoding and
+ * field selection when the first client subscribes, and it is stopped when
+ * the last one leaves.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class LiveBroadcastRegistry
+{
+    final Map<BroadcasterKey, LiveRecordBroadcaster> broadcasters = new HashMap<BroadcasterKey, LiveRecordBroadcaster>();
+    final int bufferSize;
+    
+    
+    public LiveBroadcastRegistry(int bufferSize)
+    {
+        this.bufferSize = bufferSize;
+    }
+    
+    
+    /*
+     * Broadcasters are shared only by requests using the same structure and
+     * encoding objects, as given by their data provider
+     */
+    private static class BroadcasterKey
+    {
+        final IStreamingDataInterface output;
+        final DataComponent resultStructure;
+        final DataEncoding resultEncoding;
+        final String observables;
+        
+        BroadcasterKey(IStreamingDataInterface output, DataComponent resultStructure, DataEncoding resultEncoding, String observables)
+        {
+            this.output = output;
+            this.resultStructure = resultStructure;
+            this.resultEncoding = resultEncoding;
+            this.observables = observables;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof BroadcasterKey))
+                return false;
+            
+            BroadcasterKey other = (BroadcasterKey)obj;
+            return output == other.output &&
+                   resultStructure == other.resultStructure &&
+                   resultEncoding == other.resultEncoding &&
+                   observables.equals(other.observables);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int hash = System.identityHashCode(output);
+            hash = 31 * hash + System.identityHashCode(resultStructure);
+            hash = 31 * hash + System.identityHashCode(resultEncoding);
+            return 31 * hash + observables.hashCode();
+        }
+    }
+    
+    
+    /**
+     * Subscribes to encoded records of the given output
+     * @param output output to subscribe to
+     * @param resultStructure structure of result records, as advertised by the data provider
+     * @param resultEncoding encoding of result records, as advertised by the data provider
+     * @param observables list of selected fields or null to get full records
+     * @param subscriber subscriber to notify when new records are available
+     * @param backlog number of already available records to get first
+     * @return cursor used to read records
+     * @throws IOException if broadcaster cannot be created
+     */
+    public synchronized LiveRecordBroadcaster.Cursor subscribe(IStreamingDataInterface output, DataComponent resultStructure, DataEncoding resultEncoding, List<String> observables, LiveRecordBroadcaster.ISubscriber subscriber, int backlog) throws IOException
+    {
+        String obsList = getObservableList(observables);
+        BroadcasterKey key = new BroadcasterKey(output, resultStructure, resultEncoding, obsList);
+        LiveRecordBroadcaster broadcaster = broadcasters.get(key);
+        
+        if (broadcaster == null)
+        {
+            // prepare writer for result structure and encoding
+            DataStreamWriter writer = SWEHelper.createDataWriter(resultEncoding);
+            if (observables != null)
+                writer = new FilteredWriter((AbstractDataWriter)writer, observables);
+            writer.setDataComponents(resultStructure);
+            
+            String id = getBroadcasterID(output, resultEncoding, obsList);
+            broadcaster = new LiveRecordBroadcaster(id, output, writer, bufferSize);
+            broadcaster.start();
+            broadcasters.put(key, broadcaster);
+        }
+        
+        return broadcaster.subscribe(subscriber, backlog);
+    }
+    
+    
+    /**
+     * Unsubscribes and stops the corresponding broadcaster if it has no more subscribers
+     * @param cursor cursor obtained when subscribing
+     */
+    public synchronized void unsubscribe(LiveRecordBroadcaster.Cursor cursor)
+    {
+        LiveRecordBroadcaster broadcaster = cursor.getBroadcaster();
+        if (broadcaster.unsubscribe(cursor))
+        {
+            broadcaster.stop();
+            broadcasters.values().remove(broadcaster);
+        }
+    }
+    
+    
+    public synchronized void clear()
+    {
+        for (LiveRecordBroadcaster broadcaster: broadcasters.values())
+            broadcaster.stop();
+        broadcasters.clear();
+    }
+    
+    
+    protected String getObservableList(List<String> observables)
+    {
+        if (observables == null)
+            return "";
+        
+        // sort so that same selection always gives same key
+        StringBuilder buf = new StringBuilder("|");
+        for (String obs: new TreeSet<String>(observables))
+            buf.append(obs).append('|');
+        
+        return buf.toString();
+    }
+    
+    
+    protected String getBroadcasterID(IStreamingDataInterface output, DataEncoding resultEncoding, String obsList)
+    {
+        StringBuilder buf = new StringBuilder();
+        buf.append(output.getParentModule().getLocalID());
+        buf.append('/').append(output.getName());
+        buf.append('/').append(resultEncoding.getClass().getSimpleName());
+        buf.append(obsList);
+        return buf.toString();
+    }
+}
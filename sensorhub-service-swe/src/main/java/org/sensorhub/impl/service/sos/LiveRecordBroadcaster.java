@@ -0,0 +1,281 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import net.opengis.swe.v20.DataBlock;
+import org.sensorhub.api.common.Event;
+import org.sensorhub.api.common.IEventListener;
+import org.sensorhub.api.data.DataEvent;
+import org.sensorhub.api.data.IStreamingDataInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vast.cdm.common.DataStreamWriter;
+
+
+/**
+ * <p>
+ * Broadcast ring of encoded records for one output and one encoding.<br/>
+ * Each record received from the output is encoded only once and kept in a
+ * fixed size ring buffer from which all live subscribers read using their own
+ * cursor. Subscribers that fall behind by more than the ring capacity skip
+ * ahead to the oldest available record and their cursor is marked with a gap.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class LiveRecordBroadcaster implements IEventListener
+{
+    private static final Logger log = LoggerFactory.getLogger(LiveRecordBroadcaster.class);
+    
+    
+    /**
+     * Interface to be notified when new records are available.<br/>
+     * This is called on the producer's thread so it must not block.
+     */
+    public interface ISubscriber
+    {
+        public void newRecordsAvailable();
+    }
+    
+    
+    /**
+     * Encoded record shared by all subscribers
+     */
+    public static class EncodedRecord
+    {
+        public final long timeStamp;
+        public final byte[] data;
+        
+        EncodedRecord(long timeStamp, byte[] data)
+        {
+            this.timeStamp = timeStamp;
+            this.data = data;
+        }
+    }
+    
+    
+    /**
+     * Read position of one subscriber in the ring
+     */
+    public class Cursor
+    {
+        final ISubscriber subscriber;
+        long nextSeq;
+        long stopSeq = Long.MAX_VALUE;
+        long skippedCount;
+        
+        Cursor(ISubscriber subscriber, long nextSeq)
+        {
+            this.subscriber = subscriber;
+            this.nextSeq = nextSeq;
+        }
+        
+        /**
+         * @return the next record without moving the cursor, or null if none is available
+         */
+        public EncodedRecord peek()
+        {
+            return read(this, false);
+        }
+        
+        /**
+         * @return the next record, or null if none is available
+         */
+        public EncodedRecord next()
+        {
+            return read(this, true);
+        }
+        
+        /**
+         * Limits this cursor to the records available now
+         */
+        public void stopAtCurrentRecord()
+        {
+            synchronized (LiveRecordBroadcaster.this)
+            {
+                stopSeq = nextRecordSeq;
+            }
+        }
+        
+        /**
+         * Gets and resets the number of records skipped since the last call.<br/>
+         * A non zero value marks a gap in the records read with this cursor.
+         * @return number of skipped records
+         */
+        public long clearGap()
+        {
+            synchronized (LiveRecordBroadcaster.this)
+            {
+                long count = skippedCount;
+                skippedCount = 0;
+                return count;
+            }
+        }
+        
+        public LiveRecordBroadcaster getBroadcaster()
+        {
+            return LiveRecordBroadcaster.this;
+        }
+    }
+    
+    
+    final String id;
+    final IStreamingDataInterface output;
+    final DataStreamWriter writer;
+    final ByteArrayOutputStream buffer;
+    final EncodedRecord[] ring;
+    final List<Cursor> cursors = new CopyOnWriteArrayList<Cursor>();
+    long nextRecordSeq;
+    
+    
+    /**
+     * Creates a broadcaster for the given output
+     * @param id unique ID of the output/encoding combination
+     * @param output output to listen to
+     * @param writer writer used to encode records (already configured with the output structure)
+     * @param capacity max number of encoded records kept in the ring
+     * @throws IOException 
+     */
+    public LiveRecordBroadcaster(String id, IStreamingDataInterface output, DataStreamWriter writer, int capacity) throws IOException
+    {
+        this.id = id;
+        this.output = output;
+        this.writer = writer;
+        this.ring = new EncodedRecord[Math.max(1, capacity)];
+        this.buffer = new ByteArrayOutputStream(1024);
+        writer.setOutput(buffer);
+    }
+    
+    
+    /**
+     * Starts listening to the output.<br/>
+     * The latest record is added to the ring so that it is immediately
+     * available to new subscribers.
+     */
+    public void start()
+    {
+        DataBlock latestRecord = output.getLatestRecord();
+        if (latestRecord != null)
+            append(output.getLatestRecordTime(), latestRecord);
+        
+        output.registerListener(this);
+    }
+    
+    
+    public void stop()
+    {
+        output.unregisterListener(this);
+        cursors.clear();
+    }
+    
+    
+    /**
+     * Adds a subscriber to this broadcaster
+     * @param subscriber subscriber to notify when new records are available
+     * @param backlog number of already available records to send first
+     * @return the new subscriber's cursor
+     */
+    public synchronized Cursor subscribe(ISubscriber subscriber, int backlog)
+    {
+        long oldestSeq = Math.max(0, nextRecordSeq - ring.length);
+        long startSeq = Math.max(oldestSeq, nextRecordSeq - Math.max(0, backlog));
+        Cursor cursor = new Cursor(subscriber, startSeq);
+        cursors.add(cursor);
+        return cursor;
+    }
+    
+    
+    /**
+     * Removes a subscriber from this broadcaster
+     * @param cursor cursor of subscriber to remove
+     * @return true if there are no more subscribers
+     */
+    public boolean unsubscribe(Cursor cursor)
+    {
+        cursors.remove(cursor);
+        return cursors.isEmpty();
+    }
+    
+    
+    protected synchronized EncodedRecord read(Cursor cursor, boolean advance)
+    {
+        long lastSeq = Math.min(nextRecordSeq, cursor.stopSeq);
+        if (cursor.nextSeq >= lastSeq)
+            return null;
+        
+        // skip ahead if subscriber is too slow
+        long oldestSeq = Math.max(0, nextRecordSeq - ring.length);
+        if (cursor.nextSeq < oldestSeq)
+        {
+            cursor.skippedCount += oldestSeq - cursor.nextSeq;
+            cursor.nextSeq = oldestSeq;
+        }
+        
+        EncodedRecord rec = ring[(int)(cursor.nextSeq % ring.length)];
+        if (advance)
+            cursor.nextSeq++;
+        return rec;
+    }
+    
+    
+    protected void append(long timeStamp, DataBlock record)
+    {
+        try
+        {
+            // encode record only once for all subscribers
+            byte[] data;
+            synchronized (writer)
+            {
+                buffer.reset();
+                writer.write(record);
+                writer.flush();
+                data = buffer.toByteArray();
+            }
+            
+            synchronized (this)
+            {
+                ring[(int)(nextRecordSeq % ring.length)] = new EncodedRecord(timeStamp, data);
+                nextRecordSeq++;
+            }
+        }
+        catch (Exception e)
+        {
+            log.error("Cannot encode record for live output " + id, e);
+        }
+    }
+    
+    
+    @Override
+    public void handleEvent(Event<?> e)
+    {
+        if (e instanceof DataEvent)
+        {
+            if (((DataEvent) e).getType() == DataEvent.Type.NEW_DATA_AVAILABLE)
+            {
+                for (DataBlock record: ((DataEvent) e).getRecords())
+                    append(e.getTimeStamp(), record);
+                
+                // notify outside of lock since subscribers will read from ring
+                for (Cursor cursor: cursors)
+                    cursor.subscriber.newRecordsAvailable();
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.sensorhub.impl.service.sos.LiveRecordBroadcaster.EncodedRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * <p>
+ * Event driven sender of live GetResult responses.<br/>
+ * The data provider is used in push mode so records are read already encoded
+ * from the broadcasters of the selected outputs, and sent asynchronously on a thread pool shared
+ * by all live streams with at most one write in flight per client, so no
+ * thread is ever blocked waiting for new data or for a slow client.<br/>
+ * If a client cannot keep up, it skips ahead to the oldest buffered record.<br/>
+ * Records are written to the client with the given non-blocking output.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class LiveResultStream implements StreamDataProvider.IRecordListener, IResultStreamOutput.Callback, Runnable
+{
+    private static final Logger log = LoggerFactory.getLogger(LiveResultStream.class);
+    private static final long MIN_TIMEOUT_CHECK_PERIOD = 1000L; // ms
+    
+    StreamDataProvider dataProvider;
+    LiveBroadcastRegistry registry;
+    IResultStreamOutput output;
+    ScheduledExecutorService executor;
+    ScheduledFuture<?> timeOutCheck;
+    boolean sending;
+    boolean closed;
+    
+    
+    /**
+     * @param dataProvider provider giving the outputs to stream from and the stream end conditions
+     * @param registry registry of shared broadcasters
+     * @param executor pool used to send records and check timeouts
+     */
+    public LiveResultStream(StreamDataProvider dataProvider, LiveBroadcastRegistry registry, ScheduledExecutorService executor)
+    {
+        this.dataProvider = dataProvider;
+        this.registry = registry;
+        this.executor = executor;
+    }
+    
+    
+    /**
+     * Starts forwarding records to the client
+     * @param output output to write records to
+     * @param observables list of selected fields or null to send full records
+     * @param backlog number of already buffered records to send first
+     * @throws IOException 
+     */
+    public void start(IResultStreamOutput output, List<String> observables, int backlog) throws IOException
+    {
+        this.output = output;
+        output.start(this);
+        
+        // subscribe to all selected outputs
+        // this is done without holding our lock since we can be notified right away
+        dataProvider.setRecordListener(this, registry, observables, backlog);
+        
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            
+            scheduleSend();
+            
+            // stream ends by itself if only latest records were requested
+            if (dataProvider.timeOut > 0)
+            {
+                long checkPeriod = Math.max(dataProvider.timeOut / 2, MIN_TIMEOUT_CHECK_PERIOD);
+                timeOutCheck = executor.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        dataProvider.checkTimeOut();
+                    }
+                }, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+    
+    
+    @Override
+    public synchronized void newRecordsAvailable()
+    {
+        scheduleSend();
+    }
+    
+    
+    @Override
+    public synchronized void endOfStream()
+    {
+        scheduleSend();
+    }
+    
+    
+    /*
+     * Schedules sending of pending records unless it's already in progress.
+     * Must be called while holding the lock.
+     */
+    private void scheduleSend()
+    {
+        if (sending || closed)
+            return;
+        
+        sending = true;
+        execute();
+    }
+    
+    
+    private void execute()
+    {
+        try
+        {
+            executor.execute(this);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // pool was shut down because service is stopping
+            closed = true;
+        }
+    }
+    
+    
+    /*
+     * Sends the next available record
+     */
+    @Override
+    public void run()
+    {
+        EncodedRecord nextRecord = null;
+        
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            
+            // provider returns records in chronological order
+            // and ends the stream when passed the requested stop date
+            nextRecord = dataProvider.getNextEncodedRecord();
+            if (nextRecord == null)
+            {
+                sending = false;
+                if (!dataProvider.isStreamEnded())
+                    return;
+            }
+        }
+        
+        // close stream once all records have been sent
+        if (nextRecord == null)
+        {
+            log.debug("Live stream done");
+            close(null);
+            return;
+        }
+        
+        try
+        {
+            // next send is triggered by the write callback
+            output.write(nextRecord.data);
+        }
+        catch (Exception e)
+        {
+            log.debug("Live stream exited on error", e);
+            close(e.getMessage());
+        }
+    }
+    
+    
+    @Override
+    public void writeComplete()
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            
+            execute();
+        }
+    }
+
+
+    @Override
+    public void writeFailed(Throwable e)
+    {
+        // this is usually caused by the client closing the connection
+        log.debug("Live stream exited on client abort", e);
+        close(null);
+    }
+    
+    
+    @Override
+    public void outputClosed()
+    {
+        close(null);
+    }
+    
+    
+    public void close()
+    {
+        close(null);
+    }
+    
+    
+    protected void close(String errorMsg)
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            
+            closed = true;
+        }
+        
+        if (timeOutCheck != null)
+            timeOutCheck.cancel(false);
+        
+        dataProvider.close();
+        if (output != null)
+            output.close(errorMsg);
+        
+        long skippedRecords = dataProvider.getSkippedRecordCount();
+        if (skippedRecords > 0)
+            log.debug("{} records skipped because client was too slow", skippedRecords);
+    }
+}
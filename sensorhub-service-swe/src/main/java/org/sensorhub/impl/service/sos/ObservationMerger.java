@@ -0,0 +1,252 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import org.vast.ogc.om.IObservation;
+import org.vast.util.TimeExtent;
+
+
+/**
+ * <p>
+ * Merges observations generated by several data providers into a single
+ * stream sorted by phenomenon time.<br/>
+ * Each provider is read by its own thread into a bounded queue so that
+ * providers (e.g. storages) are read in parallel, and the heads of all queues
+ * are merged using a priority queue.<br/>
+ * Observations returned by {@link #next()} are only valid until the next
+ * call since their result components are reused.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class ObservationMerger
+{
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+
+    final List<Source> sources;
+    final PriorityQueue<Source> heads;
+    Source lastSource;
+    volatile boolean closed;
+
+
+    /*
+     * Observation and its result data, as prefetched by a provider thread
+     */
+    static class PrefetchedObs
+    {
+        IObservation obs;
+        DataBlock data;
+        Exception error;
+    }
+
+    static final PrefetchedObs END = new PrefetchedObs();
+
+
+    class Source implements Comparable<Source>
+    {
+        final int index;
+        final ISOSDataProvider provider;
+        final BlockingQueue<PrefetchedObs> queue;
+        final Thread thread;
+        PrefetchedObs head;
+        double headTime;
+
+        Source(int index, ISOSDataProvider provider, int queueSize)
+        {
+            this.index = index;
+            this.provider = provider;
+            this.queue = new ArrayBlockingQueue<PrefetchedObs>(queueSize);
+            this.thread = new Thread("SOS-Prefetch-" + index) {
+                public void run()
+                {
+                    prefetch(Source.this);
+                }
+            };
+        }
+
+        @Override
+        public int compareTo(Source other)
+        {
+            int c = Double.compare(headTime, other.headTime);
+            return (c != 0) ? c : index - other.index;
+        }
+    }
+
+
+    /**
+     * Creates a merger for the given providers.<br/>
+     * Each provider is closed by the merger once all its observations have
+     * been read or when the merger is closed.
+     * @param providers data providers to read from
+     * @param queueSize max number of observations to prefetch from each provider
+     */
+    public ObservationMerger(List<ISOSDataProvider> providers, int queueSize)
+    {
+        this.sources = new ArrayList<Source>(providers.size());
+        for (int i = 0; i < providers.size(); i++)
+            sources.add(new Source(i, providers.get(i), queueSize));
+        this.heads = new PriorityQueue<Source>(Math.max(1, providers.size()));
+    }
+
+
+    /**
+     * Starts prefetching observations from all providers
+     * @throws Exception if an error occurs while waiting for the first observations
+     */
+    public void start() throws Exception
+    {
+        for (Source src: sources)
+        {
+            src.thread.setDaemon(true);
+            src.thread.start();
+        }
+
+        for (Source src: sources)
+            pollSource(src);
+    }
+
+
+    /*
+     * Reads observations from provider and push them to the source queue
+     * This runs in the source thread
+     */
+    protected void prefetch(Source src)
+    {
+        // result components are reused by providers so we keep our own copy
+        // that is updated with the prefetched data only when the observation is consumed
+        Map<DataComponent, DataComponent> resultTemplates = new IdentityHashMap<DataComponent, DataComponent>();
+        PrefetchedObs last = END;
+
+        try
+        {
+            IObservation obs;
+            while (!closed && (obs = src.provider.getNextObservation()) != null)
+            {
+                DataComponent result = obs.getResult();
+                DataComponent template = resultTemplates.get(result);
+                if (template == null)
+                {
+                    template = result.copy();
+                    resultTemplates.put(result, template);
+                }
+
+                PrefetchedObs item = new PrefetchedObs();
+                item.obs = obs;
+                item.data = result.getData();
+                obs.setResult(template);
+                src.queue.put(item);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            return;
+        }
+        catch (Exception e)
+        {
+            last = new PrefetchedObs();
+            last.error = e;
+        }
+        finally
+        {
+            src.provider.close();
+        }
+
+        try
+        {
+            if (!closed)
+                src.queue.put(last);
+        }
+        catch (InterruptedException e)
+        {
+        }
+    }
+
+
+    /*
+     * Waits for the next observation of the given source and adds it to the heap
+     */
+    protected void pollSource(Source src) throws Exception
+    {
+        PrefetchedObs next = src.queue.take();
+        if (next == END)
+            return;
+
+        if (next.error != null)
+            throw next.error;
+
+        src.head = next;
+        TimeExtent phenTime = next.obs.getPhenomenonTime();
+        src.headTime = (phenTime != null) ? phenTime.getStartTime() : Double.NEGATIVE_INFINITY;
+        heads.add(src);
+    }
+
+
+    /**
+     * @return the next observation in time order or null if all providers are exhausted
+     * @throws Exception if one of the providers failed
+     */
+    public IObservation next() throws Exception
+    {
+        // only wait for the source of the last observation when the next one is requested
+        if (lastSource != null)
+        {
+            pollSource(lastSource);
+            lastSource = null;
+        }
+
+        Source src = heads.poll();
+        if (src == null)
+            return null;
+
+        IObservation obs = src.head.obs;
+        obs.getResult().setData(src.head.data);
+        src.head = null;
+        lastSource = src;
+        return obs;
+    }
+
+
+    /**
+     * @return index of the provider that generated the last observation returned by {@link #next()}
+     */
+    public int getLastSourceIndex()
+    {
+        return (lastSource != null) ? lastSource.index : -1;
+    }
+
+
+    /**
+     * Stops all prefetch threads and closes the providers
+     */
+    public void close()
+    {
+        closed = true;
+        for (Source src: sources)
+        {
+            src.thread.interrupt();
+            src.queue.clear();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import net.opengis.gml.v32.AbstractFeature;
+import net.opengis.swe.v20.Category;
+import net.opengis.swe.v20.Count;
+import net.opengis.swe.v20.DataArray;
+import net.opengis.swe.v20.DataChoice;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataRecord;
+import net.opengis.swe.v20.Matrix;
+import net.opengis.swe.v20.Quantity;
+import net.opengis.swe.v20.Text;
+import net.opengis.swe.v20.Time;
+import net.opengis.swe.v20.Vector;
+import org.vast.ogc.om.IObservation;
+import org.vast.ogc.xlink.IXlinkReference;
+import org.vast.swe.SWEStaxBindings;
+import org.vast.util.DateTimeFormat;
+import org.vast.util.TimeExtent;
+
+
+/**
+ * <p>
+ * Writer for O&M 2.0 observations streaming XML directly to a StAX writer.<br/>
+ * Namespaces are declared only once on the response root element and no
+ * intermediate DOM tree is created, so this can be used to write very large
+ * numbers of observations with constant memory usage.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class ObservationStaxWriter
+{
+    public static final String OM_VERSION = "2.0";
+    public static final String OM_NS_URI = "http://www.opengis.net/om/2.0";
+    public static final String GML_NS_URI = "http://www.opengis.net/gml/3.2";
+    public static final String SWE_NS_URI = "http://www.opengis.net/swe/2.0";
+    public static final String XLINK_NS_URI = "http://www.w3.org/1999/xlink";
+
+    static final Map<String, String> NAMESPACES;
+    static
+    {
+        Map<String, String> nsMap = new LinkedHashMap<String, String>();
+        nsMap.put("om", OM_NS_URI);
+        nsMap.put("gml", GML_NS_URI);
+        nsMap.put("swe", SWE_NS_URI);
+        nsMap.put("xlink", XLINK_NS_URI);
+        nsMap.put("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+        nsMap.put("xs", XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        NAMESPACES = Collections.unmodifiableMap(nsMap);
+    }
+
+    final XMLStreamWriter writer;
+    final SWEStaxBindings sweBindings;
+    final DateTimeFormat timeFormat;
+    int obsCount;
+
+
+    public ObservationStaxWriter(XMLStreamWriter writer) throws XMLStreamException
+    {
+        this.writer = writer;
+        this.sweBindings = new SWEStaxBindings();
+        this.timeFormat = new DateTimeFormat();
+
+        for (Entry<String, String> ns: NAMESPACES.entrySet())
+            writer.setPrefix(ns.getKey(), ns.getValue());
+    }
+
+
+    /**
+     * Declares all namespaces used by observations on the current element.<br/>
+     * This must be called right after the response root element is started.
+     * @throws XMLStreamException
+     */
+    public void writeNamespaces() throws XMLStreamException
+    {
+        for (Entry<String, String> ns: NAMESPACES.entrySet())
+            writer.writeNamespace(ns.getKey(), ns.getValue());
+    }
+
+
+    /**
+     * Writes one observation as an OM_Observation element
+     * @param obs observation to write
+     * @throws XMLStreamException
+     */
+    public void write(IObservation obs) throws XMLStreamException
+    {
+        obsCount++;
+        writer.writeStartElement(OM_NS_URI, "OM_Observation");
+        writer.writeAttribute(GML_NS_URI, "id", "OBS" + obsCount);
+
+        // observation type
+        if (obs.getType() != null)
+            writeLink("type", obs.getType());
+
+        // phenomenon and result times
+        TimeExtent phenTime = obs.getPhenomenonTime();
+        String phenTimeId = "T" + obsCount;
+        writeTime("phenomenonTime", phenTime, phenTimeId);
+
+        TimeExtent resultTime = obs.getResultTime();
+        if (resultTime == null || isSameInstant(resultTime, phenTime))
+            writeLink("resultTime", "#" + phenTimeId);
+        else
+            writeTime("resultTime", resultTime, "RT" + obsCount);
+
+        // references to procedure, property and FOI
+        writeLink("procedure", getHref(obs.getProcedure()));
+        writeLink("observedProperty", getHref(obs.getObservedProperty()));
+        writeLink("featureOfInterest", getHref(obs.getFeatureOfInterest()));
+
+        // result
+        writeResult(obs.getResult());
+
+        writer.writeEndElement();
+    }
+
+
+    protected void writeLink(String propName, String href) throws XMLStreamException
+    {
+        writer.writeEmptyElement(OM_NS_URI, propName);
+        writer.writeAttribute(XLINK_NS_URI, "href", (href != null) ? href : "");
+    }
+
+
+    protected void writeTime(String propName, TimeExtent time, String id) throws XMLStreamException
+    {
+        writer.writeStartElement(OM_NS_URI, propName);
+
+        if (time.isTimeInstant())
+        {
+            writer.writeStartElement(GML_NS_URI, "TimeInstant");
+            writer.writeAttribute(GML_NS_URI, "id", id);
+            writer.writeStartElement(GML_NS_URI, "timePosition");
+            writer.writeCharacters(timeFormat.formatIso(time.getBaseTime(), 0));
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+        else
+        {
+            writer.writeStartElement(GML_NS_URI, "TimePeriod");
+            writer.writeAttribute(GML_NS_URI, "id", id);
+            writer.writeStartElement(GML_NS_URI, "beginPosition");
+            writer.writeCharacters(timeFormat.formatIso(time.getStartTime(), 0));
+            writer.writeEndElement();
+            writer.writeStartElement(GML_NS_URI, "endPosition");
+            writer.writeCharacters(timeFormat.formatIso(time.getStopTime(), 0));
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+    }
+
+
+    protected void writeResult(DataComponent result) throws XMLStreamException
+    {
+        writer.writeStartElement(OM_NS_URI, "result");
+
+        // simple values are written as XML schema types
+        if (result instanceof Quantity)
+        {
+            Quantity q = (Quantity)result;
+            String uom = q.getUom().getCode();
+            if (uom == null)
+                uom = q.getUom().getHref();
+            writer.writeAttribute(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", "gml:MeasureType");
+            writer.writeAttribute("uom", (uom != null) ? uom : "");
+            writer.writeCharacters(result.getData().getStringValue());
+        }
+        else if (result instanceof Count)
+        {
+            writer.writeAttribute(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", "xs:integer");
+            writer.writeCharacters(result.getData().getStringValue());
+        }
+        else if (result instanceof net.opengis.swe.v20.Boolean)
+        {
+            writer.writeAttribute(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", "xs:boolean");
+            writer.writeCharacters(result.getData().getStringValue());
+        }
+        else if (result instanceof Text || result instanceof Category)
+        {
+            writer.writeAttribute(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", "xs:string");
+            writer.writeCharacters(result.getData().getStringValue());
+        }
+
+        // other results are written as SWE Common components with inline values
+        else
+        {
+            writer.writeAttribute(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type", "swe:" + getSweTypeName(result) + "PropertyType");
+            sweBindings.writeDataComponent(writer, result, true);
+        }
+
+        writer.writeEndElement();
+    }
+
+
+    protected String getSweTypeName(DataComponent result)
+    {
+        if (result instanceof Vector)
+            return "Vector";
+        else if (result instanceof DataRecord)
+            return "DataRecord";
+        else if (result instanceof Matrix)
+            return "Matrix";
+        else if (result instanceof DataArray)
+            return "DataArray";
+        else if (result instanceof DataChoice)
+            return "DataChoice";
+        else if (result instanceof Time)
+            return "Time";
+        else
+            return "AnyComponent";
+    }
+
+
+    protected String getHref(Object ref)
+    {
+        if (ref instanceof IXlinkReference)
+            return ((IXlinkReference<?>)ref).getHref();
+        else if (ref instanceof AbstractFeature)
+            return ((AbstractFeature)ref).getUniqueIdentifier();
+        else
+            return null;
+    }
+
+
+    protected boolean isSameInstant(TimeExtent t1, TimeExtent t2)
+    {
+        return t1.isTimeInstant() && t2.isTimeInstant() && t1.getBaseTime() == t2.getBaseTime();
+    }
+}
@@ -0,0 +1,153 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * <p>
+ * Output stream used to send encoded records in batches.<br/>
+ * Small writes (record headers, scalar fields) are copied to an internal
+ * buffer and written when flush() is called, which must be done at the end
+ * of each record. Large arrays (e.g. video frames) are written through to
+ * the underlying stream right away, after data buffered before them, so they
+ * are never copied to the internal buffer.
+ * The underlying stream itself is only flushed when the batch size or delay
+ * is reached.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 3, 2015
+ */
+public class RecordBatchOutputStream extends OutputStream
+{
+    static final int COPY_THRESHOLD = 1024;
+
+    final OutputStream out;
+    final int maxBatchSize;
+    final long maxBatchDelay;
+    byte[] copyBuf = new byte[4096];
+    int copyPos;
+    int batchSize;
+    long batchStartTime;
+
+
+    /**
+     * @param out underlying output stream
+     * @param maxBatchSize max number of bytes to write before flushing the
+     * underlying stream (0 to flush after each record)
+     * @param maxBatchDelay max time to wait before flushing the underlying
+     * stream, in milliseconds
+     */
+    public RecordBatchOutputStream(OutputStream out, int maxBatchSize, long maxBatchDelay)
+    {
+        this.out = out;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelay = maxBatchDelay;
+        this.batchStartTime = System.currentTimeMillis();
+    }
+
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureCopyCapacity(1);
+        copyBuf[copyPos++] = (byte)b;
+    }
+
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        // large arrays are written through since callers can reuse
+        // their buffer as soon as we return
+        if (len >= COPY_THRESHOLD)
+        {
+            writeCopyBuffer();
+            out.write(b, off, len);
+            batchSize += len;
+        }
+        else
+        {
+            ensureCopyCapacity(len);
+            System.arraycopy(b, off, copyBuf, copyPos, len);
+            copyPos += len;
+        }
+    }
+
+
+    private void ensureCopyCapacity(int len) throws IOException
+    {
+        if (copyPos + len > copyBuf.length)
+            writeCopyBuffer();
+    }
+
+
+    /*
+     * Write data buffered so far to the underlying stream
+     */
+    private void writeCopyBuffer() throws IOException
+    {
+        if (copyPos > 0)
+        {
+            out.write(copyBuf, 0, copyPos);
+            batchSize += copyPos;
+            copyPos = 0;
+        }
+    }
+
+
+    /**
+     * Ends the current record.<br/>
+     * Record data is written to the underlying stream, which is flushed
+     * only if the batch size or delay has been reached.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        writeCopyBuffer();
+
+        long now = System.currentTimeMillis();
+        if (batchSize >= maxBatchSize || now - batchStartTime >= maxBatchDelay)
+        {
+            out.flush();
+            batchSize = 0;
+            batchStartTime = now;
+        }
+    }
+
+
+    /**
+     * Writes all pending data and flushes the underlying stream
+     * @throws IOException
+     */
+    public void forceFlush() throws IOException
+    {
+        writeCopyBuffer();
+        out.flush();
+        batchSize = 0;
+        batchStartTime = System.currentTimeMillis();
+    }
+
+
+    @Override
+    public void close() throws IOException
+    {
+        forceFlush();
+        out.close();
+    }
+}
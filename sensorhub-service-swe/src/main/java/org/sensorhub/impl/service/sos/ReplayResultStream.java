@@ -0,0 +1,599 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataEncoding;
+import org.sensorhub.utils.HashedTimerWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.vast.cdm.common.DataStreamWriter;
+import org.vast.util.DateTimeFormat;
+import org.vast.util.TimeExtent;
+
+
+/**
+ * <p>
+ * Replay of historical GetResult responses.<br/>
+ * Records are read ahead from storage in batches on a pool dedicated to
+ * storage reads, emitted at their time stamps scaled by the replay speed
+ * using a timer wheel shared by all replays, and written to the client
+ * with a non-blocking output, so no thread is blocked for the duration of
+ * the replay.<br/>
+ * When sent to a websocket, replay can be controlled by sending the following
+ * text messages: "pause", "resume", "speed {factor}" and "seek {ISO time}".
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class ReplayResultStream implements IResultStreamOutput.Callback
+{
+    private static final Logger log = LoggerFactory.getLogger(ReplayResultStream.class);
+    static final int READ_BATCH_SIZE = 100;
+    static final int MAX_PENDING_RECORDS = 100;
+    
+    
+    static class TimedRecord
+    {
+        final double timeStamp;
+        final DataBlock data;
+        
+        TimedRecord(double timeStamp, DataBlock data)
+        {
+            this.timeStamp = timeStamp;
+            this.data = data;
+        }
+    }
+    
+    
+    IResultStreamOutput output;
+    ISOSDataProviderFactory providerFactory;
+    SOSDataFilter filter;
+    DataStreamWriter writer;
+    ByteArrayOutputStream buffer;
+    HashedTimerWheel timer;
+    Executor readExecutor;
+    Executor executor;
+    
+    StorageDataProvider provider;
+    Deque<TimedRecord> readAhead = new ArrayDeque<TimedRecord>();
+    Deque<DataBlock> pendingRecords = new ArrayDeque<DataBlock>();
+    HashedTimerWheel.Timeout nextEmit;
+    double seekTime;
+    long generation;
+    boolean reading;
+    boolean exhausted;
+    boolean sending;
+    boolean closed;
+    
+    // replay clock
+    double speed;
+    double anchorDataTime;
+    long anchorSysTime;
+    boolean paused;
+    
+    
+    final Runnable readTask = new Runnable() {
+        @Override
+        public void run()
+        {
+            readNextBatch();
+        }
+    };
+    
+    
+    final Runnable emitTask = new Runnable() {
+        @Override
+        public void run()
+        {
+            emitDueRecords();
+        }
+    };
+    
+    
+    final Runnable sendTask = new Runnable() {
+        @Override
+        public void run()
+        {
+            sendNextRecord();
+        }
+    };
+    
+    
+    /**
+     * @param provider storage provider created for the initial request
+     * @param providerFactory factory used to create new providers when seeking
+     * @param filter request filter (without replay speed so the provider doesn't wait)
+     * @param writer writer configured for the result structure and encoding
+     * @param speed initial replay speed factor
+     * @param timer timer wheel used to schedule record emission
+     * @param readExecutor bounded pool used to read records from storage
+     * @param executor pool used to send records
+     * @throws IOException 
+     */
+    public ReplayResultStream(StorageDataProvider provider, ISOSDataProviderFactory providerFactory, SOSDataFilter filter,
+                              DataStreamWriter writer, double speed, HashedTimerWheel timer, Executor readExecutor, Executor executor) throws IOException
+    {
+        this.provider = provider;
+        this.providerFactory = providerFactory;
+        this.filter = filter;
+        this.writer = writer;
+        this.speed = speed;
+        this.timer = timer;
+        this.readExecutor = readExecutor;
+        this.executor = executor;
+        this.buffer = new ByteArrayOutputStream(1024);
+        writer.setOutput(buffer);
+    }
+    
+    
+    /**
+     * Starts replay at the beginning of the requested time range
+     * @param output output to write records to
+     * @throws IOException if the output cannot be started
+     */
+    public void start(IResultStreamOutput output) throws IOException
+    {
+        this.output = output;
+        output.start(this);
+        
+        synchronized (this)
+        {
+            anchorDataTime = seekTime = filter.getTimeRange().getStartTime();
+            anchorSysTime = System.currentTimeMillis();
+            scheduleRead();
+        }
+    }
+    
+    
+    /**
+     * @return encoding of the replayed records
+     */
+    public DataEncoding getResultEncoding()
+    {
+        return provider.getDefaultResultEncoding();
+    }
+    
+    
+    /*
+     * Replay time, in data time
+     * Must be called while holding the lock
+     */
+    private double getReplayTime()
+    {
+        if (paused)
+            return anchorDataTime;
+        return anchorDataTime + (System.currentTimeMillis() - anchorSysTime) / 1000. * speed;
+    }
+    
+    
+    public synchronized void pause()
+    {
+        if (paused || closed)
+            return;
+        
+        anchorDataTime = getReplayTime();
+        paused = true;
+        cancelEmit();
+    }
+    
+    
+    public synchronized void resume()
+    {
+        if (!paused || closed)
+            return;
+        
+        anchorSysTime = System.currentTimeMillis();
+        paused = false;
+        scheduleEmit();
+    }
+    
+    
+    public synchronized void setSpeed(double speed)
+    {
+        if (speed <= 0.0)
+            throw new IllegalArgumentException("Replay speed must be positive");
+        
+        anchorDataTime = getReplayTime();
+        anchorSysTime = System.currentTimeMillis();
+        this.speed = speed;
+        scheduleEmit();
+    }
+    
+    
+    /**
+     * Moves replay to the given time.<br/>
+     * Records already read or pending are discarded and storage is read
+     * again from the new time.
+     * @param time new replay time (julian time in seconds)
+     */
+    public synchronized void seek(double time)
+    {
+        if (closed)
+            return;
+        
+        // invalidate read in progress
+        generation++;
+        cancelEmit();
+        readAhead.clear();
+        pendingRecords.clear();
+        exhausted = false;
+        if (provider != null)
+        {
+            provider.close();
+            provider = null;
+        }
+        
+        seekTime = anchorDataTime = time;
+        anchorSysTime = System.currentTimeMillis();
+        scheduleRead();
+    }
+    
+    
+    /**
+     * Handles replay control commands received from the client
+     * @param cmd text command
+     */
+    public void handleCommand(String cmd)
+    {
+        try
+        {
+            String[] tokens = cmd.trim().split("\\s+");
+            String op = tokens[0].toLowerCase();
+            
+            if ("pause".equals(op))
+                pause();
+            else if ("resume".equals(op))
+                resume();
+            else if ("speed".equals(op) && tokens.length == 2)
+                setSpeed(Double.parseDouble(tokens[1]));
+            else if ("seek".equals(op) && tokens.length == 2)
+                seek(new DateTimeFormat().parseIso(tokens[1]));
+            else
+                log.debug("Unsupported replay command: {}", cmd);
+        }
+        catch (Exception e)
+        {
+            log.debug("Invalid replay command: " + cmd, e);
+        }
+    }
+    
+    
+    /*
+     * Must be called while holding the lock
+     */
+    private void scheduleRead()
+    {
+        if (reading || exhausted || closed)
+            return;
+        
+        try
+        {
+            reading = true;
+            readExecutor.execute(readTask);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // too many storage reads are already queued or service is stopping
+            closed = true;
+            execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    log.debug("Replay exited because storage read queue is full");
+                    doClose("Too many replays in progress");
+                }
+            });
+        }
+    }
+    
+    
+    /*
+     * Reads next batch of records from storage
+     */
+    protected void readNextBatch()
+    {
+        long gen;
+        StorageDataProvider p;
+        double startTime;
+        
+        synchronized (this)
+        {
+            gen = generation;
+            p = provider;
+            startTime = seekTime;
+        }
+        
+        List<TimedRecord> batch = new ArrayList<TimedRecord>(READ_BATCH_SIZE);
+        boolean end = false;
+        
+        try
+        {
+            if (p == null)
+                p = createProvider(startTime);
+            
+            while (batch.size() < READ_BATCH_SIZE)
+            {
+                DataBlock rec = p.getNextResultRecord();
+                if (rec == null)
+                {
+                    end = true;
+                    break;
+                }
+                
+                batch.add(new TimedRecord(p.lastRecordTime, rec));
+            }
+        }
+        catch (Exception e)
+        {
+            log.debug("Replay exited on error", e);
+            close(e.getMessage());
+            return;
+        }
+        
+        synchronized (this)
+        {
+            reading = false;
+            
+            // discard batch if replay was closed or moved in the meantime
+            if (closed || gen != generation)
+            {
+                if (p != provider)
+                    p.close();
+                scheduleRead();
+                return;
+            }
+            
+            provider = p;
+            readAhead.addAll(batch);
+            exhausted = end;
+            scheduleEmit();
+        }
+    }
+    
+    
+    protected StorageDataProvider createProvider(double startTime) throws Exception
+    {
+        TimeExtent timeRange = new TimeExtent(startTime, filter.getTimeRange().getStopTime());
+        ISOSDataProvider newProvider = providerFactory.getNewDataProvider(new SOSDataFilter(filter, timeRange));
+        
+        if (!(newProvider instanceof StorageDataProvider))
+        {
+            newProvider.close();
+            throw new IllegalStateException("Replay is only supported with stored data");
+        }
+        
+        return (StorageDataProvider)newProvider;
+    }
+    
+    
+    /*
+     * Schedules emission of next record at its replay time
+     * Must be called while holding the lock
+     */
+    private void scheduleEmit()
+    {
+        cancelEmit();
+        if (paused || closed)
+            return;
+        
+        TimedRecord next = readAhead.peekFirst();
+        if (next == null)
+        {
+            // end replay when all records have been sent
+            if (exhausted)
+            {
+                if (pendingRecords.isEmpty() && !sending)
+                {
+                    closed = true;
+                    execute(new Runnable() {
+                        @Override
+                        public void run()
+                        {
+                            log.debug("Replay done");
+                            doClose(null);
+                        }
+                    });
+                }
+            }
+            else
+                scheduleRead();
+            
+            return;
+        }
+        
+        // read ahead before we run out of records
+        if (readAhead.size() < READ_BATCH_SIZE / 2)
+            scheduleRead();
+        
+        long dueTime = anchorSysTime + (long)((next.timeStamp - anchorDataTime) * 1000. / speed);
+        nextEmit = timer.schedule(emitTask, dueTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    
+    private void cancelEmit()
+    {
+        if (nextEmit != null)
+        {
+            nextEmit.cancel();
+            nextEmit = null;
+        }
+    }
+    
+    
+    /*
+     * Moves all records that are due to the send queue
+     */
+    protected synchronized void emitDueRecords()
+    {
+        if (paused || closed)
+            return;
+        
+        nextEmit = null;
+        double replayTime = getReplayTime();
+        TimedRecord next;
+        while ((next = readAhead.peekFirst()) != null && next.timeStamp <= replayTime)
+        {
+            // if client is too slow, wait until pending records are sent
+            if (pendingRecords.size() >= MAX_PENDING_RECORDS)
+                break;
+            
+            pendingRecords.addLast(readAhead.pollFirst().data);
+        }
+        
+        scheduleSend();
+        if (pendingRecords.size() < MAX_PENDING_RECORDS)
+            scheduleEmit();
+    }
+    
+    
+    /*
+     * Must be called while holding the lock
+     */
+    private void scheduleSend()
+    {
+        if (sending || closed || pendingRecords.isEmpty())
+            return;
+        
+        sending = true;
+        execute(sendTask);
+    }
+    
+    
+    protected void sendNextRecord()
+    {
+        DataBlock nextRecord;
+        
+        synchronized (this)
+        {
+            nextRecord = pendingRecords.pollFirst();
+            if (closed || nextRecord == null)
+            {
+                sending = false;
+                return;
+            }
+        }
+        
+        try
+        {
+            buffer.reset();
+            writer.write(nextRecord);
+            writer.flush();
+            
+            // next send is triggered by the write callback
+            output.write(buffer.toByteArray());
+        }
+        catch (Exception e)
+        {
+            log.debug("Replay exited on error", e);
+            close(e.getMessage());
+        }
+    }
+    
+
+    @Override
+    public synchronized void writeComplete()
+    {
+        sending = false;
+        scheduleSend();
+        
+        // restart emission if it was suspended because client was too slow
+        // or detect end of replay
+        if (nextEmit == null)
+            scheduleEmit();
+    }
+
+
+    @Override
+    public void writeFailed(Throwable e)
+    {
+        // this is usually caused by the client closing the connection
+        log.debug("Replay exited on client abort", e);
+        close(null);
+    }
+    
+    
+    @Override
+    public void outputClosed()
+    {
+        close(null);
+    }
+    
+    
+    private void execute(Runnable task)
+    {
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // pool was shut down because service is stopping
+            // close output now since no task will ever do it
+            closed = true;
+            log.debug("Replay exited because service is stopping");
+            doClose("Service is stopping");
+        }
+    }
+    
+    
+    public void close()
+    {
+        close(null);
+    }
+    
+    
+    protected void close(String errorMsg)
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+        }
+        
+        doClose(errorMsg);
+    }
+    
+    
+    private void doClose(String errorMsg)
+    {
+        StorageDataProvider p;
+        synchronized (this)
+        {
+            cancelEmit();
+            readAhead.clear();
+            pendingRecords.clear();
+            p = provider;
+            provider = null;
+        }
+        
+        if (p != null)
+            p.close();
+        
+        if (output != null)
+            output.close(errorMsg);
+    }
+}
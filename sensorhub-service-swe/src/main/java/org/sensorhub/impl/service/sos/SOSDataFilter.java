@@ -46,6 +46,8 @@ public class SOSDataFilter
     Polygon roi;
     
     double replaySpeedFactor = Double.NaN;
+    double resolution = Double.NaN;
+    double historyDuration = Double.NaN;
     long maxObsCount = Long.MAX_VALUE;
     
     
@@ -81,6 +83,24 @@ public class SOSDataFilter
     }
     
 
+    /**
+     * Copies all filter settings except the time range
+     * @param filter filter to copy
+     * @param timeRange new time range
+     */
+    public SOSDataFilter(SOSDataFilter filter, TimeExtent timeRange)
+    {
+        this.observables.addAll(filter.observables);
+        this.foiIds.addAll(filter.foiIds);
+        this.timeRange = timeRange.copy();
+        this.roi = filter.roi;
+        this.replaySpeedFactor = filter.replaySpeedFactor;
+        this.resolution = filter.resolution;
+        this.historyDuration = filter.historyDuration;
+        this.maxObsCount = filter.maxObsCount;
+    }
+    
+
     public Set<String> getObservables()
     {
         return observables;
@@ -123,6 +143,37 @@ public class SOSDataFilter
     }
 
 
+    /**
+     * @return desired time resolution of records in seconds, or NaN if raw records are requested
+     */
+    public double getResolution()
+    {
+        return resolution;
+    }
+
+
+    public void setResolution(double resolution)
+    {
+        this.resolution = resolution;
+    }
+
+
+    /**
+     * @return duration of past data to send before live data, in seconds,
+     * or NaN if only live data is requested
+     */
+    public double getHistoryDuration()
+    {
+        return historyDuration;
+    }
+
+
+    public void setHistoryDuration(double historyDuration)
+    {
+        this.historyDuration = historyDuration;
+    }
+
+
     public long getMaxObsCount()
     {
         return maxObsCount;
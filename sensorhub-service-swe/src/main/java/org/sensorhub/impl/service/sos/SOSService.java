@@ -24,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -31,6 +32,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -68,6 +77,7 @@ import net.opengis.swe.v20.SimpleComponent;
 import net.opengis.swe.v20.TextEncoding;
 import net.opengis.swe.v20.Vector;
 import net.opengis.swe.v20.XMLEncoding;
+import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
 import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
 import org.sensorhub.api.common.Event;
@@ -89,6 +99,7 @@ import org.sensorhub.impl.sensor.sost.SOSVirtualSensor;
 import org.sensorhub.impl.service.HttpServer;
 import org.sensorhub.impl.service.ogc.OGCServiceConfig.CapabilitiesInfo;
 import org.sensorhub.impl.service.sos.ISOSDataConsumer.Template;
+import org.sensorhub.utils.HashedTimerWheel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.vast.cdm.common.DataSource;
@@ -169,6 +180,14 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     private static final byte[] END_MIME = new byte[] {0xD, 0xA, 0xD, 0xA};
     
     private static final QName EXT_REPLAY = new QName("replayspeed"); // kvp params are always lower case
+    private static final QName EXT_RESOLUTION = new QName("resolution"); // in seconds
+    private static final QName EXT_BACKLOG = new QName("backlog"); // number of records
+    private static final QName EXT_HISTORY = new QName("history"); // in seconds before now
+    private static final int MAX_RESULT_BATCH_SIZE = 256*1024;
+    private static final long MAX_RESULT_BATCH_DELAY = 500; // ms
+    private static final long REPLAY_TIMER_TICK = 10; // ms
+    private static final int REPLAY_TIMER_WHEEL_SIZE = 512;
+    private static final int MAX_QUEUED_REPLAY_READS = 1000;
     
     String endpointUrl;
     SOSServiceConfig config;
@@ -178,6 +197,11 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     Map<String, String> templateToOfferingMap;    
     Map<String, ISOSDataProviderFactory> dataProviders = new LinkedHashMap<String, ISOSDataProviderFactory>();
     Map<String, ISOSDataConsumer> dataConsumers;
+    ScheduledExecutorService liveStreamPool;
+    LiveBroadcastRegistry liveBroadcasts;
+    HashedTimerWheel replayTimer;
+    ThreadPoolExecutor replayReadPool;
+    ExecutorService webSocketRequestPool;
         
     boolean needCapabilitiesTimeUpdate = false;
 
@@ -380,6 +404,20 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
         // pre-generate capabilities
         endpointUrl = null;
         this.capabilitiesCache = generateCapabilities();
+        
+        // thread pools shared by all live and replay streams
+        this.liveStreamPool = Executors.newScheduledThreadPool(Math.max(1, config.liveStreamThreads), new NamedThreadFactory("SOS-live-"));
+        this.liveBroadcasts = new LiveBroadcastRegistry(config.liveBufferSize);
+        this.replayTimer = new HashedTimerWheel("SOS-replay-timer", REPLAY_TIMER_TICK, TimeUnit.MILLISECONDS, REPLAY_TIMER_WHEEL_SIZE, liveStreamPool);
+        
+        // blocking storage reads of replays are kept off the live stream pool
+        // and replays are rejected if too many reads are waiting
+        int numReadThreads = Math.max(1, config.replayReadThreads);
+        this.replayReadPool = new ThreadPoolExecutor(numReadThreads, numReadThreads, 60L, TimeUnit.SECONDS,
+                                                     new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REPLAY_READS),
+                                                     new NamedThreadFactory("SOS-replay-read-"));
+        this.replayReadPool.allowCoreThreadTimeOut(true);
+        this.webSocketRequestPool = Executors.newCachedThreadPool(new NamedThreadFactory("SOS-ws-"));
                 
         // subscribe to server lifecycle events
         SensorHub.getInstance().registerListener(this);
@@ -398,12 +436,47 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
         // unregister ourself
         SensorHub.getInstance().unregisterListener(this);
         
+        // stop streaming threads
+        if (replayTimer != null)
+            replayTimer.stop();
+        if (replayReadPool != null)
+            replayReadPool.shutdownNow();
+        if (liveStreamPool != null)
+            liveStreamPool.shutdownNow();
+        if (liveBroadcasts != null)
+            liveBroadcasts.clear();
+        if (webSocketRequestPool != null)
+            webSocketRequestPool.shutdownNow();
+        
         // clean all providers
         for (ISOSDataProviderFactory provider: dataProviders.values())
             ((ISOSDataProviderFactory)provider).cleanup();
     }
    
     
+    /*
+     * Factory creating daemon threads for websocket pools
+     */
+    static class NamedThreadFactory implements ThreadFactory
+    {
+        final String prefix;
+        final AtomicInteger threadCount = new AtomicInteger();
+        
+        NamedThreadFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+        
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, prefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+    
+    
     protected void deploy()
     {
         HttpServer httpServer = HttpServer.getInstance();
@@ -536,7 +609,7 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
             // and start streaming / accepting incoming stream
             if (owsReq != null)
             {
-                SOSWebSocket socketCreator = new SOSWebSocket(this, owsReq);                
+                SOSWebSocket socketCreator = new SOSWebSocket(this, owsReq, webSocketRequestPool);                
                 if (factory.acceptWebSocket(socketCreator, req, resp))
                 {
                     // We have a socket instance created
@@ -547,9 +620,39 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
             return;
         }
         
+        // live and replay GetResult streams are served asynchronously when possible
+        // so they don't hold a container thread for their whole duration
+        if (isAsyncResultCandidate(req) && startAsyncResultStream(req, resp))
+            return;
+        
         // otherwise process as classical HTTP request
         super.service(req, resp);
     }
+    
+    
+    /*
+     * Only KVP requests can be tried asynchronously since the body of a POST
+     * request cannot be read again if it must be processed normally.<br/>
+     * The request type is checked before parsing so other requests are only
+     * parsed once. The actual decision is made on the parsed request.
+     */
+    private boolean isAsyncResultCandidate(HttpServletRequest req)
+    {
+        if (!req.isAsyncSupported() || !"GET".equals(req.getMethod()))
+            return false;
+        
+        // KVP parameter names are case insensitive
+        for (Entry<String, String[]> param: req.getParameterMap().entrySet())
+        {
+            if ("request".equalsIgnoreCase(param.getKey()))
+            {
+                String[] values = param.getValue();
+                return values.length > 0 && "GetResult".equalsIgnoreCase(values[0]);
+            }
+        }
+        
+        return false;
+    }
 
 
     @Override
@@ -666,7 +769,8 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     @Override
     protected void handleRequest(GetObservationRequest request) throws Exception
     {
-        ISOSDataProvider dataProvider = null;
+        List<ISOSDataProvider> dataProviders = new ArrayList<ISOSDataProvider>();
+        ObservationMerger obsMerger = null;
         
         try
         {
@@ -703,20 +807,41 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
             // prepare obs stream writer for requested O&M version
             String format = request.getFormat();
             String omVersion = format.substring(format.lastIndexOf('/') + 1);
-            IXMLWriterDOM<IObservation> obsWriter = (IXMLWriterDOM<IObservation>)OGCRegistry.createWriter(OMUtils.OM, OMUtils.OBSERVATION, omVersion);
             String sosNsUri = OGCRegistry.getNamespaceURI(SOSUtils.SOS, DEFAULT_VERSION);
+            OutputStream os = new BufferedOutputStream(request.getResponseStream());
+            
+            // O&M 2.0 observations are written directly to the stream
+            // other versions go through the DOM writer
+            IXMLWriterDOM<IObservation> obsWriter = null;
+            ObservationStaxWriter staxObsWriter = null;
+            XMLStreamWriter xmlStreamWriter = null;
+            XMLEventFactory xmlFactory = null;
+            XMLEventWriter xmlWriter = null;
             
             // init xml document writing
-            OutputStream os = new BufferedOutputStream(request.getResponseStream());
-            XMLEventFactory xmlFactory = XMLEventFactory.newInstance();
-            XMLEventWriter xmlWriter = XMLOutputFactory.newInstance().createXMLEventWriter(os, "UTF-8");
-            xmlWriter.add(xmlFactory.createStartDocument());
-            xmlWriter.add(xmlFactory.createStartElement(SOS_PREFIX, sosNsUri, "GetObservationResponse"));
-            xmlWriter.add(xmlFactory.createNamespace(SOS_PREFIX, sosNsUri));
+            if (ObservationStaxWriter.OM_VERSION.equals(omVersion))
+            {
+                xmlStreamWriter = XMLImplFinder.getStaxOutputFactory().createXMLStreamWriter(os, StandardCharsets.UTF_8.name());
+                xmlStreamWriter.setPrefix(SOS_PREFIX, sosNsUri);
+                staxObsWriter = new ObservationStaxWriter(xmlStreamWriter);
+                xmlStreamWriter.writeStartDocument();
+                xmlStreamWriter.writeStartElement(sosNsUri, "GetObservationResponse");
+                xmlStreamWriter.writeNamespace(SOS_PREFIX, sosNsUri);
+                staxObsWriter.writeNamespaces();
+            }
+            else
+            {
+                obsWriter = (IXMLWriterDOM<IObservation>)OGCRegistry.createWriter(OMUtils.OM, OMUtils.OBSERVATION, omVersion);
+                xmlFactory = XMLEventFactory.newInstance();
+                xmlWriter = XMLOutputFactory.newInstance().createXMLEventWriter(os, "UTF-8");
+                xmlWriter.add(xmlFactory.createStartDocument());
+                xmlWriter.add(xmlFactory.createStartElement(SOS_PREFIX, sosNsUri, "GetObservationResponse"));
+                xmlWriter.add(xmlFactory.createNamespace(SOS_PREFIX, sosNsUri));
+            }
             
-            // send obs from each selected offering
-            // TODO sort by time by multiplexing obs from different offerings?
-            boolean firstObs = true;
+            // setup data provider for each selected offering
+            List<List<String>> observablesByProvider = new ArrayList<List<String>>(selectedOfferings.size());
+            List<Boolean> sendAllByProvider = new ArrayList<Boolean>(selectedOfferings.size());
             for (String offering: selectedOfferings)
             {
                 List<String> selectedObservables = request.getObservables();
@@ -732,87 +857,156 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
                    sendAllObservables = true;
                 }
                 
-                // setup data provider
                 SOSDataFilter filter = new SOSDataFilter(request.getFoiIDs(), selectedObservables, request.getTime());
                 filter.setMaxObsCount(config.maxObsCount);
-                dataProvider = getDataProvider(offering, filter);
-                
-                // write each observation in stream
-                // we use stream writer to limit memory usage
+                if (request.getSpatialFilter() != null)
+                    filter.setRoi(request.getBbox().toJtsPolygon());
+                dataProviders.add(getDataProvider(offering, filter));
+                observablesByProvider.add(selectedObservables);
+                sendAllByProvider.add(sendAllObservables);
+            }
+            
+            // if several offerings are selected, providers are read in parallel
+            // and observations are multiplexed in time order
+            if (dataProviders.size() > 1)
+            {
+                obsMerger = new ObservationMerger(dataProviders, ObservationMerger.DEFAULT_QUEUE_SIZE);
+                obsMerger.start();
+            }
+            
+            // result components are reused by providers so we can cache
+            // the sub-component selected for each observable
+            Map<DataComponent, Map<String, DataComponent>> singleResultsCache = new IdentityHashMap<DataComponent, Map<String, DataComponent>>();
+            
+            // write each observation in stream
+            // we use stream writer to limit memory usage
+            boolean firstObs = true;
+            while (true)
+            {
                 IObservation obs;
-                while ((obs = dataProvider.getNextObservation()) != null)
+                int providerIndex = 0;
+                if (obsMerger != null)
                 {
-                    DataComponent obsResult = obs.getResult();
+                    obs = obsMerger.next();
+                    providerIndex = obsMerger.getLastSourceIndex();
+                }
+                else if (!dataProviders.isEmpty())
+                    obs = dataProviders.get(0).getNextObservation();
+                else
+                    obs = null;
+                
+                if (obs == null)
+                    break;
+                
+                List<String> selectedObservables = observablesByProvider.get(providerIndex);
+                boolean sendAllObservables = sendAllByProvider.get(providerIndex);
+                DataComponent obsResult = obs.getResult();
+                Map<String, DataComponent> singleResults = singleResultsCache.get(obsResult);
+                if (singleResults == null)
+                {
+                    singleResults = new HashMap<String, DataComponent>();
+                    singleResultsCache.put(obsResult, singleResults);
+                }
+                
+                // write a different obs for each requested observable
+                for (String observable: selectedObservables)
+                {                    
+                    obs.setObservedProperty(new DefinitionRef(observable));
                     
-                    // write a different obs for each requested observable
-                    for (String observable: selectedObservables)
-                    {                    
-                        obs.setObservedProperty(new DefinitionRef(observable));
-                        
-                        // filter obs result
-                        if (!observable.equals(obsResult.getDefinition()))
-                        {
-                            DataComponent singleResult = SWEHelper.findComponentByDefinition(obsResult, observable);
-                            obs.setResult(singleResult);
-                        }
-                        else
-                        {
-                            // make sure we reset the whole result in case it was trimmed during previous iteration
-                            obs.setResult(obsResult);
-                        }
-                        
-                        // remove redundant obs in wildcard case
-                        DataComponent result = obs.getResult();
-                        if (sendAllObservables)
-                        {
-                            if (result instanceof DataRecord || result instanceof DataChoice)
-                                continue;
-                        }
-                        
-                        // set correct obs type depending on final result structure                        
-                        if (result instanceof SimpleComponent)
-                            obs.setType(IObservation.OBS_TYPE_SCALAR);
-                        else if (result instanceof DataRecord || result instanceof Vector)
-                            obs.setType(IObservation.OBS_TYPE_RECORD);
-                        else if (result instanceof DataArray)
-                            obs.setType(IObservation.OBS_TYPE_ARRAY);
-                        
-                        // first write obs as DOM
-                        DOMHelper dom = new DOMHelper();
-                        Element obsElt = obsWriter.write(dom, obs);
-                        
-                        // write common namespaces on root element
-                        if (firstObs)
+                    // filter obs result
+                    if (!observable.equals(obsResult.getDefinition()))
+                    {
+                        DataComponent singleResult = singleResults.get(observable);
+                        if (singleResult == null)
                         {
-                            for (Entry<String, String> nsDef: dom.getXmlDocument().getNSTable().entrySet())
-                                xmlWriter.add(xmlFactory.createNamespace(nsDef.getKey(), nsDef.getValue()));        
-                            firstObs = false;
+                            singleResult = SWEHelper.findComponentByDefinition(obsResult, observable);
+                            singleResults.put(observable, singleResult);
                         }
-                        
-                        // serialize observation DOM tree into stream writer
-                        xmlWriter.add(xmlFactory.createStartElement(SOS_PREFIX, sosNsUri, "observationData"));                        
-                        XMLInputFactory factory = XMLImplFinder.getStaxInputFactory();
-                        XMLEventReader domReader = factory.createXMLEventReader(new DOMSource(obsElt));
-                        while (domReader.hasNext())
-                        {
-                            XMLEvent event = domReader.nextEvent();
-                            if (!event.isStartDocument() && !event.isEndDocument())
-                                xmlWriter.add(event);
-                        }                        
-                        xmlWriter.add(xmlFactory.createEndElement(SOS_PREFIX, sosNsUri, "observationData"));
-                        xmlWriter.flush();
+                        obs.setResult(singleResult);
+                    }
+                    else
+                    {
+                        // make sure we reset the whole result in case it was trimmed during previous iteration
+                        obs.setResult(obsResult);
+                    }
+                    
+                    // remove redundant obs in wildcard case
+                    DataComponent result = obs.getResult();
+                    if (sendAllObservables)
+                    {
+                        if (result instanceof DataRecord || result instanceof DataChoice)
+                            continue;
+                    }
+                    
+                    // set correct obs type depending on final result structure                        
+                    if (result instanceof SimpleComponent)
+                        obs.setType(IObservation.OBS_TYPE_SCALAR);
+                    else if (result instanceof DataRecord || result instanceof Vector)
+                        obs.setType(IObservation.OBS_TYPE_RECORD);
+                    else if (result instanceof DataArray)
+                        obs.setType(IObservation.OBS_TYPE_ARRAY);
+                    
+                    // write obs directly to stream if possible
+                    if (staxObsWriter != null)
+                    {
+                        xmlStreamWriter.writeStartElement(sosNsUri, "observationData");
+                        staxObsWriter.write(obs);
+                        xmlStreamWriter.writeEndElement();
+                        xmlStreamWriter.flush();
                         os.write('\n');
+                        continue;
+                    }
+                    
+                    // otherwise first write obs as DOM
+                    DOMHelper dom = new DOMHelper();
+                    Element obsElt = obsWriter.write(dom, obs);
+                    
+                    // write common namespaces on root element
+                    if (firstObs)
+                    {
+                        for (Entry<String, String> nsDef: dom.getXmlDocument().getNSTable().entrySet())
+                            xmlWriter.add(xmlFactory.createNamespace(nsDef.getKey(), nsDef.getValue()));        
+                        firstObs = false;
                     }
+                    
+                    // serialize observation DOM tree into stream writer
+                    xmlWriter.add(xmlFactory.createStartElement(SOS_PREFIX, sosNsUri, "observationData"));                        
+                    XMLInputFactory factory = XMLImplFinder.getStaxInputFactory();
+                    XMLEventReader domReader = factory.createXMLEventReader(new DOMSource(obsElt));
+                    while (domReader.hasNext())
+                    {
+                        XMLEvent event = domReader.nextEvent();
+                        if (!event.isStartDocument() && !event.isEndDocument())
+                            xmlWriter.add(event);
+                    }                        
+                    xmlWriter.add(xmlFactory.createEndElement(SOS_PREFIX, sosNsUri, "observationData"));
+                    xmlWriter.flush();
+                    os.write('\n');
                 }
             }
             
-            xmlWriter.add(xmlFactory.createEndDocument());
-            xmlWriter.close();
+            if (xmlStreamWriter != null)
+            {
+                xmlStreamWriter.writeEndDocument();
+                xmlStreamWriter.close();
+            }
+            else
+            {
+                xmlWriter.add(xmlFactory.createEndDocument());
+                xmlWriter.close();
+            }
+            os.flush();
         }
         finally
         {
-            if (dataProvider != null)
-                dataProvider.close();
+            // providers are closed by the merger threads
+            if (obsMerger != null)
+                obsMerger.close();
+            else
+            {
+                for (ISOSDataProvider dataProvider: dataProviders)
+                    dataProvider.close();
+            }
         }
     }
     
@@ -829,7 +1023,10 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
             report.process();
             
             // setup data provider
+            // aggregated records have their own structure
             SOSDataFilter filter = new SOSDataFilter(request.getObservables().get(0));
+            if (request.getExtensions().containsKey(EXT_RESOLUTION))
+                filter.setResolution(getResolution(request));
             dataProvider = getDataProvider(request.getOffering(), filter);
             
             // build filtered component tree
@@ -851,35 +1048,77 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     }
     
     
+    protected SOSDataFilter getResultFilter(GetResultRequest request) throws Exception
+    {
+        // check query parameters
+        OWSExceptionReport report = new OWSExceptionReport();
+        checkQueryObservables(request.getOffering(), request.getObservables(), report);
+        checkQueryProcedures(request.getOffering(), request.getProcedures(), report);
+        checkQueryTime(request.getOffering(), request.getTime(), report);
+        report.process();
+        
+        // setup data filter (including extensions)
+        SOSDataFilter filter = new SOSDataFilter(request.getFoiIDs(), request.getObservables(), request.getTime());
+        filter.setMaxObsCount(config.maxRecordCount);
+        if (request.getSpatialFilter() != null)
+            filter.setRoi(request.getBbox().toJtsPolygon());
+        if (request.getExtensions().containsKey(EXT_REPLAY))
+            filter.setReplaySpeedFactor(getNumericExtension(request, EXT_REPLAY));
+        if (request.getExtensions().containsKey(EXT_RESOLUTION))
+            filter.setResolution(getResolution(request));
+        if (request.getExtensions().containsKey(EXT_HISTORY))
+            filter.setHistoryDuration(getNumericExtension(request, EXT_HISTORY));
+        
+        return filter;
+    }
+    
+    
+    /*
+     * Records are aggregated when a resolution is requested so clients must
+     * request the result template with the same resolution to decode them
+     */
+    protected double getResolution(OWSRequest request) throws SOSException
+    {
+        double resolution = getNumericExtension(request, EXT_RESOLUTION);
+        if (!(resolution > 0.0))
+            throw new SOSException(SOSException.invalid_param_code, EXT_RESOLUTION.getLocalPart(), Double.toString(resolution), "Resolution must be positive");
+        return resolution;
+    }
+    
+    
+    protected double getNumericExtension(OWSRequest request, QName extName) throws SOSException
+    {
+        String value = (String)request.getExtensions().get(extName);
+        try
+        {
+            return Double.parseDouble(value);
+        }
+        catch (NumberFormatException | NullPointerException e)
+        {
+            throw new SOSException(SOSException.invalid_param_code, extName.getLocalPart(), value, "Invalid numeric value: " + value);
+        }
+    }
+    
+    
     protected void handleRequest(GetResultRequest request) throws Exception
     {
         ISOSDataProvider dataProvider = null;
                 
         try
         {
-            // check query parameters
-            OWSExceptionReport report = new OWSExceptionReport();
-            checkQueryObservables(request.getOffering(), request.getObservables(), report);
-            checkQueryProcedures(request.getOffering(), request.getProcedures(), report);
-            checkQueryTime(request.getOffering(), request.getTime(), report);
-            report.process();
-            
-            // setup data filter (including extensions)
-            SOSDataFilter filter = new SOSDataFilter(request.getFoiIDs(), request.getObservables(), request.getTime());
-            filter.setMaxObsCount(config.maxRecordCount);
-            if (request.getExtensions().containsKey(EXT_REPLAY))
-            {
-                String replaySpeed = (String)request.getExtensions().get(EXT_REPLAY);
-                filter.setReplaySpeedFactor(Double.parseDouble(replaySpeed));
-            }
-            
             // setup data provider
+            SOSDataFilter filter = getResultFilter(request);
             dataProvider = getDataProvider(request.getOffering(), filter);
             DataComponent resultStructure = dataProvider.getResultStructure();
             DataEncoding resultEncoding = dataProvider.getDefaultResultEncoding();
             
             // write response with SWE common data stream
-            OutputStream os = new BufferedOutputStream(request.getResponseStream());
+            // records are sent in batches when all data is already available
+            RecordBatchOutputStream os;
+            if (isArchiveRequest(request))
+                os = new RecordBatchOutputStream(request.getResponseStream(), MAX_RESULT_BATCH_SIZE, MAX_RESULT_BATCH_DELAY);
+            else
+                os = new RecordBatchOutputStream(request.getResponseStream(), 0, 0);
             
             // write small xml wrapper if requested
             if (((GetResultRequest) request).isXmlWrapper())
@@ -891,18 +1130,7 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
             
             // set response headers in case of HTTP response
             else if (request.getHttpResponse() != null)
-            {
-                if (resultEncoding instanceof TextEncoding)
-                    request.getHttpResponse().setContentType(TEXT_MIME_TYPE);
-                else if (resultEncoding instanceof JSONEncoding)
-                    request.getHttpResponse().setContentType(OWSUtils.JSON_MIME_TYPE);
-                else if (resultEncoding instanceof XMLEncoding)
-                    request.getHttpResponse().setContentType(OWSUtils.XML_MIME_TYPE);
-                else if (resultEncoding instanceof BinaryEncoding)
-                    request.getHttpResponse().setContentType(BINARY_MIME_TYPE);
-                else
-                    throw new RuntimeException("Unsupported encoding: " + resultEncoding.getClass().getCanonicalName());
-            }
+                setResultContentType(request.getHttpResponse(), resultEncoding);
             
             // use specific format handler if available
             boolean dataWritten = false;
@@ -916,12 +1144,15 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
                 DataStreamWriter writer = SWEHelper.createDataWriter(resultEncoding);
                 
                 // we also do filtering here in case data provider hasn't modified the datablocks
+                // but records are written as is if all fields were requested
                 request.getObservables().add(SWEConstants.DEF_SAMPLING_TIME); // always keep sampling time
-                writer = new FilteredWriter((AbstractDataWriter)writer, request.getObservables());
+                if (!isFullResultRequested(request, resultStructure))
+                    writer = new FilteredWriter((AbstractDataWriter)writer, request.getObservables());
                 writer.setDataComponents(resultStructure);
                 writer.setOutput(os);
                 
                 // write each record in output stream
+                // flush only marks the end of each record, see RecordBatchOutputStream
                 DataBlock nextRecord;
                 while ((nextRecord = dataProvider.getNextResultRecord()) != null)
                 {
@@ -932,9 +1163,9 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
                 // close xml wrapper
                 if (((GetResultRequest) request).isXmlWrapper())
                     os.write(new String("\n</resultValues>\n</GetResultResponse>").getBytes());          
-                        
-                os.flush();
             }
+            
+            os.forceFlush();
         }
         finally
         {
@@ -944,6 +1175,252 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     }
     
     
+    protected void setResultContentType(HttpServletResponse resp, DataEncoding resultEncoding)
+    {
+        if (resultEncoding instanceof TextEncoding)
+            resp.setContentType(TEXT_MIME_TYPE);
+        else if (resultEncoding instanceof JSONEncoding)
+            resp.setContentType(OWSUtils.JSON_MIME_TYPE);
+        else if (resultEncoding instanceof XMLEncoding)
+            resp.setContentType(OWSUtils.XML_MIME_TYPE);
+        else if (resultEncoding instanceof BinaryEncoding)
+            resp.setContentType(BINARY_MIME_TYPE);
+        else
+            throw new RuntimeException("Unsupported encoding: " + resultEncoding.getClass().getCanonicalName());
+    }
+    
+    
+    /**
+     * Starts streaming live GetResult records to the websocket session
+     * without dedicating a thread to the request.<br/>
+     * Records are encoded once per output by shared broadcasters and sent
+     * asynchronously using the shared live stream pool.
+     * @param request GetResult request received via websocket
+     * @param session websocket session to send records to
+     * @return the live stream or null if the request cannot be served in
+     * push mode, in which case it must be processed by {@link #handleRequest(GetResultRequest)}
+     * @throws Exception if the request is invalid
+     */
+    protected LiveResultStream startLiveResultStream(GetResultRequest request, Session session) throws Exception
+    {
+        StreamDataProvider dataProvider = getLiveDataProvider(request);
+        if (dataProvider == null)
+            return null;
+        
+        LiveResultStream liveStream = new LiveResultStream(dataProvider, liveBroadcasts, liveStreamPool);
+        startLiveResultStream(request, liveStream, new WebSocketResultOutput(session));
+        return liveStream;
+    }
+    
+    
+    /**
+     * Starts streaming live or replayed GetResult records as the body of an
+     * asynchronous HTTP response so that the request doesn't hold a container
+     * thread until the stream ends.
+     * @param req HTTP request
+     * @param resp HTTP response
+     * @return true if the request was taken over, or false if it must be
+     * processed normally, including when it is invalid so that the error is
+     * reported as usual
+     */
+    protected boolean startAsyncResultStream(HttpServletRequest req, HttpServletResponse resp)
+    {
+        GetResultRequest request;
+        StreamDataProvider dataProvider = null;
+        ReplayResultStream replayStream = null;
+        
+        try
+        {
+            OWSRequest owsReq = this.parseRequest(req, resp, false);
+            if (!(owsReq instanceof GetResultRequest))
+                return false;
+            
+            // xml wrapper is still written by the blocking path
+            request = (GetResultRequest)owsReq;
+            if (request.isXmlWrapper())
+                return false;
+            
+            replayStream = createReplayStream(request);
+            if (replayStream == null)
+            {
+                dataProvider = getLiveDataProvider(request);
+                if (dataProvider == null)
+                    return false;
+            }
+        }
+        catch (Exception e)
+        {
+            // error is reported when request is processed normally
+            log.debug("Cannot serve GetResult asynchronously", e);
+            return false;
+        }
+        
+        try
+        {
+            IResultStreamOutput output = new HttpResultOutput(req);
+            if (replayStream != null)
+            {
+                setResultContentType(resp, replayStream.getResultEncoding());
+                replayStream.start(output);
+            }
+            else
+            {
+                setResultContentType(resp, dataProvider.getDefaultResultEncoding());
+                LiveResultStream liveStream = new LiveResultStream(dataProvider, liveBroadcasts, liveStreamPool);
+                startLiveResultStream(request, liveStream, output);
+            }
+            
+            return true;
+        }
+        catch (Exception e)
+        {
+            if (replayStream != null)
+                replayStream.close();
+            else
+                dataProvider.close();
+            
+            // fall back to blocking path if response wasn't taken over yet
+            if (!req.isAsyncStarted())
+                return false;
+            
+            log.error("Cannot start async GetResult stream", e);
+            req.getAsyncContext().complete();
+            return true;
+        }
+    }
+    
+    
+    /*
+     * Gets the data provider for a GetResult request that can be served in
+     * push mode, or null if the request must be processed by the blocking path
+     */
+    protected StreamDataProvider getLiveDataProvider(GetResultRequest request) throws Exception
+    {
+        // only real-time requests are served in push mode
+        TimeExtent timeRange = request.getTime();
+        if (timeRange == null || !(timeRange.isBaseAtNow() || timeRange.isBeginNow()))
+            return null;
+        if (request.getExtensions().containsKey(EXT_REPLAY))
+            return null;
+        
+        // historical records are read from storage by the blocking path
+        if (request.getExtensions().containsKey(EXT_HISTORY))
+            return null;
+        
+        SOSDataFilter filter = getResultFilter(request);
+        ISOSDataProvider dataProvider = getDataProvider(request.getOffering(), filter);
+        
+        // custom formats are still written by the blocking path
+        if (!(dataProvider instanceof StreamDataProvider) || hasCustomFormat(dataProvider.getDefaultResultEncoding()))
+        {
+            dataProvider.close();
+            return null;
+        }
+        
+        return (StreamDataProvider)dataProvider;
+    }
+    
+    
+    /*
+     * Subscribes the live stream to the broadcasters selected by the request
+     */
+    protected void startLiveResultStream(GetResultRequest request, LiveResultStream liveStream, IResultStreamOutput output) throws Exception
+    {
+        StreamDataProvider dataProvider = liveStream.dataProvider;
+        
+        try
+        {
+            // records are filtered by broadcaster if not all fields are requested
+            List<String> observables = null;
+            request.getObservables().add(SWEConstants.DEF_SAMPLING_TIME); // always keep sampling time
+            if (!isFullResultRequested(request, dataProvider.getResultStructure()))
+                observables = request.getObservables();
+            
+            // clients can ask for some of the last buffered records
+            int backlog = 0;
+            if (request.getExtensions().containsKey(EXT_BACKLOG))
+            {
+                String numRecords = (String)request.getExtensions().get(EXT_BACKLOG);
+                backlog = Integer.parseInt(numRecords);
+            }
+            
+            liveStream.start(output, observables, backlog);
+        }
+        catch (Exception e)
+        {
+            dataProvider.close();
+            throw e;
+        }
+    }
+    
+    
+    /**
+     * Starts replaying historical GetResult records to the websocket session
+     * without dedicating a thread to the request.<br/>
+     * Records are emitted at the pace they were produced, scaled by the replay
+     * speed factor, using the shared replay timer.
+     * @param request GetResult request received via websocket
+     * @param session websocket session to send records to
+     * @return the replay stream or null if the request is not a replay of
+     * stored data, in which case it must be processed by {@link #handleRequest(GetResultRequest)}
+     * @throws Exception if the request is invalid
+     */
+    protected ReplayResultStream startReplayStream(GetResultRequest request, Session session) throws Exception
+    {
+        ReplayResultStream replayStream = createReplayStream(request);
+        if (replayStream == null)
+            return null;
+        
+        replayStream.start(new WebSocketResultOutput(session));
+        return replayStream;
+    }
+    
+    
+    /*
+     * Creates the replay stream for a GetResult request, or returns null if
+     * the request is not a replay of stored data that can be sent in push mode
+     */
+    protected ReplayResultStream createReplayStream(GetResultRequest request) throws Exception
+    {
+        if (!request.getExtensions().containsKey(EXT_REPLAY))
+            return null;
+        
+        // provider doesn't wait between records since replay stream does it
+        SOSDataFilter filter = getResultFilter(request);
+        double replaySpeed = filter.getReplaySpeedFactor();
+        filter.setReplaySpeedFactor(Double.NaN);
+        ISOSDataProviderFactory factory = getDataProviderFactoryByOfferingID(request.getOffering());
+        ISOSDataProvider dataProvider = factory.getNewDataProvider(filter);
+        
+        try
+        {
+            DataComponent resultStructure = dataProvider.getResultStructure();
+            DataEncoding resultEncoding = dataProvider.getDefaultResultEncoding();
+            
+            if (!(dataProvider instanceof StorageDataProvider) || hasCustomFormat(resultEncoding))
+            {
+                dataProvider.close();
+                return null;
+            }
+            
+            // prepare writer for selected encoding
+            DataStreamWriter writer = SWEHelper.createDataWriter(resultEncoding);
+            request.getObservables().add(SWEConstants.DEF_SAMPLING_TIME); // always keep sampling time
+            if (!isFullResultRequested(request, resultStructure))
+                writer = new FilteredWriter((AbstractDataWriter)writer, request.getObservables());
+            writer.setDataComponents(resultStructure);
+            
+            return new ReplayResultStream((StorageDataProvider)dataProvider, factory, filter,
+                                          writer, replaySpeed, replayTimer, replayReadPool, liveStreamPool);
+        }
+        catch (Exception e)
+        {
+            dataProvider.close();
+            throw e;
+        }
+    }
+    
+    
     @Override
     protected void handleRequest(final GetFeatureOfInterestRequest request) throws Exception
     {
@@ -1231,6 +1708,28 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     }
     
     
+    /*
+     * Check if records with the given encoding are written by a specific
+     * format handler when sent via websocket (see writeCustomFormatStream).
+     * MJPEG multipart is only used for HTTP responses so only MP4 is checked.
+     */
+    protected boolean hasCustomFormat(DataEncoding resultEncoding)
+    {
+        if (!(resultEncoding instanceof BinaryEncoding))
+            return false;
+        
+        for (BinaryMember spec: ((BinaryEncoding)resultEncoding).getMemberList())
+        {
+            if (spec instanceof BinaryBlock)
+            {
+                return "H264".equals(((BinaryBlock)spec).getCompression());
+            }
+        }
+        
+        return false;
+    }
+    
+    
     protected boolean writeCustomFormatStream(GetResultRequest request, ISOSDataProvider dataProvider, OutputStream os) throws Exception
     {
         DataComponent resultStructure = dataProvider.getResultStructure();
@@ -1329,6 +1828,50 @@ public class SOSService extends SOSServlet implements IServiceModule<SOSServiceC
     }
     
     
+    /*
+     * Check if all requested data is already available so records can be
+     * sent in batches rather than one by one
+     */
+    protected boolean isArchiveRequest(GetResultRequest request)
+    {
+        // records sent via websockets are always sent individually
+        if (request.getHttpResponse() == null)
+            return false;
+        
+        // in replay mode, records are sent at the pace they were produced
+        if (request.getExtensions().containsKey(EXT_REPLAY))
+            return false;
+        
+        TimeExtent timeRange = request.getTime();
+        if (timeRange == null || timeRange.isNull())
+            return false;
+        
+        return !timeRange.isBaseAtNow() && !timeRange.isBeginNow() && !timeRange.isEndNow();
+    }
+    
+    
+    /*
+     * Check if all fields of result structure are selected by the request observables
+     * in which case records don't need to be filtered before they are written
+     */
+    protected boolean isFullResultRequested(GetResultRequest request, DataComponent resultStructure)
+    {
+        List<String> observables = request.getObservables();
+        
+        if (!(resultStructure instanceof DataRecord))
+            return observables.contains(resultStructure.getDefinition());
+        
+        for (int i = 0; i < resultStructure.getComponentCount(); i++)
+        {
+            String defUri = resultStructure.getComponent(i).getDefinition();
+            if (defUri == null || !observables.contains(defUri))
+                return false;
+        }
+        
+        return true;
+    }
+    
+    
     /*
      * Check if we should insert MIME multipart boundaries between JPEG frames
      * since it makes it work directly in some browsers image tags
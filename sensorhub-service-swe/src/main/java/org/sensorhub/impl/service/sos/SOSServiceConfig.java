@@ -44,6 +44,18 @@ public class SOSServiceConfig extends OGCServiceConfig
     public int maxRecordCount = 100000;
     
     
+    @DisplayInfo(label="Live Stream Threads", desc="Number of threads shared by all live and replay result streams to send records")
+    public int liveStreamThreads = 4;
+    
+    
+    @DisplayInfo(label="Replay Read Threads", desc="Number of threads shared by all replay result streams to read records from storage")
+    public int replayReadThreads = 2;
+    
+    
+    @DisplayInfo(label="Live Buffer Size", desc="Number of encoded records kept for each live output. Slower clients skip ahead when they fall further behind, and new clients can ask for up to this many past records")
+    public int liveBufferSize = 100;
+    
+    
     @DisplayInfo(desc="Storage configuration to use for newly registered sensors")
     public StorageConfig newStorageConfig;
     
@@ -16,7 +16,6 @@ package org.sensorhub.impl.service.sos;
 
 import java.io.EOFException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.WebSocketListener;
@@ -31,7 +30,8 @@ import org.vast.ows.sos.GetResultRequest;
 
 /**
  * <p>
- * Output only websocket for sending SOS live responses
+ * Websocket for sending SOS live and replay responses.<br/>
+ * The only messages accepted from the client are replay control commands.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -45,14 +45,16 @@ public class SOSWebSocket implements WebSocketCreator, WebSocketListener, Runnab
     SOSService parentService;
     OWSRequest request;
     WebSocketOutputStream respOutputStream;
+    LiveResultStream liveStream;
+    ReplayResultStream replayStream;
     Executor threadPool;
     
     
-    public SOSWebSocket(SOSService parentService, OWSRequest request)//, Executor threadPool)
+    public SOSWebSocket(SOSService parentService, OWSRequest request, Executor threadPool)
     {
         this.parentService = parentService;
         this.request = request;
-        this.threadPool = Executors.newSingleThreadExecutor();
+        this.threadPool = threadPool;
         
         // enforce no XML wrapper to GetResult response
         if (request instanceof GetResultRequest)
@@ -76,10 +78,28 @@ public class SOSWebSocket implements WebSocketCreator, WebSocketListener, Runnab
     {
         this.session = session;
         
+        // serve live data or replay in push mode if possible
+        try
+        {
+            replayStream = parentService.startReplayStream((GetResultRequest)request, session);
+            if (replayStream != null)
+                return;
+            
+            liveStream = parentService.startLiveResultStream((GetResultRequest)request, session);
+            if (liveStream != null)
+                return;
+        }
+        catch (Exception e)
+        {
+            log.debug("Cannot start live stream", e);
+            session.close(StatusCode.PROTOCOL, e.getMessage());
+            return;
+        }
+        
         respOutputStream = new WebSocketOutputStream(session, 1024);
         request.setResponseStream(respOutputStream);
         
-        // launch processing in separate thread
+        // otherwise launch processing in separate thread
         threadPool.execute(this);
     }
     
@@ -94,7 +114,12 @@ public class SOSWebSocket implements WebSocketCreator, WebSocketListener, Runnab
     public void onWebSocketClose(int statusCode, String reason)
     {
         session = null;
-        respOutputStream.close();
+        if (liveStream != null)
+            liveStream.close();
+        if (replayStream != null)
+            replayStream.close();
+        if (respOutputStream != null)
+            respOutputStream.close();
         log.debug("Session closed");
     }
     
@@ -107,7 +132,10 @@ public class SOSWebSocket implements WebSocketCreator, WebSocketListener, Runnab
 
     @Override
     public void onWebSocketText(String msg)
-    {        
+    {
+        // replay control commands
+        if (replayStream != null)
+            replayStream.handleCommand(msg);
     }
 
 
@@ -58,7 +58,9 @@ public class SensorWithStorageProviderFactory extends StreamWithStorageProviderF
             if (!producer.isEnabled())
                 throw new ServiceException("Sensor " + MsgUtils.moduleString(producer) + " is disabled");
             
-            return new SensorDataProvider(producer, sensorProviderConfig, filter);
+            // live provider is created first so it buffers data while history is read
+            StreamDataProvider liveProvider = new SensorDataProvider(producer, sensorProviderConfig, filter);
+            return addHistory(liveProvider, filter);
         }
         else
         {            
@@ -0,0 +1,169 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import org.sensorhub.api.service.ServiceException;
+import org.vast.ogc.om.IObservation;
+import org.vast.swe.SWEHelper;
+import org.vast.swe.ScalarIndexer;
+
+
+/**
+ * <p>
+ * Data provider sending historical records from storage and then
+ * seamlessly continuing with live records.<br/>
+ * The live provider must be created before the storage provider so that
+ * live records produced while historical records are being sent are
+ * buffered. Live records whose time stamp is not after the last record
+ * read from storage are skipped so there is no gap and no duplicate at
+ * the boundary.<br/>
+ * If the live buffer overflows before all historical records are sent,
+ * the request fails since live records have been lost.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class StorageAndStreamDataProvider implements ISOSDataProvider
+{
+    StorageDataProvider storageProvider;
+    StreamDataProvider streamProvider;
+    ScalarIndexer timeStampIndexer;
+    double lastStorageTime = Double.NEGATIVE_INFINITY;
+    boolean live;
+    
+    
+    public StorageAndStreamDataProvider(StorageDataProvider storageProvider, StreamDataProvider streamProvider)
+    {
+        this.storageProvider = storageProvider;
+        this.streamProvider = streamProvider;
+        this.timeStampIndexer = SWEHelper.getTimeStampIndexer(streamProvider.getResultStructure());
+    }
+    
+    
+    @Override
+    public IObservation getNextObservation() throws Exception
+    {
+        checkLiveBuffer();
+        
+        if (!live)
+        {
+            IObservation obs = storageProvider.getNextObservation();
+            if (obs != null)
+            {
+                lastStorageTime = storageProvider.lastRecordTime;
+                return obs;
+            }
+            
+            switchToLive();
+        }
+        
+        // skip live records that were already sent from storage
+        IObservation obs;
+        while ((obs = streamProvider.getNextObservation()) != null)
+        {
+            if (getLiveRecordTime(obs.getResult().getData()) > lastStorageTime)
+                return obs;
+        }
+        
+        return null;
+    }
+    
+
+    @Override
+    public DataBlock getNextResultRecord() throws Exception
+    {
+        checkLiveBuffer();
+        
+        if (!live)
+        {
+            DataBlock rec = storageProvider.getNextResultRecord();
+            if (rec != null)
+            {
+                lastStorageTime = storageProvider.lastRecordTime;
+                return rec;
+            }
+            
+            switchToLive();
+        }
+        
+        // skip live records that were already sent from storage
+        DataBlock rec;
+        while ((rec = streamProvider.getNextResultRecord()) != null)
+        {
+            if (getLiveRecordTime(rec) > lastStorageTime)
+                return rec;
+        }
+        
+        return null;
+    }
+    
+    
+    /*
+     * Fails the request rather than silently leaving a gap in the stream
+     * if live records were dropped while historical records were being sent
+     */
+    private void checkLiveBuffer() throws ServiceException
+    {
+        int droppedEvents = streamProvider.getDroppedEventCount();
+        if (droppedEvents > 0)
+            throw new ServiceException(droppedEvents + " live records were dropped because history could not be sent fast enough. Request a shorter history duration");
+    }
+    
+    
+    private void switchToLive()
+    {
+        live = true;
+        storageProvider.close();
+    }
+    
+    
+    /*
+     * Get time stamp of live record in the same way it is stored
+     * (i.e. using sampling time if available, event time otherwise)
+     */
+    private double getLiveRecordTime(DataBlock rec)
+    {
+        if (timeStampIndexer != null)
+            return timeStampIndexer.getDoubleValue(rec);
+        else
+            return streamProvider.lastDataEvent.getTimeStamp() / 1000.;
+    }
+    
+
+    @Override
+    public DataComponent getResultStructure()
+    {
+        return streamProvider.getResultStructure();
+    }
+    
+
+    @Override
+    public DataEncoding getDefaultResultEncoding()
+    {
+        return streamProvider.getDefaultResultEncoding();
+    }
+
+
+    @Override
+    public void close()
+    {
+        storageProvider.close();
+        streamProvider.close();
+    }
+}
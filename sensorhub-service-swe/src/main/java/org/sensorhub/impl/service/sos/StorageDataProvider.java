@@ -22,6 +22,7 @@ import java.util.Set;
 import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
 import net.opengis.swe.v20.DataEncoding;
+import org.sensorhub.api.persistence.IAggregateStorage;
 import org.sensorhub.api.persistence.IBasicStorage;
 import org.sensorhub.api.persistence.IDataRecord;
 import org.sensorhub.api.persistence.IObsFilter;
@@ -57,6 +58,8 @@ public class StorageDataProvider implements ISOSDataProvider
     IBasicStorage storage;
     List<StorageState> dataStoresStates;
     String foiID;
+    StorageState lastState;
+    double lastRecordTime = Double.NaN;
     
     // replay stuff 
     double replaySpeedFactor;
@@ -69,6 +72,7 @@ public class StorageDataProvider implements ISOSDataProvider
         IRecordStoreInfo recordInfo;
         Iterator<? extends IDataRecord> recordIterator;
         IDataRecord nextRecord;
+        DataComponent resultTemplate;
     }
     
     
@@ -110,6 +114,17 @@ public class StorageDataProvider implements ISOSDataProvider
                 String defUri = (String)it.next().getDefinition();
                 if (filter.getObservables().contains(defUri))
                 {
+                    // use aggregated records if a coarser resolution is requested
+                    if (!Double.isNaN(filter.getResolution()) && storage instanceof IAggregateStorage)
+                    {
+                        IRecordStoreInfo aggregateInfo = ((IAggregateStorage)storage).getAggregateRecordStore(recordType, filter.getResolution());
+                        if (aggregateInfo != null)
+                        {
+                            recordInfo = aggregateInfo;
+                            recordType = aggregateInfo.getName();
+                        }
+                    }
+                    
                     // prepare record filter
                     IObsFilter storageFilter = new ObsFilter(recordType) {
                         public double[] getTimeStampRange() { return timePeriod; }
@@ -129,8 +144,8 @@ public class StorageDataProvider implements ISOSDataProvider
                         state.nextRecord = state.recordIterator.next();
                     dataStoresStates.add(state);
                     
-                    // break for now since currently we support only requesting data from one store at a time
-                    // TODO support case of multiple stores since it is technically possible with GetObservation
+                    // records of all selected stores are merged by time stamp
+                    // so we only need to add each store once
                     break;
                 }
             }
@@ -197,9 +212,12 @@ public class StorageDataProvider implements ISOSDataProvider
         if (data == null)
             return null;
         
-        DataComponent copyComponent = getResultStructure().copy();
-        copyComponent.setData(data);
-        return copyComponent;
+        // result template of each store is copied once and reused for all records
+        StorageState state = lastState;
+        if (state.resultTemplate == null)
+            state.resultTemplate = state.recordInfo.getRecordDescription().copy();
+        state.resultTemplate.setData(data);
+        return state.resultTemplate;
     }
     
 
@@ -230,6 +248,8 @@ public class StorageDataProvider implements ISOSDataProvider
         // get datablock from selected data store 
         StorageState state = dataStoresStates.get(nextStorageIndex);
         IDataRecord nextRec = state.nextRecord;
+        this.lastState = state;
+        this.lastRecordTime = nextStorageTime;
         DataBlock datablk = nextRec.getData();
         
         // also save FOI ID if set
@@ -243,6 +263,7 @@ public class StorageDataProvider implements ISOSDataProvider
             state.nextRecord = null;
         
         // wait if replay mode is active
+        // this only happens for replays that cannot be sent by a ReplayResultStream
         if (!Double.isNaN(replaySpeedFactor))
         {
             long realEllapsedTime = System.currentTimeMillis() - requestSystemTime;
@@ -14,11 +14,15 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.service.sos;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.opengis.gml.v32.AbstractFeature;
 import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
@@ -31,6 +35,9 @@ import org.sensorhub.api.data.IDataProducerModule;
 import org.sensorhub.api.data.IMultiSourceDataProducer;
 import org.sensorhub.api.data.IStreamingDataInterface;
 import org.sensorhub.api.service.ServiceException;
+import org.sensorhub.utils.MsgUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.vast.data.DataIterator;
 import org.vast.ogc.def.DefinitionRef;
 import org.vast.ogc.gml.FeatureRef;
@@ -43,29 +50,70 @@ import org.vast.util.TimeExtent;
 
 /**
  * <p>
- * Implementation of SOS data provider connecting to a streaming data source
+ * Implementation of SOS data provider connecting to a streaming data source.<br/>
+ * Records can be polled with {@link #getNextResultRecord()}, or the provider
+ * can be switched to push mode, in which case records are read already
+ * encoded from broadcasters shared with other requests.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
  * @since Sep 7, 2013
  */
-public abstract class StreamDataProvider implements ISOSDataProvider, IEventListener
+public abstract class StreamDataProvider implements ISOSDataProvider, IEventListener, LiveRecordBroadcaster.ISubscriber
 {
+    private static final Logger log = LoggerFactory.getLogger(StreamDataProvider.class);
+    static final int MAX_BUFFERED_EVENTS = 10000;
+    
+    
+    /**
+     * <p>
+     * Listener notified when the provider is used in push mode rather than
+     * by polling {@link StreamDataProvider#getNextResultRecord()}.<br/>
+     * Methods are called on the producer's or timer's thread so they must not block.
+     * </p>
+     */
+    public interface IRecordListener
+    {
+        /**
+         * Called when new records can be read with {@link StreamDataProvider#getNextEncodedRecord()}
+         */
+        public void newRecordsAvailable();
+        
+        /**
+         * Called when no more records will be received, after which remaining
+         * records can still be read until {@link StreamDataProvider#getNextEncodedRecord()}
+         * returns null
+         */
+        public void endOfStream();
+    }
+    
+    
     IDataProducerModule<?> dataSource;
     List<IStreamingDataInterface> sourceOutputs;
     BlockingDeque<DataEvent> eventQueue;
+    boolean bufferHistory;
+    AtomicInteger droppedEvents = new AtomicInteger();
     long timeOut;
     long stopTime;
     
     DataEvent lastDataEvent;
     int nextEventRecordIndex = 0;
+    Map<IStreamingDataInterface, DataComponent> resultTemplates = new IdentityHashMap<IStreamingDataInterface, DataComponent>();
+    
+    // push mode state
+    IRecordListener recordListener;
+    LiveBroadcastRegistry registry;
+    List<LiveRecordBroadcaster.Cursor> cursors = new ArrayList<LiveRecordBroadcaster.Cursor>();
+    volatile long lastEventTime;
+    long skippedRecords;
+    boolean streamEnded;
+    boolean closed;
             
     
     public StreamDataProvider(IDataProducerModule<?> dataSource, StreamDataProviderConfig config, SOSDataFilter filter) throws ServiceException
     {
         this.dataSource = dataSource;
         this.sourceOutputs = new ArrayList<IStreamingDataInterface>();
-        this.eventQueue = new LinkedBlockingDeque<DataEvent>(1);
         
         // figure out stop time (if any)
         stopTime = ((long)filter.getTimeRange().getStopTime()) * 1000L;
@@ -96,13 +144,21 @@ public abstract class StreamDataProvider implements ISOSDataProvider, IEventList
                     timeOut = Math.max(timeOut, 5000L);
                     sourceOutputs.add(outputInterface);
                     
-                    // break for now since we support only requesting data from one output at a time
-                    // TODO support case of multiple outputs since it is technically possible with GetObservation
+                    // events from all selected outputs are sent to the same queue
+                    // so we only need to add each output once
                     break; 
                 }
             }
         }
         
+        // keep room for one pending event per output
+        // or buffer live events while historical data is sent first
+        int queueSize = Math.max(1, sourceOutputs.size());
+        bufferHistory = !Double.isNaN(filter.getHistoryDuration());
+        if (bufferHistory)
+            queueSize = MAX_BUFFERED_EVENTS;
+        this.eventQueue = new LinkedBlockingDeque<DataEvent>(queueSize);
+        
         // if everything went well listen for events on the selected outputs
         for (final IStreamingDataInterface outputInterface: sourceOutputs)
         {
@@ -199,9 +255,16 @@ public abstract class StreamDataProvider implements ISOSDataProvider, IEventList
         if (data == null)
             return null;
         
-        DataComponent copyComponent = getResultStructure().copy();
-        copyComponent.setData(data);
-        return copyComponent;
+        // result template of each output is copied once and reused for all records
+        IStreamingDataInterface output = lastDataEvent.getSource();
+        DataComponent resultTemplate = resultTemplates.get(output);
+        if (resultTemplate == null)
+        {
+            resultTemplate = output.getRecordDescription().copy();
+            resultTemplates.put(output, resultTemplate);
+        }
+        resultTemplate.setData(data);
+        return resultTemplate;
     }
     
 
@@ -243,7 +306,7 @@ public abstract class StreamDataProvider implements ISOSDataProvider, IEventList
      * For real-time streams, more data is always available unless
      * sensor is disabled or all sensor outputs are disabled
      */
-    private boolean hasMoreData()
+    boolean hasMoreData()
     {
         if (!dataSource.isEnabled())
             return false;
@@ -261,19 +324,207 @@ public abstract class StreamDataProvider implements ISOSDataProvider, IEventList
     }
     
 
-    @Override
-    public DataComponent getResultStructure()
-    {
+    @Override
+    public DataComponent getResultStructure()
+    {
         // TODO generate choice if request includes several outputs
         
-        return sourceOutputs.get(0).getRecordDescription();
-    }
-    
-
-    @Override
-    public DataEncoding getDefaultResultEncoding()
-    {
-        return sourceOutputs.get(0).getRecommendedEncoding();
+        return getResultStructure(sourceOutputs.get(0));
+    }
+    
+
+    @Override
+    public DataEncoding getDefaultResultEncoding()
+    {
+        return getResultEncoding(sourceOutputs.get(0));
+    }
+    
+    
+    /**
+     * @param output one of the selected outputs
+     * @return structure of result records produced by the given output
+     */
+    protected DataComponent getResultStructure(IStreamingDataInterface output)
+    {
+        return output.getRecordDescription();
+    }
+    
+    
+    /**
+     * @param output one of the selected outputs
+     * @return encoding of result records produced by the given output
+     */
+    protected DataEncoding getResultEncoding(IStreamingDataInterface output)
+    {
+        return output.getRecommendedEncoding();
+    }
+    
+    
+    /**
+     * Switches this provider to push mode.<br/>
+     * From now on, records of the selected outputs are read from the shared
+     * broadcasters of the registry, where they are encoded once with the
+     * result structure and encoding of this provider, and the listener is
+     * notified when new records are available.
+     * @param listener listener to notify
+     * @param registry registry of shared broadcasters
+     * @param observables list of selected fields or null to get full records
+     * @param backlog number of already buffered records to get first
+     * @throws IOException if a broadcaster cannot be created
+     */
+    public void setRecordListener(IRecordListener listener, LiveBroadcastRegistry registry, List<String> observables, int backlog) throws IOException
+    {
+        // records are now received through the shared broadcasters
+        for (IStreamingDataInterface outputInterface: sourceOutputs)
+            outputInterface.unregisterListener(this);
+        eventQueue.clear();
+        
+        // case of time instant = now, just send latest record of each output
+        boolean latestOnly = (timeOut <= 0);
+        if (latestOnly)
+            backlog = 1;
+        
+        synchronized (this)
+        {
+            this.recordListener = listener;
+            this.registry = registry;
+            this.lastEventTime = System.currentTimeMillis();
+            this.streamEnded = latestOnly;
+        }
+        
+        // subscribe without holding our lock since we can be notified right away
+        for (IStreamingDataInterface outputInterface: sourceOutputs)
+        {
+            LiveRecordBroadcaster.Cursor cursor = registry.subscribe(outputInterface,
+                getResultStructure(outputInterface), getResultEncoding(outputInterface),
+                observables, this, backlog);
+            
+            if (latestOnly)
+                cursor.stopAtCurrentRecord();
+            
+            synchronized (this)
+            {
+                if (!closed)
+                {
+                    cursors.add(cursor);
+                    continue;
+                }
+            }
+            
+            // provider was closed while we were subscribing
+            registry.unsubscribe(cursor);
+        }
+    }
+    
+    
+    /**
+     * Gets the next encoded record when in push mode.<br/>
+     * When several outputs are selected, the oldest available record is
+     * returned first so that records are sent in chronological order.
+     * @return the next record or null if none is available now, in which
+     * case {@link #isStreamEnded()} tells if more records will come
+     */
+    public synchronized LiveRecordBroadcaster.EncodedRecord getNextEncodedRecord()
+    {
+        LiveRecordBroadcaster.Cursor nextCursor = null;
+        long nextTime = Long.MAX_VALUE;
+        for (LiveRecordBroadcaster.Cursor cursor: cursors)
+        {
+            LiveRecordBroadcaster.EncodedRecord rec = cursor.peek();
+            if (rec != null && (nextCursor == null || rec.timeStamp < nextTime))
+            {
+                nextCursor = cursor;
+                nextTime = rec.timeStamp;
+            }
+        }
+        
+        if (nextCursor == null)
+            return null;
+        
+        // we stop if record is passed the given stop date
+        if (nextTime > stopTime)
+        {
+            streamEnded = true;
+            unsubscribeAll();
+            return null;
+        }
+        
+        LiveRecordBroadcaster.EncodedRecord rec = nextCursor.next();
+        skippedRecords += nextCursor.clearGap();
+        return rec;
+    }
+    
+    
+    /**
+     * @return number of records skipped in push mode because they were
+     * overwritten in the broadcasters before being read
+     */
+    public synchronized long getSkippedRecordCount()
+    {
+        return skippedRecords;
+    }
+    
+    
+    /**
+     * @return number of live events dropped because the buffer used while
+     * historical data is sent was full
+     */
+    public int getDroppedEventCount()
+    {
+        return droppedEvents.get();
+    }
+    
+    
+    /**
+     * @return true if no more records will be received in push mode
+     */
+    public synchronized boolean isStreamEnded()
+    {
+        return streamEnded;
+    }
+    
+    
+    /**
+     * Ends the stream if no data has been received during the timeout period
+     * or if the data source has been disabled.<br/>
+     * This must be called periodically when the provider is in push mode.
+     */
+    public void checkTimeOut()
+    {
+        IRecordListener listener;
+        synchronized (this)
+        {
+            if (recordListener == null || streamEnded)
+                return;
+            
+            if (hasMoreData() && System.currentTimeMillis() - lastEventTime <= timeOut)
+                return;
+            
+            streamEnded = true;
+            listener = recordListener;
+        }
+        
+        // listener is always called without holding our lock
+        listener.endOfStream();
+    }
+    
+    
+    @Override
+    public void newRecordsAvailable()
+    {
+        lastEventTime = System.currentTimeMillis();
+        
+        IRecordListener listener = recordListener;
+        if (listener != null)
+            listener.newRecordsAvailable();
+    }
+    
+    
+    private void unsubscribeAll()
+    {
+        for (LiveRecordBroadcaster.Cursor cursor: cursors)
+            registry.unsubscribe(cursor);
+        cursors.clear();
     }
     
     
@@ -288,7 +539,13 @@ public abstract class StreamDataProvider implements ISOSDataProvider, IEventList
                 // this is because events may not be received in chronological order in the 1st place
                 // it's not as simple as using a sorting queue because we never know when is the next event!
                 // we could use the average sampling period to decide how much to wait to confirm the order
-                eventQueue.offer((DataEvent)e);
+                if (!eventQueue.offer((DataEvent)e) && bufferHistory)
+                {
+                    // records are lost so the stream is not continuous anymore
+                    if (droppedEvents.getAndIncrement() == 0)
+                        log.error("Buffer of {} live events is full for {}. Live records are dropped and request will fail",
+                                  MAX_BUFFERED_EVENTS, MsgUtils.moduleString(dataSource));
+                }
             }
         }
     }
@@ -301,5 +558,12 @@ public abstract class StreamDataProvider implements ISOSDataProvider, IEventList
             outputInterface.unregisterListener(this);
         
         eventQueue.clear();
+        
+        synchronized (this)
+        {
+            closed = true;
+            streamEnded = true;
+            unsubscribeAll();
+        }
     }
 }
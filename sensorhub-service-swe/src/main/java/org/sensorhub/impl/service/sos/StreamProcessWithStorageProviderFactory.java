@@ -55,7 +55,9 @@ public class StreamProcessWithStorageProviderFactory extends StreamWithStoragePr
             if (!producer.isEnabled())
                 throw new ServiceException("Process " + MsgUtils.moduleString(producer) + " is disabled");
             
-            return new StreamProcessDataProvider(producer, streamProviderConfig, filter);
+            // live provider is created first so it buffers data while history is read
+            StreamDataProvider liveProvider = new StreamProcessDataProvider(producer, streamProviderConfig, filter);
+            return addHistory(liveProvider, filter);
         }
         else
         {            
@@ -117,6 +117,44 @@ public class StreamWithStorageProviderFactory<ProducerType extends IDataProducer
     }
 
 
+    /**
+     * Wraps the live provider so that historical records from storage are
+     * sent first if the request begins at now minus some duration.<br/>
+     * The live provider must have been created before calling this method
+     * so that it buffers records while storage is read.
+     * @param liveProvider provider of live data
+     * @param filter request filter
+     * @return the live provider or a provider sending stored records first
+     * @throws Exception
+     */
+    protected ISOSDataProvider addHistory(StreamDataProvider liveProvider, SOSDataFilter filter) throws Exception
+    {
+        double historyDuration = filter.getHistoryDuration();
+        if (Double.isNaN(historyDuration) || !filter.getTimeRange().isBeginNow())
+            return liveProvider;
+        
+        try
+        {
+            checkEnabled();
+            
+            // read everything stored since now - duration
+            // records also received live are skipped by the provider
+            double now = System.currentTimeMillis() / 1000.;
+            TimeExtent storageTimeRange = new TimeExtent(now - historyDuration, Double.POSITIVE_INFINITY);
+            SOSDataFilter storageFilter = new SOSDataFilter(filter, storageTimeRange);
+            storageFilter.setResolution(Double.NaN); // live records are never aggregated
+            
+            StorageDataProvider storageProvider = new StorageDataProvider(storage, config, storageFilter);
+            return new StorageAndStreamDataProvider(storageProvider, liveProvider);
+        }
+        catch (Exception e)
+        {
+            liveProvider.close();
+            throw e;
+        }
+    }
+
+
     @Override
     public Iterator<AbstractFeature> getFoiIterator(IFoiFilter filter) throws Exception
     {
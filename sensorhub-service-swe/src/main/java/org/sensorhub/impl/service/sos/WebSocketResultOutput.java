@@ -0,0 +1,86 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.service.sos;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+
+/**
+ * <p>
+ * Result stream output sending one websocket message per record.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class WebSocketResultOutput implements IResultStreamOutput, WriteCallback
+{
+    Session session;
+    Callback callback;
+    
+    
+    /**
+     * @param session websocket session to send records to
+     */
+    public WebSocketResultOutput(Session session)
+    {
+        this.session = session;
+    }
+    
+    
+    @Override
+    public void start(Callback callback)
+    {
+        this.callback = callback;
+    }
+    
+    
+    @Override
+    public void write(byte[] data) throws IOException
+    {
+        session.getRemote().sendBytes(ByteBuffer.wrap(data), this);
+    }
+    
+    
+    @Override
+    public void writeSuccess()
+    {
+        callback.writeComplete();
+    }
+
+
+    @Override
+    public void writeFailed(Throwable e)
+    {
+        callback.writeFailed(e);
+    }
+    
+    
+    @Override
+    public void close(String errorMsg)
+    {
+        if (session.isOpen())
+        {
+            if (errorMsg == null)
+                session.close(StatusCode.NORMAL, null);
+            else
+                session.close(StatusCode.SERVER_ERROR, errorMsg);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.service.sos;
+
+import static org.junit.Assert.*;
+import java.util.ArrayList;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import org.junit.Test;
+import org.sensorhub.impl.service.sos.ISOSDataProvider;
+import org.sensorhub.impl.service.sos.ObservationMerger;
+import org.vast.data.QuantityImpl;
+import org.vast.ogc.om.IObservation;
+import org.vast.ogc.om.ObservationImpl;
+import org.vast.util.TimeExtent;
+
+
+public class TestObservationMerger
+{
+
+    /*
+     * Provider generating observations at regular time steps and
+     * reusing the same result component like the real providers
+     */
+    class FakeProvider implements ISOSDataProvider
+    {
+        DataComponent result = new QuantityImpl();
+        double startTime, timeStep;
+        int numObs, count;
+        int failAt = -1;
+        volatile boolean closed;
+
+        FakeProvider(double startTime, double timeStep, int numObs)
+        {
+            this.startTime = startTime;
+            this.timeStep = timeStep;
+            this.numObs = numObs;
+        }
+
+        @Override
+        public IObservation getNextObservation() throws Exception
+        {
+            DataBlock data = getNextResultRecord();
+            if (data == null)
+                return null;
+
+            TimeExtent phenTime = new TimeExtent();
+            phenTime.setBaseTime(data.getDoubleValue());
+            result.setData(data);
+
+            IObservation obs = new ObservationImpl();
+            obs.setPhenomenonTime(phenTime);
+            obs.setResult(result);
+            return obs;
+        }
+
+        @Override
+        public DataBlock getNextResultRecord() throws Exception
+        {
+            if (count == failAt)
+                throw new Exception("Provider error");
+
+            if (count >= numObs)
+                return null;
+
+            DataBlock data = result.createDataBlock();
+            data.setDoubleValue(startTime + timeStep * count++);
+            return data;
+        }
+
+        @Override
+        public DataComponent getResultStructure() throws Exception
+        {
+            return result;
+        }
+
+        @Override
+        public DataEncoding getDefaultResultEncoding() throws Exception
+        {
+            return null;
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+
+
+    protected List<Double> readAll(ObservationMerger merger, int numProviders) throws Exception
+    {
+        List<Double> times = new ArrayList<Double>();
+        IObservation obs;
+        while ((obs = merger.next()) != null)
+        {
+            // check result data matches phenomenon time
+            double time = obs.getPhenomenonTime().getStartTime();
+            assertEquals(time, obs.getResult().getData().getDoubleValue(), 0.0);
+            assertTrue(merger.getLastSourceIndex() >= 0 && merger.getLastSourceIndex() < numProviders);
+            times.add(time);
+        }
+        return times;
+    }
+
+
+    @Test
+    public void testMergeInTimeOrder() throws Exception
+    {
+        List<ISOSDataProvider> providers = new ArrayList<ISOSDataProvider>();
+        providers.add(new FakeProvider(0.0, 1.0, 1000));
+        providers.add(new FakeProvider(0.5, 3.0, 200));
+        providers.add(new FakeProvider(100.0, 0.1, 500));
+        providers.add(new FakeProvider(0.0, 1.0, 0));
+
+        ObservationMerger merger = new ObservationMerger(providers, 16);
+        merger.start();
+        List<Double> times = readAll(merger, providers.size());
+        merger.close();
+
+        assertEquals(1700, times.size());
+        for (int i = 1; i < times.size(); i++)
+            assertTrue("Observations not sorted", times.get(i) >= times.get(i-1));
+
+        Thread.sleep(100);
+        for (ISOSDataProvider provider: providers)
+            assertTrue("Provider not closed", ((FakeProvider)provider).closed);
+    }
+
+
+    @Test(expected = Exception.class)
+    public void testProviderError() throws Exception
+    {
+        List<ISOSDataProvider> providers = new ArrayList<ISOSDataProvider>();
+        providers.add(new FakeProvider(0.0, 1.0, 100));
+        FakeProvider badProvider = new FakeProvider(0.0, 1.0, 100);
+        badProvider.failAt = 50;
+        providers.add(badProvider);
+
+        ObservationMerger merger = new ObservationMerger(providers, 16);
+        try
+        {
+            merger.start();
+            readAll(merger, providers.size());
+        }
+        finally
+        {
+            merger.close();
+        }
+    }
+
+
+    @Test
+    public void testCloseBeforeEnd() throws Exception
+    {
+        List<ISOSDataProvider> providers = new ArrayList<ISOSDataProvider>();
+        providers.add(new FakeProvider(0.0, 1.0, 10000));
+        providers.add(new FakeProvider(0.0, 2.0, 10000));
+
+        ObservationMerger merger = new ObservationMerger(providers, 4);
+        merger.start();
+        for (int i = 0; i < 10; i++)
+            assertNotNull(merger.next());
+        merger.close();
+
+        Thread.sleep(100);
+        for (ISOSDataProvider provider: providers)
+            assertTrue("Provider not closed", ((FakeProvider)provider).closed);
+    }
+}
@@ -0,0 +1,238 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.service.sos;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataRecord;
+import net.opengis.swe.v20.Quantity;
+import org.junit.Test;
+import org.sensorhub.impl.service.sos.ObservationStaxWriter;
+import org.vast.data.CountImpl;
+import org.vast.data.DataRecordImpl;
+import org.vast.data.QuantityImpl;
+import org.vast.data.TextImpl;
+import org.vast.ogc.OGCRegistry;
+import org.vast.ogc.def.DefinitionRef;
+import org.vast.ogc.gml.FeatureRef;
+import org.vast.ogc.om.IObservation;
+import org.vast.ogc.om.OMUtils;
+import org.vast.ogc.om.ObservationImpl;
+import org.vast.ogc.om.ProcedureRef;
+import org.vast.util.TimeExtent;
+import org.vast.xml.DOMHelper;
+import org.vast.xml.IXMLWriterDOM;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+
+public class TestObservationStaxWriter
+{
+    
+    protected IObservation createObservation(DataComponent result, TimeExtent phenTime, TimeExtent resultTime)
+    {
+        IObservation obs = new ObservationImpl();
+        obs.setFeatureOfInterest(new FeatureRef("urn:test:foi:1"));
+        obs.setObservedProperty(new DefinitionRef("http://sensorml.com/ont/swe/property/Temperature"));
+        obs.setProcedure(new ProcedureRef("urn:test:sensor:1"));
+        obs.setPhenomenonTime(phenTime);
+        obs.setResultTime(resultTime);
+        obs.setResult(result);
+        return obs;
+    }
+    
+    
+    protected TimeExtent getTimeInstant(double time)
+    {
+        TimeExtent timeExtent = new TimeExtent();
+        timeExtent.setBaseTime(time);
+        return timeExtent;
+    }
+    
+    
+    protected Element writeWithStax(IObservation obs) throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+        ObservationStaxWriter obsWriter = new ObservationStaxWriter(writer);
+        writer.writeStartDocument();
+        writer.writeStartElement("response");
+        obsWriter.writeNamespaces();
+        obsWriter.write(obs);
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.close();
+        
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(os.toByteArray()));
+        return getChildElements(doc.getDocumentElement()).get(0);
+    }
+    
+    
+    @SuppressWarnings("unchecked")
+    protected Element writeWithDom(IObservation obs) throws Exception
+    {
+        IXMLWriterDOM<IObservation> obsWriter = (IXMLWriterDOM<IObservation>)OGCRegistry.createWriter(OMUtils.OM, OMUtils.OBSERVATION, ObservationStaxWriter.OM_VERSION);
+        return obsWriter.write(new DOMHelper(), obs);
+    }
+    
+    
+    protected List<Element> getChildElements(Element elt)
+    {
+        List<Element> children = new ArrayList<Element>();
+        for (Node node = elt.getFirstChild(); node != null; node = node.getNextSibling())
+        {
+            if (node instanceof Element)
+                children.add((Element)node);
+        }
+        return children;
+    }
+    
+    
+    /*
+     * Gets object element referenced by a property with a local xlink
+     * Returns null if property is not a local reference
+     */
+    protected Element getReferencedElement(Element root, Element prop)
+    {
+        String href = prop.getAttributeNS(ObservationStaxWriter.XLINK_NS_URI, "href");
+        if (!href.startsWith("#") || !getChildElements(prop).isEmpty())
+            return null;
+        
+        String id = href.substring(1);
+        List<Element> stack = new ArrayList<Element>();
+        stack.add(root);
+        while (!stack.isEmpty())
+        {
+            Element next = stack.remove(stack.size()-1);
+            if (id.equals(next.getAttributeNS(ObservationStaxWriter.GML_NS_URI, "id")))
+                return next;
+            stack.addAll(getChildElements(next));
+        }
+        
+        fail("Unresolved reference " + href);
+        return null;
+    }
+    
+    
+    protected Map<String, String> getAttributes(Element elt)
+    {
+        Map<String, String> atts = new TreeMap<String, String>();
+        NamedNodeMap attList = elt.getAttributes();
+        for (int i = 0; i < attList.getLength(); i++)
+        {
+            Attr att = (Attr)attList.item(i);
+            String nsUri = att.getNamespaceURI();
+            
+            // skip namespace declarations and generated IDs
+            if ("http://www.w3.org/2000/xmlns/".equals(nsUri))
+                continue;
+            if (ObservationStaxWriter.GML_NS_URI.equals(nsUri) && "id".equals(att.getLocalName()))
+                continue;
+            
+            atts.put("{" + nsUri + "}" + att.getLocalName(), att.getValue());
+        }
+        return atts;
+    }
+    
+    
+    protected void assertSameXml(String path, Element staxRoot, Element stax, Element domRoot, Element dom)
+    {
+        path += "/" + dom.getLocalName();
+        assertEquals(path, dom.getNamespaceURI(), stax.getNamespaceURI());
+        assertEquals(path, dom.getLocalName(), stax.getLocalName());
+        
+        // inline and referenced objects (e.g. result time) are equivalent
+        Element staxRef = getReferencedElement(staxRoot, stax);
+        Element domRef = getReferencedElement(domRoot, dom);
+        if (staxRef != null || domRef != null)
+        {
+            if (staxRef == null)
+                staxRef = getChildElements(stax).get(0);
+            if (domRef == null)
+                domRef = getChildElements(dom).get(0);
+            assertSameXml(path, staxRoot, staxRef, domRoot, domRef);
+            return;
+        }
+        
+        assertEquals(path, getAttributes(dom), getAttributes(stax));
+        
+        List<Element> staxChildren = getChildElements(stax);
+        List<Element> domChildren = getChildElements(dom);
+        assertEquals(path, domChildren.size(), staxChildren.size());
+        for (int i = 0; i < domChildren.size(); i++)
+            assertSameXml(path, staxRoot, staxChildren.get(i), domRoot, domChildren.get(i));
+        
+        if (domChildren.isEmpty())
+            assertEquals(path, dom.getTextContent().trim(), stax.getTextContent().trim());
+    }
+    
+    
+    protected void checkSameOutput(IObservation obs) throws Exception
+    {
+        Element staxElt = writeWithStax(obs);
+        Element domElt = writeWithDom(obs);
+        assertSameXml("", staxElt, staxElt, domElt, domElt);
+    }
+    
+    
+    @Test
+    public void testScalarResult() throws Exception
+    {
+        Quantity result = new QuantityImpl();
+        result.getUom().setCode("Cel");
+        result.assignNewDataBlock();
+        result.getData().setDoubleValue(21.5);
+        
+        TimeExtent time = getTimeInstant(1449532800.0);
+        checkSameOutput(createObservation(result, time, time));
+    }
+    
+    
+    @Test
+    public void testRecordResult() throws Exception
+    {
+        DataRecord result = new DataRecordImpl();
+        result.setName("weather");
+        QuantityImpl temp = new QuantityImpl();
+        temp.getUom().setCode("Cel");
+        result.addComponent("temp", temp);
+        result.addComponent("count", new CountImpl());
+        result.addComponent("status", new TextImpl());
+        result.assignNewDataBlock();
+        result.getData().setDoubleValue(0, 12.3);
+        result.getData().setIntValue(1, 7);
+        result.getData().setStringValue(2, "OK");
+        
+        // period with a different result time
+        TimeExtent phenTime = new TimeExtent();
+        phenTime.setStartTime(1449532800.0);
+        phenTime.setStopTime(1449536400.0);
+        checkSameOutput(createObservation(result, phenTime, getTimeInstant(1449536410.0)));
+    }
+}
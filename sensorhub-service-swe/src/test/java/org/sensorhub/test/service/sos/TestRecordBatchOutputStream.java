@@ -0,0 +1,157 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.service.sos;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.sensorhub.impl.service.sos.RecordBatchOutputStream;
+
+
+public class TestRecordBatchOutputStream
+{
+    
+    class CountingOutputStream extends ByteArrayOutputStream
+    {
+        int flushCount;
+        
+        @Override
+        public void flush()
+        {
+            flushCount++;
+        }
+    }
+    
+    
+    protected byte[] writeRecord(RecordBatchOutputStream os, int recordNum, int frameSize) throws IOException
+    {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        byte[] frame = new byte[frameSize];
+        Arrays.fill(frame, (byte)recordNum);
+        
+        // header written byte by byte, then frame in one call
+        for (int i = 0; i < 4; i++)
+        {
+            os.write(recordNum + i);
+            expected.write(recordNum + i);
+        }
+        os.write(frame);
+        expected.write(frame);
+        os.flush();
+        
+        return expected.toByteArray();
+    }
+    
+    
+    @Test
+    public void testFlushEachRecord() throws Exception
+    {
+        CountingOutputStream out = new CountingOutputStream();
+        RecordBatchOutputStream os = new RecordBatchOutputStream(out, 0, 0);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        
+        for (int i = 0; i < 10; i++)
+        {
+            expected.write(writeRecord(os, i, 5000));
+            assertEquals(i+1, out.flushCount);
+            assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        }
+    }
+    
+    
+    @Test
+    public void testFlushBySize() throws Exception
+    {
+        CountingOutputStream out = new CountingOutputStream();
+        RecordBatchOutputStream os = new RecordBatchOutputStream(out, 10000, Long.MAX_VALUE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        
+        // mix of small records copied to internal buffer and large ones
+        for (int i = 0; i < 100; i++)
+            expected.write(writeRecord(os, i, (i % 2 == 0) ? 100 : 3000));
+        
+        // data is written after each record but stream is only flushed
+        // when at least 10KB were written since last flush
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertTrue(out.flushCount <= expected.size() / 10000);
+        assertTrue(out.flushCount >= expected.size() / (10000 + 3004));
+        
+        int flushCount = out.flushCount;
+        os.forceFlush();
+        assertEquals(flushCount+1, out.flushCount);
+    }
+    
+    
+    @Test
+    public void testReusedCallerBuffer() throws Exception
+    {
+        CountingOutputStream out = new CountingOutputStream();
+        RecordBatchOutputStream os = new RecordBatchOutputStream(out, 100000, Long.MAX_VALUE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        
+        // same buffer is refilled for each write like BufferedOutputStream does
+        byte[] buf = new byte[2000];
+        for (int i = 0; i < 10; i++)
+        {
+            os.write(i);
+            expected.write(i);
+            Arrays.fill(buf, (byte)i);
+            os.write(buf);
+            expected.write(buf);
+        }
+        
+        os.flush();
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertEquals(0, out.flushCount);
+    }
+    
+    
+    @Test
+    public void testLargeArrayWriteThrough() throws Exception
+    {
+        final List<byte[]> writtenArrays = new ArrayList<byte[]>();
+        CountingOutputStream out = new CountingOutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                writtenArrays.add(b);
+                super.write(b, off, len);
+            }
+        };
+        RecordBatchOutputStream os = new RecordBatchOutputStream(out, 100000, Long.MAX_VALUE);
+        
+        byte[] header = new byte[] {1, 2, 3, 4};
+        byte[] frame = new byte[5000];
+        Arrays.fill(frame, (byte)5);
+        os.write(header);
+        os.write(frame);
+        
+        // header is written first, then frame array itself without waiting for end of record
+        assertEquals(2, writtenArrays.size());
+        assertSame(frame, writtenArrays.get(1));
+        assertEquals(header.length + frame.length, out.size());
+        
+        // small writes are only written at end of record
+        os.write(header);
+        assertEquals(header.length + frame.length, out.size());
+        os.flush();
+        assertEquals(2*header.length + frame.length, out.size());
+        assertEquals(0, out.flushCount);
+    }
+}
@@ -20,12 +20,27 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -92,9 +107,27 @@ public class TestSOSService
     static final String DB_PATH = "db.dat";
     
     
-    Map<Integer, Integer> obsFoiMap = new HashMap<Integer, Integer>();
-    File configFile;
-    
+    Map<Integer, Integer> obsFoiMap = new HashMap<Integer, Integer>();
+    File configFile;
+    
+    
+    /*
+     * Service counting requests that were taken over by an async stream
+     */
+    public static class AsyncCountingSOSService extends SOSService
+    {
+        static AtomicInteger numAsyncStreams = new AtomicInteger();
+        
+        @Override
+        protected boolean startAsyncResultStream(HttpServletRequest req, HttpServletResponse resp)
+        {
+            boolean started = super.startAsyncResultStream(req, resp);
+            if (started && req.isAsyncStarted())
+                numAsyncStreams.incrementAndGet();
+            return started;
+        }
+    }
+    
     
     @Before
     public void setupFramework() throws Exception
@@ -114,10 +147,16 @@ public class TestSOSService
     
     
     protected SOSService deployService(SOSProviderConfig... providerConfigs) throws Exception
+    {
+        return deployService(SOSService.class, providerConfigs);
+    }
+    
+    
+    protected SOSService deployService(Class<? extends SOSService> serviceClass, SOSProviderConfig... providerConfigs) throws Exception
     {   
         // create service config
         SOSServiceConfig serviceCfg = new SOSServiceConfig();
-        serviceCfg.moduleClass = SOSService.class.getCanonicalName();
+        serviceCfg.moduleClass = serviceClass.getName();
         serviceCfg.endPoint = SERVICE_PATH;
         serviceCfg.enabled = true;
         serviceCfg.name = "SOS";
@@ -422,22 +461,288 @@ public class TestSOSService
     }
     
     
+    @Test
+    public void testGetResultSeveralHttpClients() throws Exception
+    {
+        deployService(AsyncCountingSOSService.class, buildSensorProvider1());
+        AsyncCountingSOSService.numAsyncStreams.set(0);
+        
+        // open live streams concurrently, they are served asynchronously
+        int numClients = 20;
+        ExecutorService clients = Executors.newFixedThreadPool(numClients);
+        List<Future<String>> responses = new ArrayList<Future<String>>();
+        
+        try
+        {
+            for (int i = 0; i < numClients; i++)
+            {
+                responses.add(clients.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception
+                    {
+                        InputStream is = new URL(SERVICE_ENDPOINT + 
+                                "?service=SOS&version=2.0&request=GetResult" + 
+                                "&offering=" + URI_OFFERING1 +
+                                "&observedProperty=" + URI_PROP1 + 
+                                "&temporalfilter=time,now/2055-09-05").openStream();
+                        
+                        StringWriter writer = new StringWriter();
+                        IOUtils.copy(is, writer);
+                        return writer.toString();
+                    }
+                }));
+            }
+            
+            // short requests must still be served while streams are open
+            new OWSUtils().getCapabilities(SERVICE_ENDPOINT, "SOS", "2.0");
+            
+            for (Future<String> resp: responses)
+            {
+                String records = resp.get(30, TimeUnit.SECONDS);
+                assertEquals("Wrong number of records returned", NUM_GEN_SAMPLES, records.split("\n").length);
+            }
+            
+            // check no container thread was held by the streams
+            assertEquals("Streams were not served asynchronously", numClients, AsyncCountingSOSService.numAsyncStreams.get());
+        }
+        finally
+        {
+            clients.shutdownNow();
+        }
+    }
+    
+    
+    @Test
+    public void testGetResultHistoryThenLive() throws Exception
+    {
+        deployService(buildSensorProvider1WithStorage());
+        
+        // wait until some data has been produced and archived
+        FakeSensor sensor = (FakeSensor)SensorHub.getInstance().getSensorManager().getLoadedModules().get(0);
+        while (sensor.getAllOutputs().get(NAME_OUTPUT1).getLatestRecordTime() == Long.MIN_VALUE)
+            Thread.sleep(((long)(SAMPLING_PERIOD*500)));
+        Thread.sleep(((long)(SAMPLING_PERIOD*2000)));
+        
+        // request last minute of data and continue with live data
+        InputStream is = new URL(SERVICE_ENDPOINT + 
+                "?service=SOS&version=2.0&request=GetResult" + 
+                "&offering=" + URI_OFFERING1 +
+                "&observedProperty=" + URI_PROP1 + 
+                "&temporalfilter=time,now/2055-09-05" +
+                "&history=60").openStream();
+        
+        StringWriter writer = new StringWriter();
+        IOUtils.copy(is, writer);
+        System.out.println(writer.toString());
+        
+        // check there is no gap and no duplicate
+        String[] records = writer.toString().split("\n");
+        assertEquals("Wrong number of records returned", NUM_GEN_SAMPLES, records.length);
+        assertEquals("Duplicate records returned", NUM_GEN_SAMPLES, new HashSet<String>(Arrays.asList(records)).size());
+    }
+    
+    
+    @Test
+    public void testGetResultHttpReplay() throws Exception
+    {
+        deployService(AsyncCountingSOSService.class, buildSensorProvider1WithStorage());
+        AsyncCountingSOSService.numAsyncStreams.set(0);
+        
+        // wait until data has been produced and archived
+        FakeSensor sensor = (FakeSensor)SensorHub.getInstance().getSensorManager().getLoadedModules().get(0);
+        while (sensor.getAllOutputs().get(NAME_OUTPUT1).isEnabled())
+            Thread.sleep(((long)SAMPLING_PERIOD*500));
+        
+        // get available time range
+        SOSServiceCapabilities caps = (SOSServiceCapabilities)new OWSUtils().getCapabilities(SERVICE_ENDPOINT, "SOS", "2.0");
+        TimeExtent timePeriod = ((SOSOfferingCapabilities)caps.getLayer(URI_OFFERING1)).getPhenomenonTime();
+        timePeriod.setEndNow(false);
+        timePeriod.setStopTime(System.currentTimeMillis() / 1000.0);
+        
+        // replay twice as fast as data was produced
+        long t0 = System.currentTimeMillis();
+        InputStream is = new URL(SERVICE_ENDPOINT + 
+                "?service=SOS&version=2.0&request=GetResult" + 
+                "&offering=" + URI_OFFERING1 +
+                "&observedProperty=" + URI_PROP1 + 
+                "&temporalfilter=time," + timePeriod.getIsoString(0) +
+                "&replayspeed=2").openStream();
+        
+        StringWriter writer = new StringWriter();
+        IOUtils.copy(is, writer);
+        
+        // check replay took about half the time span of the data
+        long replayDuration = System.currentTimeMillis() - t0;
+        long expectedDuration = (long)((NUM_GEN_SAMPLES-1) * SAMPLING_PERIOD * 1000 / 2);
+        assertTrue("Replay was too fast: " + replayDuration + "ms", replayDuration >= expectedDuration);
+        assertEquals("Wrong number of records returned", NUM_GEN_SAMPLES, writer.toString().split("\n").length);
+        assertEquals("Replay was not served asynchronously", 1, AsyncCountingSOSService.numAsyncStreams.get());
+    }
+    
+    
+    protected void connectWebSocket(WebSocketClient client, final List<String> records, final CountDownLatch closed) throws Exception
+    {
+        connectWebSocket(client, "now/2055-09-05", "", records, closed);
+    }
+    
+    
+    protected void connectWebSocket(WebSocketClient client, String timeFilter, String extParams, final List<String> records, final CountDownLatch closed) throws Exception
+    {
+        URI uri = new URI(SERVICE_ENDPOINT.replace("http://", "ws://") + 
+                "?service=SOS&version=2.0&request=GetResult" + 
+                "&offering=" + URI_OFFERING1 +
+                "&observedProperty=" + URI_PROP1 + 
+                "&temporalfilter=time," + timeFilter + extParams);
+        
+        client.connect(new WebSocketAdapter() {
+            @Override
+            public void onWebSocketBinary(byte[] payload, int offset, int len)
+            {
+                String rec = new String(payload, offset, len);
+                System.out.print(rec);
+                records.add(rec);
+            }
+            
+            @Override
+            public void onWebSocketClose(int statusCode, String reason)
+            {
+                closed.countDown();
+            }
+        }, uri).get(5, TimeUnit.SECONDS);
+    }
+    
+    
+    @Test
+    public void testGetResultWebSocket() throws Exception
+    {
+        deployService(buildSensorProvider1());
+        
+        List<String> records = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch closed = new CountDownLatch(1);
+        WebSocketClient client = new WebSocketClient();
+        client.start();
+        
+        try
+        {
+            connectWebSocket(client, records, closed);
+            assertTrue("Live stream was not closed", closed.await(30, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            client.stop();
+        }
+        
+        assertEquals("Wrong number of records returned", NUM_GEN_SAMPLES, records.size());
+    }
+    
+    
+    @Test
+    public void testGetResultWebSocketReplay() throws Exception
+    {
+        deployService(buildSensorProvider1WithStorage());
+        
+        // wait until data has been produced and archived
+        FakeSensor sensor = (FakeSensor)SensorHub.getInstance().getSensorManager().getLoadedModules().get(0);
+        while (sensor.getAllOutputs().get(NAME_OUTPUT1).isEnabled())
+            Thread.sleep(((long)SAMPLING_PERIOD*500));
+        
+        // get available time range
+        SOSServiceCapabilities caps = (SOSServiceCapabilities)new OWSUtils().getCapabilities(SERVICE_ENDPOINT, "SOS", "2.0");
+        TimeExtent timePeriod = ((SOSOfferingCapabilities)caps.getLayer(URI_OFFERING1)).getPhenomenonTime();
+        timePeriod.setEndNow(false);
+        timePeriod.setStopTime(System.currentTimeMillis() / 1000.0);
+        
+        List<String> records = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch closed = new CountDownLatch(1);
+        WebSocketClient client = new WebSocketClient();
+        client.start();
+        
+        try
+        {
+            // replay twice as fast as data was produced
+            long t0 = System.currentTimeMillis();
+            connectWebSocket(client, timePeriod.getIsoString(0), "&replayspeed=2", records, closed);
+            assertTrue("Replay was not closed", closed.await(30, TimeUnit.SECONDS));
+            
+            // check replay took about half the time span of the data
+            long replayDuration = System.currentTimeMillis() - t0;
+            long expectedDuration = (long)((NUM_GEN_SAMPLES-1) * SAMPLING_PERIOD * 1000 / 2);
+            assertTrue("Replay was too fast: " + replayDuration + "ms", replayDuration >= expectedDuration);
+        }
+        finally
+        {
+            client.stop();
+        }
+        
+        assertEquals("Wrong number of records returned", NUM_GEN_SAMPLES, records.size());
+    }
+    
+    
+    @Test
+    public void testGetResultWebSocketSeveralClients() throws Exception
+    {
+        deployService(buildSensorProvider1());
+        
+        // all clients read records encoded once by the same broadcaster
+        int numClients = 5;
+        List<List<String>> records = new ArrayList<List<String>>();
+        CountDownLatch closed = new CountDownLatch(numClients);
+        WebSocketClient client = new WebSocketClient();
+        client.start();
+        
+        try
+        {
+            for (int i = 0; i < numClients; i++)
+            {
+                List<String> clientRecords = Collections.synchronizedList(new ArrayList<String>());
+                records.add(clientRecords);
+                connectWebSocket(client, clientRecords, closed);
+            }
+            
+            assertTrue("Live streams were not closed", closed.await(30, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            client.stop();
+        }
+        
+        assertEquals("Wrong number of records returned", NUM_GEN_SAMPLES, records.get(0).size());
+        for (List<String> clientRecords: records)
+            assertEquals("All clients should receive the same records", records.get(0), clientRecords);
+    }
+    
+    
     @Test(expected = OGCException.class)
     public void testGetResultWrongOffering() throws Exception
     {
         deployService(buildSensorProvider1(), buildSensorProvider2());
         
-        InputStream is = new URL(SERVICE_ENDPOINT + "?service=SOS&version=2.0&request=GetResult&offering=urn:mysos:wrong&observedProperty=urn:blabla:temperature").openStream();
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        IOUtils.copy(is, os);
-        
-        // read back and print
-        ByteArrayInputStream bis = new ByteArrayInputStream(os.toByteArray());
-        IOUtils.copy(bis, System.out);
-        bis.reset();
-        
-        // parse and generate exception
-        OGCExceptionReader.parseException(bis);
+        InputStream is = new URL(SERVICE_ENDPOINT + "?service=SOS&version=2.0&request=GetResult&offering=urn:mysos:wrong&observedProperty=urn:blabla:temperature").openStream();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        IOUtils.copy(is, os);
+        
+        // read back and print
+        ByteArrayInputStream bis = new ByteArrayInputStream(os.toByteArray());
+        IOUtils.copy(bis, System.out);
+        bis.reset();
+        
+        // parse and generate exception
+        OGCExceptionReader.parseException(bis);
+    }
+    
+    
+    @Test(expected = OGCException.class)
+    public void testGetResultWrongResolution() throws Exception
+    {
+        deployService(buildSensorProvider1());
+        
+        InputStream is = new URL(SERVICE_ENDPOINT + "?service=SOS&version=2.0&request=GetResult&offering=" + URI_OFFERING1 + "&observedProperty=" + URI_PROP1 + "&resolution=1min").openStream();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        IOUtils.copy(is, os);
+        
+        // parse and generate exception
+        ByteArrayInputStream bis = new ByteArrayInputStream(os.toByteArray());
+        OGCExceptionReader.parseException(bis);
     }
     
     
@@ -29,4 +29,62 @@ public class BasicStorageConfig extends org.sensorhub.api.persistence.ObsStorage
      * Memory cache size in kilobytes
      */
     public int memoryCacheSize;
+    
+    
+    /**
+     * Set to true to store records of new record types in compressed
+     * column chunks rather than as one database object per record.<br/>
+     * This is recommended for high rate streams with a fixed record structure.
+     */
+    public boolean useChunkedRecordStore = false;
+    
+    
+    /**
+     * Maximum number of records in each chunk
+     */
+    public int maxRecordsPerChunk = 1000;
+    
+    
+    /**
+     * Maximum time period covered by each chunk, in seconds
+     */
+    public double maxChunkDuration = 3600.;
+    
+    
+    /**
+     * Minimum time gap between consecutive records separating two
+     * time clusters, in seconds
+     */
+    public double timeClusterGap = 60.;
+    
+    
+    /**
+     * Number of threads used to read records of several producers ahead
+     * of time when iterating through a multi-producer storage.<br/>
+     * Set to 0 to read all producers sequentially in the calling thread.
+     */
+    public int numPrefetchThreads = 0;
+    
+    
+    /**
+     * Directory where snapshots of the storage are written periodically.<br/>
+     * Only blocks modified since the previous snapshot are included, except
+     * in the first snapshot taken after the storage is started.<br/>
+     * Set to null to disable automatic snapshots.
+     */
+    public String snapshotDir;
+    
+    
+    /**
+     * Period between automatic snapshots, in seconds
+     */
+    public double snapshotPeriod = 3600.;
+    
+    
+    /**
+     * Set to true to keep a log of all changes made to the storage so it
+     * can be synchronized with other storages.<br/>
+     * Changes made before the log is enabled are never synchronized.
+     */
+    public boolean enableChangeLog = false;
 }
@@ -14,13 +14,22 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.persistence.perst;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import net.opengis.gml.v32.AbstractFeature;
 import net.opengis.sensorml.v20.AbstractProcess;
 import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
@@ -30,17 +39,24 @@ import org.garret.perst.Persistent;
 import org.garret.perst.Storage;
 import org.garret.perst.StorageFactory;
 import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.persistence.DataFilter;
 import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
 import org.sensorhub.api.persistence.IBasicStorage;
 import org.sensorhub.api.persistence.IRecordStorageModule;
 import org.sensorhub.api.persistence.IDataFilter;
 import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.IIndexedStorage;
 import org.sensorhub.api.persistence.IRecordStoreInfo;
 import org.sensorhub.api.persistence.IStorageModule;
 import org.sensorhub.api.persistence.StorageEvent;
 import org.sensorhub.api.persistence.StorageException;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
 import org.sensorhub.api.persistence.StorageEvent.Type;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
 import org.sensorhub.impl.module.AbstractModule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
@@ -51,13 +67,21 @@ import org.sensorhub.impl.module.AbstractModule;
  * @author Alex Robin <alex.robin@sensiasoftware.com>
  * @since Nov 15, 2014
  */
-public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> implements IRecordStorageModule<BasicStorageConfig>
+public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> implements IRecordStorageModule<BasicStorageConfig>, IIndexedStorage
 {          
-    //private static final Logger log = LoggerFactory.getLogger(BasicStorageImpl.class);    
+    private static final Logger log = LoggerFactory.getLogger(BasicStorageImpl.class);    
+    protected static final int INDEX_BACKFILL_BATCH_SIZE = 1000;
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String RESTORED_SNAPSHOT_SUFFIX = ".restored";
+    private static final int SYNC_BATCH_SIZE = 100;
     
     protected Storage db;
     protected Persistent dbRoot;
+    protected SnapshotFile snapshotFile;
     protected boolean autoCommit;
+    protected long committedSeq; // sequence number of last committed change log entry
+    protected volatile Thread indexBackfillThread;
+    protected volatile Thread snapshotThread;
     
         
     @Override
@@ -73,10 +97,14 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
             if (!dbFile.tryLock(false))
                 throw new StorageException("Storage file " + config.storagePath + " is already opened by another SensorHub process");
             
+            // keep track of modified blocks for incremental snapshots
+            snapshotFile = new SnapshotFile(dbFile, config.storagePath);
+            
             db = StorageFactory.getInstance().createStorage();    
             db.setProperty("perst.concurrent.iterator", true);
+            db.setProperty("perst.reload.objects.on.rollback", true); // so cached objects are rolled back too
             //db.setProperty("perst.alternative.btree", true);
-            db.open(dbFile, config.memoryCacheSize*1024);
+            db.open(snapshotFile, config.memoryCacheSize*1024);
             dbRoot = (BasicStorageRoot)db.getRoot();
             
             if (dbRoot == null)
@@ -84,11 +112,27 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
                 dbRoot = createRoot(db);    
                 db.setRoot(dbRoot);
             }
+            
+            ((BasicStorageRoot)dbRoot).config = config;
+            committedSeq = getLastLoggedSeq();
+            
+            // records stored with older versions have no location or FOI period index yet
+            // and cluster summaries are rebuilt here if the gap setting has changed
+            boolean modified = ((BasicStorageRoot)dbRoot).addLocationIndexes();
+            modified |= ((BasicStorageRoot)dbRoot).updateClusterSummaries();
+            if (modified)
+                db.commit();
         }
         catch (Exception e)
         {
             throw new StorageException("Error while opening storage " + config.name, e);
         }
+        
+        // resume indexing of existing records if it was interrupted
+        startIndexBackfill();
+        
+        if (config.snapshotDir != null && config.snapshotPeriod > 0)
+            startSnapshots();
     }
     
     
@@ -101,6 +145,14 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     @Override
     public synchronized void stop() throws SensorHubException
     {
+        indexBackfillThread = null;
+        
+        if (snapshotThread != null)
+        {
+            snapshotThread.interrupt();
+            snapshotThread = null;
+        }
+        
         if (db != null) 
         {
             db.close();
@@ -126,17 +178,113 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     }
     
     
+    /**
+     * Writes a snapshot of the storage to the given output stream.<br/>
+     * The first snapshot taken after the storage is started contains the
+     * whole database file, and following ones only contain blocks modified
+     * since the previous snapshot. Records can be written to the storage
+     * while the snapshot is being copied. Only committed changes are included.
+     */
     @Override
-    public synchronized void backup(OutputStream os) throws IOException
+    public void backup(OutputStream os) throws IOException
     {
-        db.backup(os);   
+        SnapshotFile.Snapshot snapshot;
+        synchronized (this)
+        {
+            if (db == null)
+                throw new IOException("Storage " + getLocalID() + " is not started");
+            
+            // we're sure no commit is in progress here
+            snapshot = snapshotFile.beginSnapshot();
+        }
+        
+        snapshotFile.writeSnapshot(snapshot, os);
+    }
+    
+    
+    /**
+     * Writes a snapshot of the storage to a new file in the given directory
+     * @param dir snapshot directory
+     * @return the snapshot file
+     * @throws IOException if snapshot cannot be written
+     * @see #backup(OutputStream)
+     */
+    public File backup(File dir) throws IOException
+    {
+        // write to temp file first so incomplete snapshots are never used
+        String prefix = new File(config.storagePath).getName() + "." + System.currentTimeMillis();
+        File tmpFile = new File(dir, prefix + ".tmp");
+        File file = new File(dir, prefix + SNAPSHOT_SUFFIX);
+        
+        OutputStream os = new FileOutputStream(tmpFile);
+        try
+        {
+            backup(os);
+            os.close();
+        }
+        catch (IOException e)
+        {
+            os.close();
+            tmpFile.delete();
+            throw e;
+        }
+        
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Cannot rename snapshot file to " + file);
+        
+        return file;
     }
 
 
+    /**
+     * Restores the database file from a snapshot.<br/>
+     * A full snapshot must be restored first, followed by all incremental
+     * snapshots taken after it, in order. The storage is stopped while the
+     * snapshot is applied.
+     */
     @Override
-    public void restore(InputStream is) throws IOException
+    public synchronized void restore(InputStream is) throws IOException
     {        
+        boolean started = (db != null);
         
+        try
+        {
+            if (started)
+                stop();
+            
+            // ID of last restored snapshot is kept in a separate file
+            File restoredFile = new File(config.storagePath + RESTORED_SNAPSHOT_SUFFIX);
+            long lastRestoredId = SnapshotFile.NO_PARENT;
+            if (restoredFile.exists())
+            {
+                DataInputStream dis = new DataInputStream(new FileInputStream(restoredFile));
+                try { lastRestoredId = dis.readLong(); }
+                finally { dis.close(); }
+                restoredFile.delete();
+            }
+            
+            long snapshotId;
+            RandomAccessFile raf = new RandomAccessFile(config.storagePath, "rw");
+            try
+            {
+                snapshotId = SnapshotFile.applySnapshot(is, raf, lastRestoredId);
+            }
+            finally
+            {
+                raf.close();
+            }
+            
+            DataOutputStream dos = new DataOutputStream(new FileOutputStream(restoredFile));
+            try { dos.writeLong(snapshotId); }
+            finally { dos.close(); }
+            
+            if (started)
+                start();
+        }
+        catch (SensorHubException e)
+        {
+            throw new IOException("Error while restoring storage " + getLocalID(), e);
+        }
     }
 
 
@@ -158,6 +306,7 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     public synchronized void commit()
     {
         db.commit();
+        committedSeq = getLastLoggedSeq();
     }
 
 
@@ -165,13 +314,380 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     public synchronized void rollback()
     {
         db.rollback();        
+        ((BasicStorageRoot)dbRoot).onRollback();
     }
 
 
+    /**
+     * Sends all changes made to this storage since the last sync to the
+     * given storage, which must be another PERST storage running in the
+     * same JVM.
+     * @see #sync(ISyncTransport)
+     */
     @Override
-    public void sync(IStorageModule<?> storage)
+    public void sync(IStorageModule<?> storage) throws StorageException
+    {
+        if (!(storage instanceof BasicStorageImpl))
+            throw new StorageException("Cannot sync with storage " + storage.getLocalID() + " of type " + storage.getClass().getName());
+        
+        sync(new LocalSyncTransport((BasicStorageImpl)storage));
+    }
+    
+    
+    /**
+     * Sends all changes made to this storage since the last sync using the
+     * given transport.<br/>
+     * Changes are read from the change log in small batches so the storage
+     * is not locked while they are transferred. Records are sent with their
+     * current value, and records removed since they were logged are skipped.<br/>
+     * When auto-commit is disabled, this must be called after changes are
+     * committed since uncommitted changes could still be rolled back.
+     * @param transport transport connected to the receiving storage
+     * @throws StorageException if change log is disabled, changes needed by
+     * the receiving storage have been trimmed or storage has uncommitted changes
+     */
+    public void sync(ISyncTransport transport) throws StorageException
     {
-        // TODO Auto-generated method stub        
+        if (!config.enableChangeLog)
+            throw new StorageException("Change log is not enabled on storage " + getLocalID());
+        
+        String sourceID = getLocalID();
+        long watermark = transport.getWatermark(sourceID);
+        
+        synchronized (this)
+        {
+            ChangeLog changeLog = getChangeLog();
+            if (watermark > changeLog.lastSeq)
+                throw new StorageException("Storage " + sourceID + " is older than its last synchronized state");
+            if (watermark < changeLog.trimmedSeq)
+                throw new StorageException("Changes needed to sync storage " + sourceID + " have been trimmed from change log");
+        }
+        
+        while (true)
+        {
+            List<StorageChange> changes = new ArrayList<StorageChange>(SYNC_BATCH_SIZE);
+            long lastSeq;
+            
+            synchronized (this)
+            {
+                // sequence numbers of rolled back changes are reused and
+                // current record values could include uncommitted changes
+                if (getLastLoggedSeq() > committedSeq)
+                    throw new StorageException("Cannot sync storage " + sourceID + " while it has uncommitted changes");
+                
+                lastSeq = readChanges(watermark, changes, SYNC_BATCH_SIZE);
+            }
+            
+            if (lastSeq <= watermark)
+                break;
+            
+            transport.sendChanges(sourceID, changes, lastSeq);
+            watermark = lastSeq;
+        }
+    }
+    
+    
+    /**
+     * Removes entries up to the given sequence number from the change log.<br/>
+     * This should only be called once all storages synchronized with this one
+     * have received these changes.
+     * @param seq sequence number of last entry to remove
+     * @return number of removed entries
+     */
+    public synchronized int trimChangeLog(long seq)
+    {
+        int count = getChangeLog().trim(seq);
+        if (autoCommit)
+            commit();
+        return count;
+    }
+    
+    
+    /**
+     * @param sourceID local ID of source storage
+     * @return sequence number of the last change received from source storage
+     */
+    public synchronized long getSyncWatermark(String sourceID)
+    {
+        if (((BasicStorageRoot)dbRoot).changeLog == null)
+            return 0L;
+        return getChangeLog().getWatermark(sourceID);
+    }
+    
+    
+    /**
+     * Applies changes received from another storage and updates the
+     * watermark of the source storage in a single transaction
+     * @param sourceID local ID of source storage
+     * @param changes list of changes, in sequence order
+     * @param lastSeq new watermark of source storage
+     * @throws StorageException if changes cannot be applied
+     */
+    public synchronized void applyChanges(String sourceID, List<StorageChange> changes, long lastSeq) throws StorageException
+    {
+        boolean wasAutoCommit = autoCommit;
+        autoCommit = false;
+        
+        try
+        {
+            for (StorageChange change: changes)
+                applyChange(change);
+            
+            getChangeLog().setWatermark(sourceID, lastSeq);
+            commit();
+        }
+        catch (StorageException e)
+        {
+            rollback();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            rollback();
+            throw new StorageException("Error while applying changes from storage " + sourceID, e);
+        }
+        finally
+        {
+            autoCommit = wasAutoCommit;
+        }
+    }
+    
+    
+    /*
+     * Reads changes following the given sequence number from change log
+     * Returns the sequence number of the last entry read
+     */
+    protected long readChanges(long seq, List<StorageChange> changes, int maxCount)
+    {
+        Iterator<ChangeLog.Entry> it = getChangeLog().getEntries(seq);
+        long lastSeq = seq;
+        int count = 0;
+        
+        while (it.hasNext() && count++ < maxCount)
+        {
+            ChangeLog.Entry entry = it.next();
+            lastSeq = entry.seq;
+            
+            StorageChange change = new StorageChange(entry.seq, entry.getType());
+            switch (change.type)
+            {
+                case ADD_RECORD_STORE:
+                    IRecordStoreInfo info = getRecordStores().get(entry.name);
+                    if (info == null)
+                        continue;
+                    change.recordType = entry.name;
+                    change.recordStructure = info.getRecordDescription();
+                    change.recommendedEncoding = info.getRecommendedEncoding();
+                    break;
+                    
+                case STORE_RECORD:
+                case UPDATE_RECORD:
+                    change.key = entry.key;
+                    change.data = getDataBlock(entry.key);
+                    if (change.data == null)
+                        continue;
+                    break;
+                    
+                case REMOVE_RECORD:
+                    change.key = entry.key;
+                    break;
+                    
+                case REMOVE_RECORDS:
+                    change.recordType = entry.name;
+                    change.producerIDs = entry.producerIDs;
+                    change.startTime = entry.startTime;
+                    change.endTime = entry.endTime;
+                    break;
+                    
+                case STORE_DESCRIPTION:
+                case UPDATE_DESCRIPTION:
+                    change.description = (AbstractProcess)entry.value;
+                    break;
+                    
+                case REMOVE_DESCRIPTION:
+                case REMOVE_DESCRIPTION_HISTORY:
+                    change.startTime = entry.startTime;
+                    change.endTime = entry.endTime;
+                    break;
+                    
+                case STORE_FOI:
+                    change.foi = (AbstractFeature)entry.value;
+                    change.producerID = entry.name;
+                    break;
+                    
+                case ADD_DATA_STORE:
+                    change.producerID = entry.name;
+                    break;
+            }
+            
+            changes.add(change);
+        }
+        
+        return lastSeq;
+    }
+    
+    
+    /*
+     * Applies a single change received from another storage
+     */
+    protected void applyChange(final StorageChange change) throws StorageException
+    {
+        switch (change.type)
+        {
+            case ADD_RECORD_STORE:
+                if (!getRecordStores().containsKey(change.recordType))
+                    addRecordStore(change.recordType, change.recordStructure.copy(), change.recommendedEncoding);
+                break;
+                
+            case STORE_RECORD:
+                storeRecord(change.key, change.data);
+                break;
+                
+            case UPDATE_RECORD:
+                updateRecord(change.key, change.data);
+                break;
+                
+            case REMOVE_RECORD:
+                removeRecord(change.key);
+                break;
+                
+            case REMOVE_RECORDS:
+                removeRecords(new DataFilter(change.recordType) {
+                    public double[] getTimeStampRange()
+                    {
+                        if (Double.isNaN(change.startTime))
+                            return null;
+                        return new double[] {change.startTime, change.endTime};
+                    }
+                    
+                    public Collection<String> getProducerIDs()
+                    {
+                        return (change.producerIDs != null) ? Arrays.asList(change.producerIDs) : null;
+                    }
+                });
+                break;
+                
+            case STORE_DESCRIPTION:
+                storeDataSourceDescription(change.description);
+                break;
+                
+            case UPDATE_DESCRIPTION:
+                updateDataSourceDescription(change.description);
+                break;
+                
+            case REMOVE_DESCRIPTION:
+                removeDataSourceDescription(change.startTime);
+                break;
+                
+            case REMOVE_DESCRIPTION_HISTORY:
+                removeDataSourceDescriptionHistory(change.startTime, change.endTime);
+                break;
+                
+            default:
+                throw new StorageException("Change of type " + change.type + " is not supported by storage " + getLocalID());
+        }
+    }
+    
+    
+    protected long getLastLoggedSeq()
+    {
+        ChangeLog changeLog = ((BasicStorageRoot)dbRoot).changeLog;
+        return (changeLog != null) ? changeLog.lastSeq : 0L;
+    }
+    
+    
+    protected ChangeLog getChangeLog()
+    {
+        BasicStorageRoot root = (BasicStorageRoot)dbRoot;
+        if (root.changeLog == null)
+        {
+            root.changeLog = new ChangeLog(db);
+            root.modify();
+        }
+        
+        return root.changeLog;
+    }
+    
+    
+    /*
+     * Appends entry to change log if enabled
+     * This must be called before the change is committed
+     */
+    protected void logChange(ChangeLog.Entry entry)
+    {
+        if (config.enableChangeLog)
+            getChangeLog().add(entry);
+    }
+    
+    
+    protected void logRecordChange(StorageChange.Type type, DataKey key)
+    {
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(type);
+            entry.key = ChangeLog.copyKey(key);
+            getChangeLog().add(entry);
+        }
+    }
+    
+    
+    protected void logRecordStoreChange(String name)
+    {
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(StorageChange.Type.ADD_RECORD_STORE);
+            entry.name = name;
+            getChangeLog().add(entry);
+        }
+    }
+    
+    
+    protected void logDescriptionChange(StorageChange.Type type, AbstractProcess process)
+    {
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(type);
+            entry.value = process;
+            getChangeLog().add(entry);
+        }
+    }
+    
+    
+    /*
+     * Logs records matching filter before they are removed
+     * Removal is logged as a single entry unless it depends on field values
+     */
+    protected void logRemovedRecords(IDataFilter filter)
+    {
+        Collection<FieldFilter> fieldFilters = filter.getFieldFilters();
+        if (fieldFilters == null || fieldFilters.isEmpty())
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(StorageChange.Type.REMOVE_RECORDS);
+            entry.name = filter.getRecordType();
+            
+            double[] timeRange = filter.getTimeStampRange();
+            if (timeRange != null)
+            {
+                entry.startTime = timeRange[0];
+                entry.endTime = timeRange[1];
+            }
+            
+            Collection<String> producerIDs = filter.getProducerIDs();
+            if (producerIDs != null)
+                entry.producerIDs = producerIDs.toArray(new String[producerIDs.size()]);
+            
+            getChangeLog().add(entry);
+        }
+        else
+        {
+            List<DataKey> keys = new ArrayList<DataKey>();
+            Iterator<? extends IDataRecord> it = getRecordIterator(filter);
+            while (it.hasNext())
+                keys.add(it.next().getKey());
+            
+            for (DataKey key: keys)
+                logRecordChange(StorageChange.Type.REMOVE_RECORD, key);
+        }
     }
 
 
@@ -199,7 +715,8 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     @Override
     public synchronized void storeDataSourceDescription(AbstractProcess process)
     {
-        ((BasicStorageRoot)dbRoot).storeDataSourceDescription(process);        
+        ((BasicStorageRoot)dbRoot).storeDataSourceDescription(process);
+        logDescriptionChange(StorageChange.Type.STORE_DESCRIPTION, process);
         if (autoCommit)
             commit();
     }
@@ -209,6 +726,7 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     public synchronized void updateDataSourceDescription(AbstractProcess process)
     {
         ((BasicStorageRoot)dbRoot).updateDataSourceDescription(process);
+        logDescriptionChange(StorageChange.Type.UPDATE_DESCRIPTION, process);
         if (autoCommit)
             commit();
     }
@@ -217,7 +735,15 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     @Override
     public synchronized void removeDataSourceDescription(double time)
     {
-        ((BasicStorageRoot)dbRoot).removeDataSourceDescription(time);        
+        ((BasicStorageRoot)dbRoot).removeDataSourceDescription(time);
+        
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(StorageChange.Type.REMOVE_DESCRIPTION);
+            entry.startTime = time;
+            logChange(entry);
+        }
+        
         if (autoCommit)
             commit();
     }
@@ -226,7 +752,16 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     @Override
     public synchronized void removeDataSourceDescriptionHistory(double startTime, double endTime)
     {
-        ((BasicStorageRoot)dbRoot).removeDataSourceDescriptionHistory(startTime, endTime);        
+        ((BasicStorageRoot)dbRoot).removeDataSourceDescriptionHistory(startTime, endTime);
+        
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(StorageChange.Type.REMOVE_DESCRIPTION_HISTORY);
+            entry.startTime = startTime;
+            entry.endTime = endTime;
+            logChange(entry);
+        }
+        
         if (autoCommit)
             commit();
     }
@@ -236,6 +771,7 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     public synchronized void addRecordStore(String name, DataComponent recordStructure, DataEncoding recommendedEncoding)
     {
         ((BasicStorageRoot)dbRoot).addRecordStore(name, recordStructure, recommendedEncoding);
+        logRecordStoreChange(name);
         if (autoCommit)
             commit();
     }
@@ -300,7 +836,8 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     @Override
     public synchronized void storeRecord(DataKey key, DataBlock data)
     {
-        ((BasicStorageRoot)dbRoot).storeRecord(key, data);        
+        ((BasicStorageRoot)dbRoot).storeRecord(key, data);
+        logRecordChange(StorageChange.Type.STORE_RECORD, key);
         if (autoCommit)
             commit();
         
@@ -312,6 +849,7 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     public synchronized void updateRecord(DataKey key, DataBlock data)
     {
         ((BasicStorageRoot)dbRoot).updateRecord(key, data);
+        logRecordChange(StorageChange.Type.UPDATE_RECORD, key);
         if (autoCommit)
             commit();
         
@@ -323,6 +861,7 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     public synchronized void removeRecord(DataKey key)
     {
         ((BasicStorageRoot)dbRoot).removeRecord(key);
+        logRecordChange(StorageChange.Type.REMOVE_RECORD, key);
         if (autoCommit)
             commit();
         
@@ -333,6 +872,9 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
     @Override
     public synchronized int removeRecords(IDataFilter filter)
     {
+        if (config.enableChangeLog)
+            logRemovedRecords(filter);
+        
         int count = ((BasicStorageRoot)dbRoot).removeRecords(filter);
         if (autoCommit)
             commit();
@@ -340,4 +882,114 @@ public class BasicStorageImpl extends AbstractModule<BasicStorageConfig> impleme
         eventHandler.publishEvent(new StorageEvent(System.currentTimeMillis(), this, filter.getRecordType(), Type.DELETE));
         return count;
     }
+
+
+    @Override
+    public synchronized StorageIndexDescriptor addFieldIndex(String fieldPath, IndexType type)
+    {
+        StorageIndexDescriptor desc = ((BasicStorageRoot)dbRoot).addFieldIndex(fieldPath, type);
+        if (autoCommit)
+            commit();
+        
+        startIndexBackfill();
+        return desc;
+    }
+
+
+    @Override
+    public synchronized void removeFieldIndex(String indexId)
+    {
+        ((BasicStorageRoot)dbRoot).removeFieldIndex(indexId);
+        if (autoCommit)
+            commit();
+    }
+
+
+    @Override
+    public List<StorageIndexDescriptor> getAllFieldIndexes()
+    {
+        return ((BasicStorageRoot)dbRoot).getAllFieldIndexes();
+    }
+    
+    
+    /*
+     * Start background thread writing snapshots to the configured directory
+     */
+    protected synchronized void startSnapshots()
+    {
+        final File dir = new File(config.snapshotDir);
+        final long period = (long)(config.snapshotPeriod * 1000);
+        dir.mkdirs();
+        
+        snapshotThread = new Thread("Snapshot-" + getLocalID()) {
+            public void run()
+            {
+                while (snapshotThread == this)
+                {
+                    try
+                    {
+                        Thread.sleep(period);
+                        if (snapshotThread == this)
+                            backup(dir);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    catch (IOException e)
+                    {
+                        // failed blocks are included in next snapshot
+                        // snapshot is aborted without error when storage is stopped
+                        if (snapshotThread == this)
+                            log.error("Error while writing snapshot of storage " + getLocalID(), e);
+                    }
+                }
+            }
+        };
+        
+        snapshotThread.setDaemon(true);
+        snapshotThread.start();
+    }
+    
+    
+    /*
+     * Start background thread to add records stored before indexes were created.
+     * Records are processed in small batches so the storage is never locked for long.
+     * Indexes are not used for queries until this is complete.
+     */
+    protected synchronized void startIndexBackfill()
+    {
+        // most of the time there is nothing to do
+        if (indexBackfillThread != null || ((BasicStorageRoot)dbRoot).isFieldIndexingComplete())
+            return;
+        
+        indexBackfillThread = new Thread("IndexBackfill-" + getLocalID()) {
+            public void run()
+            {
+                boolean moreRecords = true;
+                while (moreRecords)
+                {
+                    synchronized (BasicStorageImpl.this)
+                    {
+                        // exit if storage was stopped or another thread was started
+                        if (indexBackfillThread != this)
+                            return;
+                        
+                        moreRecords = ((BasicStorageRoot)dbRoot).backfillFieldIndexes(INDEX_BACKFILL_BATCH_SIZE);
+                        if (autoCommit)
+                            commit();
+                        
+                        if (!moreRecords)
+                            indexBackfillThread = null;
+                    }
+                    
+                    // give a chance to other threads to access storage
+                    Thread.yield();
+                }
+            }
+        };
+        
+        indexBackfillThread.setDaemon(true);
+        indexBackfillThread.start();
+    }
 }
@@ -14,6 +14,8 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.persistence.perst;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -34,7 +36,10 @@ import org.sensorhub.api.persistence.DataKey;
 import org.sensorhub.api.persistence.IBasicStorage;
 import org.sensorhub.api.persistence.IDataFilter;
 import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.IIndexedStorage;
 import org.sensorhub.api.persistence.IRecordStoreInfo;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
 
 
 /**
@@ -45,13 +50,17 @@ import org.sensorhub.api.persistence.IRecordStoreInfo;
  * @author Alex Robin <alex.robin@sensiasoftware.com>
  * @since May 8, 2015
  */
-class BasicStorageRoot extends Persistent implements IBasicStorage
+class BasicStorageRoot extends Persistent implements IBasicStorage, IIndexedStorage
 {
     private static Key KEY_SML_START_ALL_TIME = new Key(Double.NEGATIVE_INFINITY);
     private static Key KEY_SML_END_ALL_TIME = new Key(Double.POSITIVE_INFINITY);
     
     Index<AbstractProcess> descriptionTimeIndex;
     Map<String, TimeSeriesImpl> dataStores;
+    Map<String, StorageIndexDescriptor> fieldIndexes; // null if no field index was ever added
+    ChangeLog changeLog; // null until change log is enabled or changes are received
+    transient BasicStorageConfig config;
+    transient MultiEntityStorageRoot parentStore; // set if used as data store of one producer
     
     
     // default constructor needed on Android JVM
@@ -180,12 +189,34 @@ class BasicStorageRoot extends Persistent implements IBasicStorage
     public void addRecordStore(String name, DataComponent recordStructure, DataEncoding recommendedEncoding)
     {
         recordStructure.setName(name);
-        TimeSeriesImpl newTimeSeries = new TimeSeriesImpl(getStorage(), recordStructure, recommendedEncoding);
+        TimeSeriesImpl newTimeSeries = new TimeSeriesImpl(getStorage(), recordStructure, recommendedEncoding, createChunkStore());
+        newTimeSeries.updateClusterSummary(getTimeClusterGap());
+        addFieldIndexes(newTimeSeries);
         dataStores.put(name, newTimeSeries);
         modify();
     }
     
     
+    /*
+     * Create chunk store for new record types if enabled in config
+     */
+    protected ChunkedRecordStore createChunkStore()
+    {
+        if (config == null || !config.useChunkedRecordStore)
+            return null;
+        
+        return new ChunkedRecordStore(getStorage(), config.maxRecordsPerChunk, config.maxChunkDuration);
+    }
+    
+    
+    protected double getTimeClusterGap()
+    {
+        if (config == null)
+            return TimeClusterSummary.DEFAULT_GAP;
+        return config.timeClusterGap;
+    }
+    
+    
     @Override
     public Map<String, ? extends IRecordStoreInfo> getRecordStores()
     {
@@ -219,7 +250,7 @@ class BasicStorageRoot extends Persistent implements IBasicStorage
     @Override
     public Iterator<double[]> getRecordsTimeClusters(String recordType)
     {
-        return getRecordStore(recordType).getRecordsTimeClusters(recordType);
+        return getRecordStore(recordType).getRecordsTimeClusters(getTimeClusterGap());
     }
     
     
@@ -254,7 +285,11 @@ class BasicStorageRoot extends Persistent implements IBasicStorage
     @Override
     public void storeRecord(DataKey key, DataBlock data)
     {
-        getRecordStore(key.recordType).store(key, data);
+        // existing records are kept so storing a record with the same time
+        // stamp again doesn't change record count or time range
+        boolean added = getRecordStore(key.recordType).store(key, data);
+        if (added && parentStore != null)
+            parentStore.onRecordStored(key);
     }
 
 
@@ -262,6 +297,8 @@ class BasicStorageRoot extends Persistent implements IBasicStorage
     public void updateRecord(DataKey key, DataBlock data)
     {
         getRecordStore(key.recordType).update(key, data);
+        if (parentStore != null)
+            parentStore.invalidateRecordStats(key.recordType);
     }
 
 
@@ -269,12 +306,205 @@ class BasicStorageRoot extends Persistent implements IBasicStorage
     public void removeRecord(DataKey key)
     {
         getRecordStore(key.recordType).remove(key);
+        if (parentStore != null)
+            parentStore.invalidateRecordStats(key.recordType);
     }
 
 
     @Override
     public int removeRecords(IDataFilter filter)
     {
-        return getRecordStore(filter.getRecordType()).remove(filter);
+        int numDeleted = getRecordStore(filter.getRecordType()).remove(filter);
+        if (parentStore != null)
+            parentStore.invalidateRecordStats(filter.getRecordType());
+        return numDeleted;
+    }
+    
+    
+    /*
+     * Replace record store by an empty one instead of removing records one by one.
+     * Space used by detached records is only reclaimed when the file is deleted.
+     * Returns the number of records detached
+     */
+    int detachRecords(String recordType)
+    {
+        TimeSeriesImpl oldTimeSeries = getRecordStore(recordType);
+        int numRecords = oldTimeSeries.getNumRecords();
+        if (numRecords == 0)
+            return 0;
+        
+        addRecordStore(recordType, oldTimeSeries.getRecordDescription().copy(), oldTimeSeries.getRecommendedEncoding());
+        if (parentStore != null)
+            parentStore.invalidateRecordStats(recordType);
+        return numRecords;
+    }
+    
+    
+    /*
+     * Get all time series that field indexes apply to
+     */
+    protected Collection<TimeSeriesImpl> getAllRecordStores()
+    {
+        return dataStores.values();
+    }
+    
+    
+    @Override
+    public StorageIndexDescriptor addFieldIndex(String fieldPath, IndexType type)
+    {
+        String indexId = type + ":" + fieldPath;
+        if (fieldIndexes != null && fieldIndexes.containsKey(indexId))
+            return fieldIndexes.get(indexId);
+        
+        // check field in all record stores before adding anything
+        List<TimeSeriesImpl> timeSeriesList = new ArrayList<TimeSeriesImpl>();
+        List<FieldValueReader> readers = new ArrayList<FieldValueReader>();
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+        {
+            FieldValueReader reader = FieldValueReader.create(timeSeries.getRecordDescription(), fieldPath);
+            if (reader == null)
+                continue;
+            
+            if (!FieldIndexImpl.isSupported(type, reader))
+                throw new IllegalArgumentException("Index type " + type + " cannot be used with field " + fieldPath + " of record type " + timeSeries.getName());
+            
+            timeSeriesList.add(timeSeries);
+            readers.add(reader);
+        }
+        
+        if (timeSeriesList.isEmpty())
+            throw new IllegalArgumentException("Field " + fieldPath + " was not found in any record type");
+        
+        StorageIndexDescriptor desc = new StorageIndexDescriptor();
+        desc.id = indexId;
+        desc.type = type;
+        desc.fieldPath = fieldPath;
+        
+        for (int i = 0; i < timeSeriesList.size(); i++)
+            timeSeriesList.get(i).addFieldIndex(desc, readers.get(i));
+        
+        if (fieldIndexes == null)
+            fieldIndexes = new HashMap<String, StorageIndexDescriptor>();
+        fieldIndexes.put(indexId, desc);
+        modify();
+        
+        return desc;
+    }
+
+
+    @Override
+    public void removeFieldIndex(String indexId)
+    {
+        if (fieldIndexes == null || !fieldIndexes.containsKey(indexId))
+            throw new IllegalArgumentException("Field index not found in this storage: " + indexId);
+        
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+            timeSeries.removeFieldIndex(indexId);
+        
+        fieldIndexes.remove(indexId);
+        modify();
+    }
+
+
+    @Override
+    public List<StorageIndexDescriptor> getAllFieldIndexes()
+    {
+        if (fieldIndexes == null)
+            return Collections.emptyList();
+        return new ArrayList<StorageIndexDescriptor>(fieldIndexes.values());
+    }
+    
+    
+    /*
+     * Add existing field indexes to a new time series
+     */
+    protected void addFieldIndexes(TimeSeriesImpl timeSeries)
+    {
+        if (fieldIndexes == null)
+            return;
+        
+        for (StorageIndexDescriptor desc: fieldIndexes.values())
+        {
+            FieldValueReader reader = FieldValueReader.create(timeSeries.getRecordDescription(), desc.fieldPath);
+            if (reader != null && FieldIndexImpl.isSupported(desc.type, reader))
+                timeSeries.addFieldIndex(desc, reader);
+        }
+    }
+    
+    
+    /*
+     * Index existing records in all time series, processing at most maxRecords records
+     * Returns true if more records remain to be indexed
+     */
+    boolean backfillFieldIndexes(int maxRecords)
+    {
+        int count = 0;
+        boolean complete = true;
+        
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+        {
+            if (count < maxRecords)
+                count += timeSeries.backfillFieldIndexes(maxRecords - count);
+            complete &= timeSeries.isFieldIndexingComplete();
+        }
+        
+        return !complete;
+    }
+    
+    
+    boolean isFieldIndexingComplete()
+    {
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+        {
+            if (!timeSeries.isFieldIndexingComplete())
+                return false;
+        }
+        
+        return true;
+    }
+    
+    
+    /*
+     * Add location and FOI period indexes to observation series created before they were available
+     * Returns true if at least one index was added
+     */
+    boolean addLocationIndexes()
+    {
+        boolean added = false;
+        
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+        {
+            if (timeSeries instanceof ObsSeriesImpl)
+            {
+                added |= ((ObsSeriesImpl)timeSeries).addLocationIndex();
+                added |= ((ObsSeriesImpl)timeSeries).foiTimesStore.addPeriodIndex();
+            }
+        }
+        
+        return added;
+    }
+    
+    
+    /*
+     * Create or rebuild time cluster summaries that are missing or out of date
+     * Returns true if at least one summary was modified
+     */
+    boolean updateClusterSummaries()
+    {
+        boolean updated = false;
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+            updated |= timeSeries.updateClusterSummary(getTimeClusterGap());
+        return updated;
+    }
+    
+    
+    /*
+     * Called when changes are rolled back to discard transient state
+     * derived from the rolled back changes
+     */
+    protected void onRollback()
+    {
+        for (TimeSeriesImpl timeSeries: getAllRecordStores())
+            timeSeries.cachedTimeRange = null;
     }
 }
@@ -0,0 +1,124 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * <p>
+ * Iterator reading items from another iterator in batches on a worker pool.<br/>
+ * The next batch is read in the background while the current one is
+ * consumed. Only one batch is read at a time so the wrapped iterator is
+ * never accessed concurrently.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @param <T> Type of iterated items
+ * @since Dec 4, 2015
+ */
+class BatchPrefetchIterator<T> implements Iterator<T>
+{
+    final Iterator<T> it;
+    final ExecutorService pool;
+    final int batchSize;
+    List<T> batch;
+    int batchIndex;
+    Future<List<T>> nextBatch;
+
+
+    BatchPrefetchIterator(Iterator<T> it, ExecutorService pool, int batchSize)
+    {
+        this.it = it;
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<T>(0);
+        this.nextBatch = readBatch();
+    }
+
+
+    private Future<List<T>> readBatch()
+    {
+        return pool.submit(new Callable<List<T>>() {
+            public List<T> call()
+            {
+                List<T> items = new ArrayList<T>(batchSize);
+                while (items.size() < batchSize && it.hasNext())
+                    items.add(it.next());
+                return items;
+            }
+        });
+    }
+
+
+    @Override
+    public boolean hasNext()
+    {
+        if (batchIndex < batch.size())
+            return true;
+
+        if (nextBatch == null)
+            return false;
+
+        // wait for batch being read in background
+        try
+        {
+            batch = nextBatch.get();
+            batchIndex = 0;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading records", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException("Error while reading records", e.getCause());
+        }
+
+        // start reading next batch unless we reached the end
+        if (batch.size() == batchSize)
+            nextBatch = readBatch();
+        else
+            nextBatch = null;
+
+        return !batch.isEmpty();
+    }
+
+
+    @Override
+    public T next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        // release reference to consumed item
+        return batch.set(batchIndex++, null);
+    }
+
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
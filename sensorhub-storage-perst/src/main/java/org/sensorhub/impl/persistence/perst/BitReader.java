@@ -0,0 +1,65 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+
+/**
+ * <p>
+ * Reads bits from a portion of a byte array written by {@link BitWriter}
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+class BitReader
+{
+    final byte[] buf;
+    final int offset;
+    int bitPos;
+
+
+    BitReader(byte[] buf, int offset)
+    {
+        this.buf = buf;
+        this.offset = offset;
+    }
+
+
+    final boolean readBit()
+    {
+        boolean bit = (buf[offset + (bitPos >>> 3)] & (0x80 >>> (bitPos & 7))) != 0;
+        bitPos++;
+        return bit;
+    }
+
+
+    final long readBits(int numBits)
+    {
+        long value = 0;
+
+        while (numBits > 0)
+        {
+            int bytePos = offset + (bitPos >>> 3);
+            int availBits = 8 - (bitPos & 7);
+            int n = Math.min(availBits, numBits);
+            int bits = ((buf[bytePos] & 0xFF) >>> (availBits - n)) & ((1 << n) - 1);
+            value = (value << n) | bits;
+            bitPos += n;
+            numBits -= n;
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,88 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.Arrays;
+
+
+/**
+ * <p>
+ * Growable bit stream used to encode record chunk columns.<br/>
+ * Bits are written MSB first.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+class BitWriter
+{
+    byte[] buf;
+    int bitPos;
+
+
+    BitWriter()
+    {
+        buf = new byte[64];
+    }
+
+
+    final void writeBit(boolean bit)
+    {
+        ensureCapacity(bitPos + 1);
+        if (bit)
+            buf[bitPos >>> 3] |= 0x80 >>> (bitPos & 7);
+        bitPos++;
+    }
+
+
+    /*
+     * Write the numBits lowest bits of value
+     */
+    final void writeBits(long value, int numBits)
+    {
+        ensureCapacity(bitPos + numBits);
+
+        while (numBits > 0)
+        {
+            int bytePos = bitPos >>> 3;
+            int freeBits = 8 - (bitPos & 7);
+            int n = Math.min(freeBits, numBits);
+            int bits = (int)(value >>> (numBits - n)) & ((1 << n) - 1);
+            buf[bytePos] |= bits << (freeBits - n);
+            bitPos += n;
+            numBits -= n;
+        }
+    }
+
+
+    final int getByteLength()
+    {
+        return (bitPos + 7) >>> 3;
+    }
+
+
+    final void copyTo(byte[] dest, int offset)
+    {
+        System.arraycopy(buf, 0, dest, offset, getByteLength());
+    }
+
+
+    private void ensureCapacity(int numBits)
+    {
+        int numBytes = (numBits + 7) >>> 3;
+        if (numBytes > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(numBytes, buf.length * 2));
+    }
+}
@@ -0,0 +1,164 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.garret.perst.Index;
+import org.garret.perst.Key;
+import org.garret.perst.Persistent;
+import org.garret.perst.Storage;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.ObsKey;
+
+
+/**
+ * <p>
+ * PERST append-only log of changes made to a storage, used to synchronize
+ * it with other storages.<br/>
+ * Entries are indexed by a monotonic sequence number. Record entries only
+ * contain the record key and data is read from the storage when changes
+ * are sent, so the log stays small even for high rate streams.<br/>
+ * The log also keeps the sequence number of the last change received from
+ * each storage synchronized to this one.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+class ChangeLog extends Persistent
+{
+    Index<Entry> entries;
+    long lastSeq;
+    long trimmedSeq;
+    Map<String, Long> watermarks;
+    
+    
+    static class Entry extends Persistent
+    {
+        long seq;
+        int type;
+        DataKey key;
+        String name; // record type or producer ID
+        String[] producerIDs;
+        double startTime = Double.NaN;
+        double endTime = Double.NaN;
+        Object value; // description or FOI
+        
+        // default constructor needed by PERST on Android JVM
+        Entry() {}
+        
+        Entry(StorageChange.Type type)
+        {
+            this.type = type.ordinal();
+        }
+        
+        StorageChange.Type getType()
+        {
+            return StorageChange.Type.values()[type];
+        }
+    }
+    
+    
+    // default constructor needed by PERST on Android JVM
+    ChangeLog() {}
+    
+    
+    ChangeLog(Storage db)
+    {
+        super(db);
+        entries = db.<Entry>createIndex(long.class, true);
+        watermarks = new HashMap<String, Long>();
+    }
+    
+    
+    /*
+     * Assigns the next sequence number to entry and appends it to the log
+     */
+    long add(Entry entry)
+    {
+        entry.seq = ++lastSeq;
+        entries.put(new Key(entry.seq), entry);
+        modify();
+        return entry.seq;
+    }
+    
+    
+    /*
+     * Iterates through entries with sequence number strictly greater than seq
+     */
+    Iterator<Entry> getEntries(long seq)
+    {
+        return entries.iterator(new Key(seq, false), null, Index.ASCENT_ORDER);
+    }
+    
+    
+    /*
+     * Removes all entries up to and including the given sequence number
+     */
+    int trim(long seq)
+    {
+        int count = 0;
+        Iterator<Entry> it = entries.iterator(null, new Key(seq, true), Index.ASCENT_ORDER);
+        while (it.hasNext())
+        {
+            Entry entry = it.next();
+            it.remove();
+            entry.deallocate();
+            count++;
+        }
+        
+        if (seq > trimmedSeq)
+        {
+            trimmedSeq = Math.min(seq, lastSeq);
+            modify();
+        }
+        
+        return count;
+    }
+    
+    
+    long getWatermark(String sourceID)
+    {
+        Long seq = watermarks.get(sourceID);
+        return (seq != null) ? seq : 0L;
+    }
+    
+    
+    void setWatermark(String sourceID, long seq)
+    {
+        watermarks.put(sourceID, seq);
+        modify();
+    }
+    
+    
+    /*
+     * Copies key so it is not affected if caller reuses the object
+     */
+    static DataKey copyKey(DataKey key)
+    {
+        if (key instanceof ObsKey)
+        {
+            ObsKey obsKey = (ObsKey)key;
+            ObsKey copy = new ObsKey(key.recordType, key.producerID, obsKey.foiID, key.timeStamp);
+            copy.resultTime = obsKey.resultTime;
+            copy.samplingGeometry = obsKey.samplingGeometry;
+            return copy;
+        }
+        
+        return new DataKey(key.recordType, key.producerID, key.timeStamp);
+    }
+}
@@ -0,0 +1,522 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import net.opengis.swe.v20.DataBlock;
+import org.garret.perst.Index;
+import org.garret.perst.IterableIterator;
+import org.garret.perst.Key;
+import org.garret.perst.Persistent;
+import org.garret.perst.Storage;
+import org.sensorhub.impl.persistence.perst.RecordChunk.Reader;
+
+
+/**
+ * <p>
+ * PERST record store packing records of a time series into compressed
+ * column chunks (see {@link RecordChunk}), indexed by chunk start time.<br/>
+ * This is much more compact than storing each data block as a separate
+ * object and makes scans through long time periods mostly sequential.
+ * Records are expected to be mostly received in time order. Records received
+ * out of order, updates and deletions are supported but require rewriting
+ * the affected chunk.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+class ChunkedRecordStore extends Persistent
+{
+    static Key KEY_CHUNK_START_ALL_TIME = new Key(Double.NEGATIVE_INFINITY);
+    static Key KEY_CHUNK_END_ALL_TIME = new Key(Double.POSITIVE_INFINITY);
+
+    Index<RecordChunk> chunkIndex;
+    int maxRecordsPerChunk;
+    double maxChunkDuration;
+    int numRecords;
+
+
+    /*
+     * Record decoded from a chunk
+     */
+    static class ChunkEntry implements Entry<Object, DataBlock>
+    {
+        final double time;
+        final Reader reader;
+        final int index;
+        DataBlock value;
+
+        ChunkEntry(double time, Reader reader, int index)
+        {
+            this.time = time;
+            this.reader = reader;
+            this.index = index;
+        }
+
+        @Override
+        public Object getKey()
+        {
+            return time;
+        }
+
+        @Override
+        public DataBlock getValue()
+        {
+            // values are only decoded if requested
+            if (value == null)
+                value = reader.getRecord(index);
+            return value;
+        }
+
+        @Override
+        public DataBlock setValue(DataBlock value)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+
+    /*
+     * Iterator through all records in the given time range
+     */
+    class ChunkEntryIterator extends IterableIterator<Entry<Object, DataBlock>>
+    {
+        final double end;
+        final Iterator<RecordChunk> chunkIt;
+        Reader reader;
+        int nextIndex;
+        ChunkEntry nextEntry;
+
+        ChunkEntryIterator(double begin, double end)
+        {
+            this.end = end;
+
+            // start with chunk containing begin time if any
+            Key keyFirst = new Key(begin);
+            RecordChunk firstChunk = findChunk(begin);
+            if (firstChunk != null && firstChunk.getEndTime() >= begin)
+                keyFirst = new Key(firstChunk.startTime);
+
+            this.chunkIt = chunkIndex.iterator(keyFirst, new Key(end), Index.ASCENT_ORDER);
+            if (chunkIt.hasNext())
+            {
+                reader = chunkIt.next().getReader();
+                nextIndex = reader.findIndex(begin);
+                fetchNext();
+            }
+        }
+
+        private void fetchNext()
+        {
+            nextEntry = null;
+
+            while (reader != null)
+            {
+                if (nextIndex < reader.numRecords)
+                {
+                    double time = reader.getTimeStamps()[nextIndex];
+                    if (time <= end)
+                        nextEntry = new ChunkEntry(time, reader, nextIndex++);
+                    return;
+                }
+
+                reader = chunkIt.hasNext() ? chunkIt.next().getReader() : null;
+                nextIndex = 0;
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry<Object, DataBlock> next()
+        {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+
+            ChunkEntry entry = nextEntry;
+            fetchNext();
+            return entry;
+        }
+    }
+
+
+    /*
+     * Iterator through records with the given time stamps
+     * Time stamps must be sorted so each chunk is decoded at most once
+     */
+    class TimeStampEntryIterator extends IterableIterator<Entry<Object, DataBlock>>
+    {
+        final double[] timeStamps;
+        int nextTimeIndex;
+        RecordChunk chunk;
+        Reader reader;
+        ChunkEntry nextEntry;
+
+        TimeStampEntryIterator(double[] timeStamps)
+        {
+            this.timeStamps = timeStamps;
+            fetchNext();
+        }
+
+        private void fetchNext()
+        {
+            nextEntry = null;
+
+            while (nextTimeIndex < timeStamps.length)
+            {
+                double time = timeStamps[nextTimeIndex++];
+
+                // switch chunk only if time stamp is outside of current one
+                if (chunk == null || time < chunk.startTime || time > chunk.getEndTime())
+                {
+                    chunk = findChunk(time);
+                    reader = (chunk != null) ? chunk.getReader() : null;
+                }
+
+                if (reader == null)
+                    continue;
+
+                int index = reader.findIndex(time);
+                if (index < reader.numRecords && reader.getTimeStamps()[index] == time)
+                {
+                    nextEntry = new ChunkEntry(time, reader, index);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry<Object, DataBlock> next()
+        {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+
+            ChunkEntry entry = nextEntry;
+            fetchNext();
+            return entry;
+        }
+    }
+
+
+    // default constructor needed by PERST on Android JVM
+    ChunkedRecordStore() {}
+
+
+    ChunkedRecordStore(Storage db, int maxRecordsPerChunk, double maxChunkDuration)
+    {
+        super(db);
+        this.chunkIndex = db.<RecordChunk>createIndex(double.class, true);
+        this.maxRecordsPerChunk = Math.max(maxRecordsPerChunk, 1);
+        this.maxChunkDuration = maxChunkDuration;
+    }
+
+
+    int getNumRecords()
+    {
+        return numRecords;
+    }
+
+
+    /*
+     * Find last chunk starting before or at the given time
+     */
+    final RecordChunk findChunk(double time)
+    {
+        Iterator<RecordChunk> it = chunkIndex.iterator(KEY_CHUNK_START_ALL_TIME, new Key(time), Index.DESCENT_ORDER);
+        if (it.hasNext())
+            return it.next();
+        return null;
+    }
+
+
+    DataBlock get(double time)
+    {
+        RecordChunk chunk = findChunk(time);
+        if (chunk == null || time > chunk.getEndTime())
+            return null;
+
+        Reader reader = chunk.getReader();
+        int index = reader.findIndex(time);
+        if (index >= reader.numRecords || reader.getTimeStamps()[index] != time)
+            return null;
+
+        return reader.getRecord(index);
+    }
+
+
+    IterableIterator<Entry<Object, DataBlock>> entryIterator(double begin, double end)
+    {
+        return new ChunkEntryIterator(begin, end);
+    }
+
+
+    IterableIterator<Entry<Object, DataBlock>> entryIterator(double[] timeStamps)
+    {
+        return new TimeStampEntryIterator(timeStamps);
+    }
+
+
+    int getNumMatchingRecords(double begin, double end, long maxCount)
+    {
+        int count = 0;
+
+        RecordChunk firstChunk = findChunk(begin);
+        Key keyFirst = (firstChunk != null) ? new Key(firstChunk.startTime) : KEY_CHUNK_START_ALL_TIME;
+        Iterator<RecordChunk> it = chunkIndex.iterator(keyFirst, new Key(end), Index.ASCENT_ORDER);
+
+        while (it.hasNext() && count <= maxCount)
+        {
+            RecordChunk chunk = it.next();
+
+            // no need to decode chunks fully included in time range
+            if (chunk.startTime >= begin && chunk.getEndTime() <= end)
+            {
+                count += chunk.getNumRecords();
+            }
+            else
+            {
+                for (double time: chunk.getReader().getTimeStamps())
+                {
+                    if (time >= begin && time <= end)
+                        count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+
+    double[] getTimeRange()
+    {
+        Iterator<RecordChunk> it = chunkIndex.iterator(KEY_CHUNK_START_ALL_TIME, KEY_CHUNK_END_ALL_TIME, Index.ASCENT_ORDER);
+        if (!it.hasNext())
+            return new double[] { Double.NaN, Double.NaN };
+        RecordChunk first = it.next();
+
+        it = chunkIndex.iterator(KEY_CHUNK_START_ALL_TIME, KEY_CHUNK_END_ALL_TIME, Index.DESCENT_ORDER);
+        RecordChunk last = it.next();
+
+        return new double[] { first.startTime, last.getEndTime() };
+    }
+
+
+    /*
+     * Get time stamp of last record strictly before the given time, or NaN if none
+     */
+    double getPrevTimeStamp(double time)
+    {
+        Iterator<RecordChunk> it = chunkIndex.iterator(KEY_CHUNK_START_ALL_TIME, new Key(time, false), Index.DESCENT_ORDER);
+        while (it.hasNext())
+        {
+            RecordChunk chunk = it.next();
+            if (chunk.getEndTime() < time)
+                return chunk.getEndTime();
+
+            double[] timeStamps = chunk.getReader().getTimeStamps();
+            for (int i = timeStamps.length-1; i >= 0; i--)
+            {
+                if (timeStamps[i] < time)
+                    return timeStamps[i];
+            }
+        }
+
+        return Double.NaN;
+    }
+
+
+    /*
+     * Add record unless a record with the same time stamp already exists
+     */
+    boolean store(double time, DataBlock data)
+    {
+        byte[] recordTypes = ColumnCodec.getColumnTypes(data);
+        RecordChunk chunk = findChunk(time);
+
+        // fast path: record can be appended at the end of a chunk
+        if (chunk != null && chunk.canAppend(time, recordTypes, maxRecordsPerChunk, maxChunkDuration))
+        {
+            chunk.appendRecord(time, data);
+            numRecords++;
+            modify();
+            return true;
+        }
+
+        // record falls within an existing chunk -> rewrite chunk
+        if (chunk != null && time <= chunk.getEndTime())
+        {
+            List<DataBlock> records = new ArrayList<DataBlock>();
+            List<Double> timeStamps = new ArrayList<Double>();
+            readAll(chunk, timeStamps, records);
+
+            int index = chunk.getReader().findIndex(time);
+            if (index < timeStamps.size() && timeStamps.get(index) == time)
+                return false;
+
+            timeStamps.add(index, time);
+            records.add(index, data);
+            replaceChunk(chunk, timeStamps, records);
+        }
+
+        // otherwise start new chunk
+        // records are mostly received in order so previous chunk is complete
+        else
+        {
+            if (chunk != null)
+                chunk.seal();
+            chunkIndex.put(new Key(time), new RecordChunk(getStorage(), time, data, recordTypes));
+        }
+
+        numRecords++;
+        modify();
+        return true;
+    }
+
+
+    /*
+     * Replace record with the given time stamp or add it if none exists
+     */
+    DataBlock update(double time, DataBlock data)
+    {
+        RecordChunk chunk = findChunk(time);
+        if (chunk != null && time <= chunk.getEndTime())
+        {
+            List<DataBlock> records = new ArrayList<DataBlock>();
+            List<Double> timeStamps = new ArrayList<Double>();
+            readAll(chunk, timeStamps, records);
+
+            int index = chunk.getReader().findIndex(time);
+            if (index < timeStamps.size() && timeStamps.get(index) == time)
+            {
+                DataBlock oldData = records.set(index, data);
+                replaceChunk(chunk, timeStamps, records);
+                return oldData;
+            }
+        }
+
+        store(time, data);
+        return null;
+    }
+
+
+    int remove(double begin, double end)
+    {
+        int count = 0;
+
+        // collect chunks first since we modify the index
+        RecordChunk firstChunk = findChunk(begin);
+        Key keyFirst = (firstChunk != null) ? new Key(firstChunk.startTime) : KEY_CHUNK_START_ALL_TIME;
+        List<RecordChunk> chunks = chunkIndex.getList(keyFirst, new Key(end));
+
+        for (RecordChunk chunk: chunks)
+        {
+            if (chunk.getEndTime() < begin)
+                continue;
+
+            // remove whole chunk if fully included in time range
+            if (chunk.startTime >= begin && chunk.getEndTime() <= end)
+            {
+                count += chunk.getNumRecords();
+                chunkIndex.remove(new Key(chunk.startTime), chunk);
+                chunk.deallocate();
+                continue;
+            }
+
+            List<DataBlock> records = new ArrayList<DataBlock>();
+            List<Double> timeStamps = new ArrayList<Double>();
+            readAll(chunk, timeStamps, records);
+
+            int numBefore = timeStamps.size();
+            for (int i = numBefore - 1; i >= 0; i--)
+            {
+                double time = timeStamps.get(i);
+                if (time >= begin && time <= end)
+                {
+                    timeStamps.remove(i);
+                    records.remove(i);
+                }
+            }
+
+            if (timeStamps.size() < numBefore)
+            {
+                count += numBefore - timeStamps.size();
+                replaceChunk(chunk, timeStamps, records);
+            }
+        }
+
+        numRecords -= count;
+        modify();
+        return count;
+    }
+
+
+    private void readAll(RecordChunk chunk, List<Double> timeStamps, List<DataBlock> records)
+    {
+        Reader reader = chunk.getReader();
+        double[] chunkTimes = reader.getTimeStamps();
+        for (int i = 0; i < chunkTimes.length; i++)
+        {
+            timeStamps.add(chunkTimes[i]);
+            records.add(reader.getRecord(i));
+        }
+    }
+
+
+    /*
+     * Replace chunk by one or more chunks containing the given records
+     */
+    private void replaceChunk(RecordChunk oldChunk, List<Double> timeStamps, List<DataBlock> records)
+    {
+        chunkIndex.remove(new Key(oldChunk.startTime), oldChunk);
+        oldChunk.deallocate();
+
+        RecordChunk chunk = null;
+        for (int i = 0; i < timeStamps.size(); i++)
+        {
+            double time = timeStamps.get(i);
+            DataBlock rec = records.get(i);
+            byte[] recordTypes = ColumnCodec.getColumnTypes(rec);
+
+            if (chunk != null && chunk.canAppend(time, recordTypes, maxRecordsPerChunk, maxChunkDuration))
+                chunk.appendRecord(time, rec);
+            else
+            {
+                if (chunk != null)
+                    chunk.seal();
+                chunk = new RecordChunk(getStorage(), time, rec, recordTypes);
+                chunkIndex.put(new Key(time), chunk);
+            }
+        }
+        
+        // rewritten chunks are merged right away
+        if (chunk != null)
+            chunk.seal();
+    }
+}
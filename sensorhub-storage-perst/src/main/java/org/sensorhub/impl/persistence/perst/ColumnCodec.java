@@ -0,0 +1,446 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataType;
+
+
+/**
+ * <p>
+ * Stateful encoder/decoder for one column of a record chunk.<br/>
+ * Each value is encoded relative to the previous one in the same column,
+ * so a separate instance must be used for each column and each direction.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+abstract class ColumnCodec
+{
+    static final byte INTEGER_COLUMN = 0;
+    static final byte DOUBLE_COLUMN = 1;
+    static final byte BOOLEAN_COLUMN = 2;
+    static final byte STRING_COLUMN = 3;
+
+
+    /*
+     * Encode value at given index of datablock
+     */
+    abstract void write(BitWriter out, DataBlock data, int index);
+
+
+    /*
+     * Decode next value to given index of datablock
+     * data can be null to skip the value
+     */
+    abstract void read(BitReader in, DataBlock data, int index);
+
+
+    static ColumnCodec create(byte columnType)
+    {
+        switch (columnType)
+        {
+            case INTEGER_COLUMN:
+                return new IntegerCodec();
+
+            case DOUBLE_COLUMN:
+                return new DoubleCodec();
+
+            case BOOLEAN_COLUMN:
+                return new BooleanCodec();
+
+            default:
+                return new StringCodec();
+        }
+    }
+
+
+    static byte[] getColumnTypes(DataBlock data)
+    {
+        int numAtoms = data.getAtomCount();
+        byte[] columnTypes = new byte[numAtoms];
+
+        for (int i = 0; i < numAtoms; i++)
+        {
+            DataType dataType = data.getDataType(i);
+            if (dataType == null)
+            {
+                columnTypes[i] = STRING_COLUMN;
+                continue;
+            }
+
+            switch (dataType)
+            {
+                case FLOAT:
+                case DOUBLE:
+                    columnTypes[i] = DOUBLE_COLUMN;
+                    break;
+
+                case BYTE:
+                case UBYTE:
+                case SHORT:
+                case USHORT:
+                case INT:
+                case UINT:
+                case LONG:
+                case ULONG:
+                    columnTypes[i] = INTEGER_COLUMN;
+                    break;
+
+                case BOOLEAN:
+                    columnTypes[i] = BOOLEAN_COLUMN;
+                    break;
+
+                default:
+                    columnTypes[i] = STRING_COLUMN;
+            }
+        }
+
+        return columnTypes;
+    }
+
+
+    /*
+     * Integers are stored as zigzag encoded deltas using a variable number of bits
+     */
+    static class IntegerCodec extends ColumnCodec
+    {
+        long prevValue;
+
+        void write(BitWriter out, DataBlock data, int index)
+        {
+            long value = data.getLongValue(index);
+            long delta = value - prevValue;
+            long zz = (delta << 1) ^ (delta >> 63);
+            prevValue = value;
+
+            if (zz == 0)
+                out.writeBit(false);
+            else if ((zz >>> 6) == 0)
+                out.writeBits(0x2L << 6 | zz, 8);
+            else if ((zz >>> 13) == 0)
+                out.writeBits(0x6L << 13 | zz, 16);
+            else if ((zz >>> 20) == 0)
+                out.writeBits(0xEL << 20 | zz, 24);
+            else
+            {
+                out.writeBits(0xF, 4);
+                out.writeBits(zz, 64);
+            }
+        }
+
+        void read(BitReader in, DataBlock data, int index)
+        {
+            long zz;
+
+            if (!in.readBit())
+                zz = 0;
+            else if (!in.readBit())
+                zz = in.readBits(6);
+            else if (!in.readBit())
+                zz = in.readBits(13);
+            else if (!in.readBit())
+                zz = in.readBits(20);
+            else
+                zz = in.readBits(64);
+
+            prevValue += (zz >>> 1) ^ -(zz & 1);
+            if (data != null)
+                data.setLongValue(index, prevValue);
+        }
+    }
+
+
+    /*
+     * Floating point values are XOR'ed with the previous value and only the
+     * meaningful bits are stored (Gorilla compression)
+     */
+    static class DoubleCodec extends ColumnCodec
+    {
+        boolean first = true;
+        long prevBits;
+        int prevLeadingZeros = -1;
+        int prevTrailingZeros;
+
+        void write(BitWriter out, DataBlock data, int index)
+        {
+            writeValue(out, data.getDoubleValue(index));
+        }
+
+        void read(BitReader in, DataBlock data, int index)
+        {
+            double val = readValue(in);
+            if (data != null)
+                data.setDoubleValue(index, val);
+        }
+
+        final void writeValue(BitWriter out, double val)
+        {
+            long bits = Double.doubleToRawLongBits(val);
+
+            if (first)
+            {
+                out.writeBits(bits, 64);
+                first = false;
+            }
+            else
+            {
+                long xor = bits ^ prevBits;
+
+                if (xor == 0)
+                    out.writeBit(false);
+                else
+                {
+                    out.writeBit(true);
+                    int leadingZeros = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                    int trailingZeros = Long.numberOfTrailingZeros(xor);
+
+                    // reuse previous window if meaningful bits fit in it
+                    if (prevLeadingZeros >= 0 && leadingZeros >= prevLeadingZeros && trailingZeros >= prevTrailingZeros)
+                    {
+                        out.writeBit(false);
+                        out.writeBits(xor >>> prevTrailingZeros, 64 - prevLeadingZeros - prevTrailingZeros);
+                    }
+                    else
+                    {
+                        int numBits = 64 - leadingZeros - trailingZeros;
+                        out.writeBit(true);
+                        out.writeBits(leadingZeros, 5);
+                        out.writeBits(numBits - 1, 6);
+                        out.writeBits(xor >>> trailingZeros, numBits);
+                        prevLeadingZeros = leadingZeros;
+                        prevTrailingZeros = trailingZeros;
+                    }
+                }
+            }
+
+            prevBits = bits;
+        }
+
+        final double readValue(BitReader in)
+        {
+            if (first)
+            {
+                prevBits = in.readBits(64);
+                first = false;
+            }
+            else if (in.readBit())
+            {
+                if (in.readBit())
+                {
+                    prevLeadingZeros = (int)in.readBits(5);
+                    int numBits = (int)in.readBits(6) + 1;
+                    prevTrailingZeros = 64 - prevLeadingZeros - numBits;
+                }
+
+                int numBits = 64 - prevLeadingZeros - prevTrailingZeros;
+                prevBits ^= in.readBits(numBits) << prevTrailingZeros;
+            }
+
+            return Double.longBitsToDouble(prevBits);
+        }
+    }
+
+
+    static class BooleanCodec extends ColumnCodec
+    {
+        void write(BitWriter out, DataBlock data, int index)
+        {
+            out.writeBit(data.getBooleanValue(index));
+        }
+
+        void read(BitReader in, DataBlock data, int index)
+        {
+            boolean val = in.readBit();
+            if (data != null)
+                data.setBooleanValue(index, val);
+        }
+    }
+
+
+    /*
+     * Strings are replaced by their index in a dictionary built as values are
+     * encoded. Index 0 is reserved for null values.
+     */
+    static class StringCodec extends ColumnCodec
+    {
+        static final Charset UTF8 = Charset.forName("UTF-8");
+        static final int MAX_DICTIONARY_SIZE = 4096;
+
+        List<String> dictionary = new ArrayList<String>();
+        Map<String, Integer> dictionaryIndex = new HashMap<String, Integer>();
+
+        StringCodec()
+        {
+            dictionary.add(null);
+            dictionaryIndex.put(null, 0);
+        }
+
+        void write(BitWriter out, DataBlock data, int index)
+        {
+            String val = data.getStringValue(index);
+            Integer dictIndex = dictionaryIndex.get(val);
+
+            if (dictIndex != null)
+            {
+                out.writeBit(false);
+                out.writeBits(dictIndex, getIndexBits());
+            }
+            else
+            {
+                out.writeBit(true);
+                byte[] utf8 = val.getBytes(UTF8);
+                if (utf8.length < 256)
+                {
+                    out.writeBit(false);
+                    out.writeBits(utf8.length, 8);
+                }
+                else
+                {
+                    out.writeBit(true);
+                    out.writeBits(utf8.length, 32);
+                }
+
+                for (byte b: utf8)
+                    out.writeBits(b, 8);
+
+                if (dictionary.size() < MAX_DICTIONARY_SIZE)
+                {
+                    dictionaryIndex.put(val, dictionary.size());
+                    dictionary.add(val);
+                }
+            }
+        }
+
+        void read(BitReader in, DataBlock data, int index)
+        {
+            String val;
+
+            if (!in.readBit())
+            {
+                val = dictionary.get((int)in.readBits(getIndexBits()));
+            }
+            else
+            {
+                int length = (int)(in.readBit() ? in.readBits(32) : in.readBits(8));
+                byte[] utf8 = new byte[length];
+                for (int i = 0; i < length; i++)
+                    utf8[i] = (byte)in.readBits(8);
+                val = new String(utf8, UTF8);
+
+                if (dictionary.size() < MAX_DICTIONARY_SIZE)
+                    dictionary.add(val);
+            }
+
+            if (data != null)
+                data.setStringValue(index, val);
+        }
+
+        private final int getIndexBits()
+        {
+            return 32 - Integer.numberOfLeadingZeros(dictionary.size() - 1);
+        }
+    }
+
+
+    /*
+     * Time stamps that are exact multiples of 1ms are stored as delta-of-delta
+     * in ms. Other values fall back to XOR compression.
+     */
+    static class TimeStampCodec
+    {
+        DoubleCodec xorCodec = new DoubleCodec();
+        long prevMillis;
+        long prevDelta;
+
+        final void write(BitWriter out, double time)
+        {
+            long millis = Math.round(time * 1000.0);
+            long delta = millis - prevMillis;
+            long dod = delta - prevDelta;
+            long zz = (dod << 1) ^ (dod >> 63);
+            boolean first = xorCodec.first;
+
+            if (first || millis / 1000.0 != time || (zz >>> 32) != 0)
+            {
+                out.writeBits(0x1F, first ? 0 : 5);
+                xorCodec.writeValue(out, time);
+            }
+            else
+            {
+                if (zz == 0)
+                    out.writeBit(false);
+                else if (zz < (1L << 7))
+                    out.writeBits(0x2L << 7 | zz, 9);
+                else if (zz < (1L << 9))
+                    out.writeBits(0x6L << 9 | zz, 12);
+                else if (zz < (1L << 12))
+                    out.writeBits(0xEL << 12 | zz, 16);
+                else
+                    out.writeBits(0x1EL << 32 | zz, 37);
+                xorCodec.prevBits = Double.doubleToRawLongBits(time);
+            }
+
+            prevDelta = first ? 0 : delta;
+            prevMillis = millis;
+        }
+
+        final double read(BitReader in)
+        {
+            double time;
+            long zz = -1;
+
+            if (!xorCodec.first)
+            {
+                if (!in.readBit())
+                    zz = 0;
+                else if (!in.readBit())
+                    zz = in.readBits(7);
+                else if (!in.readBit())
+                    zz = in.readBits(9);
+                else if (!in.readBit())
+                    zz = in.readBits(12);
+                else if (!in.readBit())
+                    zz = in.readBits(32);
+            }
+
+            long millis;
+            if (zz < 0)
+            {
+                boolean first = xorCodec.first;
+                time = xorCodec.readValue(in);
+                millis = Math.round(time * 1000.0);
+                prevDelta = first ? 0 : millis - prevMillis;
+            }
+            else
+            {
+                long dod = (zz >>> 1) ^ -(zz & 1);
+                prevDelta += dod;
+                millis = prevMillis + prevDelta;
+                time = millis / 1000.0;
+                xorCodec.prevBits = Double.doubleToRawLongBits(time);
+            }
+
+            prevMillis = millis;
+            return time;
+        }
+    }
+}
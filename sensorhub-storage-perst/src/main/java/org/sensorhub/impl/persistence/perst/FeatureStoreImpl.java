@@ -17,6 +17,7 @@ package org.sensorhub.impl.persistence.perst;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import net.opengis.gml.v32.AbstractFeature;
 import org.garret.perst.Index;
@@ -27,12 +28,24 @@ import org.garret.perst.Storage;
 import org.sensorhub.api.persistence.IFeatureFilter;
 import org.sensorhub.api.persistence.IFeatureStorage;
 import org.vast.util.Bbox;
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
  * <p>
  * PERST implementation of FoI store with indexes and search methods
+ * </p><p>
+ * In addition to the full feature objects, a lightweight reference containing
+ * only the feature ID and bounding box is stored for each feature, indexed by
+ * ID and in an R-tree. Listing and counting features only reads these
+ * references, and full features are only loaded when returned or when their
+ * exact geometry is needed to check if they intersect the ROI.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -41,7 +54,99 @@ import com.vividsolutions.jts.geom.Envelope;
 class FeatureStoreImpl extends Persistent implements IFeatureStorage
 {
     Index<AbstractFeature> idIndex;
-    SpatialIndexRn<AbstractFeature> geoIndex;
+    SpatialIndexRn<AbstractFeature> geoIndex; // only in stores created with older versions
+    Index<FeatureRef> refIndex; // null in stores created with older versions
+    SpatialIndexRn<FeatureRef> bboxIndex;
+    
+    
+    /*
+     * Feature ID and bounding box
+     */
+    static class FeatureRef extends Persistent
+    {
+        String uid;
+        double[] bbox; // null if feature has no location
+        
+        // default constructor needed by PERST on Android JVM
+        FeatureRef() {}
+        
+        FeatureRef(Storage db, String uid, RectangleRn rect)
+        {
+            super(db);
+            this.uid = uid;
+            
+            if (rect != null)
+            {
+                int numDims = rect.nDimensions();
+                bbox = new double[2*numDims];
+                for (int i = 0; i < numDims; i++)
+                {
+                    bbox[i] = rect.getMinCoord(i);
+                    bbox[i+numDims] = rect.getMaxCoord(i);
+                }
+            }
+        }
+    }
+    
+    
+    /*
+     * Iterator on references of features matching a filter
+     */
+    abstract class FeatureRefIterator<T> implements Iterator<T>
+    {
+        final Iterator<FeatureRef> it;
+        final PreparedGeometry roi;
+        final GeometryFactory geomFactory;
+        FeatureRef nextRef;
+        
+        FeatureRefIterator(Iterator<FeatureRef> it, Polygon roi)
+        {
+            this.it = it;
+            this.roi = (roi != null) ? PreparedGeometryFactory.prepare(roi) : null;
+            this.geomFactory = (roi != null) ? roi.getFactory() : null;
+            fetchNext();
+        }
+        
+        private void fetchNext()
+        {
+            nextRef = null;
+            
+            while (it.hasNext())
+            {
+                FeatureRef ref = it.next();
+                if (ref != null && (roi == null || intersectsRoi(ref, roi, geomFactory)))
+                {
+                    nextRef = ref;
+                    return;
+                }
+            }
+        }
+        
+        protected abstract T get(FeatureRef ref);
+        
+        @Override
+        public boolean hasNext()
+        {
+            return nextRef != null;
+        }
+
+        @Override
+        public T next()
+        {
+            if (nextRef == null)
+                throw new NoSuchElementException();
+            
+            FeatureRef ref = nextRef;
+            fetchNext();
+            return get(ref);
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
     
     
     // default constructor needed on Android JVM
@@ -50,21 +155,62 @@ class FeatureStoreImpl extends Persistent implements IFeatureStorage
     
     FeatureStoreImpl(Storage db)
     {
+        super(db);
         idIndex = db.createIndex(String.class, true);
-        geoIndex = db.createSpatialIndexRn();
+        refIndex = db.createIndex(String.class, true);
+        bboxIndex = db.createSpatialIndexRn();
+    }
+    
+    
+    /*
+     * Build feature references if this store was created before they were available
+     * Returns true if the indexes were added
+     */
+    boolean addRefIndexes()
+    {
+        if (refIndex != null)
+            return false;
+        
+        // this loads all features once
+        Storage db = getStorage();
+        refIndex = db.createIndex(String.class, true);
+        bboxIndex = db.createSpatialIndexRn();
+        for (AbstractFeature foi: idIndex)
+            storeRef(foi);
+        
+        // old R-tree referenced full features and is not needed anymore
+        if (geoIndex != null)
+        {
+            geoIndex.deallocate();
+            geoIndex = null;
+        }
+        
+        modify();
+        return true;
     }
     
     
     public int getNumMatchingFeatures(IFeatureFilter filter)
     {
-        return idIndex.size();
+        if (!hasIdFilter(filter) && filter.getRoi() == null)
+            return refIndex.size();
+        
+        int count = 0;
+        Iterator<String> it = getFeatureRefs(filter);
+        while (it.hasNext())
+        {
+            it.next();
+            count++;
+        }
+        
+        return count;
     }
     
     
     @Override
     public Bbox getFeaturesSpatialExtent()
     {
-        RectangleRn boundingRect = geoIndex.getWrappingRectangle();
+        RectangleRn boundingRect = bboxIndex.getWrappingRectangle();
         if (boundingRect == null)
             return null;
         
@@ -74,93 +220,146 @@ class FeatureStoreImpl extends Persistent implements IFeatureStorage
     
     public Iterator<String> getFeatureIDs(IFeatureFilter filter)
     {
-        // TODO optimize implementation to avoid loading whole feature objects
+        return getFeatureRefs(filter);
+    }
+    
+    
+    public Iterator<AbstractFeature> getFeatures(IFeatureFilter filter)
+    {
+        // no need to check references if there is no filter
+        if (!hasIdFilter(filter) && filter.getRoi() == null)
+            return idIndex.iterator();
         
-        final Iterator<AbstractFeature> it = getFeatures(filter);
+        final Iterator<String> it = getFeatureRefs(filter);
         
-        return new Iterator<String>()
+        return new Iterator<AbstractFeature>()
         {
             public boolean hasNext()
             {
                 return it.hasNext();
             }
 
-            public String next()
+            public AbstractFeature next()
             {
-                return (String)it.next().getUniqueIdentifier();
+                return idIndex.get(it.next());
             }
 
             public void remove()
-            {   
-            }            
+            {
+                throw new UnsupportedOperationException();
+            }
         };
     }
     
     
-    public Iterator<AbstractFeature> getFeatures(IFeatureFilter filter)
-    {        
-        // case of requesting by IDs
+    private boolean hasIdFilter(IFeatureFilter filter)
+    {
         Collection<String> foiIDs = filter.getFeatureIDs();
-        if (foiIDs != null && !foiIDs.isEmpty())
+        return (foiIDs != null && !foiIDs.isEmpty());
+    }
+    
+    
+    /*
+     * Get IDs of features matching both ID list and ROI if specified
+     */
+    protected FeatureRefIterator<String> getFeatureRefs(IFeatureFilter filter)
+    {
+        Iterator<FeatureRef> it;
+        
+        // case of requesting by IDs
+        if (hasIdFilter(filter))
         {
             final Set<String> ids = new LinkedHashSet<String>();
             ids.addAll(filter.getFeatureIDs());
-            final Iterator<String> it = ids.iterator();
+            final Iterator<String> idIt = ids.iterator();
             
-            Iterator<AbstractFeature> it2 = new Iterator<AbstractFeature>()
+            // ROI is checked by wrapping iterator
+            it = new Iterator<FeatureRef>()
             {
-                AbstractFeature nextFeature;
-                
                 public boolean hasNext()
                 {
-                    return (nextFeature != null);
+                    return idIt.hasNext();
                 }
 
-                public AbstractFeature next()
+                public FeatureRef next()
                 {
-                    AbstractFeature currentFeature = nextFeature;
-                    nextFeature = null;
-                    
-                    while (nextFeature == null && it.hasNext())
-                        nextFeature = idIndex.get(it.next());
-                                        
-                    return currentFeature;
+                    // return null for unknown IDs, they're skipped by wrapping iterator
+                    return refIndex.get(idIt.next());
                 }
 
                 public void remove()
-                {                    
+                {
                 }
             };
-            
-            it2.next();
-            return it2;
         }
-            
+        
         // case of ROI
-        if (filter.getRoi() != null)
+        else if (filter.getRoi() != null)
         {
             // iterate through spatial index using bounding rectangle
-            // TODO filter on exact polygon geometry using JTS
             Envelope env = filter.getRoi().getEnvelopeInternal();
             double[] coords = new double[] {env.getMinX(), env.getMinY(), Double.NEGATIVE_INFINITY, env.getMaxX(), env.getMaxY(), Double.POSITIVE_INFINITY};
-            return geoIndex.iterator(new RectangleRn(coords));
+            it = bboxIndex.iterator(new RectangleRn(coords));
         }
         
-        // TODO handle ROI + IDs?        
+        else
+            it = refIndex.iterator();
+        
+        return new FeatureRefIterator<String>(it, filter.getRoi())
+        {
+            protected String get(FeatureRef ref)
+            {
+                return ref.uid;
+            }
+        };
+    }
+    
+    
+    /*
+     * Check if feature intersects ROI, only loading full feature if the
+     * bounding box partially overlaps the ROI and is not a point
+     */
+    protected boolean intersectsRoi(FeatureRef ref, PreparedGeometry roi, GeometryFactory geomFactory)
+    {
+        if (ref.bbox == null)
+            return false;
+        
+        int numDims = ref.bbox.length / 2;
+        Envelope env = new Envelope(ref.bbox[0], ref.bbox[numDims], ref.bbox[1], ref.bbox[numDims+1]);
+        if (env.getWidth() == 0 && env.getHeight() == 0)
+            return roi.intersects(geomFactory.createPoint(new Coordinate(env.getMinX(), env.getMinY())));
+        
+        Geometry bboxGeom = geomFactory.toGeometry(env);
+        if (!roi.intersects(bboxGeom))
+            return false;
+        if (roi.covers(bboxGeom))
+            return true;
         
-        return idIndex.iterator();
+        // use exact geometry
+        AbstractFeature foi = idIndex.get(ref.uid);
+        Geometry geom = (foi != null && foi.getLocation() != null) ? PerstUtils.toJtsGeometry(foi.getLocation(), geomFactory) : null;
+        return (geom == null || roi.intersects(geom));
     }
     
     
     void store(AbstractFeature foi)
     {
         boolean newFoi = idIndex.put(foi.getUniqueIdentifier(), foi);
+        if (newFoi)
+            storeRef(foi);
+    }
+    
+    
+    private void storeRef(AbstractFeature foi)
+    {
+        RectangleRn rect = null;
+        if (foi.getLocation() != null)
+            rect = PerstUtils.getBoundingRectangle(foi.getLocation());
         
-        if (newFoi && foi.getLocation() != null)
-        {
-            RectangleRn rect = PerstUtils.getBoundingRectangle(foi.getLocation());
-            geoIndex.put(rect, foi);
-        }
+        FeatureRef ref = new FeatureRef(getStorage(), foi.getUniqueIdentifier(), rect);
+        refIndex.put(ref.uid, ref);
+        if (rect != null)
+            bboxIndex.put(rect, ref);
     }
 
 }
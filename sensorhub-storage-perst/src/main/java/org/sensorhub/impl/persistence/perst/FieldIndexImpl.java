@@ -0,0 +1,349 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import org.garret.perst.Index;
+import org.garret.perst.Key;
+import org.garret.perst.Persistent;
+import org.garret.perst.RectangleRn;
+import org.garret.perst.SpatialIndexRn;
+import org.garret.perst.Storage;
+import org.sensorhub.api.persistence.FieldFilter;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
+
+
+/**
+ * <p>
+ * PERST secondary index on one field of a time series.<br/>
+ * B-tree indexes are keyed by (value, time stamp) so they can only be used
+ * with scalar fields. Spatial indexes store one point per record with the
+ * field values as first coordinates and the time stamp as last coordinate.
+ * In both cases, all the information is contained in the keys. B-tree values
+ * are just references to the index itself.
+ * </p><p>
+ * Records already in the time series when the index is created are indexed
+ * progressively in increasing time order. Until this is complete, the index
+ * only contains records up to {@link #backfillTime}.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 30, 2015
+ */
+class FieldIndexImpl extends Persistent
+{
+    String id;
+    IndexType type;
+    String fieldPath;
+    Index<FieldIndexImpl> valueIndex;
+    SpatialIndexRn<SpatialEntry> spatialIndex;
+    double backfillTime = Double.NEGATIVE_INFINITY;
+    boolean complete;
+    transient FieldValueReader reader;
+
+
+    /*
+     * Empty spatial index value
+     * PERST R-tree removes entries by value so each one needs its own object
+     */
+    static class SpatialEntry extends Persistent
+    {
+        // default constructor needed by PERST on Android JVM
+        SpatialEntry() {}
+
+        SpatialEntry(Storage db)
+        {
+            super(db);
+        }
+    }
+
+
+    // default constructor needed by PERST on Android JVM
+    FieldIndexImpl() {}
+
+
+    FieldIndexImpl(Storage db, StorageIndexDescriptor desc, FieldValueReader reader)
+    {
+        super(db);
+        this.id = desc.id;
+        this.type = desc.type;
+        this.fieldPath = desc.fieldPath;
+        this.reader = reader;
+
+        if (type == IndexType.BTREE)
+        {
+            Class<?> valueType = reader.textValue ? String.class : Double.class;
+            valueIndex = db.<FieldIndexImpl>createIndex(new Class[] {valueType, Double.class}, true);
+        }
+        else
+            spatialIndex = db.<SpatialEntry>createSpatialIndexRn();
+    }
+
+
+    /*
+     * Check if field read by the given reader can be indexed with the given index type
+     * B-tree indexes are only for scalars, spatial indexes (R-tree or Quad-tree) for numbers
+     */
+    static boolean isSupported(IndexType type, FieldValueReader reader)
+    {
+        if (type == IndexType.BTREE)
+            return reader.getDimension() == 1;
+        return !reader.textValue;
+    }
+
+
+    StorageIndexDescriptor getDescriptor()
+    {
+        StorageIndexDescriptor desc = new StorageIndexDescriptor();
+        desc.id = id;
+        desc.type = type;
+        desc.fieldPath = fieldPath;
+        return desc;
+    }
+
+
+    final FieldValueReader getReader(DataComponent recordDesc)
+    {
+        if (reader == null)
+            reader = FieldValueReader.create(recordDesc, fieldPath);
+        return reader;
+    }
+
+
+    /*
+     * Check if record with given time stamp is supposed to be in the index
+     */
+    final boolean isIndexed(double time)
+    {
+        return complete || time <= backfillTime;
+    }
+
+
+    /*
+     * Check if index can be used to select records matching the filter
+     */
+    final boolean canResolve(DataComponent recordDesc, FieldFilter filter)
+    {
+        if (!complete || !fieldPath.equals(filter.fieldPath))
+            return false;
+
+        // invalid bbox never matches, which is what the scan does
+        FieldValueReader reader = getReader(recordDesc);
+        if (filter.bbox != null)
+            return !reader.textValue && filter.bbox.length == 2*reader.getDimension();
+        return true;
+    }
+
+
+    void add(DataComponent recordDesc, double time, DataBlock data)
+    {
+        Key key = getKey(recordDesc, time, data);
+        if (key != null)
+            valueIndex.put(key, this);
+
+        RectangleRn rect = getPoint(recordDesc, time, data);
+        if (rect != null)
+            spatialIndex.put(rect, new SpatialEntry(getStorage()));
+    }
+
+
+    void remove(DataComponent recordDesc, double time, DataBlock data)
+    {
+        Key key = getKey(recordDesc, time, data);
+        if (key != null)
+            valueIndex.remove(key, this);
+
+        RectangleRn rect = getPoint(recordDesc, time, data);
+        if (rect != null)
+        {
+            // since time is one of the coordinates, this point is unique
+            Iterator<SpatialEntry> it = spatialIndex.iterator(rect);
+            if (it.hasNext())
+            {
+                SpatialEntry entry = it.next();
+                spatialIndex.remove(rect, entry);
+                entry.deallocate();
+            }
+        }
+    }
+
+
+    /*
+     * Get B-tree key for a given record
+     * Returns null if not a B-tree index or if value is not set
+     */
+    private Key getKey(DataComponent recordDesc, double time, DataBlock data)
+    {
+        if (valueIndex == null)
+            return null;
+
+        FieldValueReader reader = getReader(recordDesc);
+        Object val;
+        if (reader.textValue)
+            val = reader.getStringValue(data);
+        else
+        {
+            double dVal = reader.getDoubleValue(data, 0);
+            val = Double.isNaN(dVal) ? null : dVal;
+        }
+
+        if (val == null)
+            return null;
+        return new Key(new Object[] {val, time});
+    }
+
+
+    /*
+     * Get spatial index point for a given record
+     * Returns null if not a spatial index or if some values are not set
+     */
+    private RectangleRn getPoint(DataComponent recordDesc, double time, DataBlock data)
+    {
+        if (spatialIndex == null)
+            return null;
+
+        FieldValueReader reader = getReader(recordDesc);
+        int numDims = reader.getDimension();
+        double[] coords = new double[2*(numDims+1)];
+        for (int i = 0; i < numDims; i++)
+        {
+            double val = reader.getDoubleValue(data, i);
+            if (Double.isNaN(val))
+                return null;
+            coords[i] = coords[i+numDims+1] = val;
+        }
+
+        coords[numDims] = coords[2*numDims+1] = time;
+        return new RectangleRn(coords);
+    }
+
+
+    /*
+     * Get sorted time stamps of all records within the given time range
+     * that match the filter
+     */
+    double[] getMatchingTimeStamps(DataComponent recordDesc, FieldFilter filter, double begin, double end)
+    {
+        FieldValueReader reader = getReader(recordDesc);
+        double[] timeStamps = new double[64];
+        int numTimeStamps = 0;
+        boolean sorted = false;
+
+        if (valueIndex != null)
+        {
+            Object min, max;
+            if (filter.bbox != null)
+            {
+                min = filter.bbox[0];
+                max = filter.bbox[filter.bbox.length/2];
+            }
+            else
+            {
+                min = toKeyValue(reader, filter.minValue);
+                max = toKeyValue(reader, filter.maxValue);
+            }
+
+            // if selecting a single value, records are already sorted by time
+            Key keyFirst, keyLast;
+            if (min != null && min.equals(max))
+            {
+                keyFirst = new Key(new Object[] {min, begin});
+                keyLast = new Key(new Object[] {max, end});
+                sorted = true;
+            }
+            else
+            {
+                keyFirst = (min != null) ? new Key(new Object[] {min}) : null;
+                keyLast = (max != null) ? new Key(new Object[] {max}) : null;
+            }
+
+            Iterator<Entry<Object, FieldIndexImpl>> it = valueIndex.entryIterator(keyFirst, keyLast, Index.ASCENT_ORDER);
+            while (it.hasNext())
+            {
+                double time = (Double)((Object[])it.next().getKey())[1];
+                if (time < begin || time > end)
+                    continue;
+
+                if (numTimeStamps == timeStamps.length)
+                    timeStamps = Arrays.copyOf(timeStamps, numTimeStamps*2);
+                timeStamps[numTimeStamps++] = time;
+            }
+        }
+
+        else
+        {
+            int numDims = reader.getDimension();
+            double[] coords = new double[2*(numDims+1)];
+            for (int i = 0; i < numDims; i++)
+            {
+                if (filter.bbox != null)
+                {
+                    coords[i] = filter.bbox[i];
+                    coords[i+numDims+1] = filter.bbox[i+numDims];
+                }
+                else
+                {
+                    coords[i] = (filter.minValue != null) ? FieldValueReader.toDouble(filter.minValue) : Double.NEGATIVE_INFINITY;
+                    coords[i+numDims+1] = (filter.maxValue != null) ? FieldValueReader.toDouble(filter.maxValue) : Double.POSITIVE_INFINITY;
+                }
+            }
+
+            coords[numDims] = begin;
+            coords[2*numDims+1] = end;
+
+            Iterator<Entry<RectangleRn, SpatialEntry>> it = spatialIndex.entryIterator(new RectangleRn(coords));
+            while (it.hasNext())
+            {
+                if (numTimeStamps == timeStamps.length)
+                    timeStamps = Arrays.copyOf(timeStamps, numTimeStamps*2);
+                timeStamps[numTimeStamps++] = it.next().getKey().getMinCoord(numDims);
+            }
+        }
+
+        if (!sorted)
+            Arrays.sort(timeStamps, 0, numTimeStamps);
+
+        return Arrays.copyOf(timeStamps, numTimeStamps);
+    }
+
+
+    private Object toKeyValue(FieldValueReader reader, Object filterValue)
+    {
+        if (filterValue == null)
+            return null;
+        if (reader.textValue)
+            return filterValue.toString();
+        return FieldValueReader.toDouble(filterValue);
+    }
+
+
+    @Override
+    public void deallocate()
+    {
+        if (valueIndex != null)
+            valueIndex.deallocate();
+        if (spatialIndex != null)
+        {
+            spatialIndex.deallocateMembers();
+            spatialIndex.deallocate();
+        }
+        super.deallocate();
+    }
+}
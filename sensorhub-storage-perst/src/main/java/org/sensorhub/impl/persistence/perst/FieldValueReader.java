@@ -0,0 +1,170 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.ArrayList;
+import java.util.List;
+import net.opengis.swe.v20.Category;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.ScalarComponent;
+import net.opengis.swe.v20.Text;
+import org.sensorhub.api.persistence.FieldFilter;
+import org.vast.swe.SWEHelper;
+import org.vast.swe.ScalarIndexer;
+
+
+/**
+ * <p>
+ * Helper to extract values of a given field from data blocks and check them
+ * against field filters. The field can be a scalar or a record/vector whose
+ * children are all scalars, in which case it is treated as a point in as
+ * many dimensions.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 30, 2015
+ */
+class FieldValueReader
+{
+    final ScalarIndexer[] indexers;
+    final boolean textValue;
+
+
+    private FieldValueReader(DataComponent recordDesc, List<ScalarComponent> scalars, boolean textValue)
+    {
+        this.indexers = new ScalarIndexer[scalars.size()];
+        for (int i = 0; i < indexers.length; i++)
+            indexers[i] = new ScalarIndexer(recordDesc, scalars.get(i));
+        this.textValue = textValue;
+    }
+
+
+    /*
+     * Create reader for the field with the given path (empty path is the record itself)
+     * Returns null if the field is not found or is not a scalar or vector
+     */
+    static FieldValueReader create(DataComponent recordDesc, String fieldPath)
+    {
+        DataComponent field;
+        try
+        {
+            if (fieldPath.isEmpty())
+                field = recordDesc;
+            else
+                field = SWEHelper.findComponentByPath(recordDesc, fieldPath);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+
+        if (field == null)
+            return null;
+
+        List<ScalarComponent> scalars = new ArrayList<ScalarComponent>();
+        if (field instanceof ScalarComponent)
+        {
+            scalars.add((ScalarComponent)field);
+            return new FieldValueReader(recordDesc, scalars, field instanceof Text || field instanceof Category);
+        }
+
+        for (int i = 0; i < field.getComponentCount(); i++)
+        {
+            DataComponent child = field.getComponent(i);
+            if (!(child instanceof ScalarComponent) || child instanceof Text || child instanceof Category)
+                return null;
+            scalars.add((ScalarComponent)child);
+        }
+
+        if (scalars.isEmpty())
+            return null;
+
+        return new FieldValueReader(recordDesc, scalars, false);
+    }
+
+
+    final int getDimension()
+    {
+        return indexers.length;
+    }
+
+
+    final double getDoubleValue(DataBlock data, int dim)
+    {
+        return indexers[dim].getDoubleValue(data);
+    }
+
+
+    final String getStringValue(DataBlock data)
+    {
+        return indexers[0].getStringValue(data);
+    }
+
+
+    boolean matches(FieldFilter filter, DataBlock data)
+    {
+        // case of bbox on vector field
+        if (filter.bbox != null)
+        {
+            int numDims = indexers.length;
+            if (textValue || filter.bbox.length != 2*numDims)
+                return false;
+
+            for (int i = 0; i < numDims; i++)
+            {
+                double val = getDoubleValue(data, i);
+                if (Double.isNaN(val) || val < filter.bbox[i] || val > filter.bbox[i+numDims])
+                    return false;
+            }
+
+            return true;
+        }
+
+        // case of value range
+        if (textValue)
+        {
+            String val = getStringValue(data);
+            if (val == null)
+                return false;
+            if (filter.minValue != null && val.compareTo(filter.minValue.toString()) < 0)
+                return false;
+            if (filter.maxValue != null && val.compareTo(filter.maxValue.toString()) > 0)
+                return false;
+        }
+        else
+        {
+            // range applies to all components of vector fields like in R-tree queries
+            double min = (filter.minValue != null) ? toDouble(filter.minValue) : Double.NEGATIVE_INFINITY;
+            double max = (filter.maxValue != null) ? toDouble(filter.maxValue) : Double.POSITIVE_INFINITY;
+            for (int i = 0; i < indexers.length; i++)
+            {
+                double val = getDoubleValue(data, i);
+                if (Double.isNaN(val) || val < min || val > max)
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    static double toDouble(Object value)
+    {
+        if (value instanceof Number)
+            return ((Number)value).doubleValue();
+        return Double.parseDouble(value.toString());
+    }
+}
@@ -16,18 +16,26 @@ package org.sensorhub.impl.persistence.perst;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
 import org.garret.perst.Persistent;
+import org.garret.perst.RectangleRn;
+import org.garret.perst.SpatialIndexRn;
 import org.garret.perst.Storage;
 
 
 /**
  * <p>
  * PERST implementation of FoI observation periods
+ * </p><p>
+ * Periods of all FoIs are also stored in a 1D R-tree so that periods
+ * overlapping a time range can be found without reading the whole FoI
+ * history. The period currently being extended is indexed with an open end
+ * so that the tree is only updated when the FoI changes.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -35,6 +43,9 @@ import org.garret.perst.Storage;
  */
 class FoiTimesStoreImpl extends Persistent
 {
+    private static final double OPEN_END = Double.MAX_VALUE;
+    
+    
     class FeatureEntry
     {
         String uid;
@@ -69,9 +80,34 @@ class FoiTimesStoreImpl extends Persistent
             return (int)Math.signum(p0.start - p1.start);
         }        
     }
+    
+    
+    /*
+     * Period entry stored in R-tree
+     * PERST R-tree removes entries by value so each period needs its own object
+     */
+    static class PeriodEntry extends Persistent
+    {
+        String uid;
+        double start;
+        double stop;
+        
+        // default constructor needed by PERST on Android JVM
+        PeriodEntry() {}
+        
+        PeriodEntry(Storage db, String uid, double start, double stop)
+        {
+            super(db);
+            this.uid = uid;
+            this.start = start;
+            this.stop = stop;
+        }
+    }
         
     
     Map<String, FeatureEntry> idIndex;
+    SpatialIndexRn<PeriodEntry> periodIndex; // null in stores created with older versions
+    PeriodEntry currentPeriod; // period being extended, indexed with open end
     transient String lastFoi;
     
     
@@ -83,13 +119,70 @@ class FoiTimesStoreImpl extends Persistent
     {
         super(db);
         idIndex = db.createMap(String.class);
+        periodIndex = db.<PeriodEntry>createSpatialIndexRn();
+    }
+    
+    
+    /*
+     * Build period index from FoI entries if this store was created before it was available
+     * Returns true if the index was added
+     */
+    boolean addPeriodIndex()
+    {
+        if (periodIndex != null)
+            return false;
+        
+        // older versions sometimes started a new period for the same FoI after a restart
+        // so we merge consecutive periods of the same FoI first
+        List<FoiTimePeriod> allPeriods = getSortedFoiTimes(null, null);
+        Map<String, FeatureEntry> newEntries = new HashMap<String, FeatureEntry>();
+        
+        Storage db = getStorage();
+        periodIndex = db.<PeriodEntry>createSpatialIndexRn();
+        currentPeriod = null;
+        for (FoiTimePeriod foiPeriod: allPeriods)
+        {
+            FeatureEntry entry = newEntries.get(foiPeriod.uid);
+            if (entry == null)
+            {
+                entry = new FeatureEntry(foiPeriod.uid);
+                newEntries.put(foiPeriod.uid, entry);
+            }
+            entry.timePeriods.add(new double[] {foiPeriod.start, foiPeriod.stop});
+            
+            if (currentPeriod != null)
+                periodIndex.put(getRect(currentPeriod.start, currentPeriod.stop), currentPeriod);
+            currentPeriod = new PeriodEntry(db, foiPeriod.uid, foiPeriod.start, foiPeriod.stop);
+        }
+        
+        // latest period is indexed with open end
+        if (currentPeriod != null)
+        {
+            periodIndex.put(getRect(currentPeriod.start, OPEN_END), currentPeriod);
+            lastFoi = currentPeriod.uid;
+        }
+        
+        idIndex.putAll(newEntries);
+        modify();
+        return true;
+    }
+    
+    
+    private RectangleRn getRect(double start, double stop)
+    {
+        return new RectangleRn(new double[] {start, stop});
     }
     
     
-    Set<FoiTimePeriod> getSortedFoiTimes(Collection<String> uids)
+    /*
+     * Get periods of the selected FoIs overlapping the time range, sorted by start time.
+     * Periods are trimmed to the time range and consecutive periods of the same FoI are merged.
+     */
+    List<FoiTimePeriod> getSortedFoiTimes(Collection<String> uids, double[] timeRange)
     {
-        // create set with custom comparator for sorting FoiTimePeriod objects
-        TreeSet<FoiTimePeriod> foiTimes = new TreeSet<FoiTimePeriod>(new FoiTimePeriodComparator());
+        double begin = (timeRange != null) ? timeRange[0] : Double.NEGATIVE_INFINITY;
+        double end = (timeRange != null) ? timeRange[1] : Double.POSITIVE_INFINITY;
+        List<FoiTimePeriod> foiTimes = new ArrayList<FoiTimePeriod>();
         
         // TODO handle case of overlaping FOI periods?
         
@@ -98,43 +191,92 @@ class FoiTimesStoreImpl extends Persistent
             for (String uid: uids)
             {
                 FeatureEntry fEntry = idIndex.get(uid);
-                if (fEntry == null)
-                    continue;
-                
-                // add each period to sorted set
-                for (double[] timePeriod: fEntry.timePeriods)
-                    foiTimes.add(new FoiTimePeriod(uid, timePeriod[0], timePeriod[1]));
+                if (fEntry != null)
+                    addPeriods(fEntry, begin, end, foiTimes);
             }
         }
-        else // no filtering on FOI ID -> select them all
+        else if (periodIndex != null && timeRange != null)
         {
-            for (FeatureEntry fEntry: idIndex.values())
+            // use R-tree to find periods overlapping time range
+            Iterator<PeriodEntry> it = periodIndex.iterator(getRect(begin, end));
+            while (it.hasNext())
             {
-                String uid = fEntry.uid;
-                
-                // add each period to sorted set
-                for (double[] timePeriod: fEntry.timePeriods)
-                    foiTimes.add(new FoiTimePeriod(uid, timePeriod[0], timePeriod[1]));
+                PeriodEntry period = it.next();
+                addPeriod(period.uid, period.start, period.stop, begin, end, foiTimes);
             }
         }
+        else // no filtering on FOI ID -> select them all
+        {
+            for (FeatureEntry fEntry: idIndex.values())
+                addPeriods(fEntry, begin, end, foiTimes);
+        }
+        
+        Collections.sort(foiTimes, new FoiTimePeriodComparator());
+        
+        // merge consecutive periods of the same FoI so each needs only one record scan
+        // this is only possible if we know no other FoI was observed in between
+        if (uids != null && uids.size() > 0)
+            return foiTimes;
+        int i = 0;
+        for (FoiTimePeriod period: foiTimes)
+        {
+            FoiTimePeriod prev = (i > 0) ? foiTimes.get(i-1) : null;
+            if (prev != null && prev.uid.equals(period.uid))
+                prev.stop = Math.max(prev.stop, period.stop);
+            else
+                foiTimes.set(i++, period);
+        }
         
-        return foiTimes;
+        return foiTimes.subList(0, i);
     }
     
     
-    void updateFoiPeriod(String uid, double timeStamp)
+    /*
+     * Add periods of one FoI overlapping [begin, end]
+     * Periods of a FoI are disjoint and sorted so we can use a binary search
+     */
+    private void addPeriods(FeatureEntry fEntry, double begin, double end, List<FoiTimePeriod> foiTimes)
     {
-        // if lastFoi is null (after restart), set to the one for which we last received data
-        if (lastFoi == null)
+        List<double[]> timePeriods = fEntry.timePeriods;
+        
+        // find first period ending after begin
+        int low = 0, high = timePeriods.size();
+        while (low < high)
         {
-            double latestTime = Double.NEGATIVE_INFINITY;
-            for (FeatureEntry entry: idIndex.values())
-            {
-                int nPeriods = entry.timePeriods.size();
-                if (entry.timePeriods.get(nPeriods-1)[1] > latestTime)
-                    lastFoi = entry.uid;
-            }
+            int mid = (low + high) >>> 1;
+            if (timePeriods.get(mid)[1] < begin)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        
+        for (int i = low; i < timePeriods.size(); i++)
+        {
+            double[] timePeriod = timePeriods.get(i);
+            if (timePeriod[0] > end)
+                break;
+            addPeriod(fEntry.uid, timePeriod[0], timePeriod[1], begin, end, foiTimes);
         }
+    }
+    
+    
+    private void addPeriod(String uid, double start, double stop, double begin, double end, List<FoiTimePeriod> foiTimes)
+    {
+        // trim period to time range and skip it if completely outside
+        start = Math.max(start, begin);
+        stop = Math.min(stop, end);
+        if (start <= stop)
+            foiTimes.add(new FoiTimePeriod(uid, start, stop));
+    }
+    
+    
+    void updateFoiPeriod(String uid, double timeStamp)
+    {
+        addPeriodIndex();
+        
+        // if lastFoi is null (after restart), set to the one for which we last received data
+        if (lastFoi == null && currentPeriod != null)
+            lastFoi = currentPeriod.uid;
         
         FeatureEntry entry = idIndex.get(uid);
         if (entry == null)
@@ -148,11 +290,26 @@ class FoiTimesStoreImpl extends Persistent
         {
             int numPeriods = entry.timePeriods.size();
             entry.timePeriods.get(numPeriods-1)[1] = timeStamp;
+            currentPeriod.stop = timeStamp;
+            currentPeriod.modify();
         }
         
         // otherwise start new period
         else
+        {
             entry.timePeriods.add(new double[] {timeStamp, timeStamp});
+            
+            // close previous period in index and add new one with open end
+            if (currentPeriod != null)
+            {
+                periodIndex.remove(getRect(currentPeriod.start, OPEN_END), currentPeriod);
+                periodIndex.put(getRect(currentPeriod.start, currentPeriod.stop), currentPeriod);
+            }
+            
+            currentPeriod = new PeriodEntry(getStorage(), uid, timeStamp, timeStamp);
+            periodIndex.put(getRect(timeStamp, OPEN_END), currentPeriod);
+            modify();
+        }
         
         // mark entry as modified so changes can be commited
         getStorage().modify(entry);
@@ -164,6 +321,34 @@ class FoiTimesStoreImpl extends Persistent
     
     void remove(String uid)
     {
-        idIndex.remove(uid);
+        FeatureEntry entry = idIndex.remove(uid);
+        if (entry == null || periodIndex == null)
+            return;
+        
+        // remove all periods of this FoI from index
+        for (double[] timePeriod: entry.timePeriods)
+        {
+            boolean isCurrent = (currentPeriod != null && uid.equals(currentPeriod.uid) && timePeriod[0] == currentPeriod.start);
+            RectangleRn rect = getRect(timePeriod[0], isCurrent ? OPEN_END : timePeriod[1]);
+            Iterator<PeriodEntry> it = periodIndex.iterator(rect);
+            while (it.hasNext())
+            {
+                PeriodEntry period = it.next();
+                if (uid.equals(period.uid) && period.start == timePeriod[0])
+                {
+                    periodIndex.remove(rect, period);
+                    period.deallocate();
+                    break;
+                }
+            }
+            
+            if (isCurrent)
+            {
+                currentPeriod = null;
+                lastFoi = null;
+            }
+        }
+        
+        modify();
     }    
 }
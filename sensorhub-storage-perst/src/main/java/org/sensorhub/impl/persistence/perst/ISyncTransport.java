@@ -0,0 +1,55 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.List;
+import org.sensorhub.api.persistence.StorageException;
+
+
+/**
+ * <p>
+ * Transport used to send changes of a storage to another storage,
+ * potentially located on a remote hub.<br/>
+ * The receiving side keeps track of the last change applied from each
+ * source storage so that only newer changes are sent on the next sync.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public interface ISyncTransport
+{
+
+    /**
+     * Gets the sequence number of the last change applied by the receiving
+     * storage from the given source storage
+     * @param sourceID local ID of source storage
+     * @return last applied sequence number or 0 if nothing was received yet
+     * @throws StorageException
+     */
+    public long getWatermark(String sourceID) throws StorageException;
+    
+    
+    /**
+     * Sends a batch of changes to the receiving storage.<br/>
+     * Changes must be applied and the watermark updated atomically.
+     * @param sourceID local ID of source storage
+     * @param changes list of changes, in sequence order
+     * @param lastSeq new watermark, which can be higher than the sequence
+     * number of the last change if some entries had nothing left to send
+     * @throws StorageException
+     */
+    public void sendChanges(String sourceID, List<StorageChange> changes, long lastSeq) throws StorageException;
+}
@@ -0,0 +1,53 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.List;
+import org.sensorhub.api.persistence.StorageException;
+
+
+/**
+ * <p>
+ * Transport applying changes directly to another PERST storage running in
+ * the same JVM.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class LocalSyncTransport implements ISyncTransport
+{
+    final BasicStorageImpl target;
+    
+    
+    public LocalSyncTransport(BasicStorageImpl target)
+    {
+        this.target = target;
+    }
+    
+
+    @Override
+    public long getWatermark(String sourceID) throws StorageException
+    {
+        return target.getSyncWatermark(sourceID);
+    }
+
+
+    @Override
+    public void sendChanges(String sourceID, List<StorageChange> changes, long lastSeq) throws StorageException
+    {
+        target.applyChanges(sourceID, changes, lastSeq);
+    }
+}
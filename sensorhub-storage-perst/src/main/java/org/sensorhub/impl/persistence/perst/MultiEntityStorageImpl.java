@@ -19,6 +19,7 @@ import org.garret.perst.Persistent;
 import org.garret.perst.Storage;
 import org.sensorhub.api.persistence.IMultiSourceStorage;
 import org.sensorhub.api.persistence.IObsStorage;
+import org.sensorhub.api.persistence.StorageException;
 
 
 /**
@@ -58,9 +59,30 @@ public class MultiEntityStorageImpl extends ObsStorageImpl implements IMultiSour
     public IObsStorage addDataStore(String producerID)
     {
         IObsStorage dataStore = ((MultiEntityStorageRoot)dbRoot).addDataStore(producerID);
+        
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(StorageChange.Type.ADD_DATA_STORE);
+            entry.name = producerID;
+            logChange(entry);
+        }
+        
         if (autoCommit)
             commit();
         
         return dataStore;
     }
+    
+    
+    @Override
+    protected void applyChange(StorageChange change) throws StorageException
+    {
+        if (change.type == StorageChange.Type.ADD_DATA_STORE)
+        {
+            if (!getProducerIDs().contains(change.producerID))
+                addDataStore(change.producerID);
+        }
+        else
+            super.applyChange(change);
+    }
 }
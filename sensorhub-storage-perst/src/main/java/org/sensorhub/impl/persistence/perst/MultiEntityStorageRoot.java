@@ -14,10 +14,19 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.persistence.perst;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.opengis.gml.v32.AbstractFeature;
 import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
@@ -44,32 +53,71 @@ import org.vast.util.Bbox;
  */
 class MultiEntityStorageRoot extends ObsStorageRoot implements IObsStorage, IMultiSourceStorage<IObsStorage>
 {
+    static final int PREFETCH_BATCH_SIZE = 256;
+    
     Map<String, ObsStorageRoot> obsStores;
+    transient Map<String, RecordStats> recordStatsCache;
+    transient ExecutorService prefetchPool;
+    
+    
+    /* cached record count and time range of a given record type over all producers */
+    static class RecordStats
+    {
+        int numRecords;
+        double[] timeRange;
+    }
+    
+    
+    /* current record of one producer, ordered by time stamp */
+    static class ProducerCursor implements Comparable<ProducerCursor>
+    {
+        final int index;
+        final Iterator<DBRecord> iterator;
+        DBRecord record;
+        
+        ProducerCursor(int index, Iterator<DBRecord> iterator)
+        {
+            this.index = index;
+            this.iterator = iterator;
+        }
+        
+        @Override
+        public int compareTo(ProducerCursor other)
+        {
+            int c = Double.compare(record.key.timeStamp, other.record.key.timeStamp);
+            return (c != 0) ? c : index - other.index;
+        }
+    }
     
     
     /* to iterate through a list of producers records in parallel while sorting by time */
     abstract class MultiProducerTimeSortIterator<ObjectType> implements Iterator<ObjectType>
     {
-        int numProducers;
-        Iterator<DBRecord>[] iterators;
-        DBRecord[] nextRecords;
+        PriorityQueue<ProducerCursor> cursors;
         DBRecord nextRecord;
         
         MultiProducerTimeSortIterator(Collection<String> producerIDs)
         {
-            this.numProducers = producerIDs.size();
-            this.iterators = new Iterator[numProducers];
-            this.nextRecords = new DBRecord[numProducers];
+            int numProducers = producerIDs.size();
+            this.cursors = new PriorityQueue<ProducerCursor>(Math.max(1, numProducers));
+            
+            // read records of each producer in background if enabled
+            ExecutorService pool = (numProducers > 1) ? getPrefetchPool() : null;
             
             // get first matching record for each producer
             int i = 0;
             for (String producerID: producerIDs)
             {
                 Iterator<DBRecord> it = getSubIterator(producerID);
-                iterators[i] = it;
+                if (pool != null)
+                    it = new BatchPrefetchIterator<DBRecord>(it, pool, PREFETCH_BATCH_SIZE);
+                
+                ProducerCursor cursor = new ProducerCursor(i++, it);
                 if (it.hasNext())
-                    nextRecords[i] = it.next();
-                i++;
+                {
+                    cursor.record = it.next();
+                    cursors.add(cursor);
+                }
             }
             
             // call it once to init things properly
@@ -85,35 +133,18 @@ class MultiEntityStorageRoot extends ObsStorageRoot implements IObsStorage, IMul
         {
             DBRecord rec = nextRecord;
             
-            int minTimeIndex = -1;
-            double minTime = Double.POSITIVE_INFINITY;
-            
-            // find record with earliest time stamp among producers
-            for (int i = 0; i < numProducers; i++)
+            // take record with earliest time stamp among producers
+            // and put producer back in queue with its next record
+            ProducerCursor cursor = cursors.poll();
+            if (cursor != null)
             {
-                DBRecord candidateRec = nextRecords[i];
-                if (candidateRec == null)
-                    continue;
-                
-                double nextTimeStamp = candidateRec.key.timeStamp;
-                if (nextTimeStamp < minTime)
+                nextRecord = cursor.record;
+                if (cursor.iterator.hasNext())
                 {
-                    minTime = nextTimeStamp;
-                    minTimeIndex = i;
+                    cursor.record = cursor.iterator.next();
+                    cursors.add(cursor);
                 }
             }
-            
-            // if a record was found, prepare for next iteration by fetching the next
-            // record on the corresponding iterator. Keep all the other ones
-            if (minTimeIndex >= 0)
-            {
-                nextRecord = nextRecords[minTimeIndex];
-                Iterator<DBRecord> recIt = iterators[minTimeIndex];
-                if (recIt.hasNext())
-                    nextRecords[minTimeIndex] = recIt.next();
-                else
-                    nextRecords[minTimeIndex] = null;
-            }
             else
                 nextRecord = null;
             
@@ -146,10 +177,118 @@ class MultiEntityStorageRoot extends ObsStorageRoot implements IObsStorage, IMul
         ObsStorageRoot obsStore = obsStores.get(entityID);
         if (obsStore == null)
             throw new IllegalArgumentException("No data store for entity " + entityID);
+        obsStore.parentStore = this;
         return obsStore;
     }
     
     
+    /*
+     * Pool used to read records of several producers in parallel
+     * Returns null if prefetching is disabled in config
+     */
+    protected synchronized ExecutorService getPrefetchPool()
+    {
+        if (config == null || config.numPrefetchThreads <= 0)
+            return null;
+        
+        if (prefetchPool == null)
+        {
+            final AtomicInteger threadCount = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(config.numPrefetchThreads, config.numPrefetchThreads,
+                    10L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "RecordPrefetch-" + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            
+            // idle threads are stopped so we don't need to shutdown the pool
+            pool.allowCoreThreadTimeOut(true);
+            prefetchPool = pool;
+        }
+        
+        return prefetchPool;
+    }
+    
+    
+    /*
+     * Get record count and time range for the given record type,
+     * computed over all producers only if not already cached
+     */
+    protected RecordStats getRecordStats(String recordType)
+    {
+        synchronized (this)
+        {
+            if (recordStatsCache == null)
+                recordStatsCache = new HashMap<String, RecordStats>();
+            
+            RecordStats stats = recordStatsCache.get(recordType);
+            if (stats == null)
+            {
+                stats = new RecordStats();
+                stats.timeRange = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+                
+                for (ObsStorageRoot dataStore: obsStores.values())
+                {
+                    if (dataStore.getRecordStores().containsKey(recordType))
+                    {
+                        stats.numRecords += dataStore.getNumRecords(recordType);
+                        double[] storeTimeRange = dataStore.getRecordsTimeRange(recordType);
+                        if (storeTimeRange[0] < stats.timeRange[0])
+                            stats.timeRange[0] = storeTimeRange[0];
+                        if (storeTimeRange[1] > stats.timeRange[1])
+                            stats.timeRange[1] = storeTimeRange[1];
+                    }
+                }
+                
+                recordStatsCache.put(recordType, stats);
+            }
+            
+            return stats;
+        }
+    }
+    
+    
+    /*
+     * Called by data stores of each producer when a new record is stored
+     */
+    protected synchronized void onRecordStored(DataKey key)
+    {
+        if (recordStatsCache == null)
+            return;
+        
+        RecordStats stats = recordStatsCache.get(key.recordType);
+        if (stats != null)
+        {
+            stats.numRecords++;
+            if (key.timeStamp < stats.timeRange[0])
+                stats.timeRange[0] = key.timeStamp;
+            if (key.timeStamp > stats.timeRange[1])
+                stats.timeRange[1] = key.timeStamp;
+        }
+    }
+    
+    
+    /*
+     * Called by data stores of each producer when records are updated or removed
+     */
+    protected synchronized void invalidateRecordStats(String recordType)
+    {
+        if (recordStatsCache != null)
+            recordStatsCache.remove(recordType);
+    }
+    
+    
+    @Override
+    protected synchronized void onRollback()
+    {
+        super.onRollback();
+        recordStatsCache = null;
+    }
+    
+    
     @Override
     public Collection<String> getProducerIDs()
     {
@@ -172,6 +311,8 @@ class MultiEntityStorageRoot extends ObsStorageRoot implements IObsStorage, IMul
             return obsStore;
         
         obsStore = new ObsStorageRoot(getStorage());
+        obsStore.config = config;
+        obsStore.parentStore = this;
         obsStores.put(producerID, obsStore);
         return obsStore;
     }
@@ -184,43 +325,55 @@ class MultiEntityStorageRoot extends ObsStorageRoot implements IObsStorage, IMul
         
         // also add record type to all data stores
         for (ObsStorageRoot dataStore: obsStores.values())
+        {
+            dataStore.config = config;
             dataStore.addRecordStore(name, recordStructure, recommendedEncoding);
+            addFieldIndexes(dataStore.getRecordStore(name));
+        }
+    }
+    
+    
+    @Override
+    protected Collection<TimeSeriesImpl> getAllRecordStores()
+    {
+        // field indexes also apply to record stores of each entity
+        Collection<TimeSeriesImpl> recordStores = new ArrayList<TimeSeriesImpl>(dataStores.values());
+        for (ObsStorageRoot dataStore: obsStores.values())
+            recordStores.addAll(dataStore.getAllRecordStores());
+        return recordStores;
     }
 
 
     @Override
-    public int getNumRecords(String recordType)
+    boolean addLocationIndexes()
     {
-        int numRecords = 0;
-        
+        // record stores of all entities are handled by base class
+        boolean added = super.addLocationIndexes();
         for (ObsStorageRoot dataStore: obsStores.values())
+            added |= dataStore.featureStore.addRefIndexes();
+        return added;
+    }
+
+
+    @Override
+    public int getNumRecords(String recordType)
+    {
+        RecordStats stats = getRecordStats(recordType);
+        synchronized (this)
         {
-            if (dataStore.getRecordStores().containsKey(recordType))
-                numRecords += dataStore.getNumRecords(recordType);
+            return stats.numRecords;
         }
-        
-        return numRecords;
     }
 
 
     @Override
     public double[] getRecordsTimeRange(String recordType)
     {
-        double[] timeRange = new double[] {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
-        
-        for (ObsStorageRoot dataStore: obsStores.values())
+        RecordStats stats = getRecordStats(recordType);
+        synchronized (this)
         {
-            if (dataStore.getRecordStores().containsKey(recordType))
-            {
-                double[] storeTimeRange = dataStore.getRecordsTimeRange(recordType);
-                if (storeTimeRange[0] < timeRange[0])
-                    timeRange[0] = storeTimeRange[0];
-                if (storeTimeRange[1] > timeRange[1])
-                    timeRange[1] = storeTimeRange[1];
-            }
+            return stats.timeRange.clone();
         }
-        
-        return timeRange;
     }
 
 
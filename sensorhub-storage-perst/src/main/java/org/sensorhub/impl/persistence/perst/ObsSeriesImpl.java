@@ -14,28 +14,44 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.impl.persistence.perst;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
-import java.util.Set;
+import java.util.NoSuchElementException;
 import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
 import net.opengis.swe.v20.DataEncoding;
-import org.garret.perst.Index;
 import org.garret.perst.IterableIterator;
-import org.garret.perst.Key;
 import org.garret.perst.Storage;
 import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
 import org.sensorhub.api.persistence.IDataFilter;
 import org.sensorhub.api.persistence.IObsFilter;
 import org.sensorhub.api.persistence.ObsKey;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
 import org.sensorhub.impl.persistence.perst.FoiTimesStoreImpl.FoiTimePeriod;
+import org.vast.swe.SWEConstants;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 
 
 /**
  * <p>
  * PERST implementation of an observation series data store for a single
  * record type
+ * </p><p>
+ * When records contain a sensor or platform location vector, it is indexed
+ * together with the record time stamp in a spatio-temporal R-tree so that
+ * filtering by ROI doesn't require reading all records in the time range.
+ * The ROI X and Y coordinates are compared with the first two components of
+ * the location vector, in the order they appear in the record.
  * </p>
  *
  * @author Alex Robin <alex.robin@sensiasoftware.com>
@@ -43,7 +59,10 @@ import org.sensorhub.impl.persistence.perst.FoiTimesStoreImpl.FoiTimePeriod;
  */
 public class ObsSeriesImpl extends TimeSeriesImpl
 {
+    static final String LOCATION_INDEX_ID = "LOCATION";
+    
     FoiTimesStoreImpl foiTimesStore;
+    String locationPath; // path of location vector in records, null if none
     
     
     static abstract class IteratorWithFoi extends IterableIterator<Entry<Object,DataBlock>>
@@ -52,51 +71,204 @@ public class ObsSeriesImpl extends TimeSeriesImpl
     }
     
     
+    /*
+     * Iterator skipping records whose location is outside of a polygonal ROI
+     * Records are already known to be within the ROI envelope
+     */
+    class RoiFilterIterator extends IterableIterator<Entry<Object,DataBlock>>
+    {
+        final Iterator<Entry<Object,DataBlock>> it;
+        final FieldValueReader reader;
+        final PreparedGeometry roi;
+        final GeometryFactory geomFactory;
+        Entry<Object,DataBlock> nextEntry;
+        
+        RoiFilterIterator(Iterator<Entry<Object,DataBlock>> it, Polygon roi)
+        {
+            this.it = it;
+            this.reader = FieldValueReader.create(recordDescription, locationPath);
+            this.roi = PreparedGeometryFactory.prepare(roi);
+            this.geomFactory = roi.getFactory();
+            fetchNext();
+        }
+        
+        private void fetchNext()
+        {
+            nextEntry = null;
+            
+            while (it.hasNext())
+            {
+                Entry<Object,DataBlock> entry = it.next();
+                DataBlock data = entry.getValue();
+                Coordinate coord = new Coordinate(reader.getDoubleValue(data, 0), reader.getDoubleValue(data, 1));
+                if (roi.covers(geomFactory.createPoint(coord)))
+                {
+                    nextEntry = entry;
+                    return;
+                }
+            }
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry<Object,DataBlock> next()
+        {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+            
+            Entry<Object,DataBlock> entry = nextEntry;
+            fetchNext();
+            return entry;
+        }
+    }
+    
+    
     // default constructor needed by PERST on Android JVM
     @SuppressWarnings("unused")
     private ObsSeriesImpl() {}
     
     
-    ObsSeriesImpl(Storage db, DataComponent recordDescription, DataEncoding recommendedEncoding)
+    ObsSeriesImpl(Storage db, DataComponent recordDescription, DataEncoding recommendedEncoding, ChunkedRecordStore chunkStore)
     {
-        super(db, recordDescription, recommendedEncoding);
+        super(db, recordDescription, recommendedEncoding, chunkStore);
         this.foiTimesStore = new FoiTimesStoreImpl(db);
+        addLocationIndex();
+    }
+    
+    
+    /*
+     * Add spatio-temporal index on record location if records have one
+     * Returns true if the index was added
+     */
+    boolean addLocationIndex()
+    {
+        if (fieldIndexes != null && fieldIndexes.containsKey(LOCATION_INDEX_ID))
+            return false;
+        
+        String path = findLocationPath(recordDescription, "");
+        if (path == null)
+            return false;
+        
+        StorageIndexDescriptor desc = new StorageIndexDescriptor();
+        desc.id = LOCATION_INDEX_ID;
+        desc.type = IndexType.RTREE;
+        desc.fieldPath = path;
+        addFieldIndex(desc, FieldValueReader.create(recordDescription, path));
+        locationPath = path;
+        return true;
+    }
+    
+    
+    /*
+     * Look for the first sensor or platform location vector with at least 2 numerical components
+     */
+    private static String findLocationPath(DataComponent comp, String path)
+    {
+        String def = comp.getDefinition();
+        if (SWEConstants.DEF_SENSOR_LOC.equals(def) || SWEConstants.DEF_PLATFORM_LOC.equals(def))
+        {
+            FieldValueReader reader = FieldValueReader.create(comp, "");
+            if (reader != null && !reader.textValue && reader.getDimension() >= 2)
+                return path;
+        }
+        
+        for (int i = 0; i < comp.getComponentCount(); i++)
+        {
+            DataComponent child = comp.getComponent(i);
+            String childPath = path.isEmpty() ? child.getName() : path + "/" + child.getName();
+            String locPath = findLocationPath(child, childPath);
+            if (locPath != null)
+                return locPath;
+        }
+        
+        return null;
     }
     
     
-    Set<FoiTimePeriod> getFoiTimePeriods(IDataFilter filter)
+    List<FoiTimePeriod> getFoiTimePeriods(IDataFilter filter)
     {
         // FOI ID list
         Collection<String> foiIDs = null;
         if (filter instanceof IObsFilter)
             foiIDs = ((IObsFilter)filter).getFoiIDs();
-        Set<FoiTimePeriod> foiTimes = foiTimesStore.getSortedFoiTimes(foiIDs);
         
-        // trim periods to filter time range if specified
-        double[] timeRange = filter.getTimeStampRange();
-        if (timeRange != null)
+        // periods are already trimmed to filter time range
+        List<FoiTimePeriod> foiTimes = foiTimesStore.getSortedFoiTimes(foiIDs, filter.getTimeStampRange());
+        
+        // TODO FOI spatial filter when records have no location
+        
+        return foiTimes;
+    }
+    
+    
+    /*
+     * Get field filters including criteria on record location if an ROI is specified
+     */
+    Collection<FieldFilter> getFieldFilters(IDataFilter filter)
+    {
+        Collection<FieldFilter> fieldFilters = filter.getFieldFilters();
+        Polygon roi = getRoi(filter);
+        if (roi == null)
+            return fieldFilters;
+        
+        // select records within ROI envelope using location index
+        int numDims = FieldValueReader.create(recordDescription, locationPath).getDimension();
+        double[] bbox = new double[2*numDims];
+        for (int i = 2; i < numDims; i++)
         {
-            Iterator<FoiTimePeriod> it = foiTimes.iterator();
-            while (it.hasNext())
-            {
-                FoiTimePeriod foiPeriod = it.next();
-                
-                // trim foi period to filter time range
-                if (foiPeriod.start < timeRange[0])
-                    foiPeriod.start = timeRange[0];
-                
-                if (foiPeriod.stop > timeRange[1])
-                    foiPeriod.stop = timeRange[1];
-                                
-                // case period is completely outside of time range
-                if (foiPeriod.start > foiPeriod.stop)
-                    it.remove();
-            }
+            bbox[i] = Double.NEGATIVE_INFINITY;
+            bbox[i+numDims] = Double.POSITIVE_INFINITY;
         }
         
-        // TODO FOI spatial filter
+        Envelope env = roi.getEnvelopeInternal();
+        bbox[0] = env.getMinX();
+        bbox[1] = env.getMinY();
+        bbox[numDims] = env.getMaxX();
+        bbox[numDims+1] = env.getMaxY();
         
-        return foiTimes;
+        List<FieldFilter> allFilters = new ArrayList<FieldFilter>();
+        allFilters.add(new FieldFilter(locationPath, bbox));
+        if (fieldFilters != null)
+            allFilters.addAll(fieldFilters);
+        return allFilters;
+    }
+    
+    
+    /*
+     * Get ROI that can be used to filter records by location
+     * Returns null if no ROI is specified or if records have no location
+     */
+    private Polygon getRoi(IDataFilter filter)
+    {
+        if (locationPath == null || !(filter instanceof IObsFilter))
+            return null;
+        return ((IObsFilter)filter).getRoi();
+    }
+
+
+    @Override
+    int getNumMatchingRecords(IDataFilter filter, long maxCount)
+    {
+        // always go through FOI time periods so count is consistent with iterators
+        Collection<FieldFilter> fieldFilters = getFieldFilters(filter);
+        if (fieldFilters != null && !fieldFilters.isEmpty())
+            return countEntries(getEntryIterator(filter), maxCount);
+        
+        // count records in each period directly from index if only time range is used
+        int count = 0;
+        for (FoiTimePeriod foiPeriod: getFoiTimePeriods(filter))
+        {
+            count += getNumRecordsInRange(foiPeriod.start, foiPeriod.stop, maxCount - count);
+            if (count > maxCount)
+                break;
+        }
+        
+        return count;
     }
 
 
@@ -134,7 +306,12 @@ public class ObsSeriesImpl extends TimeSeriesImpl
     protected IteratorWithFoi getEntryIterator(IDataFilter filter)
     {
         // FoI ID list
-        final Set<FoiTimePeriod> foiTimePeriods = getFoiTimePeriods(filter);
+        final List<FoiTimePeriod> foiTimePeriods = getFoiTimePeriods(filter);
+        final Collection<FieldFilter> fieldFilters = getFieldFilters(filter);
+        
+        // exact polygon check is only needed if ROI is not a rectangle
+        Polygon roi = getRoi(filter);
+        final Polygon roiPolygon = (roi != null && !roi.isRectangle()) ? roi : null;
             
         // scan through each time range sequentially
         // but wrap the process with a single iterator
@@ -146,19 +323,24 @@ public class ObsSeriesImpl extends TimeSeriesImpl
                                 
             public final boolean hasNext()
             {
-                return periodIt.hasNext() || (recordIt != null && recordIt.hasNext());
-            }
-
-            public final Entry<Object,DataBlock> next()
-            {
-                if (recordIt == null || !recordIt.hasNext())
+                // process next time ranges until we find one with matching records
+                while ((recordIt == null || !recordIt.hasNext()) && periodIt.hasNext())
                 {
-                    // process next time range
                     FoiTimePeriod nextPeriod = periodIt.next();
                     currentFoiID = nextPeriod.uid;
-                    recordIt = recordIndex.entryIterator(new Key(nextPeriod.start), new Key(nextPeriod.stop), Index.ASCENT_ORDER);
+                    recordIt = ObsSeriesImpl.this.getEntryIterator(nextPeriod.start, nextPeriod.stop, fieldFilters);
+                    if (roiPolygon != null)
+                        recordIt = new RoiFilterIterator(recordIt, roiPolygon);
                 }
                 
+                return recordIt != null && recordIt.hasNext();
+            }
+
+            public final Entry<Object,DataBlock> next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                
                 // continue processing time range
                 return recordIt.next();
             }
@@ -177,9 +359,9 @@ public class ObsSeriesImpl extends TimeSeriesImpl
 
 
     @Override
-    void store(DataKey key, DataBlock data)
+    boolean store(DataKey key, DataBlock data)
     {
-        super.store(key, data);
+        boolean added = super.store(key, data);
         
         if (key instanceof ObsKey)
         {
@@ -191,6 +373,8 @@ public class ObsSeriesImpl extends TimeSeriesImpl
                 foiTimesStore.updateFoiPeriod(foiID, timeStamp);
             }
         }
+        
+        return added;
     }
 
 
@@ -23,6 +23,7 @@ import org.garret.perst.Storage;
 import org.sensorhub.api.persistence.IFoiFilter;
 import org.sensorhub.api.persistence.IObsStorage;
 import org.sensorhub.api.persistence.IObsStorageModule;
+import org.sensorhub.api.persistence.StorageException;
 import org.vast.util.Bbox;
 
 
@@ -76,7 +77,15 @@ public class ObsStorageImpl extends BasicStorageImpl implements IObsStorageModul
     @Override
     public synchronized void storeFoi(String producerID, AbstractFeature foi)
     {
-        ((ObsStorageRoot)dbRoot).storeFoi(producerID, foi);       
+        ((ObsStorageRoot)dbRoot).storeFoi(producerID, foi);
+        
+        if (config.enableChangeLog)
+        {
+            ChangeLog.Entry entry = new ChangeLog.Entry(StorageChange.Type.STORE_FOI);
+            entry.name = producerID;
+            entry.value = foi;
+            logChange(entry);
+        }
     }
 
 
@@ -84,7 +93,18 @@ public class ObsStorageImpl extends BasicStorageImpl implements IObsStorageModul
     public synchronized void addRecordStore(String name, DataComponent recordStructure, DataEncoding recommendedEncoding)
     {
         ((ObsStorageRoot)dbRoot).addRecordStore(name, recordStructure, recommendedEncoding);
+        logRecordStoreChange(name);
         if (autoCommit)
             commit();
     }
+    
+    
+    @Override
+    protected void applyChange(StorageChange change) throws StorageException
+    {
+        if (change.type == StorageChange.Type.STORE_FOI)
+            storeFoi(change.producerID, change.foi);
+        else
+            super.applyChange(change);
+    }
 }
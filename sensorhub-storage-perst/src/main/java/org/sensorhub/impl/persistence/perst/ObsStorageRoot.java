@@ -92,10 +92,21 @@ class ObsStorageRoot extends BasicStorageRoot implements IObsStorage
     }
 
 
+    @Override
+    boolean addLocationIndexes()
+    {
+        boolean added = super.addLocationIndexes();
+        added |= featureStore.addRefIndexes();
+        return added;
+    }
+
+
     @Override
     public void addRecordStore(String name, DataComponent recordStructure, DataEncoding recommendedEncoding)
     {
-        ObsSeriesImpl newTimeSeries = new ObsSeriesImpl(getStorage(), recordStructure, recommendedEncoding);
+        ObsSeriesImpl newTimeSeries = new ObsSeriesImpl(getStorage(), recordStructure, recommendedEncoding, createChunkStore());
+        newTimeSeries.updateClusterSummary(getTimeClusterGap());
+        addFieldIndexes(newTimeSeries);
         dataStores.put(name, newTimeSeries);
         modify();
     }
@@ -0,0 +1,42 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.persistence.perst;
+
+
+/**
+ * <p>
+ * Configuration class for PERST time-partitioned storage.<br/>
+ * Snapshots and change log cannot be enabled with this storage.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class PartitionedStorageConfig extends BasicStorageConfig
+{
+    
+    /**
+     * Time window covered by each partition file, in seconds
+     * (e.g. 3600 for hourly or 86400 for daily partitions)
+     */
+    public double partitionDuration = 86400.;
+    
+    
+    /**
+     * Maximum number of partition files kept open at the same time
+     */
+    public int maxOpenPartitions = 4;
+}
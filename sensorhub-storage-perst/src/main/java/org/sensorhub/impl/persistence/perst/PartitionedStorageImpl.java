@@ -0,0 +1,1072 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import org.garret.perst.MappedFile;
+import org.garret.perst.Persistent;
+import org.garret.perst.Storage;
+import org.garret.perst.StorageFactory;
+import org.sensorhub.api.common.SensorHubException;
+import org.sensorhub.api.persistence.DataFilter;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
+import org.sensorhub.api.persistence.IDataFilter;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.IRecordStoreInfo;
+import org.sensorhub.api.persistence.StorageEvent;
+import org.sensorhub.api.persistence.StorageException;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
+import org.sensorhub.api.persistence.StorageEvent.Type;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
+import org.sensorhub.impl.persistence.perst.PartitionedStorageRoot.PartitionStats;
+import org.sensorhub.impl.persistence.perst.PartitionedStorageRoot.RecordStats;
+
+
+/**
+ * <p>
+ * PERST storage keeping records in one database file per time window.<br/>
+ * Data source descriptions and record store definitions are kept in the
+ * main storage file, while records are routed to partition files named after
+ * the time window they cover. Queries are processed by reading partitions
+ * overlapping the requested time range in time order, and only a limited
+ * number of partition files are kept open at the same time.
+ * </p><p>
+ * When all records of a given type are removed from a partition (e.g. by an
+ * auto-purge policy), they are detached from the partition file instead of
+ * being removed one by one, and the whole file is deleted once the partition
+ * is empty. Partitions with uncommitted changes are never closed, and empty
+ * partitions are only deleted when changes are committed.
+ * </p><p>
+ * Record counts, time ranges and time clusters of closed partitions are
+ * saved in the main file so they can be computed without opening partition
+ * files. Field index definitions are also kept in the main file and indexes
+ * are added to each partition when it is opened or by a background thread.
+ * </p><p>
+ * Backups always contain a full copy of the main file and all partition
+ * files, so periodic snapshots are not supported by this storage and it
+ * cannot be started if they are enabled in the configuration.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class PartitionedStorageImpl extends BasicStorageImpl
+{
+    private static final String PARTITION_SUFFIX = ".p";
+    private static final String RESTORE_SUFFIX = ".restoring";
+    private static final int BACKUP_MAGIC = 0x50535442; // "PSTB"
+    private static final int ITERATOR_BATCH_SIZE = 100;
+    private static final int COPY_BUFFER_SIZE = 64*1024;
+    
+    TreeMap<Long, Partition> partitions; // partitions sorted by start time
+    LinkedHashMap<Long, Partition> openPartitions; // open partitions in access order
+    
+    
+    /*
+     * Partition file covering records with start <= time < end
+     */
+    class Partition
+    {
+        final long startTime;
+        final long endTime;
+        final File file;
+        Storage db;
+        BasicStorageRoot root;
+        boolean modified; // true if partition has uncommitted changes
+        boolean dropped;
+        
+        Partition(long startTime, long endTime, File file)
+        {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.file = file;
+        }
+    }
+    
+    
+    /*
+     * Iterator chaining results of all partitions matching a filter.
+     * Records are read in small batches while holding the storage lock, so
+     * partitions can be closed between batches. In this case, reading resumes
+     * after the last record read once the partition is reopened.
+     */
+    abstract class PartitionIterator<T> implements Iterator<T>
+    {
+        final IDataFilter filter;
+        final Iterator<Partition> partitionIt;
+        final LinkedList<T> batch = new LinkedList<T>();
+        Partition current;
+        Storage currentDb; // partition storage the record iterator was obtained from
+        Iterator<? extends IDataRecord> it;
+        double lastTime = Double.NEGATIVE_INFINITY;
+        
+        PartitionIterator(IDataFilter filter)
+        {
+            this.filter = filter;
+            this.partitionIt = getPartitions(filter).iterator();
+        }
+        
+        protected abstract T getValue(IDataRecord rec);
+        
+        protected void readBatch()
+        {
+            synchronized (PartitionedStorageImpl.this)
+            {
+                while (batch.isEmpty())
+                {
+                    // stop if storage was stopped
+                    if (partitions == null)
+                        return;
+                    
+                    if (current == null)
+                    {
+                        if (!partitionIt.hasNext())
+                            return;
+                        current = partitionIt.next();
+                        it = null;
+                    }
+                    
+                    // skip partitions dropped since the query started
+                    if (current.dropped)
+                    {
+                        current = null;
+                        continue;
+                    }
+                    
+                    BasicStorageRoot root = openPartition(current);
+                    if (it == null || currentDb != current.db)
+                    {
+                        it = root.getRecordIterator(getResumeFilter());
+                        currentDb = current.db;
+                    }
+                    
+                    while (batch.size() < ITERATOR_BATCH_SIZE && it.hasNext())
+                    {
+                        IDataRecord rec = it.next();
+                        if (rec.getKey().timeStamp > lastTime)
+                        {
+                            lastTime = rec.getKey().timeStamp;
+                            batch.add(getValue(rec));
+                        }
+                    }
+                    
+                    if (!it.hasNext())
+                    {
+                        current = null;
+                        it = null;
+                    }
+                }
+            }
+        }
+        
+        /*
+         * Get filter selecting records after the last one read
+         */
+        protected IDataFilter getResumeFilter()
+        {
+            final double[] timeRange = getTimeRange(filter);
+            if (lastTime <= timeRange[0])
+                return filter;
+            
+            return new DataFilter(filter.getRecordType()) {
+                public double[] getTimeStampRange()
+                {
+                    return new double[] {lastTime, timeRange[1]};
+                }
+                
+                public Collection<FieldFilter> getFieldFilters()
+                {
+                    return filter.getFieldFilters();
+                }
+            };
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            if (batch.isEmpty())
+                readBatch();
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return batch.poll();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    
+    @Override
+    public synchronized void start() throws StorageException
+    {
+        if (config.snapshotDir != null && config.snapshotPeriod > 0)
+            throw new StorageException("Snapshots are not supported by partitioned storage " + config.name);
+        
+        super.start();
+        
+        partitions = new TreeMap<Long, Partition>();
+        openPartitions = new LinkedHashMap<Long, Partition>(16, 0.75f, true);
+        for (File f: listPartitionFiles())
+        {
+            // file names are <storagePath>.p<start>-<end>
+            String name = f.getName();
+            String[] times = name.substring(name.lastIndexOf(PARTITION_SUFFIX) + PARTITION_SUFFIX.length()).split("-(?=[-0-9])", 2);
+            try
+            {
+                long startTime = Long.parseLong(times[0]);
+                long endTime = Long.parseLong(times[1]);
+                partitions.put(startTime, new Partition(startTime, endTime, f));
+            }
+            catch (Exception e)
+            {
+                // ignore files with invalid names
+            }
+        }
+        
+        // forget stats of partition files deleted before their removal was committed
+        PartitionedStorageRoot statsRoot = getStatsRoot();
+        if (statsRoot != null && statsRoot.retainPartitionStats(partitions.keySet()))
+            db.commit();
+        
+        // resume indexing of partitions if it was interrupted
+        startIndexBackfill();
+    }
+    
+    
+    @Override
+    protected Persistent createRoot(Storage db)
+    {
+        return new PartitionedStorageRoot(db);
+    }
+    
+    
+    /*
+     * Get main file root used to save partition stats
+     * Returns null if main file was created before stats were saved
+     */
+    protected final PartitionedStorageRoot getStatsRoot()
+    {
+        if (dbRoot instanceof PartitionedStorageRoot)
+            return (PartitionedStorageRoot)dbRoot;
+        return null;
+    }
+    
+    
+    protected List<File> listPartitionFiles()
+    {
+        List<File> partitionFiles = new ArrayList<File>();
+        File mainFile = new File(config.storagePath).getAbsoluteFile();
+        String prefix = mainFile.getName() + PARTITION_SUFFIX;
+        File[] files = mainFile.getParentFile().listFiles();
+        if (files != null)
+        {
+            for (File f: files)
+            {
+                if (f.getName().startsWith(prefix) && f.isFile())
+                    partitionFiles.add(f);
+            }
+        }
+        
+        return partitionFiles;
+    }
+    
+    
+    @Override
+    public synchronized void stop() throws SensorHubException
+    {
+        if (partitions != null)
+        {
+            // closing partitions commits them so saved stats must be discarded first
+            if (db != null)
+                commit();
+            
+            for (Partition p: new ArrayList<Partition>(partitions.values()))
+                closePartition(p);
+            partitions = null;
+            openPartitions = null;
+        }
+        
+        super.stop();
+    }
+
+
+    @Override
+    public synchronized void cleanup() throws SensorHubException
+    {
+        super.cleanup();
+        
+        // also mark partition files as deleted
+        for (File f: listPartitionFiles())
+            f.renameTo(new File(f.getPath() + ".deleted"));
+    }
+    
+    
+    protected final PartitionedStorageConfig getPartitionConfig()
+    {
+        if (config instanceof PartitionedStorageConfig)
+            return (PartitionedStorageConfig)config;
+        return new PartitionedStorageConfig();
+    }
+    
+    
+    /*
+     * Find partition containing the given time, optionally creating it
+     */
+    protected synchronized Partition findPartition(double time, boolean create)
+    {
+        Entry<Long, Partition> prev = partitions.floorEntry((long)Math.floor(time));
+        if (prev != null && time < prev.getValue().endTime)
+            return prev.getValue();
+        
+        if (!create)
+            return null;
+        
+        // new partitions are aligned on multiples of partition duration
+        // but must not overlap partitions created with a different duration
+        long duration = Math.max(1L, (long)getPartitionConfig().partitionDuration);
+        long startTime = (long)Math.floor(time / duration) * duration;
+        long endTime = startTime + duration;
+        if (prev != null)
+            startTime = Math.max(startTime, prev.getValue().endTime);
+        Long nextStart = partitions.higherKey((long)Math.floor(time));
+        if (nextStart != null)
+            endTime = Math.min(endTime, nextStart);
+        
+        File file = new File(config.storagePath + PARTITION_SUFFIX + startTime + "-" + endTime);
+        Partition p = new Partition(startTime, endTime, file);
+        partitions.put(startTime, p);
+        return p;
+    }
+    
+    
+    /*
+     * Get partitions overlapping the filter time range that can contain
+     * records of the filter record type, in time order
+     */
+    protected synchronized List<Partition> getPartitions(IDataFilter filter)
+    {
+        double[] timeRange = getTimeRange(filter);
+        List<Partition> selected = new ArrayList<Partition>();
+        for (Partition p: partitions.values())
+        {
+            if (p.startTime > timeRange[1])
+                break;
+            
+            if (p.endTime > timeRange[0])
+                selected.add(p);
+        }
+        
+        return selected;
+    }
+    
+    
+    protected final double[] getTimeRange(IDataFilter filter)
+    {
+        double[] timeRange = filter.getTimeStampRange();
+        if (timeRange == null)
+            return new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        return timeRange;
+    }
+    
+    
+    /*
+     * Open partition file if needed, closing least recently used partitions
+     * if too many are open
+     */
+    protected synchronized BasicStorageRoot openPartition(Partition p)
+    {
+        if (p.db == null)
+        {
+            MappedFile dbFile = new MappedFile(p.file.getPath(), 100*1024, false);
+            p.db = StorageFactory.getInstance().createStorage();
+            p.db.setProperty("perst.concurrent.iterator", true);
+            p.db.setProperty("perst.reload.objects.on.rollback", true);
+            p.db.open(dbFile, config.memoryCacheSize*1024);
+            p.root = (BasicStorageRoot)p.db.getRoot();
+            if (p.root == null)
+            {
+                p.root = new BasicStorageRoot(p.db);
+                p.db.setRoot(p.root);
+            }
+            p.root.config = config;
+            
+            // add record stores created since partition was last opened
+            Map<String, ? extends IRecordStoreInfo> partitionStores = p.root.getRecordStores();
+            for (IRecordStoreInfo recordInfo: getRecordStores().values())
+            {
+                if (!partitionStores.containsKey(recordInfo.getName()))
+                    p.root.addRecordStore(recordInfo.getName(), recordInfo.getRecordDescription().copy(), recordInfo.getRecommendedEncoding());
+            }
+            updateFieldIndexes(p.root);
+            p.root.updateClusterSummaries();
+            p.db.commit();
+        }
+        
+        openPartitions.put(p.startTime, p);
+        
+        // close least recently used partitions
+        // partitions with uncommitted changes are kept open since closing commits them
+        int maxOpenPartitions = Math.max(1, getPartitionConfig().maxOpenPartitions);
+        Iterator<Partition> it = openPartitions.values().iterator();
+        while (openPartitions.size() > maxOpenPartitions && it.hasNext())
+        {
+            Partition lru = it.next();
+            if (lru != p && !lru.modified)
+            {
+                it.remove();
+                closePartition(lru);
+            }
+        }
+        
+        return p.root;
+    }
+    
+    
+    /*
+     * Add or remove field indexes changed since partition was last opened
+     */
+    protected void updateFieldIndexes(BasicStorageRoot partitionRoot)
+    {
+        Set<String> indexIds = new HashSet<String>();
+        for (StorageIndexDescriptor desc: getAllFieldIndexes())
+        {
+            partitionRoot.addFieldIndex(desc.fieldPath, desc.type);
+            indexIds.add(desc.id);
+        }
+        
+        for (StorageIndexDescriptor desc: partitionRoot.getAllFieldIndexes())
+        {
+            if (!indexIds.contains(desc.id))
+                partitionRoot.removeFieldIndex(desc.id);
+        }
+    }
+    
+    
+    protected synchronized void closePartition(Partition p)
+    {
+        if (p.db != null)
+        {
+            // save stats so partition doesn't have to be opened to get them
+            // saved stats are still valid if partition wasn't modified since
+            PartitionedStorageRoot statsRoot = getStatsRoot();
+            if (statsRoot != null && !p.dropped && !p.modified && statsRoot.getPartitionStats(p.startTime) == null)
+                statsRoot.savePartitionStats(p.startTime, p.root);
+            
+            p.db.close();
+            p.db = null;
+            p.root = null;
+        }
+    }
+    
+    
+    /*
+     * Get stats of a record type saved in main file for a closed partition
+     * Returns null if partition is open or if stats must be computed from the partition file
+     */
+    protected RecordStats getSavedStats(Partition p, String recordType)
+    {
+        PartitionStats stats = getSavedStats(p);
+        return (stats != null) ? stats.getRecordStats(recordType) : null;
+    }
+    
+    
+    protected PartitionStats getSavedStats(Partition p)
+    {
+        PartitionedStorageRoot statsRoot = getStatsRoot();
+        if (p.db != null || statsRoot == null)
+            return null;
+        return statsRoot.getPartitionStats(p.startTime);
+    }
+    
+    
+    /*
+     * Discard saved partition stats before partition changes are committed
+     * Returns true if main file needs to be committed
+     */
+    protected boolean discardSavedStats(Partition p)
+    {
+        PartitionedStorageRoot statsRoot = getStatsRoot();
+        return statsRoot != null && statsRoot.removePartitionStats(p.startTime);
+    }
+    
+    
+    /*
+     * Commit partition changes now or mark them as pending depending on auto-commit setting
+     */
+    protected void commitPartition(Partition p)
+    {
+        if (autoCommit)
+        {
+            // main file is committed first so partition changes are never
+            // committed while stale stats or missing change log entries remain
+            boolean logged = getLastLoggedSeq() > committedSeq;
+            if (discardSavedStats(p) || logged)
+                super.commit();
+            
+            p.db.commit();
+            dropPartitionIfEmpty(p);
+        }
+        else
+            p.modified = true;
+    }
+    
+    
+    protected synchronized void dropPartitionIfEmpty(Partition p)
+    {
+        for (String recordType: p.root.getRecordStores().keySet())
+        {
+            if (p.root.getNumRecords(recordType) > 0)
+                return;
+        }
+        
+        dropPartition(p);
+    }
+    
+    
+    /*
+     * Remove partition and delete its file
+     */
+    protected synchronized void dropPartition(Partition p)
+    {
+        discardSavedStats(p);
+        p.dropped = true;
+        partitions.remove(p.startTime);
+        openPartitions.remove(p.startTime);
+        closePartition(p);
+        if (!p.file.delete())
+            p.file.deleteOnExit();
+    }
+
+
+    /**
+     * Writes a full copy of the main file and all partition files to the
+     * given output stream.<br/>
+     * The storage is locked while files are copied and only committed changes
+     * are included. Unlike with other PERST storages, backups are never
+     * incremental.
+     */
+    @Override
+    public synchronized void backup(OutputStream os) throws IOException
+    {
+        if (db == null)
+            throw new IOException("Storage " + getLocalID() + " is not started");
+        
+        List<File> files = new ArrayList<File>();
+        files.add(new File(config.storagePath));
+        for (Partition p: partitions.values())
+        {
+            // partitions created in current transaction may not have a file yet
+            if (p.file.exists())
+                files.add(p.file);
+        }
+        
+        DataOutputStream dos = new DataOutputStream(os);
+        dos.writeInt(BACKUP_MAGIC);
+        dos.writeInt(files.size());
+        byte[] buf = new byte[COPY_BUFFER_SIZE];
+        for (File f: files)
+        {
+            // file names are saved relative to main file
+            dos.writeUTF(f.getName().substring(new File(config.storagePath).getName().length()));
+            
+            InputStream is = new FileInputStream(f);
+            try
+            {
+                long length = f.length();
+                dos.writeLong(length);
+                while (length > 0)
+                {
+                    int count = is.read(buf, 0, (int)Math.min(buf.length, length));
+                    if (count < 0)
+                        throw new IOException("Storage file " + f + " was truncated during backup");
+                    dos.write(buf, 0, count);
+                    length -= count;
+                }
+            }
+            finally
+            {
+                is.close();
+            }
+        }
+        
+        dos.flush();
+    }
+
+
+    /**
+     * Restores the main file and all partition files from a backup.<br/>
+     * Partition files that are not included in the backup are deleted.
+     * The storage is stopped while the backup is applied.
+     */
+    @Override
+    public synchronized void restore(InputStream is) throws IOException
+    {
+        boolean started = (db != null);
+        List<File> restoredFiles = new ArrayList<File>();
+        
+        try
+        {
+            if (started)
+                stop();
+            
+            // write all files to temporary files first so storage is left
+            // unchanged if backup is incomplete
+            DataInputStream dis = new DataInputStream(is);
+            if (dis.readInt() != BACKUP_MAGIC)
+                throw new IOException("Invalid backup of partitioned storage " + getLocalID());
+            
+            int numFiles = dis.readInt();
+            byte[] buf = new byte[COPY_BUFFER_SIZE];
+            for (int i = 0; i < numFiles; i++)
+            {
+                String suffix = dis.readUTF();
+                if (!(suffix.isEmpty() || suffix.startsWith(PARTITION_SUFFIX)) || suffix.indexOf('/') >= 0 || suffix.indexOf('\\') >= 0)
+                    throw new IOException("Invalid file name in backup of partitioned storage " + getLocalID());
+                
+                File tmpFile = new File(config.storagePath + suffix + RESTORE_SUFFIX);
+                restoredFiles.add(tmpFile);
+                OutputStream os = new FileOutputStream(tmpFile);
+                try
+                {
+                    long length = dis.readLong();
+                    while (length > 0)
+                    {
+                        int count = dis.read(buf, 0, (int)Math.min(buf.length, length));
+                        if (count < 0)
+                            throw new IOException("Backup of partitioned storage " + getLocalID() + " is truncated");
+                        os.write(buf, 0, count);
+                        length -= count;
+                    }
+                }
+                finally
+                {
+                    os.close();
+                }
+            }
+            
+            // replace current files by restored ones
+            for (File f: listPartitionFiles())
+            {
+                String name = f.getName();
+                if (!name.endsWith(RESTORE_SUFFIX) && !name.endsWith(".deleted"))
+                    f.delete();
+            }
+            
+            for (File tmpFile: restoredFiles)
+            {
+                String path = tmpFile.getPath();
+                File file = new File(path.substring(0, path.length() - RESTORE_SUFFIX.length()));
+                file.delete();
+                if (!tmpFile.renameTo(file))
+                    throw new IOException("Cannot rename restored file to " + file);
+            }
+            restoredFiles.clear();
+            
+            if (started)
+                start();
+        }
+        catch (SensorHubException e)
+        {
+            throw new IOException("Error while restoring storage " + getLocalID(), e);
+        }
+        finally
+        {
+            for (File tmpFile: restoredFiles)
+                tmpFile.delete();
+        }
+    }
+
+
+    @Override
+    public synchronized void commit()
+    {
+        // main file is committed first, see commitPartition()
+        for (Partition p: openPartitions.values())
+        {
+            if (p.modified)
+                discardSavedStats(p);
+        }
+        
+        super.commit();
+        for (Partition p: new ArrayList<Partition>(openPartitions.values()))
+        {
+            p.db.commit();
+            if (p.modified)
+            {
+                p.modified = false;
+                dropPartitionIfEmpty(p);
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void rollback()
+    {
+        super.rollback();
+        for (Partition p: new ArrayList<Partition>(openPartitions.values()))
+        {
+            p.db.rollback();
+            p.root.onRollback();
+            if (p.modified)
+            {
+                // partitions created during the transaction are left empty
+                p.modified = false;
+                dropPartitionIfEmpty(p);
+            }
+        }
+    }
+    
+    
+    @Override
+    public synchronized void addRecordStore(String name, DataComponent recordStructure, DataEncoding recommendedEncoding)
+    {
+        super.addRecordStore(name, recordStructure, recommendedEncoding);
+        
+        // closed partitions will get it when reopened
+        for (Partition p: new ArrayList<Partition>(openPartitions.values()))
+        {
+            p.root.addRecordStore(name, recordStructure.copy(), recommendedEncoding);
+            commitPartition(p);
+        }
+    }
+
+
+    @Override
+    public synchronized int getNumRecords(String recordType)
+    {
+        int count = 0;
+        for (Partition p: getPartitions(new DataFilter(recordType)))
+        {
+            RecordStats stats = getSavedStats(p, recordType);
+            count += (stats != null) ? stats.numRecords : openPartition(p).getNumRecords(recordType);
+        }
+        
+        return count;
+    }
+
+    
+    @Override
+    public synchronized double[] getRecordsTimeRange(String recordType)
+    {
+        List<Partition> selected = getPartitions(new DataFilter(recordType));
+        double[] timeRange = new double[] {Double.NaN, Double.NaN};
+        
+        for (int i = 0; i < selected.size() && Double.isNaN(timeRange[0]); i++)
+            timeRange[0] = getPartitionTimeRange(selected.get(i), recordType)[0];
+        
+        for (int i = selected.size()-1; i >= 0 && Double.isNaN(timeRange[1]); i--)
+            timeRange[1] = getPartitionTimeRange(selected.get(i), recordType)[1];
+        
+        return timeRange;
+    }
+    
+    
+    protected double[] getPartitionTimeRange(Partition p, String recordType)
+    {
+        RecordStats stats = getSavedStats(p, recordType);
+        return (stats != null) ? stats.timeRange : openPartition(p).getRecordsTimeRange(recordType);
+    }
+    
+    
+    @Override
+    public synchronized Iterator<double[]> getRecordsTimeClusters(String recordType)
+    {
+        // merge clusters of consecutive partitions if gap is small enough
+        List<double[]> clusters = new ArrayList<double[]>();
+        for (Partition p: getPartitions(new DataFilter(recordType)))
+        {
+            RecordStats stats = getSavedStats(p, recordType);
+            Iterator<double[]> it = (stats != null) ? stats.getClusters() : openPartition(p).getRecordsTimeClusters(recordType);
+            while (it.hasNext())
+            {
+                double[] cluster = it.next();
+                double[] last = clusters.isEmpty() ? null : clusters.get(clusters.size()-1);
+                if (last != null && cluster[0] - last[1] <= config.timeClusterGap)
+                    last[1] = cluster[1];
+                else
+                    clusters.add(cluster);
+            }
+        }
+        
+        return clusters.iterator();
+    }
+    
+    
+    @Override
+    public synchronized DataBlock getDataBlock(DataKey key)
+    {
+        Partition p = findPartition(key.timeStamp, false);
+        if (p == null)
+            return null;
+        return openPartition(p).getDataBlock(key);
+    }
+
+
+    @Override
+    public Iterator<DataBlock> getDataBlockIterator(final IDataFilter filter)
+    {
+        return new PartitionIterator<DataBlock>(filter) {
+            protected DataBlock getValue(IDataRecord rec)
+            {
+                return rec.getData();
+            }
+        };
+    }
+
+
+    @Override
+    public Iterator<? extends IDataRecord> getRecordIterator(final IDataFilter filter)
+    {
+        return new PartitionIterator<IDataRecord>(filter) {
+            protected IDataRecord getValue(IDataRecord rec)
+            {
+                return rec;
+            }
+        };
+    }
+
+
+    @Override
+    public synchronized int getNumMatchingRecords(IDataFilter filter, long maxCount)
+    {
+        int count = 0;
+        for (Partition p: getPartitions(filter))
+        {
+            count += openPartition(p).getNumMatchingRecords(filter, maxCount - count);
+            if (count > maxCount)
+                break;
+        }
+        
+        return count;
+    }
+    
+
+    @Override
+    public synchronized void storeRecord(DataKey key, DataBlock data)
+    {
+        Partition p = findPartition(key.timeStamp, true);
+        openPartition(p).storeRecord(key, data);
+        logRecordChange(StorageChange.Type.STORE_RECORD, key);
+        commitPartition(p);
+        
+        eventHandler.publishEvent(new StorageEvent(System.currentTimeMillis(), this, key.recordType, Type.STORE));
+    }
+
+
+    @Override
+    public synchronized void updateRecord(DataKey key, DataBlock data)
+    {
+        Partition p = findPartition(key.timeStamp, false);
+        if (p == null)
+            return;
+        
+        openPartition(p).updateRecord(key, data);
+        logRecordChange(StorageChange.Type.UPDATE_RECORD, key);
+        commitPartition(p);
+        
+        eventHandler.publishEvent(new StorageEvent(System.currentTimeMillis(), this, key.recordType, Type.UPDATE));
+    }
+
+
+    @Override
+    public synchronized void removeRecord(DataKey key)
+    {
+        Partition p = findPartition(key.timeStamp, false);
+        if (p == null)
+            return;
+        
+        openPartition(p).removeRecord(key);
+        logRecordChange(StorageChange.Type.REMOVE_RECORD, key);
+        commitPartition(p);
+        
+        eventHandler.publishEvent(new StorageEvent(System.currentTimeMillis(), this, key.recordType, Type.DELETE));
+    }
+
+
+    @Override
+    public synchronized int removeRecords(IDataFilter filter)
+    {
+        String recordType = filter.getRecordType();
+        double[] timeRange = getTimeRange(filter);
+        boolean timeOnly = (filter.getFieldFilters() == null || filter.getFieldFilters().isEmpty());
+        int count = 0;
+        
+        if (config.enableChangeLog)
+            logRemovedRecords(filter);
+        
+        for (Partition p: getPartitions(filter))
+        {
+            // no need to open partitions without records of this type
+            RecordStats stats = getSavedStats(p, recordType);
+            if (stats != null && stats.numRecords == 0)
+                continue;
+            
+            BasicStorageRoot root = openPartition(p);
+            
+            // check if all records of this type in partition are in time range
+            boolean allRecords = false;
+            if (timeOnly && timeRange[0] <= p.startTime)
+            {
+                double lastTime = root.getRecordsTimeRange(recordType)[1];
+                allRecords = (timeRange[1] >= p.endTime || Double.isNaN(lastTime) || timeRange[1] >= lastTime);
+            }
+            
+            // partition file is deleted once all record types have been removed
+            if (allRecords)
+                count += root.detachRecords(recordType);
+            else
+                count += root.removeRecords(filter);
+            commitPartition(p);
+        }
+        
+        eventHandler.publishEvent(new StorageEvent(System.currentTimeMillis(), this, recordType, Type.DELETE));
+        return count;
+    }
+
+
+    @Override
+    public synchronized StorageIndexDescriptor addFieldIndex(String fieldPath, IndexType type)
+    {
+        boolean isNew = true;
+        for (StorageIndexDescriptor desc: getAllFieldIndexes())
+        {
+            if (desc.fieldPath.equals(fieldPath) && desc.type == type)
+                isNew = false;
+        }
+        
+        // index definition is kept in main file and closed partitions get it when reopened
+        StorageIndexDescriptor desc = ((BasicStorageRoot)dbRoot).addFieldIndex(fieldPath, type);
+        PartitionedStorageRoot statsRoot = getStatsRoot();
+        if (isNew && statsRoot != null)
+            statsRoot.resetFieldIndexingComplete();
+        
+        for (Partition p: new ArrayList<Partition>(openPartitions.values()))
+        {
+            p.root.addFieldIndex(fieldPath, type);
+            commitPartition(p);
+        }
+        
+        if (autoCommit)
+            super.commit();
+        
+        startIndexBackfill();
+        return desc;
+    }
+
+
+    @Override
+    public synchronized void removeFieldIndex(String indexId)
+    {
+        ((BasicStorageRoot)dbRoot).removeFieldIndex(indexId);
+        
+        for (Partition p: new ArrayList<Partition>(openPartitions.values()))
+        {
+            p.root.removeFieldIndex(indexId);
+            commitPartition(p);
+        }
+        
+        if (autoCommit)
+            super.commit();
+    }
+    
+    
+    /*
+     * Start background thread to index records stored in partitions before
+     * field indexes were added. Partitions are processed one at a time, in
+     * small batches, and partitions whose saved stats show that indexing is
+     * complete are skipped without being opened.
+     */
+    @Override
+    protected synchronized void startIndexBackfill()
+    {
+        // nothing to do until partitions are loaded
+        if (indexBackfillThread != null || partitions == null || getAllFieldIndexes().isEmpty())
+            return;
+        
+        indexBackfillThread = new Thread("IndexBackfill-" + getLocalID()) {
+            public void run()
+            {
+                long nextStartTime = Long.MIN_VALUE;
+                while (true)
+                {
+                    synchronized (PartitionedStorageImpl.this)
+                    {
+                        // exit if storage was stopped or another thread was started
+                        if (indexBackfillThread != this)
+                            return;
+                        
+                        Entry<Long, Partition> entry = partitions.ceilingEntry(nextStartTime);
+                        if (entry == null)
+                        {
+                            indexBackfillThread = null;
+                            return;
+                        }
+                        
+                        Partition p = entry.getValue();
+                        PartitionStats stats = getSavedStats(p);
+                        if (stats != null && stats.fieldIndexingComplete)
+                            nextStartTime = p.startTime + 1;
+                        else
+                        {
+                            if (!openPartition(p).backfillFieldIndexes(INDEX_BACKFILL_BATCH_SIZE))
+                                nextStartTime = p.startTime + 1;
+                            commitPartition(p);
+                        }
+                    }
+                    
+                    // give a chance to other threads to access storage
+                    Thread.yield();
+                }
+            }
+        };
+        
+        indexBackfillThread.setDaemon(true);
+        indexBackfillThread.start();
+    }
+}
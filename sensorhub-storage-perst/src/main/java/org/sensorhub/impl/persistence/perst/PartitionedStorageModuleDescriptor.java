@@ -0,0 +1,75 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import org.sensorhub.api.module.IModule;
+import org.sensorhub.api.module.IModuleProvider;
+import org.sensorhub.api.module.ModuleConfig;
+
+
+/**
+ * <p>
+ * Descriptor of PERST based time-partitioned storage module.
+ * This is needed for automatic discovery by the ModuleRegistry.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class PartitionedStorageModuleDescriptor implements IModuleProvider
+{
+
+    @Override
+    public String getModuleName()
+    {
+        return "PERST Partitioned Storage";
+    }
+
+
+    @Override
+    public String getModuleDescription()
+    {
+        return "Data record storage using one PERST database file per time window";
+    }
+
+
+    @Override
+    public String getModuleVersion()
+    {
+        return "0.5";
+    }
+
+
+    @Override
+    public String getProviderName()
+    {
+        return "Sensia Software LLC";
+    }
+
+
+    @Override
+    public Class<? extends IModule<?>> getModuleClass()
+    {
+        return PartitionedStorageImpl.class;
+    }
+
+
+    @Override
+    public Class<? extends ModuleConfig> getModuleConfigClass()
+    {
+        return PartitionedStorageConfig.class;
+    }
+
+}
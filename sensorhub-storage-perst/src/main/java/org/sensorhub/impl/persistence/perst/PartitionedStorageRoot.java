@@ -0,0 +1,210 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.garret.perst.Index;
+import org.garret.perst.Key;
+import org.garret.perst.Persistent;
+import org.garret.perst.Storage;
+
+
+/**
+ * <p>
+ * PERST root object of the main file of a time-partitioned storage.<br/>
+ * In addition to data source descriptions and record store definitions, it
+ * keeps record statistics of partitions, so that record counts, time ranges
+ * and time clusters can be computed without opening partition files.
+ * </p><p>
+ * Stats of a partition are saved when the partition file is closed and
+ * discarded before new changes to the partition are committed, so saved
+ * stats are never out of date, even after a crash.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+class PartitionedStorageRoot extends BasicStorageRoot
+{
+    Index<PartitionStats> partitionStats;
+    
+    
+    /*
+     * Record stats of one partition
+     */
+    static class PartitionStats extends Persistent
+    {
+        long startTime;
+        double clusterGap; // gap used to compute time clusters
+        boolean fieldIndexingComplete;
+        Map<String, RecordStats> recordStats;
+        
+        // default constructor needed by PERST on Android JVM
+        PartitionStats() {}
+        
+        PartitionStats(Storage db, long startTime, BasicStorageRoot partitionRoot)
+        {
+            super(db);
+            this.startTime = startTime;
+            this.clusterGap = partitionRoot.getTimeClusterGap();
+            this.fieldIndexingComplete = partitionRoot.isFieldIndexingComplete();
+            this.recordStats = new HashMap<String, RecordStats>();
+            for (String recordType: partitionRoot.getRecordStores().keySet())
+                recordStats.put(recordType, new RecordStats(partitionRoot, recordType));
+        }
+        
+        RecordStats getRecordStats(String recordType)
+        {
+            RecordStats stats = recordStats.get(recordType);
+            if (stats == null)
+                return RecordStats.EMPTY;
+            return stats;
+        }
+    }
+    
+    
+    /*
+     * Stats of one record type in a partition
+     */
+    static class RecordStats
+    {
+        static final RecordStats EMPTY = new RecordStats();
+        
+        int numRecords;
+        double[] timeRange = new double[] {Double.NaN, Double.NaN};
+        double[] clusters = new double[0]; // start and end time of each cluster
+        
+        // default constructor needed by PERST on Android JVM
+        RecordStats() {}
+        
+        RecordStats(BasicStorageRoot partitionRoot, String recordType)
+        {
+            numRecords = partitionRoot.getNumRecords(recordType);
+            timeRange = partitionRoot.getRecordsTimeRange(recordType).clone();
+            
+            List<double[]> clusterList = new ArrayList<double[]>();
+            Iterator<double[]> it = partitionRoot.getRecordsTimeClusters(recordType);
+            while (it.hasNext())
+                clusterList.add(it.next());
+            
+            clusters = new double[clusterList.size()*2];
+            for (int i = 0; i < clusterList.size(); i++)
+            {
+                clusters[2*i] = clusterList.get(i)[0];
+                clusters[2*i+1] = clusterList.get(i)[1];
+            }
+        }
+        
+        Iterator<double[]> getClusters()
+        {
+            List<double[]> clusterList = new ArrayList<double[]>(clusters.length/2);
+            for (int i = 0; i < clusters.length; i += 2)
+                clusterList.add(new double[] {clusters[i], clusters[i+1]});
+            return clusterList.iterator();
+        }
+    }
+    
+    
+    // default constructor needed on Android JVM
+    PartitionedStorageRoot() {}
+    
+    
+    public PartitionedStorageRoot(Storage db)
+    {
+        super(db);
+        this.partitionStats = db.<PartitionStats>createIndex(long.class, true);
+    }
+    
+    
+    /*
+     * Get saved stats of partition starting at the given time
+     * Returns null if stats were not saved or were computed with a different time cluster gap
+     */
+    PartitionStats getPartitionStats(long startTime)
+    {
+        PartitionStats stats = partitionStats.get(new Key(startTime));
+        if (stats == null || stats.clusterGap != getTimeClusterGap())
+            return null;
+        return stats;
+    }
+    
+    
+    /*
+     * Compute and save stats of partition starting at the given time
+     */
+    void savePartitionStats(long startTime, BasicStorageRoot partitionRoot)
+    {
+        removePartitionStats(startTime);
+        PartitionStats stats = new PartitionStats(getStorage(), startTime, partitionRoot);
+        partitionStats.put(new Key(startTime), stats);
+    }
+    
+    
+    /*
+     * Discard saved stats of partition starting at the given time
+     * Returns true if stats were removed
+     */
+    boolean removePartitionStats(long startTime)
+    {
+        PartitionStats stats = partitionStats.get(new Key(startTime));
+        if (stats == null)
+            return false;
+        
+        partitionStats.remove(new Key(startTime), stats);
+        stats.deallocate();
+        return true;
+    }
+    
+    
+    /*
+     * Discard stats of partitions that don't exist anymore
+     * Returns true if stats were removed
+     */
+    boolean retainPartitionStats(Collection<Long> startTimes)
+    {
+        List<Long> removed = new ArrayList<Long>();
+        for (PartitionStats stats: partitionStats)
+        {
+            if (!startTimes.contains(stats.startTime))
+                removed.add(stats.startTime);
+        }
+        
+        for (long startTime: removed)
+            removePartitionStats(startTime);
+        
+        return !removed.isEmpty();
+    }
+    
+    
+    /*
+     * Mark all partitions as needing field indexing, after an index was added
+     */
+    void resetFieldIndexingComplete()
+    {
+        for (PartitionStats stats: partitionStats)
+        {
+            if (stats.fieldIndexingComplete)
+            {
+                stats.fieldIndexingComplete = false;
+                stats.modify();
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ import net.opengis.gml.v32.AbstractGeometry;
 import net.opengis.gml.v32.LineString;
 import net.opengis.gml.v32.Point;
 import net.opengis.gml.v32.Polygon;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
 
 
 public class PerstUtils
@@ -119,6 +122,61 @@ public class PerstUtils
     }
     
     
+    /**
+     * Converts a GML geometry to a JTS geometry so it can be used in spatial predicates
+     * @param geom GML geometry
+     * @param geomFactory factory used to create JTS geometry
+     * @return JTS geometry or null if geometry type is not supported
+     */
+    public static Geometry toJtsGeometry(AbstractGeometry geom, GeometryFactory geomFactory)
+    {
+        int numDims = geom.isSetSrsDimension() ? geom.getSrsDimension() : -1;
+        
+        try
+        {
+            if (geom instanceof Point)
+            {
+                double[] pos = ((Point)geom).getPos();
+                return geomFactory.createPoint(new Coordinate(pos[0], pos[1]));
+            }
+            
+            else if (geom instanceof LineString)
+            {
+                double[] posList = ((LineString)geom).getPosList();
+                return geomFactory.createLineString(toCoordinates(numDims, posList));
+            }
+            
+            else if (geom instanceof Polygon)
+            {
+                double[] posList = ((Polygon)geom).getExterior().getPosList();
+                return geomFactory.createPolygon(geomFactory.createLinearRing(toCoordinates(numDims, posList)), null);
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            // invalid geometry such as unclosed ring
+        }
+        
+        return null;
+    }
+    
+    
+    private static Coordinate[] toCoordinates(int numDims, double[] geomCoords)
+    {
+        // try to guess number of dimensions if not specified
+        if (numDims < 2 && geomCoords.length % 2 == 0)
+            numDims = 2;
+        else if (numDims < 2)
+            numDims = 3;
+        
+        Coordinate[] coords = new Coordinate[geomCoords.length / numDims];
+        for (int p = 0, c = 0; p < coords.length; p++, c += numDims)
+            coords[p] = new Coordinate(geomCoords[c], geomCoords[c+1]);
+        
+        return coords;
+    }
+    
+    
     public static Bbox toBbox(RectangleRn rect)
     {
         int nDims = rect.nDimensions();
@@ -0,0 +1,395 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.Arrays;
+import net.opengis.swe.v20.DataBlock;
+import org.garret.perst.Persistent;
+import org.garret.perst.Storage;
+import org.sensorhub.impl.persistence.perst.ColumnCodec.TimeStampCodec;
+
+
+/**
+ * <p>
+ * Chunk of consecutive records with the same structure, stored column by
+ * column. The first column contains the time stamps and the following ones
+ * contain the values of each atom of the data blocks.<br/>
+ * New records can be appended to the chunk as long as their time stamp is
+ * later than the last record's. They are first encoded in a small tail
+ * object so that committing after each record only rewrites the tail. The
+ * tail is merged with the rest of the chunk once it is full or when the chunk
+ * is complete.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Nov 25, 2015
+ */
+class RecordChunk extends Persistent
+{
+    static final int MAX_TAIL_RECORDS = 128;
+
+    double startTime;
+    double endTime; // excluding tail
+    int numRecords; // excluding tail
+    byte[] columnTypes;
+    DataBlock template;
+    byte[] data;
+    int[] columnOffsets;
+    Tail tail;
+    transient Encoder encoder;
+    transient Encoder tailEncoder;
+
+
+    /*
+     * Records appended since the chunk was last merged
+     */
+    static class Tail extends Persistent
+    {
+        double endTime;
+        int numRecords;
+        byte[] data;
+        int[] columnOffsets;
+
+        // default constructor needed by PERST on Android JVM
+        Tail() {}
+
+        Tail(Storage db)
+        {
+            super(db);
+        }
+    }
+
+
+    /*
+     * Encoder state kept while records are appended to the chunk
+     */
+    class Encoder
+    {
+        TimeStampCodec timeCodec = new TimeStampCodec();
+        ColumnCodec[] codecs;
+        BitWriter[] columns;
+        int numRecords;
+        boolean dirty;
+        byte[] encodedData;
+        int[] encodedOffsets;
+
+        Encoder()
+        {
+            int numColumns = columnTypes.length;
+            codecs = new ColumnCodec[numColumns];
+            columns = new BitWriter[numColumns + 1];
+
+            columns[0] = new BitWriter();
+            for (int i = 0; i < numColumns; i++)
+            {
+                codecs[i] = ColumnCodec.create(columnTypes[i]);
+                columns[i+1] = new BitWriter();
+            }
+        }
+
+        void append(double time, DataBlock rec)
+        {
+            timeCodec.write(columns[0], time);
+            for (int i = 0; i < codecs.length; i++)
+                codecs[i].write(columns[i+1], rec, i);
+            numRecords++;
+            dirty = true;
+        }
+
+        void flush()
+        {
+            int[] offsets = new int[columns.length + 1];
+            for (int i = 0; i < columns.length; i++)
+                offsets[i+1] = offsets[i] + columns[i].getByteLength();
+
+            byte[] buf = new byte[offsets[columns.length]];
+            for (int i = 0; i < columns.length; i++)
+                columns[i].copyTo(buf, offsets[i]);
+
+            encodedData = buf;
+            encodedOffsets = offsets;
+            dirty = false;
+        }
+    }
+
+
+    /*
+     * Decodes records sequentially from a snapshot of the chunk content
+     */
+    class Reader
+    {
+        final int numRecords;
+        final byte[] data;
+        final int[] columnOffsets;
+        double[] timeStamps;
+        ColumnCodec[] codecs;
+        BitReader[] columns;
+        int nextValueIndex;
+
+        Reader(int numRecords, byte[] data, int[] columnOffsets)
+        {
+            this.numRecords = numRecords;
+            this.data = data;
+            this.columnOffsets = columnOffsets;
+        }
+
+        final double[] getTimeStamps()
+        {
+            if (timeStamps == null)
+            {
+                TimeStampCodec timeCodec = new TimeStampCodec();
+                BitReader in = new BitReader(data, columnOffsets[0]);
+                timeStamps = new double[numRecords];
+                for (int i = 0; i < numRecords; i++)
+                    timeStamps[i] = timeCodec.read(in);
+            }
+
+            return timeStamps;
+        }
+
+        /*
+         * Decode record at given index
+         * This is efficient only if records are read in increasing index order
+         */
+        final DataBlock getRecord(int index)
+        {
+            if (codecs == null || index < nextValueIndex)
+            {
+                int numColumns = columnTypes.length;
+                codecs = new ColumnCodec[numColumns];
+                columns = new BitReader[numColumns];
+                for (int i = 0; i < numColumns; i++)
+                {
+                    codecs[i] = ColumnCodec.create(columnTypes[i]);
+                    columns[i] = new BitReader(data, columnOffsets[i+1]);
+                }
+                nextValueIndex = 0;
+            }
+
+            // skip records we're not interested in
+            while (nextValueIndex < index)
+                readRecord(null);
+
+            DataBlock rec = template.renew();
+            readRecord(rec);
+            return rec;
+        }
+
+        private void readRecord(DataBlock rec)
+        {
+            for (int i = 0; i < codecs.length; i++)
+                codecs[i].read(columns[i], rec, i);
+            nextValueIndex++;
+        }
+
+        /*
+         * Binary search for index of first record with time stamp >= time
+         */
+        final int findIndex(double time)
+        {
+            double[] timeStamps = getTimeStamps();
+            int index = Arrays.binarySearch(timeStamps, time);
+            return (index < 0) ? -(index + 1) : index;
+        }
+    }
+
+
+    // default constructor needed by PERST on Android JVM
+    RecordChunk() {}
+
+
+    RecordChunk(Storage db, double time, DataBlock rec, byte[] columnTypes)
+    {
+        super(db);
+        this.columnTypes = columnTypes;
+        this.template = rec.renew();
+        this.startTime = time;
+        this.endTime = time;
+        this.numRecords = 1;
+        this.encoder = new Encoder();
+        encoder.append(time, rec);
+        encoder.flush();
+        this.data = encoder.encodedData;
+        this.columnOffsets = encoder.encodedOffsets;
+        this.tail = new Tail(db);
+    }
+
+
+    final synchronized boolean canAppend(double time, byte[] recordTypes, int maxRecords, double maxDuration)
+    {
+        return time > getEndTime() &&
+               getNumRecords() < maxRecords &&
+               time - startTime <= maxDuration &&
+               Arrays.equals(columnTypes, recordTypes);
+    }
+
+
+    final synchronized int getNumRecords()
+    {
+        return (tail != null) ? numRecords + tail.numRecords : numRecords;
+    }
+
+
+    final synchronized double getEndTime()
+    {
+        return (tail != null && tail.numRecords > 0) ? tail.endTime : endTime;
+    }
+
+
+    /*
+     * Appends a record to the tail.
+     * Only the tail is modified so the cost of a commit doesn't depend on
+     * the number of records already in the chunk.
+     */
+    final synchronized void appendRecord(double time, DataBlock rec)
+    {
+        // chunks created before tails were introduced
+        if (tail == null)
+        {
+            tail = new Tail(getStorage());
+            modify();
+        }
+
+        // keep full chunk encoder in sync if we have one
+        if (encoder != null && encoder.numRecords == getNumRecords())
+            encoder.append(time, rec);
+        else
+            encoder = null;
+
+        ensureTailEncoder();
+        tailEncoder.append(time, rec);
+        tailEncoder.flush();
+        tail.data = tailEncoder.encodedData;
+        tail.columnOffsets = tailEncoder.encodedOffsets;
+        tail.endTime = time;
+        tail.numRecords++;
+        tail.modify();
+
+        if (tail.numRecords >= MAX_TAIL_RECORDS)
+            mergeTail();
+    }
+
+
+    /*
+     * Merges tail records with the rest of the chunk.
+     * This rewrites the whole chunk so it is only done when the tail is full
+     * or when no more records are expected to be appended.
+     */
+    final synchronized void mergeTail()
+    {
+        if (tail == null || tail.numRecords == 0)
+            return;
+
+        ensureEncoder();
+        if (encoder.dirty)
+            encoder.flush();
+        data = encoder.encodedData;
+        columnOffsets = encoder.encodedOffsets;
+        numRecords = encoder.numRecords;
+        endTime = tail.endTime;
+        modify();
+
+        tail.numRecords = 0;
+        tail.data = null;
+        tail.columnOffsets = null;
+        tail.modify();
+        tailEncoder = null;
+    }
+
+
+    /*
+     * Merges tail records and releases encoder state once no more records
+     * are expected to be appended to the chunk.
+     * Encoders are rebuilt from the encoded data if the chunk is modified again.
+     */
+    final synchronized void seal()
+    {
+        mergeTail();
+        encoder = null;
+        tailEncoder = null;
+    }
+
+
+    /*
+     * Get a reader on the records currently stored in the chunk.
+     * The reader is not affected by records appended afterwards.
+     */
+    final synchronized Reader getReader()
+    {
+        if (tail == null || tail.numRecords == 0)
+            return new Reader(numRecords, data, columnOffsets);
+
+        ensureEncoder();
+        if (encoder.dirty)
+            encoder.flush();
+        return new Reader(encoder.numRecords, encoder.encodedData, encoder.encodedOffsets);
+    }
+
+
+    /*
+     * Rebuilds full chunk encoder from merged and tail records if needed.
+     * Counts are checked since the encoder is stale if the chunk
+     * was reloaded after a rollback.
+     */
+    private void ensureEncoder()
+    {
+        if (encoder != null && encoder.numRecords == getNumRecords())
+            return;
+
+        encoder = new Encoder();
+        appendAll(encoder, new Reader(numRecords, data, columnOffsets));
+        if (tail != null && tail.numRecords > 0)
+            appendAll(encoder, new Reader(tail.numRecords, tail.data, tail.columnOffsets));
+    }
+
+
+    private void ensureTailEncoder()
+    {
+        if (tailEncoder != null && tailEncoder.numRecords == tail.numRecords)
+            return;
+
+        tailEncoder = new Encoder();
+        if (tail.numRecords > 0)
+            appendAll(tailEncoder, new Reader(tail.numRecords, tail.data, tail.columnOffsets));
+    }
+
+
+    private void appendAll(Encoder encoder, Reader reader)
+    {
+        double[] timeStamps = reader.getTimeStamps();
+        for (int i = 0; i < timeStamps.length; i++)
+            encoder.append(timeStamps[i], reader.getRecord(i));
+    }
+
+
+    @Override
+    public synchronized void onLoad()
+    {
+        // encoder state is lost when object is reloaded after a rollback
+        encoder = null;
+        tailEncoder = null;
+    }
+
+
+    @Override
+    public void deallocate()
+    {
+        if (template != null)
+            getStorage().deallocate(template);
+        if (tail != null)
+            tail.deallocate();
+        super.deallocate();
+    }
+}
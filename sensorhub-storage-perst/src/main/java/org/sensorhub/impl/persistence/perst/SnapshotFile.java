@@ -0,0 +1,448 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.garret.perst.IFile;
+
+
+/**
+ * <p>
+ * PERST file wrapper keeping track of blocks modified since the last snapshot
+ * so that incremental snapshots only contain the modified blocks.<br/>
+ * Snapshots are taken online: once a snapshot is started, blocks are copied
+ * while the database keeps being written, and blocks that are about to be
+ * overwritten before they were copied are saved to a temporary file first, so
+ * memory usage doesn't grow with the write rate. The snapshot thus always
+ * contains the exact file content at the time it was started.
+ * </p><p>
+ * A snapshot in progress is aborted if the file is closed, or if a block
+ * cannot be saved to the temporary file. The database is never affected,
+ * and blocks of the aborted snapshot are included in the next one.
+ * </p><p>
+ * Snapshots are written as a header followed by the modified blocks, each with
+ * its own CRC32 checksum, and a CRC32 of the whole stream. The first snapshot
+ * taken after the file is opened is always a full snapshot.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+class SnapshotFile implements IFile
+{
+    static final int MAGIC = 0x53485350;
+    static final int VERSION = 1;
+    static final int BLOCK_SIZE = 64*1024;
+    static final long NO_PARENT = -1;
+    
+    final IFile file;
+    final File spillFile; // temp file where blocks are saved before modification
+    BitSet dirtyBlocks = new BitSet();
+    boolean allDirty = true; // true until a full snapshot has been taken
+    long lastSnapshotId = NO_PARENT;
+    Snapshot activeSnapshot;
+    
+    
+    class Snapshot
+    {
+        final long id;
+        final long parentId;
+        final long fileLength;
+        final BitSet blocks; // all blocks included in snapshot
+        final BitSet pendingBlocks; // blocks not copied yet
+        final TreeMap<Integer, Long> savedBlocks = new TreeMap<Integer, Long>(); // spill file offsets of blocks saved before modification
+        FileChannel spillChannel;
+        long spillLength;
+        IOException error; // set if snapshot must be aborted
+        
+        Snapshot(long id, long parentId, long fileLength, BitSet blocks)
+        {
+            this.id = id;
+            this.parentId = parentId;
+            this.fileLength = fileLength;
+            this.blocks = blocks;
+            this.pendingBlocks = (BitSet)blocks.clone();
+        }
+    }
+    
+    
+    SnapshotFile(IFile file, String path)
+    {
+        this.file = file;
+        this.spillFile = new File(path + ".snapshot.tmp");
+    }
+    
+    
+    /*
+     * Start new snapshot with content of the file at this time
+     * This must be called when no commit is in progress
+     */
+    synchronized Snapshot beginSnapshot() throws IOException
+    {
+        if (activeSnapshot != null)
+            throw new IOException("Another snapshot is already in progress");
+        
+        long fileLength = file.length();
+        BitSet blocks;
+        long parentId;
+        if (allDirty)
+        {
+            blocks = new BitSet();
+            blocks.set(0, getNumBlocks(fileLength));
+            parentId = NO_PARENT;
+        }
+        else
+        {
+            blocks = dirtyBlocks;
+            parentId = lastSnapshotId;
+        }
+        
+        dirtyBlocks = new BitSet();
+        allDirty = false;
+        
+        long id = Math.max(System.currentTimeMillis(), lastSnapshotId + 1);
+        activeSnapshot = new Snapshot(id, parentId, fileLength, blocks);
+        return activeSnapshot;
+    }
+    
+    
+    /*
+     * Copy snapshot blocks to output stream
+     * This is done without blocking writes, except while each block is read
+     */
+    void writeSnapshot(Snapshot snapshot, OutputStream os) throws IOException
+    {
+        boolean done = false;
+        
+        try
+        {
+            CheckedOutputStream checkedOut = new CheckedOutputStream(new BufferedOutputStream(os), new CRC32());
+            DataOutputStream dos = new DataOutputStream(checkedOut);
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(snapshot.id);
+            dos.writeLong(snapshot.parentId);
+            dos.writeInt(BLOCK_SIZE);
+            dos.writeLong(snapshot.fileLength);
+            
+            int numBlocks = 0;
+            CRC32 blockCrc = new CRC32();
+            while (true)
+            {
+                int blockIndex;
+                long spillPos = -1;
+                byte[] data = null;
+                
+                synchronized (this)
+                {
+                    if (snapshot.error != null)
+                        throw new IOException("Snapshot " + snapshot.id + " was aborted", snapshot.error);
+                    
+                    // first write blocks that were saved before being modified
+                    Entry<Integer, Long> saved = snapshot.savedBlocks.pollFirstEntry();
+                    if (saved != null)
+                    {
+                        blockIndex = saved.getKey();
+                        spillPos = saved.getValue();
+                    }
+                    else
+                    {
+                        blockIndex = snapshot.pendingBlocks.nextSetBit(0);
+                        if (blockIndex < 0)
+                            break;
+                        snapshot.pendingBlocks.clear(blockIndex);
+                        data = readBlock(blockIndex, snapshot.fileLength);
+                    }
+                }
+                
+                // saved blocks are never overwritten so they can be read without lock
+                if (spillPos >= 0)
+                    data = readSavedBlock(snapshot, blockIndex, spillPos);
+                
+                if (data == null)
+                    continue;
+                
+                blockCrc.reset();
+                blockCrc.update(data);
+                dos.writeLong(blockIndex);
+                dos.writeInt(data.length);
+                dos.write(data);
+                dos.writeLong(blockCrc.getValue());
+                numBlocks++;
+            }
+            
+            dos.writeLong(-1L);
+            dos.writeInt(numBlocks);
+            dos.flush();
+            dos.writeLong(checkedOut.getChecksum().getValue());
+            dos.flush();
+            done = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                activeSnapshot = null;
+                closeSpillFile(snapshot);
+                
+                // blocks of a failed snapshot must be included in the next one
+                if (done)
+                    lastSnapshotId = snapshot.id;
+                else if (snapshot.parentId == NO_PARENT)
+                    allDirty = true;
+                else
+                    dirtyBlocks.or(snapshot.blocks);
+            }
+        }
+    }
+    
+    
+    /*
+     * Apply snapshot read from input stream to the given file
+     * Incremental snapshots can only be applied on top of their parent snapshot
+     * Returns ID of applied snapshot
+     */
+    static long applySnapshot(InputStream is, RandomAccessFile raf, long lastAppliedId) throws IOException
+    {
+        CheckedInputStream checkedIn = new CheckedInputStream(new BufferedInputStream(is), new CRC32());
+        DataInputStream dis = new DataInputStream(checkedIn);
+        if (dis.readInt() != MAGIC)
+            throw new IOException("Not a storage snapshot");
+        if (dis.readInt() != VERSION)
+            throw new IOException("Unsupported snapshot version");
+        
+        long id = dis.readLong();
+        long parentId = dis.readLong();
+        int blockSize = dis.readInt();
+        long fileLength = dis.readLong();
+        if (parentId != NO_PARENT && parentId != lastAppliedId)
+            throw new IOException("Snapshot " + id + " can only be restored on top of snapshot " + parentId);
+        
+        if (parentId == NO_PARENT)
+            raf.setLength(0);
+        
+        int numBlocks = 0;
+        CRC32 blockCrc = new CRC32();
+        long blockIndex;
+        while ((blockIndex = dis.readLong()) >= 0)
+        {
+            int length = dis.readInt();
+            if (length < 0 || length > blockSize)
+                throw new IOException("Invalid block size in snapshot " + id);
+            
+            byte[] data = new byte[length];
+            dis.readFully(data);
+            blockCrc.reset();
+            blockCrc.update(data);
+            if (dis.readLong() != blockCrc.getValue())
+                throw new IOException("Checksum error in block " + blockIndex + " of snapshot " + id);
+            
+            raf.seek(blockIndex * blockSize);
+            raf.write(data);
+            numBlocks++;
+        }
+        
+        if (dis.readInt() != numBlocks)
+            throw new IOException("Missing blocks in snapshot " + id);
+        long crc = checkedIn.getChecksum().getValue();
+        if (dis.readLong() != crc)
+            throw new IOException("Checksum error in snapshot " + id);
+        
+        raf.setLength(fileLength);
+        return id;
+    }
+    
+    
+    private int getNumBlocks(long fileLength)
+    {
+        return (int)((fileLength + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+    
+    
+    /*
+     * Read block as it was when snapshot was started, or null if block was past end of file
+     */
+    private byte[] readBlock(int blockIndex, long fileLength)
+    {
+        long pos = (long)blockIndex * BLOCK_SIZE;
+        int length = (int)Math.min(BLOCK_SIZE, fileLength - pos);
+        if (length <= 0)
+            return null;
+        
+        byte[] data = new byte[length];
+        file.read(pos, data);
+        return data;
+    }
+
+
+    /*
+     * Read block saved to spill file before it was modified
+     */
+    private byte[] readSavedBlock(Snapshot snapshot, int blockIndex, long spillPos) throws IOException
+    {
+        long pos = (long)blockIndex * BLOCK_SIZE;
+        ByteBuffer buf = ByteBuffer.allocate((int)Math.min(BLOCK_SIZE, snapshot.fileLength - pos));
+        while (buf.hasRemaining())
+        {
+            if (snapshot.spillChannel.read(buf, spillPos + buf.position()) < 0)
+                throw new EOFException("Snapshot spill file " + spillFile + " is truncated");
+        }
+        
+        return buf.array();
+    }
+    
+    
+    /*
+     * Save block that the active snapshot hasn't copied yet to spill file
+     * Snapshot is aborted if block cannot be saved, so database writes never fail
+     */
+    private void saveBlock(Snapshot snapshot, int blockIndex)
+    {
+        if (snapshot.error != null)
+            return;
+        
+        byte[] data = readBlock(blockIndex, snapshot.fileLength);
+        if (data == null)
+            return;
+        
+        try
+        {
+            if (snapshot.spillChannel == null)
+            {
+                spillFile.delete();
+                snapshot.spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            }
+            
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining())
+                snapshot.spillChannel.write(buf, snapshot.spillLength + buf.position());
+            
+            snapshot.savedBlocks.put(blockIndex, snapshot.spillLength);
+            snapshot.spillLength += data.length;
+        }
+        catch (IOException e)
+        {
+            snapshot.error = e;
+        }
+    }
+    
+    
+    private void closeSpillFile(Snapshot snapshot)
+    {
+        if (snapshot.spillChannel != null)
+        {
+            try { snapshot.spillChannel.close(); }
+            catch (IOException e) { }
+            snapshot.spillChannel = null;
+            spillFile.delete();
+        }
+    }
+
+
+    @Override
+    public synchronized void write(long pos, byte[] buf)
+    {
+        int firstBlock = (int)(pos / BLOCK_SIZE);
+        int lastBlock = (int)((pos + buf.length - 1) / BLOCK_SIZE);
+        
+        // save blocks that the active snapshot hasn't copied yet
+        if (activeSnapshot != null)
+        {
+            for (int i = activeSnapshot.pendingBlocks.nextSetBit(firstBlock); i >= 0 && i <= lastBlock; i = activeSnapshot.pendingBlocks.nextSetBit(i+1))
+            {
+                activeSnapshot.pendingBlocks.clear(i);
+                saveBlock(activeSnapshot, i);
+            }
+        }
+        
+        dirtyBlocks.set(firstBlock, lastBlock+1);
+        file.write(pos, buf);
+    }
+
+
+    /*
+     * Reads are not synchronized so they are never blocked by a snapshot
+     * Snapshot only needs to intercept writes to save blocks before they change
+     */
+    @Override
+    public int read(long pos, byte[] buf)
+    {
+        return file.read(pos, buf);
+    }
+
+
+    @Override
+    public synchronized void sync()
+    {
+        file.sync();
+    }
+
+
+    @Override
+    public boolean tryLock(boolean shared)
+    {
+        return file.tryLock(shared);
+    }
+
+
+    @Override
+    public void lock(boolean shared)
+    {
+        file.lock(shared);
+    }
+
+
+    @Override
+    public void unlock()
+    {
+        file.unlock();
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        // snapshot in progress can't read the file anymore
+        if (activeSnapshot != null && activeSnapshot.error == null)
+            activeSnapshot.error = new IOException("Storage file was closed");
+        
+        file.close();
+    }
+
+
+    @Override
+    public synchronized long length()
+    {
+        return file.length();
+    }
+}
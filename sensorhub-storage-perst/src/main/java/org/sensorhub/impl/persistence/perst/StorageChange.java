@@ -0,0 +1,118 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.impl.persistence.perst;
+
+import net.opengis.gml.v32.AbstractFeature;
+import net.opengis.sensorml.v20.AbstractProcess;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import net.opengis.swe.v20.DataEncoding;
+import org.sensorhub.api.persistence.DataKey;
+
+
+/**
+ * <p>
+ * Change read from the change log of a storage and sent to another storage
+ * during synchronization.<br/>
+ * Only the fields relevant to the change type are set.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+public class StorageChange
+{
+    // ordinals are stored in change log so new types must be added at the end
+    public enum Type
+    {
+        ADD_RECORD_STORE,
+        STORE_RECORD,
+        UPDATE_RECORD,
+        REMOVE_RECORD,
+        REMOVE_RECORDS,
+        STORE_DESCRIPTION,
+        UPDATE_DESCRIPTION,
+        REMOVE_DESCRIPTION,
+        REMOVE_DESCRIPTION_HISTORY,
+        STORE_FOI,
+        ADD_DATA_STORE
+    }
+    
+    
+    /**
+     * Sequence number of change in the source storage change log
+     */
+    public long seq;
+    
+    
+    /**
+     * Type of change
+     */
+    public Type type;
+    
+    
+    /**
+     * Name of record store (record store and record removal changes)
+     */
+    public String recordType;
+    
+    
+    /**
+     * Record structure and encoding (record store changes)
+     */
+    public DataComponent recordStructure;
+    public DataEncoding recommendedEncoding;
+    
+    
+    /**
+     * Record key and data (record changes)
+     */
+    public DataKey key;
+    public DataBlock data;
+    
+    
+    /**
+     * Time range of removed records or descriptions (removal changes).<br/>
+     * Start time is also the time of the removed description.
+     */
+    public double startTime = Double.NaN;
+    public double endTime = Double.NaN;
+    
+    
+    /**
+     * IDs of producers whose records were removed, null for all
+     */
+    public String[] producerIDs;
+    
+    
+    /**
+     * Data source description (description changes)
+     */
+    public AbstractProcess description;
+    
+    
+    /**
+     * Feature of interest and its producer (FOI and data store changes)
+     */
+    public AbstractFeature foi;
+    public String producerID;
+    
+    
+    public StorageChange(long seq, Type type)
+    {
+        this.seq = seq;
+        this.type = type;
+    }
+}
@@ -0,0 +1,262 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.impl.persistence.perst;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.garret.perst.Index;
+import org.garret.perst.Key;
+import org.garret.perst.Persistent;
+import org.garret.perst.Storage;
+
+
+/**
+ * <p>
+ * PERST persistent summary of the time clusters of a record store.<br/>
+ * A cluster is a time period in which consecutive records are never
+ * separated by more than the gap threshold. Clusters are indexed by start
+ * time and updated incrementally as records are added and removed, so
+ * clusters can be listed in time proportional to their number rather than
+ * to the number of records.
+ * </p>
+ *
+ * @author Alex Robin <alex.robin@sensiasoftware.com>
+ * @since Dec 4, 2015
+ */
+class TimeClusterSummary extends Persistent
+{
+    static final double DEFAULT_GAP = 60.0;
+    static Key KEY_START_ALL_TIME = new Key(Double.NEGATIVE_INFINITY);
+    static Key KEY_END_ALL_TIME = new Key(Double.POSITIVE_INFINITY);
+    
+    Index<TimeCluster> clusterIndex;
+    double gapThreshold;
+    
+    
+    static class TimeCluster extends Persistent
+    {
+        double startTime;
+        double endTime;
+        
+        // default constructor needed by PERST on Android JVM
+        TimeCluster() {}
+        
+        TimeCluster(double startTime, double endTime)
+        {
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+    
+    
+    // default constructor needed by PERST on Android JVM
+    TimeClusterSummary() {}
+    
+    
+    TimeClusterSummary(Storage db, double gapThreshold)
+    {
+        super(db);
+        this.clusterIndex = db.<TimeCluster>createIndex(double.class, true);
+        this.gapThreshold = gapThreshold;
+    }
+    
+    
+    /*
+     * Find last cluster starting before or at the given time
+     */
+    private TimeCluster findCluster(double time)
+    {
+        Iterator<TimeCluster> it = clusterIndex.iterator(KEY_START_ALL_TIME, new Key(time), Index.DESCENT_ORDER);
+        if (it.hasNext())
+            return it.next();
+        return null;
+    }
+    
+    
+    /*
+     * Find first cluster starting strictly after the given time
+     */
+    private TimeCluster findNextCluster(double time)
+    {
+        Iterator<TimeCluster> it = clusterIndex.iterator(new Key(time, false), KEY_END_ALL_TIME, Index.ASCENT_ORDER);
+        if (it.hasNext())
+            return it.next();
+        return null;
+    }
+    
+    
+    private void addCluster(double startTime, double endTime)
+    {
+        TimeCluster cluster = new TimeCluster(startTime, endTime);
+        clusterIndex.put(new Key(startTime), cluster);
+    }
+    
+    
+    private void removeCluster(TimeCluster cluster)
+    {
+        clusterIndex.remove(new Key(cluster.startTime), cluster);
+        cluster.deallocate();
+    }
+    
+    
+    private void moveClusterStart(TimeCluster cluster, double startTime)
+    {
+        clusterIndex.remove(new Key(cluster.startTime), cluster);
+        cluster.startTime = startTime;
+        cluster.modify();
+        clusterIndex.put(new Key(startTime), cluster);
+    }
+    
+    
+    /*
+     * Update clusters with the time stamp of a newly added record
+     */
+    void add(double time)
+    {
+        TimeCluster prev = findCluster(time);
+        if (prev != null && time <= prev.endTime)
+            return;
+        
+        TimeCluster next = findNextCluster(time);
+        boolean joinPrev = (prev != null && time - prev.endTime <= gapThreshold);
+        boolean joinNext = (next != null && next.startTime - time <= gapThreshold);
+        
+        if (joinPrev && joinNext)
+        {
+            // record fills the gap between two clusters
+            prev.endTime = next.endTime;
+            prev.modify();
+            removeCluster(next);
+        }
+        else if (joinPrev)
+        {
+            prev.endTime = time;
+            prev.modify();
+        }
+        else if (joinNext)
+        {
+            moveClusterStart(next, time);
+        }
+        else
+        {
+            addCluster(time, time);
+        }
+    }
+    
+    
+    /*
+     * Update clusters after all records in the given time range were removed
+     * prevTime and nextTime are the time stamps of the closest remaining records
+     * before and after the range, or NaN if there are none
+     */
+    void remove(double begin, double end, double prevTime, double nextTime)
+    {
+        // start with cluster containing begin time if any
+        TimeCluster first = findCluster(begin);
+        Key keyFirst = (first != null && first.endTime >= begin) ? new Key(first.startTime) : new Key(begin);
+        Iterator<TimeCluster> it = clusterIndex.iterator(keyFirst, new Key(end), Index.ASCENT_ORDER);
+        
+        // collect clusters first since index is modified
+        List<TimeCluster> clusters = new ArrayList<TimeCluster>();
+        while (it.hasNext())
+            clusters.add(it.next());
+        
+        for (TimeCluster cluster: clusters)
+        {
+            boolean cutStart = cluster.startTime >= begin;
+            boolean cutEnd = cluster.endTime <= end;
+            
+            if (cutStart && cutEnd)
+            {
+                removeCluster(cluster);
+            }
+            else if (!cutStart && !cutEnd)
+            {
+                // removed range is inside cluster, split it if gap is now too large
+                if (nextTime - prevTime > gapThreshold)
+                {
+                    double endTime = cluster.endTime;
+                    cluster.endTime = prevTime;
+                    cluster.modify();
+                    addCluster(nextTime, endTime);
+                }
+            }
+            else if (!cutStart)
+            {
+                cluster.endTime = prevTime;
+                cluster.modify();
+            }
+            else
+            {
+                moveClusterStart(cluster, nextTime);
+            }
+        }
+    }
+    
+    
+    /*
+     * Iterate through time range of all clusters
+     */
+    Iterator<double[]> getClusters()
+    {
+        final Iterator<TimeCluster> it = clusterIndex.iterator(KEY_START_ALL_TIME, KEY_END_ALL_TIME, Index.ASCENT_ORDER);
+        
+        return new Iterator<double[]>()
+        {
+            public boolean hasNext()
+            {
+                return it.hasNext();
+            }
+
+            public double[] next()
+            {
+                TimeCluster cluster = it.next();
+                return new double[] {cluster.startTime, cluster.endTime};
+            }
+
+            public void remove()
+            {
+            }
+        };
+    }
+    
+    
+    /*
+     * Get time range covered by all clusters (i.e. all records)
+     */
+    double[] getTimeRange()
+    {
+        Iterator<TimeCluster> it = clusterIndex.iterator(KEY_START_ALL_TIME, KEY_END_ALL_TIME, Index.ASCENT_ORDER);
+        if (!it.hasNext())
+            return new double[] { Double.NaN, Double.NaN };
+        TimeCluster first = it.next();
+        
+        it = clusterIndex.iterator(KEY_START_ALL_TIME, KEY_END_ALL_TIME, Index.DESCENT_ORDER);
+        TimeCluster last = it.next();
+        
+        return new double[] { first.startTime, last.endTime };
+    }
+    
+    
+    @Override
+    public void deallocate()
+    {
+        clusterIndex.deallocateMembers();
+        clusterIndex.deallocate();
+        super.deallocate();
+    }
+}
@@ -15,8 +15,15 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 package org.sensorhub.impl.persistence.perst;
 
 import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import net.opengis.swe.v20.BinaryEncoding;
 import net.opengis.swe.v20.DataBlock;
 import net.opengis.swe.v20.DataComponent;
@@ -27,9 +34,11 @@ import org.garret.perst.Key;
 import org.garret.perst.Persistent;
 import org.garret.perst.Storage;
 import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
 import org.sensorhub.api.persistence.IDataFilter;
 import org.sensorhub.api.persistence.IDataRecord;
 import org.sensorhub.api.persistence.IRecordStoreInfo;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
 
 
 /**
@@ -48,6 +57,11 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
     DataComponent recordDescription;
     DataEncoding recommendedEncoding;
     Index<DataBlock> recordIndex;
+    boolean countedIndex; // true if record index maintains counts so record positions can be computed
+    ChunkedRecordStore chunkStore; // used instead of record index when set
+    Map<String, FieldIndexImpl> fieldIndexes; // null if no field index was ever added
+    TimeClusterSummary clusterSummary; // null in stores created before cluster summaries were maintained
+    transient double[] cachedTimeRange;
     
     
     /*
@@ -80,17 +94,100 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
         }     
     }
     
+    
+    /*
+     * Iterator skipping records that don't match all field filters
+     */
+    class FieldFilterIterator extends IterableIterator<Entry<Object,DataBlock>>
+    {
+        final Iterator<Entry<Object,DataBlock>> it;
+        final List<FieldFilter> filters;
+        final FieldValueReader[] readers;
+        Entry<Object,DataBlock> nextEntry;
+        
+        FieldFilterIterator(Iterator<Entry<Object,DataBlock>> it, List<FieldFilter> filters)
+        {
+            this.it = it;
+            this.filters = filters;
+            this.readers = new FieldValueReader[filters.size()];
+            
+            // no record can match if one of the fields doesn't exist
+            for (int i = 0; i < readers.length; i++)
+            {
+                readers[i] = FieldValueReader.create(recordDescription, filters.get(i).fieldPath);
+                if (readers[i] == null)
+                    return;
+            }
+            
+            fetchNext();
+        }
+        
+        private void fetchNext()
+        {
+            nextEntry = null;
+            
+            while (it.hasNext())
+            {
+                Entry<Object,DataBlock> entry = it.next();
+                if (matches(entry.getValue()))
+                {
+                    nextEntry = entry;
+                    return;
+                }
+            }
+        }
+        
+        private boolean matches(DataBlock data)
+        {
+            for (int i = 0; i < readers.length; i++)
+            {
+                if (!readers[i].matches(filters.get(i), data))
+                    return false;
+            }
+            
+            return true;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            return nextEntry != null;
+        }
+
+        @Override
+        public Entry<Object,DataBlock> next()
+        {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+            
+            Entry<Object,DataBlock> entry = nextEntry;
+            fetchNext();
+            return entry;
+        }
+    }
+    
 
     // default constructor needed on Android JVM
     TimeSeriesImpl() { }
 
 
     TimeSeriesImpl(Storage db, DataComponent recordDescription, DataEncoding recommendedEncoding)
+    {
+        this(db, recordDescription, recommendedEncoding, null);
+    }
+
+
+    TimeSeriesImpl(Storage db, DataComponent recordDescription, DataEncoding recommendedEncoding, ChunkedRecordStore chunkStore)
     {
         super(db);
         this.recordDescription = recordDescription;
         this.recommendedEncoding = recommendedEncoding;
-        recordIndex = db.<DataBlock> createIndex(double.class, true);
+        this.chunkStore = chunkStore;
+        if (chunkStore == null)
+        {
+            recordIndex = db.<DataBlock> createRandomAccessIndex(double.class, true);
+            countedIndex = true;
+        }
     }
 
 
@@ -133,12 +230,16 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
     
     int getNumRecords()
     {
+        if (chunkStore != null)
+            return chunkStore.getNumRecords();
         return recordIndex.size();
     }
 
 
     DataBlock getDataBlock(DataKey key)
     {
+        if (chunkStore != null)
+            return chunkStore.get(key.timeStamp);
         return recordIndex.get(new Key(key.timeStamp));
     }
 
@@ -168,11 +269,52 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
     }
 
 
-    int getNumMatchingRecords(IDataFilter filter, long maxCount)
-    {
-        // use entry iterator so datablocks are not loaded during scan
-        IterableIterator<Entry<Object, DataBlock>> it = getEntryIterator(filter);
+    int getNumMatchingRecords(IDataFilter filter, long maxCount)
+    {
+        // count records directly from index if only time range is used
+        Collection<FieldFilter> fieldFilters = filter.getFieldFilters();
+        if (fieldFilters == null || fieldFilters.isEmpty())
+        {
+            double[] timeRange = getTimeRange(filter);
+            return getNumRecordsInRange(timeRange[0], timeRange[1], maxCount);
+        }
+        
+        return countEntries(getEntryIterator(filter), maxCount);
+    }
+    
+    
+    /*
+     * Count records within the given time range
+     * With a counted index, the count is computed from the positions of the first
+     * and last records in range, without scanning entries in between
+     */
+    int getNumRecordsInRange(double begin, double end, long maxCount)
+    {
+        // chunks fully included in time range are counted without decoding
+        if (chunkStore != null)
+            return chunkStore.getNumMatchingRecords(begin, end, maxCount);
+        
+        if (!countedIndex)
+            return countEntries(getEntryIterator(begin, end), maxCount);
+        
+        IterableIterator<Entry<Object, DataBlock>> it;
+        it = recordIndex.entryIterator(new Key(begin), new Key(end), Index.ASCENT_ORDER);
+        if (!it.hasNext())
+            return 0;
+        Entry<Object, DataBlock> first = it.next();
         
+        it = recordIndex.entryIterator(new Key(begin), new Key(end), Index.DESCENT_ORDER);
+        Entry<Object, DataBlock> last = it.next();
+        
+        int firstPos = recordIndex.indexOf(new Key((double)first.getKey()));
+        int lastPos = recordIndex.indexOf(new Key((double)last.getKey()));
+        return lastPos - firstPos + 1;
+    }
+    
+    
+    protected final int countEntries(IterableIterator<Entry<Object, DataBlock>> it, long maxCount)
+    {
+        // use entry iterator so datablocks are not loaded during scan
         int count = 0;
         while (it.hasNext() && count <= maxCount)
         {
@@ -211,31 +353,168 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
     
     
     protected IterableIterator<Entry<Object,DataBlock>> getEntryIterator(IDataFilter filter)
+    {
+        double[] timeRange = getTimeRange(filter);
+        return getEntryIterator(timeRange[0], timeRange[1], filter.getFieldFilters());
+    }
+    
+    
+    protected IterableIterator<Entry<Object,DataBlock>> getEntryIterator(double begin, double end, Collection<FieldFilter> fieldFilters)
+    {
+        if (fieldFilters == null || fieldFilters.isEmpty())
+            return getEntryIterator(begin, end);
+        
+        // use field index to preselect records if one is available
+        List<FieldFilter> otherFilters = new ArrayList<FieldFilter>(fieldFilters);
+        IterableIterator<Entry<Object,DataBlock>> it = null;
+        for (FieldFilter fieldFilter: fieldFilters)
+        {
+            FieldIndexImpl index = findFieldIndex(fieldFilter);
+            if (index != null)
+            {
+                double[] timeStamps = index.getMatchingTimeStamps(recordDescription, fieldFilter, begin, end);
+                it = getEntryIterator(timeStamps);
+                otherFilters.remove(fieldFilter);
+                break;
+            }
+        }
+        
+        // otherwise scan through time range
+        if (it == null)
+            it = getEntryIterator(begin, end);
+        
+        if (otherFilters.isEmpty())
+            return it;
+        return new FieldFilterIterator(it, otherFilters);
+    }
+    
+    
+    /*
+     * Iterator through records with the given sorted time stamps
+     */
+    protected IterableIterator<Entry<Object,DataBlock>> getEntryIterator(final double[] timeStamps)
+    {
+        if (chunkStore != null)
+            return chunkStore.entryIterator(timeStamps);
+        
+        return new IterableIterator<Entry<Object,DataBlock>>()
+        {
+            int nextIndex;
+            
+            @Override
+            public boolean hasNext()
+            {
+                return nextIndex < timeStamps.length;
+            }
+
+            @Override
+            public Entry<Object,DataBlock> next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                
+                double time = timeStamps[nextIndex++];
+                DataBlock data = recordIndex.get(new Key(time));
+                return new AbstractMap.SimpleImmutableEntry<Object,DataBlock>(time, data);
+            }
+        };
+    }
+    
+    
+    private FieldIndexImpl findFieldIndex(FieldFilter fieldFilter)
+    {
+        if (fieldIndexes == null)
+            return null;
+        
+        for (FieldIndexImpl index: fieldIndexes.values())
+        {
+            if (index.canResolve(recordDescription, fieldFilter))
+                return index;
+        }
+        
+        return null;
+    }
+    
+    
+    protected IterableIterator<Entry<Object,DataBlock>> getEntryIterator(double begin, double end)
+    {
+        if (chunkStore != null)
+            return chunkStore.entryIterator(begin, end);
+        return recordIndex.entryIterator(new Key(begin), new Key(end), Index.ASCENT_ORDER);
+    }
+    
+    
+    protected final double[] getTimeRange(IDataFilter filter)
     {
         double[] timeRange = filter.getTimeStampRange();
-        Key keyFirst = new Key(timeRange == null ? Double.NEGATIVE_INFINITY : timeRange[0]);
-        Key keyLast = new Key(timeRange == null ? Double.POSITIVE_INFINITY : timeRange[1]);
-        return recordIndex.entryIterator(keyFirst, keyLast, Index.ASCENT_ORDER);
+        if (timeRange == null)
+            return new double[] {Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+        return timeRange;
     }
 
 
-    void store(DataKey key, DataBlock data)
+    /*
+     * Returns true if a new record was added, false if a record with the same
+     * time stamp already exists, in which case it is left unchanged
+     */
+    boolean store(DataKey key, DataBlock data)
     {
-        recordIndex.put(new Key(key.timeStamp), data);
+        boolean added;
+        if (chunkStore != null)
+            added = chunkStore.store(key.timeStamp, data);
+        else
+            added = recordIndex.put(new Key(key.timeStamp), data);
+        
+        if (added)
+        {
+            addToFieldIndexes(key.timeStamp, data);
+            onRecordAdded(key.timeStamp);
+        }
+        
+        return added;
     }
 
 
     void update(DataKey key, DataBlock data)
     {
-        DataBlock oldData = recordIndex.set(new Key(key.timeStamp), data);
-        getStorage().deallocate(oldData);
+        DataBlock oldData;
+        if (chunkStore != null)
+            oldData = chunkStore.update(key.timeStamp, data);
+        else
+            oldData = recordIndex.set(new Key(key.timeStamp), data);
+        
+        if (oldData != null)
+            removeFromFieldIndexes(key.timeStamp, oldData);
+        addToFieldIndexes(key.timeStamp, data);
+        
+        // record was inserted if none existed with the same time stamp
+        if (oldData == null)
+            onRecordAdded(key.timeStamp);
+        else if (chunkStore == null)
+            getStorage().deallocate(oldData);
     }
 
 
     void remove(DataKey key)
     {
+        if (chunkStore != null)
+        {
+            DataBlock oldData = hasFieldIndexes() ? chunkStore.get(key.timeStamp) : null;
+            int count = chunkStore.remove(key.timeStamp, key.timeStamp);
+            if (oldData != null)
+                removeFromFieldIndexes(key.timeStamp, oldData);
+            if (count > 0)
+                onRecordsRemoved(key.timeStamp, key.timeStamp);
+            return;
+        }
+        
         DataBlock oldData = recordIndex.remove(new Key(key.timeStamp));
-        getStorage().deallocate(oldData);
+        if (oldData != null)
+        {
+            removeFromFieldIndexes(key.timeStamp, oldData);
+            onRecordsRemoved(key.timeStamp, key.timeStamp);
+        }
+        getStorage().deallocate(oldData);
     }
 
 
@@ -243,23 +522,247 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
     {
         int count = 0;
         
-        Key keyFirst = new Key(filter.getTimeStampRange()[0]);
-        Key keyLast = new Key(filter.getTimeStampRange()[1]);
-        Iterator<DataBlock> it = recordIndex.iterator(keyFirst, keyLast, Index.ASCENT_ORDER);
-            
+        // remove records from field indexes first
+        if (hasFieldIndexes())
+        {
+            double[] timeRange = getTimeRange(filter);
+            IterableIterator<Entry<Object, DataBlock>> it = getEntryIterator(timeRange[0], timeRange[1]);
+            while (it.hasNext())
+            {
+                Entry<Object, DataBlock> entry = it.next();
+                removeFromFieldIndexes((double)entry.getKey(), entry.getValue());
+            }
+        }
+        
+        double[] timeRange = getTimeRange(filter);
+        if (chunkStore != null)
+        {
+            count = chunkStore.remove(timeRange[0], timeRange[1]);
+        }
+        else
+        {
+            Key keyFirst = new Key(timeRange[0]);
+            Key keyLast = new Key(timeRange[1]);
+            Iterator<DataBlock> it = recordIndex.iterator(keyFirst, keyLast, Index.ASCENT_ORDER);
+                
+            while (it.hasNext())
+            {
+                DataBlock oldData = it.next();
+                it.remove();
+                getStorage().deallocate(oldData);
+                count++;
+            }
+        }
+        
+        onRecordsRemoved(timeRange[0], timeRange[1]);
+        return count;
+    }
+    
+    
+    /*
+     * Update time clusters and cached time range after a record was added
+     */
+    private void onRecordAdded(double timeStamp)
+    {
+        if (clusterSummary != null)
+            clusterSummary.add(timeStamp);
+        
+        double[] timeRange = cachedTimeRange;
+        if (timeRange != null)
+        {
+            if (Double.isNaN(timeRange[0]))
+                cachedTimeRange = new double[] {timeStamp, timeStamp};
+            else if (timeStamp < timeRange[0] || timeStamp > timeRange[1])
+                cachedTimeRange = new double[] {Math.min(timeRange[0], timeStamp), Math.max(timeRange[1], timeStamp)};
+        }
+    }
+    
+    
+    /*
+     * Update time clusters and cached time range after records in the given range were removed
+     */
+    private void onRecordsRemoved(double begin, double end)
+    {
+        cachedTimeRange = null;
+        if (clusterSummary != null)
+            clusterSummary.remove(begin, end, getPrevTimeStamp(begin), getNextTimeStamp(end));
+    }
+    
+    
+    /*
+     * Get time stamp of last record strictly before the given time, or NaN if none
+     */
+    private double getPrevTimeStamp(double time)
+    {
+        if (chunkStore != null)
+            return chunkStore.getPrevTimeStamp(time);
+        
+        IterableIterator<Entry<Object, DataBlock>> it;
+        it = recordIndex.entryIterator(KEY_DATA_START_ALL_TIME, new Key(time, false), Index.DESCENT_ORDER);
+        if (it.hasNext())
+            return (double)it.next().getKey();
+        return Double.NaN;
+    }
+    
+    
+    /*
+     * Get time stamp of first record strictly after the given time, or NaN if none
+     */
+    private double getNextTimeStamp(double time)
+    {
+        IterableIterator<Entry<Object, DataBlock>> it = getEntryIterator(time, Double.POSITIVE_INFINITY);
         while (it.hasNext())
         {
-            DataBlock oldData = it.next();
-            it.remove();
-            getStorage().deallocate(oldData);
+            double recTime = (double)it.next().getKey();
+            if (recTime > time)
+                return recTime;
         }
+        return Double.NaN;
+    }
 
+
+    void addFieldIndex(StorageIndexDescriptor desc, FieldValueReader reader)
+    {
+        if (fieldIndexes == null)
+            fieldIndexes = new HashMap<String, FieldIndexImpl>();
+        else if (fieldIndexes.containsKey(desc.id))
+            return;
+        
+        // existing records will be indexed by backfillFieldIndexes()
+        FieldIndexImpl index = new FieldIndexImpl(getStorage(), desc, reader);
+        index.complete = (getNumRecords() == 0);
+        fieldIndexes.put(desc.id, index);
+        modify();
+    }
+    
+    
+    void removeFieldIndex(String indexId)
+    {
+        if (fieldIndexes == null)
+            return;
+        
+        FieldIndexImpl index = fieldIndexes.remove(indexId);
+        if (index != null)
+        {
+            index.deallocate();
+            modify();
+        }
+    }
+    
+    
+    /*
+     * Add records stored before field indexes were created to the indexes,
+     * processing at most maxRecords records
+     * Returns the number of records processed
+     */
+    int backfillFieldIndexes(int maxRecords)
+    {
+        int count = 0;
+        if (fieldIndexes == null)
+            return count;
+        
+        for (FieldIndexImpl index: fieldIndexes.values())
+        {
+            if (index.complete)
+                continue;
+            
+            IterableIterator<Entry<Object, DataBlock>> it = getEntryIterator(index.backfillTime, Double.POSITIVE_INFINITY);
+            while (it.hasNext() && count < maxRecords)
+            {
+                Entry<Object, DataBlock> entry = it.next();
+                double time = (double)entry.getKey();
+                if (time > index.backfillTime)
+                {
+                    index.add(recordDescription, time, entry.getValue());
+                    index.backfillTime = time;
+                    count++;
+                }
+            }
+            
+            index.complete = !it.hasNext();
+            index.modify();
+            
+            if (count >= maxRecords)
+                break;
+        }
+        
         return count;
     }
+    
+    
+    boolean isFieldIndexingComplete()
+    {
+        if (fieldIndexes != null)
+        {
+            for (FieldIndexImpl index: fieldIndexes.values())
+            {
+                if (!index.complete)
+                    return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    
+    private boolean hasFieldIndexes()
+    {
+        return fieldIndexes != null && !fieldIndexes.isEmpty();
+    }
+    
+    
+    private void addToFieldIndexes(double time, DataBlock data)
+    {
+        if (fieldIndexes == null)
+            return;
+        
+        // records not yet reached by backfill will be indexed later
+        for (FieldIndexImpl index: fieldIndexes.values())
+        {
+            if (index.isIndexed(time))
+                index.add(recordDescription, time, data);
+        }
+    }
+    
+    
+    private void removeFromFieldIndexes(double time, DataBlock data)
+    {
+        if (fieldIndexes == null)
+            return;
+        
+        for (FieldIndexImpl index: fieldIndexes.values())
+        {
+            if (index.isIndexed(time))
+                index.remove(recordDescription, time, data);
+        }
+    }
 
 
+    /*
+     * Get time range of all records
+     * The range is cached until records are removed and extended as records are added
+     */
     double[] getDataTimeRange()
     {
+        double[] timeRange = cachedTimeRange;
+        if (timeRange == null)
+        {
+            timeRange = readDataTimeRange();
+            cachedTimeRange = timeRange;
+        }
+        
+        return timeRange.clone();
+    }
+    
+    
+    private double[] readDataTimeRange()
+    {
+        if (clusterSummary != null)
+            return clusterSummary.getTimeRange();
+        
+        if (chunkStore != null)
+            return chunkStore.getTimeRange();
+        
         IterableIterator<Entry<Object, DataBlock>> it;
         it = recordIndex.entryIterator(KEY_DATA_START_ALL_TIME, KEY_DATA_END_ALL_TIME, Index.ASCENT_ORDER);
         if (!it.hasNext())
@@ -273,52 +776,52 @@ class TimeSeriesImpl extends Persistent implements IRecordStoreInfo
     }
     
     
-    public Iterator<double[]> getRecordsTimeClusters(String recordType)
+    /*
+     * Create time cluster summary or rebuild it if the gap threshold has changed
+     * This scans all records once for stores created before summaries were maintained
+     * and must be called while holding the storage write lock
+     * Returns true if the summary was rebuilt
+     */
+    boolean updateClusterSummary(double gapThreshold)
+    {
+        if (clusterSummary != null && clusterSummary.gapThreshold == gapThreshold)
+            return false;
+        
+        if (clusterSummary != null)
+            clusterSummary.deallocate();
+        
+        // PERST doesn't load object from disk until getValue() is called so we only read keys here
+        clusterSummary = new TimeClusterSummary(getStorage(), gapThreshold);
+        IterableIterator<Entry<Object, DataBlock>> it = getEntryIterator(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        while (it.hasNext())
+            clusterSummary.add((double)it.next().getKey());
+        
+        modify();
+        return true;
+    }
+    
+    
+    public Iterator<double[]> getRecordsTimeClusters(double gapThreshold)
     {
-        final IterableIterator<Entry<Object, DataBlock>> it;
-        it = recordIndex.entryIterator(KEY_DATA_START_ALL_TIME, KEY_DATA_END_ALL_TIME, Index.ASCENT_ORDER);
+        if (clusterSummary != null && clusterSummary.gapThreshold == gapThreshold)
+            return clusterSummary.getClusters();
         
-        return new Iterator<double[]>()
+        // summary is only updated on write path so compute clusters from records
+        List<double[]> clusters = new ArrayList<double[]>();
+        double[] cluster = null;
+        IterableIterator<Entry<Object, DataBlock>> it = getEntryIterator(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        while (it.hasNext())
         {
-            double lastTime = Double.NaN;
-            
-            public boolean hasNext()
+            double time = (double)it.next().getKey();
+            if (cluster == null || time - cluster[1] > gapThreshold)
             {
-                return it.hasNext();
-            }
-
-            public double[] next()
-            {
-                double[] clusterTimeRange = new double[2];
-                clusterTimeRange[0] = lastTime;
-                
-                while (it.hasNext())
-                {
-                    // PERST doesn't load object from disk until getValue() is called so we're good here
-                    double recTime = (double)it.next().getKey();
-                    
-                    if (Double.isNaN(lastTime))
-                    {
-                        clusterTimeRange[0] = recTime;
-                        lastTime = recTime;
-                    }
-                    else
-                    {
-                        double dt = recTime - lastTime;
-                        lastTime = recTime;
-                        if (dt > 60.0)
-                            break;
-                    }
-                    
-                    clusterTimeRange[1] = recTime;
-                }
-                
-                return clusterTimeRange;
+                cluster = new double[] {time, time};
+                clusters.add(cluster);
             }
-
-            public void remove()
-            {               
-            }    
-        };
-    }
+            else
+                cluster[1] = time;
+        }
+        
+        return clusters.iterator();
+    }
 }
\ No newline at end of file
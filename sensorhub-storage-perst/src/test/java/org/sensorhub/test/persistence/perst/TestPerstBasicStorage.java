@@ -14,9 +14,24 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.test.persistence.perst;
 
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.persistence.DataFilter;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.StorageException;
 import org.sensorhub.impl.persistence.perst.BasicStorageConfig;
 import org.sensorhub.impl.persistence.perst.BasicStorageImpl;
 import org.sensorhub.test.persistence.AbstractTestBasicStorage;
@@ -25,6 +40,7 @@ import org.sensorhub.test.persistence.AbstractTestBasicStorage;
 public class TestPerstBasicStorage extends AbstractTestBasicStorage<BasicStorageImpl>
 {
     File dbFile;
+    File targetFile;
     
     
     @Before
@@ -52,10 +68,250 @@ public class TestPerstBasicStorage extends AbstractTestBasicStorage<BasicStorage
     }
     
     
+    @Test
+    public void testStoreAndGetTimeClusters() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        
+        // write 3 clusters of records separated by gaps larger than 60s
+        double[] clusterStarts = new double[] {0.0, 1000.0, 5000.0};
+        storage.setAutoCommit(false);
+        for (double startTime: clusterStarts)
+        {
+            for (int i=0; i<100; i++)
+                storage.storeRecord(new DataKey(recordDef.getName(), producerID, startTime + i*10.0), recordDef.createDataBlock());
+        }
+        storage.commit();
+        forceReadBackFromStorage();
+        
+        List<double[]> clusters = getClusters(recordDef.getName());
+        assertEquals(3, clusters.size());
+        for (int i=0; i<clusterStarts.length; i++)
+        {
+            assertEquals(clusterStarts[i], clusters.get(i)[0], 0.0);
+            assertEquals(clusterStarts[i] + 990.0, clusters.get(i)[1], 0.0);
+        }
+        
+        // remove records in the middle of second cluster to split it
+        storage.removeRecords(new DataFilter(recordDef.getName()) {
+            public double[] getTimeStampRange() { return new double[] {1400.0, 1500.0}; }
+        });
+        
+        // and fill gap between first and second cluster to join them
+        for (double time = 990.0; time < 1000.0; time += 5.0)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, time), recordDef.createDataBlock());
+        storage.commit();
+        forceReadBackFromStorage();
+        
+        clusters = getClusters(recordDef.getName());
+        assertEquals(3, clusters.size());
+        assertEquals(0.0, clusters.get(0)[0], 0.0);
+        assertEquals(1390.0, clusters.get(0)[1], 0.0);
+        assertEquals(1510.0, clusters.get(1)[0], 0.0);
+        assertEquals(1990.0, clusters.get(1)[1], 0.0);
+        assertEquals(5000.0, clusters.get(2)[0], 0.0);
+        
+        // check time range is consistent
+        double[] timeRange = storage.getRecordsTimeRange(recordDef.getName());
+        assertEquals(0.0, timeRange[0], 0.0);
+        assertEquals(5990.0, timeRange[1], 0.0);
+    }
+    
+    
+    @Test
+    public void testIncrementalBackupAndRestore() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        ByteArrayOutputStream fullSnapshot = new ByteArrayOutputStream();
+        ByteArrayOutputStream incSnapshot = new ByteArrayOutputStream();
+        
+        // first snapshot contains the whole file
+        storage.setAutoCommit(false);
+        for (int i=0; i<1000; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        storage.backup(fullSnapshot);
+        
+        // next one only contains modified blocks
+        for (int i=1000; i<1010; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        storage.backup(incSnapshot);
+        assertTrue(incSnapshot.size() < fullSnapshot.size());
+        
+        // records added after last snapshot are lost after restore
+        for (int i=1010; i<1100; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        assertEquals(1100, storage.getNumRecords(recordDef.getName()));
+        
+        storage.restore(new ByteArrayInputStream(fullSnapshot.toByteArray()));
+        assertEquals(1000, storage.getNumRecords(recordDef.getName()));
+        storage.restore(new ByteArrayInputStream(incSnapshot.toByteArray()));
+        assertEquals(1010, storage.getNumRecords(recordDef.getName()));
+    }
+    
+    
+    @Test
+    public void testStopDuringBackup() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        storage.setAutoCommit(false);
+        for (int i=0; i<1000; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        
+        // block backup as soon as it starts writing
+        final CountDownLatch backupStarted = new CountDownLatch(1);
+        final CountDownLatch storageStopped = new CountDownLatch(1);
+        final IOException[] error = new IOException[1];
+        Thread backupThread = new Thread() {
+            public void run()
+            {
+                try
+                {
+                    storage.backup(new OutputStream() {
+                        public void write(int b) throws IOException
+                        {
+                            write(new byte[] {(byte)b}, 0, 1);
+                        }
+                        
+                        public void write(byte[] b, int off, int len) throws IOException
+                        {
+                            backupStarted.countDown();
+                            try { storageStopped.await(); }
+                            catch (InterruptedException e) { throw new IOException(e); }
+                        }
+                    });
+                }
+                catch (IOException e)
+                {
+                    error[0] = e;
+                }
+            }
+        };
+        backupThread.start();
+        backupStarted.await();
+        
+        // modify blocks that are not copied yet and stop storage
+        for (int i=1000; i<1100; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        storage.stop();
+        storageStopped.countDown();
+        backupThread.join();
+        
+        // backup is aborted cleanly and storage can be restarted
+        assertNotNull(error[0]);
+        assertFalse(new File(dbFile.getPath() + ".snapshot.tmp").exists());
+        storage.start();
+        assertEquals(1100, storage.getNumRecords(recordDef.getName()));
+    }
+    
+    
+    @Test
+    public void testSyncWithOtherStorage() throws Exception
+    {
+        storage.stop();
+        storage.getConfiguration().id = "source";
+        storage.getConfiguration().enableChangeLog = true;
+        storage.start();
+        
+        BasicStorageConfig targetConfig = new BasicStorageConfig();
+        targetConfig.id = "target";
+        targetConfig.memoryCacheSize = 1024;
+        targetFile = File.createTempFile("testdb", ".dat");
+        targetFile.deleteOnExit();
+        targetConfig.storagePath = targetFile.getAbsolutePath();
+        BasicStorageImpl target = new BasicStorageImpl();
+        target.init(targetConfig);
+        target.start();
+        
+        try
+        {
+            DataComponent recordDef = createDs1();
+            storage.setAutoCommit(false);
+            for (int i=0; i<1000; i++)
+            {
+                DataBlock data = recordDef.createDataBlock();
+                data.setDoubleValue(i);
+                storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), data);
+            }
+            storage.commit();
+            
+            // first sync sends everything
+            storage.sync(target);
+            assertTrue(target.getRecordStores().containsKey(recordDef.getName()));
+            assertEquals(1000, target.getNumRecords(recordDef.getName()));
+            long watermark = target.getSyncWatermark(storage.getLocalID());
+            assertTrue(watermark > 0);
+            
+            // next one only sends new changes
+            for (int i=1000; i<1100; i++)
+                storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+            storage.removeRecords(new DataFilter(recordDef.getName()) {
+                public double[] getTimeStampRange() { return new double[] {0.0, 995.0}; }
+            });
+            DataBlock data = recordDef.createDataBlock();
+            data.setDoubleValue(-1.0);
+            storage.updateRecord(new DataKey(recordDef.getName(), producerID, 5000.0), data);
+            storage.commit();
+            
+            storage.sync(target);
+            assertEquals(watermark + 102, target.getSyncWatermark(storage.getLocalID()));
+            assertEquals(storage.getNumRecords(recordDef.getName()), target.getNumRecords(recordDef.getName()));
+            assertEquals(1000, target.getNumRecords(recordDef.getName()));
+            assertEquals(-1.0, target.getDataBlock(new DataKey(recordDef.getName(), producerID, 5000.0)).getDoubleValue(), 0.0);
+            assertEquals(100.0, target.getDataBlock(new DataKey(recordDef.getName(), producerID, 1000.0)).getDoubleValue(), 0.0);
+            
+            // nothing is sent when storages are in sync
+            storage.sync(target);
+            assertEquals(watermark + 102, target.getSyncWatermark(storage.getLocalID()));
+            
+            // uncommitted changes are never sent
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, 20000.0), recordDef.createDataBlock());
+            try
+            {
+                storage.sync(target);
+                fail("Sync should fail with uncommitted changes");
+            }
+            catch (StorageException e)
+            {
+            }
+            
+            // changes committed after a rollback are sent instead of rolled back ones
+            storage.rollback();
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, 30000.0), recordDef.createDataBlock());
+            storage.commit();
+            storage.sync(target);
+            assertEquals(watermark + 103, target.getSyncWatermark(storage.getLocalID()));
+            assertNull(target.getDataBlock(new DataKey(recordDef.getName(), producerID, 20000.0)));
+            assertNotNull(target.getDataBlock(new DataKey(recordDef.getName(), producerID, 30000.0)));
+        }
+        finally
+        {
+            target.stop();
+        }
+    }
+    
+    
+    protected List<double[]> getClusters(String recordType)
+    {
+        List<double[]> clusters = new ArrayList<double[]>();
+        Iterator<double[]> it = storage.getRecordsTimeClusters(recordType);
+        while (it.hasNext())
+            clusters.add(it.next());
+        return clusters;
+    }
+    
+    
     @After
     public void cleanup()
     {
         dbFile.delete();
+        new File(dbFile.getPath() + ".restored").delete();
+        if (targetFile != null)
+            targetFile.delete();
     }
     
 }
@@ -0,0 +1,249 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.persistence.perst;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.persistence.DataFilter;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
+import org.sensorhub.api.persistence.IDataFilter;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.StorageIndexDescriptor;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
+import org.sensorhub.impl.persistence.perst.BasicStorageConfig;
+import org.sensorhub.impl.persistence.perst.BasicStorageImpl;
+import org.vast.data.DataRecordImpl;
+import org.vast.data.QuantityImpl;
+import org.vast.data.TextEncodingImpl;
+import org.vast.data.TextImpl;
+
+
+public class TestPerstFieldIndex
+{
+    static String[] STATUS = {"ACTIVE", "IDLE", "OFFLINE"};
+
+    File dbFile;
+    BasicStorageImpl storage;
+    DataComponent recordDef;
+
+
+    @Before
+    public void init() throws Exception
+    {
+        BasicStorageConfig config = new BasicStorageConfig();
+        config.enabled = true;
+        config.memoryCacheSize = 10*1024;
+        dbFile = File.createTempFile("testdb", ".dat");
+        dbFile.deleteOnExit();
+        config.storagePath = dbFile.getAbsolutePath();
+
+        storage = new BasicStorageImpl();
+        storage.init(config);
+        storage.start();
+        storage.setAutoCommit(true);
+
+        recordDef = new DataRecordImpl();
+        recordDef.setName("avl");
+        recordDef.addComponent("speed", new QuantityImpl());
+        recordDef.addComponent("status", new TextImpl());
+        DataComponent location = new DataRecordImpl();
+        location.addComponent("lat", new QuantityImpl());
+        location.addComponent("lon", new QuantityImpl());
+        recordDef.addComponent("location", location);
+        storage.addRecordStore(recordDef.getName(), recordDef, new TextEncodingImpl());
+    }
+
+
+    protected void storeRecords(int begin, int end)
+    {
+        for (int i = begin; i < end; i++)
+        {
+            DataBlock data = recordDef.createDataBlock();
+            data.setDoubleValue(0, i % 50);
+            data.setStringValue(1, STATUS[i % 3]);
+            data.setDoubleValue(2, i % 10);
+            data.setDoubleValue(3, (i / 10) % 10);
+            storage.storeRecord(new DataKey(recordDef.getName(), i), data);
+        }
+    }
+
+
+    protected IDataFilter getFilter(final FieldFilter... fieldFilters)
+    {
+        return new DataFilter(recordDef.getName())
+        {
+            @Override
+            public Collection<FieldFilter> getFieldFilters()
+            {
+                return Arrays.asList(fieldFilters);
+            }
+        };
+    }
+
+
+    protected void checkResults(IDataFilter filter, List<Double> expectedTimes)
+    {
+        List<Double> times = new ArrayList<Double>();
+        Iterator<? extends IDataRecord> it = storage.getRecordIterator(filter);
+        while (it.hasNext())
+            times.add(it.next().getKey().timeStamp);
+
+        assertEquals(expectedTimes, times);
+        assertEquals(expectedTimes.size(), storage.getNumMatchingRecords(filter, Long.MAX_VALUE));
+    }
+
+
+    protected List<Double> getStatusTimes(int numRecords, int statusIndex)
+    {
+        List<Double> times = new ArrayList<Double>();
+        for (int i = 0; i < numRecords; i++)
+        {
+            if (i % 3 == statusIndex)
+                times.add((double)i);
+        }
+        return times;
+    }
+
+
+    protected List<Double> getLocationTimes(int numRecords, double minLat, double minLon, double maxLat, double maxLon)
+    {
+        List<Double> times = new ArrayList<Double>();
+        for (int i = 0; i < numRecords; i++)
+        {
+            double lat = i % 10;
+            double lon = (i / 10) % 10;
+            if (lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon)
+                times.add((double)i);
+        }
+        return times;
+    }
+
+
+    @Test
+    public void testIndexNewRecords() throws Exception
+    {
+        StorageIndexDescriptor desc = storage.addFieldIndex("status", IndexType.BTREE);
+        assertEquals("status", desc.fieldPath);
+        assertEquals(IndexType.BTREE, desc.type);
+        assertEquals(1, storage.getAllFieldIndexes().size());
+
+        int numRecords = 300;
+        storeRecords(0, numRecords);
+        checkResults(getFilter(new FieldFilter("status", "IDLE", "IDLE")), getStatusTimes(numRecords, 1));
+
+        storage.stop();
+        storage.start();
+        assertEquals(desc.id, storage.getAllFieldIndexes().get(0).id);
+        checkResults(getFilter(new FieldFilter("status", "OFFLINE", "OFFLINE")), getStatusTimes(numRecords, 2));
+    }
+
+
+    @Test
+    public void testIndexExistingRecords() throws Exception
+    {
+        int numRecords = 3000;
+        storeRecords(0, numRecords);
+
+        // results must be correct even if indexing of existing records is not complete
+        storage.addFieldIndex("location", IndexType.RTREE);
+        storage.addFieldIndex("status", IndexType.BTREE);
+        checkResults(getFilter(new FieldFilter("location", new double[] {2, 3, 4, 5})), getLocationTimes(numRecords, 2, 3, 4, 5));
+
+        storage.stop();
+        storage.start();
+        storeRecords(numRecords, numRecords+100);
+        numRecords += 100;
+        checkResults(getFilter(new FieldFilter("location", new double[] {2, 3, 4, 5})), getLocationTimes(numRecords, 2, 3, 4, 5));
+
+        // combine indexed criteria
+        List<Double> expectedTimes = getLocationTimes(numRecords, 0, 0, 5, 9);
+        expectedTimes.retainAll(getStatusTimes(numRecords, 0));
+        checkResults(getFilter(new FieldFilter("status", "ACTIVE", "ACTIVE"), new FieldFilter("location", new double[] {0, 0, 5, 9})), expectedTimes);
+    }
+
+
+    @Test
+    public void testFilterOnNonIndexedField() throws Exception
+    {
+        int numRecords = 200;
+        storeRecords(0, numRecords);
+
+        List<Double> expectedTimes = new ArrayList<Double>();
+        for (int i = 0; i < numRecords; i++)
+        {
+            if (i % 50 >= 10 && i % 50 <= 20)
+                expectedTimes.add((double)i);
+        }
+
+        checkResults(getFilter(new FieldFilter("speed", 10, 20)), expectedTimes);
+    }
+
+
+    @Test
+    public void testVectorValueRange() throws Exception
+    {
+        // index is complete right away since storage is empty
+        StorageIndexDescriptor desc = storage.addFieldIndex("location", IndexType.RTREE);
+        int numRecords = 300;
+        storeRecords(0, numRecords);
+
+        // value range applies to all components with or without index
+        FieldFilter rangeFilter = new FieldFilter("location", 2, 4);
+        List<Double> expectedTimes = getLocationTimes(numRecords, 2, 2, 4, 4);
+        checkResults(getFilter(rangeFilter), expectedTimes);
+
+        storage.removeFieldIndex(desc.id);
+        checkResults(getFilter(rangeFilter), expectedTimes);
+    }
+
+
+    @Test
+    public void testRemoveIndex() throws Exception
+    {
+        int numRecords = 100;
+        storeRecords(0, numRecords);
+
+        StorageIndexDescriptor desc = storage.addFieldIndex("speed", IndexType.BTREE);
+        storage.removeFieldIndex(desc.id);
+        assertTrue(storage.getAllFieldIndexes().isEmpty());
+        checkResults(getFilter(new FieldFilter("status", "ACTIVE", "ACTIVE")), getStatusTimes(numRecords, 0));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddIndexOnUnknownField() throws Exception
+    {
+        storage.addFieldIndex("heading", IndexType.BTREE);
+    }
+
+
+    @After
+    public void cleanup() throws Exception
+    {
+        storage.stop();
+        dbFile.delete();
+    }
+}
@@ -0,0 +1,165 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+package org.sensorhub.test.persistence.perst;
+
+import static org.junit.Assert.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.IObsFilter;
+import org.sensorhub.api.persistence.ObsFilter;
+import org.sensorhub.api.persistence.ObsKey;
+import org.sensorhub.impl.persistence.perst.BasicStorageConfig;
+import org.sensorhub.impl.persistence.perst.ObsStorageImpl;
+import org.vast.swe.SWEConstants;
+import org.vast.swe.SWEHelper;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Polygon;
+
+
+public class TestPerstLocationIndex
+{
+    static String FOI_ID = "urn:test:foi:track";
+    
+    File dbFile;
+    ObsStorageImpl storage;
+    DataComponent recordDef;
+    GeometryFactory geomFactory = new GeometryFactory();
+    
+    
+    @Before
+    public void init() throws Exception
+    {
+        BasicStorageConfig config = new BasicStorageConfig();
+        config.enabled = true;
+        config.memoryCacheSize = 10*1024;
+        dbFile = File.createTempFile("testdb", ".dat");
+        dbFile.deleteOnExit();
+        config.storagePath = dbFile.getAbsolutePath();
+        
+        storage = new ObsStorageImpl();
+        storage.init(config);
+        storage.start();
+        storage.setAutoCommit(true);
+        
+        SWEHelper fac = new SWEHelper();
+        recordDef = fac.newDataRecord(2);
+        recordDef.setName("gps");
+        recordDef.addComponent("time", fac.newTimeStampIsoUTC());
+        recordDef.addComponent("location", fac.newLocationVectorLLA(SWEConstants.DEF_SENSOR_LOC));
+        storage.addRecordStore(recordDef.getName(), recordDef, fac.newTextEncoding());
+    }
+    
+    
+    protected void storeTrack(int numRecords)
+    {
+        // vehicle going back and forth along a diagonal
+        for (int i = 0; i < numRecords; i++)
+        {
+            DataBlock data = recordDef.createDataBlock();
+            data.setDoubleValue(0, i);
+            data.setDoubleValue(1, i % 100);
+            data.setDoubleValue(2, i % 100);
+            data.setDoubleValue(3, 0.0);
+            storage.storeRecord(new ObsKey(recordDef.getName(), FOI_ID, i), data);
+        }
+    }
+    
+    
+    protected IObsFilter getFilter(final Polygon roi, final double[] timeRange)
+    {
+        return new ObsFilter(recordDef.getName())
+        {
+            public double[] getTimeStampRange() { return timeRange; }
+            public Polygon getRoi() { return roi; }
+        };
+    }
+    
+    
+    protected void checkResults(IObsFilter filter, int numRecords, double minCoord, double maxCoord)
+    {
+        List<Double> expectedTimes = new ArrayList<Double>();
+        for (int i = 0; i < numRecords; i++)
+        {
+            double coord = i % 100;
+            double[] timeRange = filter.getTimeStampRange();
+            if (coord >= minCoord && coord <= maxCoord && (timeRange == null || (i >= timeRange[0] && i <= timeRange[1])))
+                expectedTimes.add((double)i);
+        }
+        
+        List<Double> times = new ArrayList<Double>();
+        Iterator<? extends IDataRecord> it = storage.getRecordIterator(filter);
+        while (it.hasNext())
+        {
+            IDataRecord rec = it.next();
+            assertEquals(FOI_ID, ((ObsKey)rec.getKey()).foiID);
+            times.add(rec.getKey().timeStamp);
+        }
+        
+        assertEquals(expectedTimes, times);
+        assertEquals(expectedTimes.size(), storage.getNumMatchingRecords(filter, Long.MAX_VALUE));
+    }
+    
+    
+    @Test
+    public void testFilterByBboxRoi() throws Exception
+    {
+        int numRecords = 1000;
+        storeTrack(numRecords);
+        
+        Polygon roi = (Polygon)geomFactory.toGeometry(new Envelope(10, 20, 10, 20));
+        checkResults(getFilter(roi, null), numRecords, 10, 20);
+        checkResults(getFilter(roi, new double[] {200, 550}), numRecords, 10, 20);
+        
+        storage.stop();
+        storage.start();
+        checkResults(getFilter(roi, new double[] {500, 1000}), numRecords, 10, 20);
+    }
+    
+    
+    @Test
+    public void testFilterByPolygonRoi() throws Exception
+    {
+        int numRecords = 500;
+        storeTrack(numRecords);
+        
+        // triangle whose envelope contains the whole track
+        // but that only intersects the diagonal between 0 and 50
+        Polygon roi = geomFactory.createPolygon(new Coordinate[] {
+            new Coordinate(0, 0),
+            new Coordinate(100, 0),
+            new Coordinate(0, 100),
+            new Coordinate(0, 0)
+        });
+        checkResults(getFilter(roi, null), numRecords, 0, 50);
+    }
+    
+    
+    @After
+    public void cleanup() throws Exception
+    {
+        storage.stop();
+        dbFile.delete();
+    }
+}
@@ -14,9 +14,14 @@ Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
 
 package org.sensorhub.test.persistence.perst;
 
-import java.io.File;
-import org.junit.After;
+import static org.junit.Assert.*;
+import java.io.File;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.persistence.DataKey;
 import org.sensorhub.impl.persistence.perst.BasicStorageConfig;
 import org.sensorhub.impl.persistence.perst.MultiEntityStorageImpl;
 import org.sensorhub.test.persistence.AbstractTestMultiObsStorage;
@@ -52,6 +57,40 @@ public class TestPerstMultiObsStorage extends AbstractTestMultiObsStorage<MultiE
     }
     
     
+    @Test
+    public void testRecordStatsAfterOverwriteAndRollback() throws Exception
+    {
+        addProducersToStorage();
+        DataComponent recordDef = createDs1();
+        String recordType = recordDef.getName();
+        DataBlock data = recordDef.createDataBlock();
+        
+        storage.storeRecord(new DataKey(recordType, producerID, 10.0), data);
+        storage.storeRecord(new DataKey(recordType, producerID, 20.0), data);
+        assertEquals(2, storage.getNumRecords(recordType));
+        
+        // record stored again or updated is not counted twice
+        storage.storeRecord(new DataKey(recordType, producerID, 20.0), data);
+        storage.updateRecord(new DataKey(recordType, producerID, 10.0), data);
+        assertEquals(2, storage.getNumRecords(recordType));
+        
+        // updating a record that doesn't exist yet inserts it
+        storage.updateRecord(new DataKey(recordType, producerID, 5.0), data);
+        assertEquals(3, storage.getNumRecords(recordType));
+        assertArrayEquals(new double[] {5.0, 20.0}, storage.getRecordsTimeRange(recordType), 0.0);
+        assertEquals(5.0, storage.getRecordsTimeClusters(recordType).next()[0], 0.0);
+        
+        // stats must not include rolled back records
+        storage.setAutoCommit(false);
+        storage.storeRecord(new DataKey(recordType, producerID, 30.0), data);
+        assertEquals(4, storage.getNumRecords(recordType));
+        assertArrayEquals(new double[] {5.0, 30.0}, storage.getRecordsTimeRange(recordType), 0.0);
+        storage.rollback();
+        assertEquals(3, storage.getNumRecords(recordType));
+        assertArrayEquals(new double[] {5.0, 20.0}, storage.getRecordsTimeRange(recordType), 0.0);
+    }
+    
+    
     @After
     public void cleanup()
     {
@@ -0,0 +1,427 @@
+/***************************** BEGIN LICENSE BLOCK ***************************
+
+The contents of this file are subject to the Mozilla Public License, v. 2.0.
+If a copy of the MPL was not distributed with this file, You can obtain one
+at http://mozilla.org/MPL/2.0/.
+
+Software distributed under the License is distributed on an "AS IS" basis,
+WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+for the specific language governing rights and limitations under the License.
+ 
+Copyright (C) 2012-2015 Sensia Software LLC. All Rights Reserved.
+ 
+******************************* END LICENSE BLOCK ***************************/
+
+
+package org.sensorhub.test.persistence.perst;
+
+import static org.junit.Assert.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import net.opengis.swe.v20.DataBlock;
+import net.opengis.swe.v20.DataComponent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sensorhub.api.persistence.DataFilter;
+import org.sensorhub.api.persistence.DataKey;
+import org.sensorhub.api.persistence.FieldFilter;
+import org.sensorhub.api.persistence.IDataRecord;
+import org.sensorhub.api.persistence.StorageException;
+import org.sensorhub.api.persistence.StorageIndexDescriptor.IndexType;
+import org.sensorhub.impl.persistence.perst.BasicStorageConfig;
+import org.sensorhub.impl.persistence.perst.BasicStorageImpl;
+import org.sensorhub.impl.persistence.perst.PartitionedStorageConfig;
+import org.sensorhub.impl.persistence.perst.PartitionedStorageImpl;
+import org.sensorhub.test.persistence.AbstractTestBasicStorage;
+
+
+public class TestPerstPartitionedStorage extends AbstractTestBasicStorage<PartitionedStorageImpl>
+{
+    File dbFile;
+    File targetFile;
+    
+    
+    @Before
+    public void init() throws Exception
+    {
+        PartitionedStorageConfig config = new PartitionedStorageConfig();
+        config.enabled = true;
+        config.memoryCacheSize = 1024;
+        config.partitionDuration = 1000.;
+        config.maxOpenPartitions = 2;
+        dbFile = File.createTempFile("testdb", ".dat");
+        dbFile.deleteOnExit();
+        config.storagePath = dbFile.getAbsolutePath();
+        
+        storage = new PartitionedStorageImpl();
+        storage.init(config);
+        storage.start();
+        storage.setAutoCommit(true);
+    }
+    
+
+    @Override
+    protected void forceReadBackFromStorage() throws Exception
+    {
+        storage.stop();
+        storage.start();
+    }
+    
+    
+    @Test
+    public void testRemoveOldRecordsDropsPartitions() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        
+        // write records over 5 partitions
+        storage.setAutoCommit(false);
+        for (int i=0; i<500; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        forceReadBackFromStorage();
+        assertEquals(5, getPartitionFiles().length);
+        assertEquals(500, storage.getNumRecords(recordDef.getName()));
+        
+        // remove records older than 2000s
+        int count = storage.removeRecords(new DataFilter(recordDef.getName()) {
+            public double[] getTimeStampRange() { return new double[] {Double.NEGATIVE_INFINITY, 1999.0}; }
+        });
+        assertEquals(200, count);
+        assertEquals(3, getPartitionFiles().length);
+        
+        // remove part of next partition
+        count = storage.removeRecords(new DataFilter(recordDef.getName()) {
+            public double[] getTimeStampRange() { return new double[] {Double.NEGATIVE_INFINITY, 2495.0}; }
+        });
+        assertEquals(50, count);
+        assertEquals(3, getPartitionFiles().length);
+        
+        forceReadBackFromStorage();
+        assertEquals(250, storage.getNumRecords(recordDef.getName()));
+        double[] timeRange = storage.getRecordsTimeRange(recordDef.getName());
+        assertEquals(2500.0, timeRange[0], 0.0);
+        assertEquals(4990.0, timeRange[1], 0.0);
+    }
+    
+    
+    @Test
+    public void testRemovedRecordsStayRemovedAfterRestart() throws Exception
+    {
+        DataComponent recordDef1 = createDs1();
+        DataComponent recordDef2 = createDs2();
+        
+        // write records of both types over 3 partitions
+        for (int i=0; i<300; i++)
+        {
+            storage.storeRecord(new DataKey(recordDef1.getName(), producerID, i*10.0), recordDef1.createDataBlock());
+            storage.storeRecord(new DataKey(recordDef2.getName(), producerID, i*10.0), recordDef2.createDataBlock());
+        }
+        
+        // remove all records of first type
+        int count = storage.removeRecords(new DataFilter(recordDef1.getName()));
+        assertEquals(300, count);
+        assertEquals(3, getPartitionFiles().length);
+        
+        forceReadBackFromStorage();
+        assertEquals(0, storage.getNumRecords(recordDef1.getName()));
+        assertFalse(storage.getDataBlockIterator(new DataFilter(recordDef1.getName())).hasNext());
+        assertEquals(300, storage.getNumRecords(recordDef2.getName()));
+        
+        // partitions are deleted once records of second type are removed
+        count = storage.removeRecords(new DataFilter(recordDef2.getName()));
+        assertEquals(300, count);
+        assertEquals(0, getPartitionFiles().length);
+    }
+    
+    
+    @Test
+    public void testIteratorReadsAcrossClosedPartitions() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        storage.setAutoCommit(false);
+        for (int i=0; i<1500; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*2.0), recordDef.createDataBlock());
+        storage.commit();
+        storage.setAutoCommit(true);
+        
+        // access other partitions while iterating so partitions being read are closed
+        Iterator<? extends IDataRecord> it = storage.getRecordIterator(new DataFilter(recordDef.getName()));
+        int count = 0;
+        while (it.hasNext())
+        {
+            assertEquals(count*2.0, it.next().getKey().timeStamp, 0.0);
+            storage.getDataBlock(new DataKey(recordDef.getName(), producerID, ((count+750) % 1500)*2.0));
+            count++;
+        }
+        assertEquals(1500, count);
+        
+        // abandoned iterator doesn't prevent partitions from being deleted
+        it = storage.getRecordIterator(new DataFilter(recordDef.getName()));
+        it.next();
+        storage.removeRecords(new DataFilter(recordDef.getName()));
+        assertEquals(0, getPartitionFiles().length);
+    }
+    
+    
+    @Test
+    public void testRollbackWithMorePartitionsThanOpenLimit() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        for (int i=0; i<100; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        
+        // write to more partitions than can be kept open
+        storage.setAutoCommit(false);
+        for (int i=100; i<500; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        assertEquals(500, storage.getNumRecords(recordDef.getName()));
+        storage.rollback();
+        
+        assertEquals(100, storage.getNumRecords(recordDef.getName()));
+        forceReadBackFromStorage();
+        assertEquals(100, storage.getNumRecords(recordDef.getName()));
+        assertEquals(1, getPartitionFiles().length);
+    }
+    
+    
+    @Test
+    public void testStatsReadWithoutOpeningPartitions() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        storage.setAutoCommit(false);
+        for (int i=0; i<500; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        forceReadBackFromStorage();
+        List<double[]> clusters = getClusters(recordDef.getName());
+        
+        // move partition files away so stats can only come from main file
+        File[] partitionFiles = getPartitionFiles();
+        assertEquals(5, partitionFiles.length);
+        for (File f: partitionFiles)
+            assertTrue(f.renameTo(new File(f.getPath() + ".moved")));
+        
+        try
+        {
+            assertEquals(500, storage.getNumRecords(recordDef.getName()));
+            double[] timeRange = storage.getRecordsTimeRange(recordDef.getName());
+            assertEquals(0.0, timeRange[0], 0.0);
+            assertEquals(4990.0, timeRange[1], 0.0);
+            
+            List<double[]> savedClusters = getClusters(recordDef.getName());
+            assertEquals(clusters.size(), savedClusters.size());
+            for (int i=0; i<clusters.size(); i++)
+                assertArrayEquals(clusters.get(i), savedClusters.get(i), 0.0);
+        }
+        finally
+        {
+            for (File f: partitionFiles)
+                new File(f.getPath() + ".moved").renameTo(f);
+        }
+        
+        // stats are updated when a partition is modified
+        storage.setAutoCommit(true);
+        storage.storeRecord(new DataKey(recordDef.getName(), producerID, 5500.0), recordDef.createDataBlock());
+        storage.removeRecord(new DataKey(recordDef.getName(), producerID, 0.0));
+        forceReadBackFromStorage();
+        assertEquals(500, storage.getNumRecords(recordDef.getName()));
+        double[] timeRange = storage.getRecordsTimeRange(recordDef.getName());
+        assertEquals(10.0, timeRange[0], 0.0);
+        assertEquals(5500.0, timeRange[1], 0.0);
+    }
+    
+    
+    @Test
+    public void testFieldIndexAcrossPartitions() throws Exception
+    {
+        DataComponent recordDef = createDs2();
+        storage.setAutoCommit(false);
+        for (int i=0; i<300; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), createDs2Data(recordDef, i));
+        storage.commit();
+        storage.setAutoCommit(true);
+        
+        // results are correct while existing partitions are being indexed
+        storage.addFieldIndex("c2", IndexType.BTREE);
+        assertEquals(1, storage.getAllFieldIndexes().size());
+        for (int i=300; i<400; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), createDs2Data(recordDef, i));
+        checkFieldFilterResults(recordDef, 400);
+        
+        forceReadBackFromStorage();
+        assertEquals(1, storage.getAllFieldIndexes().size());
+        checkFieldFilterResults(recordDef, 400);
+        
+        // removing index doesn't change results
+        storage.removeFieldIndex(storage.getAllFieldIndexes().get(0).id);
+        assertTrue(storage.getAllFieldIndexes().isEmpty());
+        checkFieldFilterResults(recordDef, 400);
+    }
+    
+    
+    @Test
+    public void testBackupAndRestore() throws Exception
+    {
+        DataComponent recordDef = createDs1();
+        ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        
+        storage.setAutoCommit(false);
+        for (int i=0; i<300; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        storage.backup(backup);
+        
+        // records and partitions added after backup are lost after restore
+        for (int i=300; i<500; i++)
+            storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), recordDef.createDataBlock());
+        storage.commit();
+        assertEquals(5, getPartitionFiles().length);
+        
+        storage.restore(new ByteArrayInputStream(backup.toByteArray()));
+        assertEquals(3, getPartitionFiles().length);
+        assertEquals(300, storage.getNumRecords(recordDef.getName()));
+        double[] timeRange = storage.getRecordsTimeRange(recordDef.getName());
+        assertEquals(0.0, timeRange[0], 0.0);
+        assertEquals(2990.0, timeRange[1], 0.0);
+    }
+    
+    
+    @Test
+    public void testSyncWithBasicStorage() throws Exception
+    {
+        storage.stop();
+        storage.getConfiguration().id = "source";
+        storage.getConfiguration().enableChangeLog = true;
+        storage.start();
+        
+        BasicStorageConfig targetConfig = new BasicStorageConfig();
+        targetConfig.id = "target";
+        targetConfig.memoryCacheSize = 1024;
+        targetFile = File.createTempFile("testdb", ".dat");
+        targetFile.deleteOnExit();
+        targetConfig.storagePath = targetFile.getAbsolutePath();
+        BasicStorageImpl target = new BasicStorageImpl();
+        target.init(targetConfig);
+        target.start();
+        
+        try
+        {
+            DataComponent recordDef = createDs1();
+            storage.setAutoCommit(false);
+            for (int i=0; i<500; i++)
+            {
+                DataBlock data = recordDef.createDataBlock();
+                data.setDoubleValue(i);
+                storage.storeRecord(new DataKey(recordDef.getName(), producerID, i*10.0), data);
+            }
+            storage.commit();
+            
+            storage.sync(target);
+            assertEquals(500, target.getNumRecords(recordDef.getName()));
+            
+            // removal of whole partitions is also sent
+            storage.removeRecords(new DataFilter(recordDef.getName()) {
+                public double[] getTimeStampRange() { return new double[] {Double.NEGATIVE_INFINITY, 1999.0}; }
+            });
+            DataBlock data = recordDef.createDataBlock();
+            data.setDoubleValue(-1.0);
+            storage.updateRecord(new DataKey(recordDef.getName(), producerID, 3000.0), data);
+            storage.commit();
+            assertEquals(3, getPartitionFiles().length);
+            
+            storage.sync(target);
+            assertEquals(300, target.getNumRecords(recordDef.getName()));
+            assertNull(target.getDataBlock(new DataKey(recordDef.getName(), producerID, 1000.0)));
+            assertEquals(-1.0, target.getDataBlock(new DataKey(recordDef.getName(), producerID, 3000.0)).getDoubleValue(), 0.0);
+        }
+        finally
+        {
+            target.stop();
+        }
+    }
+    
+    
+    @Test(expected = StorageException.class)
+    public void testSnapshotsNotSupported() throws Exception
+    {
+        storage.stop();
+        storage.getConfiguration().snapshotDir = dbFile.getParent();
+        storage.start();
+    }
+    
+    
+    protected DataBlock createDs2Data(DataComponent recordDef, int i)
+    {
+        DataBlock data = recordDef.createDataBlock();
+        data.setDoubleValue(0, i);
+        data.setIntValue(1, i % 10);
+        data.setStringValue(2, "text");
+        return data;
+    }
+    
+    
+    protected void checkFieldFilterResults(DataComponent recordDef, int numRecords)
+    {
+        final Collection<FieldFilter> fieldFilters = Arrays.asList(new FieldFilter("c2", 2, 3));
+        DataFilter filter = new DataFilter(recordDef.getName()) {
+            public Collection<FieldFilter> getFieldFilters() { return fieldFilters; }
+        };
+        
+        List<Double> expectedTimes = new ArrayList<Double>();
+        for (int i=0; i<numRecords; i++)
+        {
+            if (i % 10 == 2 || i % 10 == 3)
+                expectedTimes.add(i*10.0);
+        }
+        
+        List<Double> times = new ArrayList<Double>();
+        Iterator<? extends IDataRecord> it = storage.getRecordIterator(filter);
+        while (it.hasNext())
+            times.add(it.next().getKey().timeStamp);
+        
+        assertEquals(expectedTimes, times);
+        assertEquals(expectedTimes.size(), storage.getNumMatchingRecords(filter, Long.MAX_VALUE));
+    }
+    
+    
+    protected List<double[]> getClusters(String recordType)
+    {
+        List<double[]> clusters = new ArrayList<double[]>();
+        Iterator<double[]> it = storage.getRecordsTimeClusters(recordType);
+        while (it.hasNext())
+            clusters.add(it.next());
+        return clusters;
+    }
+    
+    
+    protected File[] getPartitionFiles()
+    {
+        final String prefix = dbFile.getName() + ".p";
+        return dbFile.getParentFile().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith(prefix);
+            }
+        });
+    }
+    
+    
+    @After
+    public void cleanup()
+    {
+        dbFile.delete();
+        for (File f: getPartitionFiles())
+            f.delete();
+        if (targetFile != null)
+            targetFile.delete();
+    }
+    
+}